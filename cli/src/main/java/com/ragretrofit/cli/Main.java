@@ -1,5 +1,7 @@
 package com.ragretrofit.cli;
 
+import com.ragretrofit.stores.vector.CodeVectorStore;
+import com.ragretrofit.stores.vector.VectorStoreConfig;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Parameters;
@@ -7,6 +9,7 @@ import picocli.CommandLine.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.concurrent.Callable;
@@ -303,6 +306,10 @@ class StatusCommand implements Callable<Integer> {
             description = "Path to index directory to check (default: ./rag-index)")
     private Path indexPath = Paths.get("./rag-index");
     
+    @Option(names = {"--vector-recall"}, 
+            description = "Measure recall@10, latency and memory of int8 and PCA vector scans against float32")
+    private boolean vectorRecall = false;
+    
     @Override
     public Integer call() {
         System.out.println("RAG Retrofit Pipeline Status");
@@ -322,11 +329,40 @@ class StatusCommand implements Callable<Integer> {
             
             // Check for index files
             Path bm25Path = indexPath.resolve("bm25");
-            Path vectorPath = indexPath.resolve("vectors.json");
+            Path vectorPath = indexPath.resolve("vectors.seg");
+            Path shardLayoutPath = indexPath.resolve("vectors.shards");
+            Path legacyVectorPath = indexPath.resolve("vectors.json");
             Path graphPath = indexPath.resolve("graph");
             
             System.out.printf("  BM25 index: %s%n", bm25Path.toFile().exists() ? "✓ Present" : "✗ Missing");
-            System.out.printf("  Vector index: %s%n", vectorPath.toFile().exists() ? "✓ Present" : "✗ Missing");
+            if (vectorPath.toFile().exists() || shardLayoutPath.toFile().exists()) {
+                System.out.println("  Vector index: ✓ Present");
+                if (vectorRecall) {
+                    // Measured over the checkpointed segments without opening the store, so status never writes
+                    Path vectorIndex = indexPath.resolve("vectors.json");
+                    VectorStoreConfig vectorConfig = VectorStoreConfig.defaults();
+                    try {
+                        int shards = CodeVectorStore.recordedShards(vectorIndex);
+                        if (shards > 1) {
+                            System.out.printf("  Vector shards: %d%n", shards);
+                        }
+                        System.out.printf("  Vector quantization: %s%n", CodeVectorStore.evaluateCheckpoint(vectorIndex,
+                                vectorConfig, 200, 10, VectorStoreConfig.Quantization.INT8,
+                                vectorConfig.getRescoreMultiplier()));
+                        for (int rescoreMultiplier : new int[] {4, 10, 30}) {
+                            System.out.printf("  Vector projection: %s%n", CodeVectorStore.evaluateCheckpoint(
+                                    vectorIndex, vectorConfig, 200, 10, VectorStoreConfig.Quantization.PCA,
+                                    rescoreMultiplier));
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        System.out.printf("  Vector recall: ✗ %s%n", e.getMessage());
+                    }
+                }
+            } else if (legacyVectorPath.toFile().exists()) {
+                System.out.println("  Vector index: ✓ Present (legacy JSON, migrated on next load)");
+            } else {
+                System.out.println("  Vector index: ✗ Missing");
+            }
             System.out.printf("  Graph index: %s%n", graphPath.toFile().exists() ? "✓ Present" : "✗ Missing");
         } else {
             System.out.println("✗ Index directory does not exist");
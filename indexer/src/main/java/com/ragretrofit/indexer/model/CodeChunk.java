@@ -1,6 +1,7 @@
 package com.ragretrofit.indexer.model;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import java.util.List;
@@ -182,6 +183,7 @@ public class CodeChunk {
     /**
      * Get searchable text combining content with context
      */
+    @JsonIgnore
     public String getSearchableText() {
         StringBuilder sb = new StringBuilder();
         
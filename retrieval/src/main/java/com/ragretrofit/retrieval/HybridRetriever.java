@@ -2,6 +2,8 @@ package com.ragretrofit.retrieval;
 
 import com.ragretrofit.indexer.model.CodeChunk;
 import com.ragretrofit.stores.lucene.LuceneBM25Store;
+import com.ragretrofit.stores.vector.CodeVectorStore;
+import com.ragretrofit.stores.vector.VectorFilter;
 import com.ragretrofit.stores.vector.VectorStore;
 import dev.langchain4j.data.document.Document;
 import dev.langchain4j.data.document.Metadata;
@@ -25,7 +27,7 @@ public class HybridRetriever implements Retriever<TextSegment> {
     private static final Logger logger = LoggerFactory.getLogger(HybridRetriever.class);
     
     private final LuceneBM25Store bm25Store;
-    private final VectorStore vectorStore;
+    private final CodeVectorStore vectorStore;
     private final CodeGraphFilter graphFilter;
     private final LLMReranker llmReranker;
     
@@ -36,7 +38,7 @@ public class HybridRetriever implements Retriever<TextSegment> {
     private final double vectorSimilarityThreshold;
     
     public HybridRetriever(LuceneBM25Store bm25Store, 
-                          VectorStore vectorStore,
+                          CodeVectorStore vectorStore,
                           CodeGraphFilter graphFilter,
                           String openAiApiKey) {
         this(bm25Store, vectorStore, graphFilter, openAiApiKey, 
@@ -44,7 +46,7 @@ public class HybridRetriever implements Retriever<TextSegment> {
     }
     
     public HybridRetriever(LuceneBM25Store bm25Store,
-                          VectorStore vectorStore,
+                          CodeVectorStore vectorStore,
                           CodeGraphFilter graphFilter,
                           String openAiApiKey,
                           int bm25PrefilterSize,
@@ -105,7 +107,7 @@ public class HybridRetriever implements Retriever<TextSegment> {
             List<VectorStore.SimilarityResult> vectorResults = performVectorRecall(graphFiltered, query);
             
             // Stage 4: LLM Reranking
-            List<RerankedResult> reranked = performLLMReranking(vectorResults, query);
+            List<RerankedResult> reranked = performLLMReranking(vectorResults, query, maxResults);
             
             // Convert to TextSegments
             List<TextSegment> finalResults = reranked.stream()
@@ -142,11 +144,11 @@ public class HybridRetriever implements Retriever<TextSegment> {
             
             // Vector recall with source code similarity
             List<VectorStore.SimilarityResult> vectorResults = performPatternVectorRecall(
-                    graphFiltered, sourceCode);
+                    graphFiltered, sourceCode, preferredType);
             
             // LLM reranking with pattern context
             List<RerankedResult> reranked = performPatternLLMReranking(
-                    vectorResults, sourceCode, targetHint, preferredType);
+                    vectorResults, sourceCode, targetHint, preferredType, finalResultSize);
             
             return reranked.stream()
                     .limit(finalResultSize)
@@ -189,34 +191,32 @@ public class HybridRetriever implements Retriever<TextSegment> {
     private List<VectorStore.SimilarityResult> performVectorRecall(
             List<LuceneBM25Store.SearchResult> candidates, String query) {
         
-        // Get vector similarities for all candidates
+        // Score only the BM25 candidates rather than searching the whole corpus
         Set<String> candidateIds = candidates.stream()
                 .map(LuceneBM25Store.SearchResult::getId)
                 .collect(Collectors.toSet());
         
-        List<VectorStore.SimilarityResult> vectorResults = vectorStore.findSimilar(
-                query, vectorRecallSize, vectorSimilarityThreshold);
-        
-        // Filter to only include BM25 candidates (intersection)
-        List<VectorStore.SimilarityResult> filtered = vectorResults.stream()
-                .filter(result -> candidateIds.contains(result.getChunkId()))
-                .collect(Collectors.toList());
+        List<VectorStore.SimilarityResult> vectorResults = vectorStore.findSimilarAmong(
+                query, candidateIds, vectorRecallSize, vectorSimilarityThreshold);
         
         logger.debug("Vector recall: {} candidates → {} similar results", 
-                candidates.size(), filtered.size());
+                candidates.size(), vectorResults.size());
         
-        return filtered;
+        return vectorResults;
     }
     
     /**
      * Stage 4: LLM Reranking
      */
     private List<RerankedResult> performLLMReranking(
-            List<VectorStore.SimilarityResult> vectorResults, String query) {
+            List<VectorStore.SimilarityResult> vectorResults, String query, int maxResults) {
         
         if (llmReranker == null) {
-            // Fallback to vector score-based ranking
+            // Fallback to vector score-based ranking; results are already in that order, so only
+            // the ones returned need their chunk loaded
             return vectorResults.stream()
+                    .limit(maxResults)
+                    .filter(result -> result.getChunk() != null)
                     .map(result -> new RerankedResult(
                             result.getChunk(),
                             result.getSimilarity(),
@@ -285,26 +285,26 @@ public class HybridRetriever implements Retriever<TextSegment> {
     }
     
     private List<VectorStore.SimilarityResult> performPatternVectorRecall(
-            List<LuceneBM25Store.SearchResult> candidates, String sourceCode) {
+            List<LuceneBM25Store.SearchResult> candidates, String sourceCode, CodeChunk.ChunkType preferredType) {
         
         Set<String> candidateIds = candidates.stream()
                 .map(LuceneBM25Store.SearchResult::getId)
                 .collect(Collectors.toSet());
         
-        List<VectorStore.SimilarityResult> vectorResults = vectorStore.findSimilar(
-                sourceCode, vectorRecallSize * 2, vectorSimilarityThreshold * 0.8); // Lower threshold for patterns
-        
-        return vectorResults.stream()
-                .filter(result -> candidateIds.contains(result.getChunkId()))
-                .collect(Collectors.toList());
+        // Same type restriction as the BM25 stage, applied before scoring on the vector store's own metadata
+        VectorFilter typeFilter = preferredType != null ? VectorFilter.ofTypes(preferredType) : null;
+        return vectorStore.findSimilarAmong(
+                sourceCode, candidateIds, vectorRecallSize * 2, vectorSimilarityThreshold * 0.8, typeFilter); // Lower threshold for patterns
     }
     
     private List<RerankedResult> performPatternLLMReranking(
             List<VectorStore.SimilarityResult> vectorResults, String sourceCode, 
-            String targetHint, CodeChunk.ChunkType preferredType) {
+            String targetHint, CodeChunk.ChunkType preferredType, int maxResults) {
         
         if (llmReranker == null) {
             return vectorResults.stream()
+                    .limit(maxResults)
+                    .filter(result -> result.getChunk() != null)
                     .map(result -> new RerankedResult(
                             result.getChunk(),
                             result.getSimilarity(),
@@ -0,0 +1,46 @@
+package com.ragretrofit.stores.lucene;
+
+/**
+ * Throughput of one bulk indexing run: documents indexed per second, on how many threads, the time
+ * spent force merging, and how many segments the committed index ended up with.
+ */
+public class BulkIndexReport {
+
+    private final int documents;
+    private final int threads;
+    private final int segments;
+    private final long indexMillis;
+    private final long mergeMillis;
+    private final long millis;
+
+    public BulkIndexReport(int documents, int threads, int segments, long indexMillis, long mergeMillis, long millis) {
+        this.documents = documents;
+        this.threads = threads;
+        this.segments = segments;
+        this.indexMillis = indexMillis;
+        this.mergeMillis = mergeMillis;
+        this.millis = millis;
+    }
+
+    // Getters
+    public int getDocuments() { return documents; }
+    public int getThreads() { return threads; }
+    public int getSegments() { return segments; }
+    public long getIndexMillis() { return indexMillis; }
+    public long getMergeMillis() { return mergeMillis; }
+    public long getMillis() { return millis; }
+
+    /**
+     * Documents per second over the whole run, including the force merge and commit
+     */
+    public double getDocsPerSecond() {
+        return millis > 0 ? documents * 1000.0 / millis : 0.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d documents in %.1f s (%.1f docs/s) on %d thread%s, %.1f s force merging, %d segments",
+                documents, millis / 1000.0, getDocsPerSecond(), threads, threads == 1 ? "" : "s",
+                mergeMillis / 1000.0, segments);
+    }
+}
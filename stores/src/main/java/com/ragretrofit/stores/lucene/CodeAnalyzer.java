@@ -0,0 +1,104 @@
+package com.ragretrofit.stores.lucene;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.StopFilter;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.FlattenGraphFilter;
+import org.apache.lucene.analysis.miscellaneous.WordDelimiterGraphFilter;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.util.CharTokenizer;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Analyzer for source code fields. Identifiers and dotted names are kept whole as tokens and also
+ * split into their parts at case changes, underscores, dots and digit boundaries, so
+ * "getUserAccountById" indexes getuseraccountbyid, get, user, account, by and id, and
+ * "com.acme.UserService" indexes the dotted name plus com, acme, user and service. Everything is
+ * lowercased, and Java keywords, which occur in nearly every chunk, are dropped. The word graph is
+ * flattened so the same analyzer serves indexing and query parsing.
+ */
+final class CodeAnalyzer extends Analyzer {
+
+    /**
+     * Recorded with every commit; an index written with another analysis has to be rebuilt
+     */
+    static final String VERSION = "code-1";
+
+    private static final int WORD_DELIMITER_FLAGS = WordDelimiterGraphFilter.GENERATE_WORD_PARTS
+            | WordDelimiterGraphFilter.GENERATE_NUMBER_PARTS
+            | WordDelimiterGraphFilter.SPLIT_ON_CASE_CHANGE
+            | WordDelimiterGraphFilter.SPLIT_ON_NUMERICS
+            | WordDelimiterGraphFilter.PRESERVE_ORIGINAL;
+
+    private static final CharArraySet JAVA_KEYWORDS = CharArraySet.unmodifiableSet(new CharArraySet(List.of(
+            "abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class", "const",
+            "continue", "default", "do", "double", "else", "enum", "extends", "final", "finally", "float",
+            "for", "goto", "if", "implements", "import", "instanceof", "int", "interface", "long", "native",
+            "new", "package", "private", "protected", "public", "return", "short", "static", "strictfp",
+            "super", "switch", "synchronized", "this", "throw", "throws", "transient", "try", "void",
+            "volatile", "while", "var", "true", "false", "null"), false));
+
+    @Override
+    protected TokenStreamComponents createComponents(String fieldName) {
+        // Identifier characters plus dots, so qualified names and call chains arrive in one piece
+        Tokenizer tokenizer = CharTokenizer.fromTokenCharPredicate(
+                c -> Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '.');
+        TokenStream stream = new TrimDotsFilter(tokenizer);
+        stream = new WordDelimiterGraphFilter(stream, WORD_DELIMITER_FLAGS, null);
+        stream = new FlattenGraphFilter(stream);
+        stream = new LowerCaseFilter(stream);
+        stream = new StopFilter(stream, JAVA_KEYWORDS);
+        return new TokenStreamComponents(tokenizer, stream);
+    }
+
+    @Override
+    protected TokenStream normalize(String fieldName, TokenStream in) {
+        return new LowerCaseFilter(in);
+    }
+
+    /**
+     * Strips sentence punctuation dots from the ends of a token and drops tokens made only of dots
+     */
+    private static final class TrimDotsFilter extends TokenFilter {
+        private final CharTermAttribute termAttribute = addAttribute(CharTermAttribute.class);
+        private final OffsetAttribute offsetAttribute = addAttribute(OffsetAttribute.class);
+
+        private TrimDotsFilter(TokenStream input) {
+            super(input);
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            while (input.incrementToken()) {
+                char[] buffer = termAttribute.buffer();
+                int length = termAttribute.length();
+                int start = 0;
+                while (start < length && buffer[start] == '.') {
+                    start++;
+                }
+                int end = length;
+                while (end > start && buffer[end - 1] == '.') {
+                    end--;
+                }
+                if (end == start) {
+                    continue;
+                }
+                if (start > 0 || end < length) {
+                    int startOffset = offsetAttribute.startOffset();
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    termAttribute.setLength(end - start);
+                    offsetAttribute.setOffset(startOffset + start, startOffset + end);
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.ragretrofit.stores.lucene;
 
 import com.ragretrofit.indexer.model.CodeChunk;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
@@ -17,13 +18,26 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Lucene-based BM25 lexical search store for fast prefiltering of code chunks.
  * Optimized for Java source code and technical content.
+ * Searches run on near-real-time readers opened from the index writer and shared through a
+ * {@link SearcherManager}: each search acquires the current searcher and releases it when done, so a
+ * reopen never closes a reader still in use. A background thread reopens within the configured
+ * staleness, and each reopen only loads the segments written since the last one. Safe for concurrent
+ * indexing and searching.
  */
 public class LuceneBM25Store implements AutoCloseable {
     
@@ -32,42 +46,91 @@ public class LuceneBM25Store implements AutoCloseable {
     // Lucene field names
     private static final String FIELD_ID = "id";
     private static final String FIELD_CONTENT = "content";
-    private static final String FIELD_SEARCHABLE_TEXT = "searchable_text";
+    private static final String FIELD_SEARCHABLE_TEXT = LuceneStoreConfig.SearchField.SEARCHABLE_TEXT.fieldName();
     private static final String FIELD_FILE_PATH = "file_path";
-    private static final String FIELD_FQN = "fully_qualified_name";
+    private static final String FIELD_FQN = LuceneStoreConfig.SearchField.FULLY_QUALIFIED_NAME.fieldName();
     private static final String FIELD_TYPE = "chunk_type";
-    private static final String FIELD_CLASS_CONTEXT = "class_context";
-    private static final String FIELD_PACKAGE_CONTEXT = "package_context";
-    private static final String FIELD_API_CALLS = "api_calls";
-    private static final String FIELD_MVC_MAPPING = "mvc_mapping";
+    private static final String FIELD_CLASS_CONTEXT = LuceneStoreConfig.SearchField.CLASS_CONTEXT.fieldName();
+    private static final String FIELD_PACKAGE_CONTEXT = LuceneStoreConfig.SearchField.PACKAGE_CONTEXT.fieldName();
+    private static final String FIELD_API_CALLS = LuceneStoreConfig.SearchField.API_CALLS.fieldName();
+    private static final String FIELD_MVC_MAPPING = LuceneStoreConfig.SearchField.MVC_MAPPING.fieldName();
     
+    // Commit user data key naming the analysis the index was written with
+    private static final String COMMIT_ANALYZER = "analyzer";
+    
+    // Bulk loads only spread over threads once each thread gets this many chunks
+    private static final int MIN_CHUNKS_PER_INDEXING_THREAD = 256;
+    // Segments per tier while bulk loading, letting more segments pile up before merging them
+    private static final double BULK_SEGMENTS_PER_TIER = 20.0;
+    
+    private final LuceneStoreConfig storeConfig;
     private final Directory directory;
     private final Analyzer analyzer;
+    private final MultiFieldQueryBuilder queryBuilder;
     private final IndexWriter indexWriter;
-    private IndexReader indexReader;
-    private IndexSearcher indexSearcher;
+    private final SearcherManager searcherManager;
+    private final ControlledRealTimeReopenThread<IndexSearcher> reopenThread;
+    
+    // Sequence number of the latest change, for callers waiting to see their own writes
+    private final AtomicLong latestGeneration = new AtomicLong(-1);
+    
+    // Held for a whole bulk load, which swaps the writer's live settings and restores them afterwards
+    private final ReentrantLock bulkLoadLock = new ReentrantLock();
     
     public LuceneBM25Store(Path indexPath) throws IOException {
+        this(indexPath, LuceneStoreConfig.defaults());
+    }
+    
+    public LuceneBM25Store(Path indexPath, LuceneStoreConfig storeConfig) throws IOException {
+        this.storeConfig = storeConfig;
         this.directory = FSDirectory.open(indexPath);
-        this.analyzer = new StandardAnalyzer();
+        // Code fields are split into identifier parts; prose-like fields keep standard analysis
+        Analyzer codeAnalyzer = new CodeAnalyzer();
+        Analyzer standardAnalyzer = new StandardAnalyzer();
+        Map<String, Analyzer> fieldAnalyzers = Map.of(
+                FIELD_SEARCHABLE_TEXT, codeAnalyzer,
+                FIELD_API_CALLS, codeAnalyzer,
+                FIELD_FQN, codeAnalyzer,
+                FIELD_CLASS_CONTEXT, standardAnalyzer,
+                FIELD_PACKAGE_CONTEXT, standardAnalyzer,
+                FIELD_MVC_MAPPING, standardAnalyzer);
+        this.analyzer = new PerFieldAnalyzerWrapper(standardAnalyzer, fieldAnalyzers);
+        Map<String, Float> fieldBoosts = new LinkedHashMap<>();
+        storeConfig.getFieldBoosts().forEach((field, boost) -> fieldBoosts.put(field.fieldName(), boost));
+        this.queryBuilder = new MultiFieldQueryBuilder(fieldBoosts, fieldAnalyzers);
+        warnIfAnalyzedDifferently(indexPath);
         
         IndexWriterConfig config = new IndexWriterConfig(analyzer);
         config.setSimilarity(new BM25Similarity(1.2f, 0.75f)); // Standard BM25 parameters
         config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
         
         this.indexWriter = new IndexWriter(directory, config);
+        indexWriter.setLiveCommitData(Map.of(COMMIT_ANALYZER, CodeAnalyzer.VERSION).entrySet());
+        this.searcherManager = new SearcherManager(indexWriter, true, false, new SearcherFactory() {
+            @Override
+            public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                searcher.setSimilarity(new BM25Similarity(1.2f, 0.75f));
+                return searcher;
+            }
+        });
+        this.reopenThread = new ControlledRealTimeReopenThread<>(indexWriter, searcherManager,
+                storeConfig.getMaxStalenessMillis() / 1000.0, storeConfig.getMinStalenessMillis() / 1000.0);
+        reopenThread.setName("lucene-nrt-reopen");
+        reopenThread.setDaemon(true);
+        reopenThread.start();
         
-        refreshSearcher();
-        
-        logger.info("Initialized Lucene BM25 store at: {}", indexPath);
+        logger.info("Initialized Lucene BM25 store at: {} ({})", indexPath, storeConfig);
     }
     
     /**
-     * Index a code chunk for BM25 search
+     * Index a code chunk for BM25 search, replacing any document with the same chunk ID, so indexing
+     * a chunk again never duplicates it. It becomes searchable within the configured max staleness,
+     * or at the next commit or {@link #awaitSearchable()}.
      */
     public void indexChunk(CodeChunk chunk) throws IOException {
         Document doc = createDocument(chunk);
-        indexWriter.addDocument(doc);
+        recordChange(indexWriter.updateDocument(new Term(FIELD_ID, chunk.getId()), doc));
         
         if (logger.isDebugEnabled()) {
             logger.debug("Indexed chunk: {} ({})", chunk.getId(), chunk.getType());
@@ -75,17 +138,56 @@ public class LuceneBM25Store implements AutoCloseable {
     }
     
     /**
-     * Index multiple chunks in batch
+     * Index chunks in bulk, replacing documents with the same chunk IDs, from up to the configured
+     * number of indexing threads. During the load the writer buffers up to the bulk RAM size per
+     * flush, merges less eagerly and skips compound files for flushed segments; the index is then
+     * optionally force merged and committed once at the end. Searchers keep reopening within the
+     * max staleness meanwhile, and each reopen flushes a small segment, so a store opened only to
+     * rebuild the index loads fastest with a max staleness longer than the load. Concurrent bulk
+     * loads run one after another; single-chunk indexing is not blocked.
      */
-    public void indexChunks(List<CodeChunk> chunks) throws IOException {
-        logger.info("Indexing {} chunks in batch", chunks.size());
+    public BulkIndexReport indexChunks(List<CodeChunk> chunks) throws IOException {
+        bulkLoadLock.lock();
+        try {
+            return bulkLoad(chunks);
+        } finally {
+            bulkLoadLock.unlock();
+        }
+    }
+    
+    private BulkIndexReport bulkLoad(List<CodeChunk> chunks) throws IOException {
+        int threads = Math.max(1, Math.min(storeConfig.getIndexingThreads(),
+                chunks.size() / MIN_CHUNKS_PER_INDEXING_THREAD));
+        logger.info("Indexing {} chunks in bulk on {} threads", chunks.size(), threads);
+        long start = System.nanoTime();
         
-        for (CodeChunk chunk : chunks) {
-            indexChunk(chunk);
+        LiveIndexWriterConfig liveConfig = indexWriter.getConfig();
+        double ramBufferSizeMB = liveConfig.getRAMBufferSizeMB();
+        MergePolicy mergePolicy = liveConfig.getMergePolicy();
+        boolean useCompoundFile = liveConfig.getUseCompoundFile();
+        liveConfig.setRAMBufferSizeMB(storeConfig.getBulkRamBufferSizeMB());
+        liveConfig.setMergePolicy(bulkMergePolicy());
+        liveConfig.setUseCompoundFile(false);
+        try {
+            feed(chunks, threads);
+        } finally {
+            liveConfig.setRAMBufferSizeMB(ramBufferSizeMB);
+            liveConfig.setMergePolicy(mergePolicy);
+            liveConfig.setUseCompoundFile(useCompoundFile);
         }
+        long indexed = System.nanoTime();
         
+        if (storeConfig.getForceMergeSegments() > 0) {
+            indexWriter.forceMerge(storeConfig.getForceMergeSegments());
+        }
+        long merged = System.nanoTime();
         commit();
-        logger.info("Successfully indexed {} chunks", chunks.size());
+        
+        BulkIndexReport report = new BulkIndexReport(chunks.size(), threads, segmentCount(),
+                TimeUnit.NANOSECONDS.toMillis(indexed - start), TimeUnit.NANOSECONDS.toMillis(merged - indexed),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        logger.info("Indexed {}", report);
+        return report;
     }
     
     /**
@@ -96,37 +198,23 @@ public class LuceneBM25Store implements AutoCloseable {
     }
     
     /**
-     * Search with optional type filter
+     * Search with optional type filter. The text is matched against every indexed text field, each
+     * weighted by its configured boost; the type only filters and does not change scores.
      */
     public List<SearchResult> search(String queryText, int maxResults, CodeChunk.ChunkType typeFilter) throws IOException {
-        refreshSearcherIfNeeded();
-        
+        IndexSearcher searcher = searcherManager.acquire();
         try {
-            QueryParser parser = new QueryParser(FIELD_SEARCHABLE_TEXT, analyzer);
-            Query query = parser.parse(QueryParser.escape(queryText));
+            Query query = queryBuilder.build(queryText, searcher);
             
             // Add type filter if specified
             if (typeFilter != null) {
                 BooleanQuery.Builder booleanQuery = new BooleanQuery.Builder();
                 booleanQuery.add(query, BooleanClause.Occur.MUST);
-                booleanQuery.add(new TermQuery(new Term(FIELD_TYPE, typeFilter.name())), BooleanClause.Occur.MUST);
+                booleanQuery.add(new TermQuery(new Term(FIELD_TYPE, typeFilter.name())), BooleanClause.Occur.FILTER);
                 query = booleanQuery.build();
             }
             
-            TopDocs topDocs = indexSearcher.search(query, maxResults);
-            
-            List<SearchResult> results = new ArrayList<>();
-            for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
-                Document doc = indexSearcher.doc(scoreDoc.doc);
-                results.add(new SearchResult(
-                        doc.get(FIELD_ID),
-                        doc.get(FIELD_CONTENT),
-                        scoreDoc.score,
-                        doc.get(FIELD_FILE_PATH),
-                        doc.get(FIELD_FQN),
-                        CodeChunk.ChunkType.valueOf(doc.get(FIELD_TYPE))
-                ));
-            }
+            List<SearchResult> results = execute(searcher, query, maxResults);
             
             logger.debug("BM25 search for '{}' returned {} results", queryText, results.size());
             return results;
@@ -134,6 +222,8 @@ public class LuceneBM25Store implements AutoCloseable {
         } catch (Exception e) {
             logger.error("Error performing BM25 search", e);
             throw new IOException("Search failed", e);
+        } finally {
+            searcherManager.release(searcher);
         }
     }
     
@@ -141,28 +231,11 @@ public class LuceneBM25Store implements AutoCloseable {
      * Search for chunks by fully qualified name pattern
      */
     public List<SearchResult> searchByFQN(String fqnPattern, int maxResults) throws IOException {
-        refreshSearcherIfNeeded();
-        
         try {
             QueryParser parser = new QueryParser(FIELD_FQN, analyzer);
             Query query = parser.parse(fqnPattern);
             
-            TopDocs topDocs = indexSearcher.search(query, maxResults);
-            
-            List<SearchResult> results = new ArrayList<>();
-            for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
-                Document doc = indexSearcher.doc(scoreDoc.doc);
-                results.add(new SearchResult(
-                        doc.get(FIELD_ID),
-                        doc.get(FIELD_CONTENT),
-                        scoreDoc.score,
-                        doc.get(FIELD_FILE_PATH),
-                        doc.get(FIELD_FQN),
-                        CodeChunk.ChunkType.valueOf(doc.get(FIELD_TYPE))
-                ));
-            }
-            
-            return results;
+            return execute(query, maxResults);
             
         } catch (Exception e) {
             logger.error("Error searching by FQN", e);
@@ -174,28 +247,11 @@ public class LuceneBM25Store implements AutoCloseable {
      * Search for chunks in specific file paths
      */
     public List<SearchResult> searchByFilePath(String pathPattern, int maxResults) throws IOException {
-        refreshSearcherIfNeeded();
-        
         try {
             QueryParser parser = new QueryParser(FIELD_FILE_PATH, analyzer);
             Query query = parser.parse(pathPattern);
             
-            TopDocs topDocs = indexSearcher.search(query, maxResults);
-            
-            List<SearchResult> results = new ArrayList<>();
-            for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
-                Document doc = indexSearcher.doc(scoreDoc.doc);
-                results.add(new SearchResult(
-                        doc.get(FIELD_ID),
-                        doc.get(FIELD_CONTENT),
-                        scoreDoc.score,
-                        doc.get(FIELD_FILE_PATH),
-                        doc.get(FIELD_FQN),
-                        CodeChunk.ChunkType.valueOf(doc.get(FIELD_TYPE))
-                ));
-            }
-            
-            return results;
+            return execute(query, maxResults);
             
         } catch (Exception e) {
             logger.error("Error searching by file path", e);
@@ -207,16 +263,64 @@ public class LuceneBM25Store implements AutoCloseable {
      * Get total number of indexed documents
      */
     public int getDocumentCount() throws IOException {
-        refreshSearcherIfNeeded();
-        return indexSearcher.getIndexReader().numDocs();
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            return searcher.getIndexReader().numDocs();
+        } finally {
+            searcherManager.release(searcher);
+        }
     }
     
     /**
-     * Commit all pending changes
+     * Commit all pending changes and make them visible to searches
      */
     public void commit() throws IOException {
         indexWriter.commit();
-        refreshSearcher();
+        searcherManager.maybeRefreshBlocking();
+    }
+    
+    /**
+     * Block until every change made so far is visible to searches, without committing; the reopen
+     * thread hurries up but keeps at least the configured min staleness between reopens
+     */
+    public void awaitSearchable() throws IOException {
+        long generation = latestGeneration.get();
+        if (generation < 0) {
+            return;
+        }
+        try {
+            reopenThread.waitForGeneration(generation);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the searcher to reopen", e);
+        }
+    }
+    
+    /**
+     * Delete every chunk of a source file, e.g. one removed from the codebase
+     */
+    public void deleteByFilePath(String filePath) throws IOException {
+        recordChange(indexWriter.deleteDocuments(new Term(FIELD_FILE_PATH, filePath)));
+        logger.debug("Deleted chunks of file: {}", filePath);
+    }
+    
+    /**
+     * Replace all chunks of a source file with its freshly parsed chunks, for incremental re-indexing
+     * of a changed file. The old documents are deleted and the new ones added as one atomic operation,
+     * so no searcher ever sees the file missing or half indexed. Like other writes, the change is
+     * durable at the next commit.
+     */
+    public void replaceFile(String filePath, List<CodeChunk> chunks) throws IOException {
+        List<Document> docs = new ArrayList<>(chunks.size());
+        for (CodeChunk chunk : chunks) {
+            if (!filePath.equals(chunk.getFilePath())) {
+                throw new IllegalArgumentException("Chunk " + chunk.getId() + " belongs to " + chunk.getFilePath()
+                        + ", not " + filePath);
+            }
+            docs.add(createDocument(chunk));
+        }
+        recordChange(indexWriter.updateDocuments(new Term(FIELD_FILE_PATH, filePath), docs));
+        logger.debug("Replaced chunks of file {} with {} chunks", filePath, chunks.size());
     }
     
     /**
@@ -226,7 +330,7 @@ public class LuceneBM25Store implements AutoCloseable {
         try {
             QueryParser parser = new QueryParser(FIELD_SEARCHABLE_TEXT, analyzer);
             Query query = parser.parse(queryText);
-            indexWriter.deleteDocuments(query);
+            recordChange(indexWriter.deleteDocuments(query));
             
         } catch (Exception e) {
             logger.error("Error deleting documents", e);
@@ -238,7 +342,7 @@ public class LuceneBM25Store implements AutoCloseable {
      * Clear the entire index
      */
     public void clear() throws IOException {
-        indexWriter.deleteAll();
+        recordChange(indexWriter.deleteAll());
         commit();
         logger.info("Cleared Lucene BM25 index");
     }
@@ -281,33 +385,154 @@ public class LuceneBM25Store implements AutoCloseable {
         return doc;
     }
     
-    private void refreshSearcher() throws IOException {
-        if (indexReader != null) {
-            indexReader.close();
+    /**
+     * Index the chunks on the calling thread, or on worker threads that each take the next unindexed
+     * chunk; the first failure stops every worker. Returns only once every worker has stopped, also
+     * when interrupted, so the caller never restores the writer settings under a running worker.
+     */
+    private void feed(List<CodeChunk> chunks, int threads) throws IOException {
+        if (threads == 1) {
+            for (CodeChunk chunk : chunks) {
+                indexChunk(chunk);
+            }
+            return;
+        }
+        
+        AtomicInteger next = new AtomicInteger();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                try {
+                    int index;
+                    while (failure.get() == null && (index = next.getAndIncrement()) < chunks.size()) {
+                        indexChunk(chunks.get(index));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "lucene-bulk-indexer-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            failure.compareAndSet(null, e);
+            joinUninterruptibly(workers);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while bulk indexing");
         }
         
-        indexReader = DirectoryReader.open(directory);
-        indexSearcher = new IndexSearcher(indexReader);
-        indexSearcher.setSimilarity(new BM25Similarity(1.2f, 0.75f));
+        Exception e = failure.get();
+        if (e != null) {
+            logger.error("Error bulk indexing chunks", e);
+            throw new IOException("Bulk indexing failed", e);
+        }
     }
     
-    private void refreshSearcherIfNeeded() throws IOException {
-        if (indexReader == null || !indexReader.isCurrent()) {
-            refreshSearcher();
+    /**
+     * Wait for the workers to finish their current chunk and stop, deferring interrupts until they have
+     */
+    private static void joinUninterruptibly(Thread[] workers) {
+        boolean interrupted = false;
+        for (Thread worker : workers) {
+            while (true) {
+                try {
+                    worker.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
     }
     
-    @Override
-    public void close() throws IOException {
-        if (indexWriter != null) {
-            indexWriter.close();
+    /**
+     * Tiered merging that tolerates more segments per tier, so a bulk load spends less time
+     * rewriting segments that later merges would rewrite again
+     */
+    private static MergePolicy bulkMergePolicy() {
+        TieredMergePolicy policy = new TieredMergePolicy();
+        policy.setSegmentsPerTier(BULK_SEGMENTS_PER_TIER);
+        policy.setMaxMergeAtOnce((int) BULK_SEGMENTS_PER_TIER);
+        return policy;
+    }
+    
+    private int segmentCount() throws IOException {
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            return searcher.getIndexReader().leaves().size();
+        } finally {
+            searcherManager.release(searcher);
         }
-        if (indexReader != null) {
-            indexReader.close();
+    }
+    
+    /**
+     * Remember the sequence number of a change for {@link #awaitSearchable()}
+     */
+    private void recordChange(long sequenceNumber) {
+        latestGeneration.accumulateAndGet(sequenceNumber, Math::max);
+    }
+    
+    /**
+     * Terms of an index written with another analysis do not line up with query terms analyzed now,
+     * so searches quietly miss; only a rebuild fixes that
+     */
+    private void warnIfAnalyzedDifferently(Path indexPath) throws IOException {
+        if (!DirectoryReader.indexExists(directory)) {
+            return;
         }
-        if (directory != null) {
-            directory.close();
+        SegmentInfos commit = SegmentInfos.readLatestCommit(directory);
+        String analyzedWith = commit.getUserData().get(COMMIT_ANALYZER);
+        if (commit.totalMaxDoc() > 0 && !CodeAnalyzer.VERSION.equals(analyzedWith)) {
+            logger.warn("BM25 index at {} was written with {} analysis, expected {}; re-index to restore lexical recall",
+                    indexPath, analyzedWith != null ? analyzedWith : "standard", CodeAnalyzer.VERSION);
         }
+    }
+    
+    /**
+     * Run a query on the current searcher, holding it only for the search and stored field reads
+     */
+    private List<SearchResult> execute(Query query, int maxResults) throws IOException {
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            return execute(searcher, query, maxResults);
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
+    
+    private List<SearchResult> execute(IndexSearcher searcher, Query query, int maxResults) throws IOException {
+        TopDocs topDocs = searcher.search(query, maxResults);
+        
+        List<SearchResult> results = new ArrayList<>();
+        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+            Document doc = searcher.doc(scoreDoc.doc);
+            results.add(new SearchResult(
+                    doc.get(FIELD_ID),
+                    doc.get(FIELD_CONTENT),
+                    scoreDoc.score,
+                    doc.get(FIELD_FILE_PATH),
+                    doc.get(FIELD_FQN),
+                    CodeChunk.ChunkType.valueOf(doc.get(FIELD_TYPE))
+            ));
+        }
+        return results;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        // Stop reopening before the writer the readers come from goes away
+        reopenThread.close();
+        searcherManager.close();
+        indexWriter.close();
+        directory.close();
         
         logger.info("Closed Lucene BM25 store");
     }
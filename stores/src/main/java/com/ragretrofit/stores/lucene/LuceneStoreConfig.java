@@ -0,0 +1,188 @@
+package com.ragretrofit.stores.lucene;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Tuning options for {@link LuceneBM25Store}: how quickly searches see new writes, how much each
+ * indexed field counts towards a match, and how bulk loads are indexed.
+ */
+public class LuceneStoreConfig {
+
+    /**
+     * Indexed text fields a search query is matched against
+     */
+    public enum SearchField {
+        /** Package, imports, class context, annotations and the chunk's code */
+        SEARCHABLE_TEXT("searchable_text"),
+        /** Fully qualified name of the chunk's class or member */
+        FULLY_QUALIFIED_NAME("fully_qualified_name"),
+        /** Enclosing class declaration */
+        CLASS_CONTEXT("class_context"),
+        /** Declared Java package */
+        PACKAGE_CONTEXT("package_context"),
+        /** Methods the chunk calls, in call order */
+        API_CALLS("api_calls"),
+        /** Spring MVC request mappings and view names */
+        MVC_MAPPING("mvc_mapping");
+
+        private final String fieldName;
+
+        SearchField(String fieldName) {
+            this.fieldName = fieldName;
+        }
+
+        String fieldName() {
+            return fieldName;
+        }
+    }
+
+    private final long maxStalenessMillis;
+    private final long minStalenessMillis;
+    private final Map<SearchField, Float> fieldBoosts;
+    private final int indexingThreads;
+    private final double bulkRamBufferSizeMB;
+    private final int forceMergeSegments;
+
+    private LuceneStoreConfig(Builder builder) {
+        this.maxStalenessMillis = builder.maxStalenessMillis;
+        this.minStalenessMillis = builder.minStalenessMillis;
+        this.fieldBoosts = Collections.unmodifiableMap(new EnumMap<>(builder.fieldBoosts));
+        this.indexingThreads = builder.indexingThreads;
+        this.bulkRamBufferSizeMB = builder.bulkRamBufferSizeMB;
+        this.forceMergeSegments = builder.forceMergeSegments;
+    }
+
+    public static class Builder {
+        private long maxStalenessMillis = 1000;
+        private long minStalenessMillis = 25;
+        private final Map<SearchField, Float> fieldBoosts = new EnumMap<>(Map.of(
+                SearchField.SEARCHABLE_TEXT, 1.0f,
+                SearchField.FULLY_QUALIFIED_NAME, 2.0f,
+                SearchField.CLASS_CONTEXT, 0.5f,
+                SearchField.PACKAGE_CONTEXT, 0.5f,
+                SearchField.API_CALLS, 1.5f,
+                SearchField.MVC_MAPPING, 1.0f));
+        private int indexingThreads = Runtime.getRuntime().availableProcessors();
+        private double bulkRamBufferSizeMB = 256.0;
+        private int forceMergeSegments = 0;
+
+        /**
+         * Longest time an indexed chunk may stay invisible to searches when nobody waits for it;
+         * the background reopen thread refreshes the near-real-time searcher at least this often
+         */
+        public Builder maxStalenessMillis(long maxStalenessMillis) {
+            this.maxStalenessMillis = maxStalenessMillis;
+            return this;
+        }
+
+        /**
+         * Shortest interval between reopens when a caller waits for its own writes to become visible
+         */
+        public Builder minStalenessMillis(long minStalenessMillis) {
+            this.minStalenessMillis = minStalenessMillis;
+            return this;
+        }
+
+        /**
+         * Weight of a field's matches in the score; 0 leaves the field out of searches
+         */
+        public Builder fieldBoost(SearchField field, float boost) {
+            this.fieldBoosts.put(field, boost);
+            return this;
+        }
+
+        /**
+         * Threads feeding documents to the index writer during a bulk load
+         */
+        public Builder indexingThreads(int indexingThreads) {
+            this.indexingThreads = indexingThreads;
+            return this;
+        }
+
+        /**
+         * Memory the index writer may buffer documents in before flushing a segment during a bulk load
+         */
+        public Builder bulkRamBufferSizeMB(double bulkRamBufferSizeMB) {
+            this.bulkRamBufferSizeMB = bulkRamBufferSizeMB;
+            return this;
+        }
+
+        /**
+         * Merge the index down to at most this many segments after a bulk load; 0 leaves merging to
+         * the merge policy
+         */
+        public Builder forceMergeSegments(int forceMergeSegments) {
+            this.forceMergeSegments = forceMergeSegments;
+            return this;
+        }
+
+        public LuceneStoreConfig build() {
+            if (minStalenessMillis < 0 || maxStalenessMillis < minStalenessMillis) {
+                throw new IllegalArgumentException("Staleness bounds must satisfy 0 <= min <= max");
+            }
+            if (maxStalenessMillis < 1) {
+                throw new IllegalArgumentException("Max staleness must be positive");
+            }
+            if (fieldBoosts.values().stream().anyMatch(boost -> !(boost >= 0.0f))) {
+                throw new IllegalArgumentException("Field boosts must be non-negative numbers");
+            }
+            if (fieldBoosts.values().stream().noneMatch(boost -> boost > 0.0f)) {
+                throw new IllegalArgumentException("At least one field must have a positive boost");
+            }
+            if (indexingThreads < 1) {
+                throw new IllegalArgumentException("Indexing threads must be positive");
+            }
+            if (!(bulkRamBufferSizeMB > 0.0)) {
+                throw new IllegalArgumentException("Bulk RAM buffer size must be positive");
+            }
+            if (forceMergeSegments < 0) {
+                throw new IllegalArgumentException("Force merge segment count must not be negative");
+            }
+            return new LuceneStoreConfig(this);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * A builder starting from every setting of an existing config
+     */
+    public static Builder builder(LuceneStoreConfig config) {
+        Builder builder = new Builder()
+                .maxStalenessMillis(config.maxStalenessMillis)
+                .minStalenessMillis(config.minStalenessMillis)
+                .indexingThreads(config.indexingThreads)
+                .bulkRamBufferSizeMB(config.bulkRamBufferSizeMB)
+                .forceMergeSegments(config.forceMergeSegments);
+        config.fieldBoosts.forEach(builder::fieldBoost);
+        return builder;
+    }
+
+    public static LuceneStoreConfig defaults() {
+        return builder().build();
+    }
+
+    // Getters
+    public long getMaxStalenessMillis() { return maxStalenessMillis; }
+    public long getMinStalenessMillis() { return minStalenessMillis; }
+    public Map<SearchField, Float> getFieldBoosts() { return fieldBoosts; }
+    public int getIndexingThreads() { return indexingThreads; }
+    public double getBulkRamBufferSizeMB() { return bulkRamBufferSizeMB; }
+    public int getForceMergeSegments() { return forceMergeSegments; }
+
+    @Override
+    public String toString() {
+        return "LuceneStoreConfig{" +
+                "maxStalenessMillis=" + maxStalenessMillis +
+                ", minStalenessMillis=" + minStalenessMillis +
+                ", fieldBoosts=" + fieldBoosts +
+                ", indexingThreads=" + indexingThreads +
+                ", bulkRamBufferSizeMB=" + bulkRamBufferSizeMB +
+                ", forceMergeSegments=" + forceMergeSegments +
+                '}';
+    }
+}
@@ -0,0 +1,115 @@
+package com.ragretrofit.stores.lucene;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BlendedTermQuery;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.Query;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Turns free query text into a weighted match over several indexed fields without a query parser.
+ * The text is analyzed once per distinct field analyzer, reusing the analyzers' cached token streams.
+ * Each distinct term becomes a {@link BlendedTermQuery} over the fields that produced it: document
+ * frequencies are blended across the fields, so a term that is rare in a small field such as the
+ * package does not outscore the same term in the code, and the best field counts in full with a
+ * small share of the others. Terms are optional clauses, so chunks matching more of them rank higher.
+ * Immutable and safe for concurrent use.
+ */
+final class MultiFieldQueryBuilder {
+
+    // Long queries, e.g. whole source snippets, keep their first terms within Lucene's clause limit
+    private static final int MAX_QUERY_TERMS = 128;
+    private static final float TIE_BREAKER = 0.1f;
+
+    private final Map<String, Float> fieldBoosts;
+    // Fields grouped by the analyzer that indexes them, so each analysis runs once per query
+    private final Map<Analyzer, List<String>> fieldsByAnalyzer;
+
+    MultiFieldQueryBuilder(Map<String, Float> fieldBoosts, Map<String, Analyzer> fieldAnalyzers) {
+        this.fieldBoosts = new LinkedHashMap<>();
+        this.fieldsByAnalyzer = new IdentityHashMap<>();
+        fieldBoosts.forEach((field, boost) -> {
+            if (boost > 0.0f) {
+                this.fieldBoosts.put(field, boost);
+                fieldsByAnalyzer.computeIfAbsent(fieldAnalyzers.get(field), analyzer -> new ArrayList<>()).add(field);
+            }
+        });
+    }
+
+    /**
+     * The query for a text against the fields the searcher's index holds, or one matching nothing if
+     * no field analysis leaves any term. Blending needs field statistics, so fields no document has
+     * yet are left out.
+     */
+    Query build(String queryText, IndexSearcher searcher) throws IOException {
+        // Term text to the fields it was produced for, in order of first appearance
+        Map<String, List<String>> fieldsByTerm = new LinkedHashMap<>();
+        for (Map.Entry<Analyzer, List<String>> entry : fieldsByAnalyzer.entrySet()) {
+            List<String> indexedFields = new ArrayList<>(entry.getValue().size());
+            for (String field : entry.getValue()) {
+                if (searcher.collectionStatistics(field) != null) {
+                    indexedFields.add(field);
+                }
+            }
+            if (indexedFields.isEmpty()) {
+                continue;
+            }
+            for (String term : analyze(entry.getKey(), indexedFields.get(0), queryText)) {
+                List<String> fields = fieldsByTerm.get(term);
+                if (fields == null) {
+                    if (fieldsByTerm.size() == MAX_QUERY_TERMS) {
+                        continue;
+                    }
+                    fields = new ArrayList<>();
+                    fieldsByTerm.put(term, fields);
+                }
+                fields.addAll(indexedFields);
+            }
+        }
+        if (fieldsByTerm.isEmpty()) {
+            return new MatchNoDocsQuery("no terms in query");
+        }
+
+        BooleanQuery.Builder query = new BooleanQuery.Builder();
+        for (Map.Entry<String, List<String>> entry : fieldsByTerm.entrySet()) {
+            BlendedTermQuery.Builder blended = new BlendedTermQuery.Builder()
+                    .setRewriteMethod(new BlendedTermQuery.DisjunctionMaxRewrite(TIE_BREAKER));
+            for (String field : entry.getValue()) {
+                blended.add(new Term(field, entry.getKey()), fieldBoosts.get(field));
+            }
+            query.add(blended.build(), BooleanClause.Occur.SHOULD);
+        }
+        return query.build();
+    }
+
+    private static Set<String> analyze(Analyzer analyzer, String field, String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        try (TokenStream stream = analyzer.tokenStream(field, text)) {
+            CharTermAttribute termAttribute = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                terms.add(termAttribute.toString());
+            }
+            stream.end();
+        } catch (IOException e) {
+            // Analysis reads from a string and cannot fail on I/O
+            throw new UncheckedIOException(e);
+        }
+        return terms;
+    }
+}
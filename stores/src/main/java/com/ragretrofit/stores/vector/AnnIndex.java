@@ -0,0 +1,68 @@
+package com.ragretrofit.stores.vector;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.function.IntPredicate;
+
+/**
+ * Approximate nearest-neighbour index built over the rows of a {@link FlatVectorStorage}.
+ * Implementations read vectors from the storage by ordinal rather than keeping their own copy,
+ * and never return ordinals the storage has tombstoned.
+ */
+interface AnnIndex {
+
+    /**
+     * Index the vector already stored at the given ordinal
+     */
+    void add(int ordinal);
+
+    /**
+     * Stop returning an ordinal the storage has tombstoned; its row stays until compaction
+     */
+    void remove(int ordinal);
+
+    /**
+     * Find the k stored vectors most similar to a unit-length query, returned as a heap of
+     * (ordinal, score) pairs
+     */
+    TopKHeap search(float[] query, int k);
+
+    /**
+     * Search with an explicit breadth (HNSW ef, IVF nprobe); values below 1 use the configured default
+     */
+    TopKHeap search(float[] query, int k, int breadth);
+
+    /**
+     * Search returning only ordinals the filter accepts; the filter is tested during traversal, before
+     * a row is scored or enters the results, so up to k matches come back however selective it is
+     */
+    TopKHeap search(float[] query, int k, int breadth, IntPredicate filter);
+
+    /**
+     * A fresh index with the same parameters over the rows of a storage, e.g. a snapshot of the
+     * one this index reads from
+     */
+    AnnIndex rebuild(FlatVectorStorage storage);
+
+    /**
+     * Read rows from another storage holding the same rows at the same ordinals, e.g. the live
+     * storage once an index built over its snapshot is swapped in
+     */
+    void attach(FlatVectorStorage storage);
+
+    /**
+     * True if the index still answers correctly but was trained on a much smaller corpus
+     * and should be rebuilt at the next offline opportunity
+     */
+    boolean needsRetraining();
+
+    /**
+     * Number of indexed ordinals
+     */
+    int size();
+
+    /**
+     * Persist the index next to the vector segment
+     */
+    void save(Path path) throws IOException;
+}
@@ -0,0 +1,317 @@
+package com.ragretrofit.stores.vector;
+
+import com.ragretrofit.indexer.model.CodeChunk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntPredicate;
+
+/**
+ * Per-ordinal metadata columns for filtered search: chunk type as a byte, package and file as
+ * int IDs into dictionaries of the distinct values. A {@link VectorFilter} is compiled against the
+ * dictionaries once per search into a {@link Matcher} that tests an ordinal with a few array reads,
+ * cheap enough to run before a row is scored. Rows mirror the storage ordinals; mutations must be
+ * externally serialized.
+ */
+final class ChunkMetadata {
+
+    private static final int MAGIC = 0x524D4554; // "RMET"
+    private static final int VERSION = 1;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int SELECTIVITY_SAMPLE_SIZE = 1024;
+    private static final byte NO_TYPE = -1;
+    private static final int NO_VALUE = -1;
+    private static final CodeChunk.ChunkType[] TYPES = CodeChunk.ChunkType.values();
+
+    private byte[] types;
+    private int[] packageIds;
+    private int[] fileIds;
+    private int count;
+
+    private final Dictionary packages;
+    private final Dictionary files;
+
+    ChunkMetadata() {
+        this(new Dictionary(), new Dictionary());
+    }
+
+    private ChunkMetadata(Dictionary packages, Dictionary files) {
+        this.packages = packages;
+        this.files = files;
+        this.types = new byte[INITIAL_CAPACITY];
+        this.packageIds = new int[INITIAL_CAPACITY];
+        this.fileIds = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Record a chunk's metadata at its ordinal; rows skipped over are left without metadata
+     */
+    void set(int ordinal, CodeChunk chunk) {
+        if (ordinal >= count) {
+            ensureCapacity(ordinal + 1);
+            Arrays.fill(types, count, ordinal, NO_TYPE);
+            Arrays.fill(packageIds, count, ordinal, NO_VALUE);
+            Arrays.fill(fileIds, count, ordinal, NO_VALUE);
+            count = ordinal + 1;
+        }
+        types[ordinal] = chunk.getType() != null ? (byte) chunk.getType().ordinal() : NO_TYPE;
+        packageIds[ordinal] = packages.idOf(chunk.getPackageContext());
+        fileIds[ordinal] = files.idOf(chunk.getFilePath());
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * True if the row at an ordinal already records this chunk's type, package and file
+     */
+    boolean matches(int ordinal, CodeChunk chunk) {
+        if (ordinal >= count) {
+            return false;
+        }
+        byte type = chunk.getType() != null ? (byte) chunk.getType().ordinal() : NO_TYPE;
+        return types[ordinal] == type
+                && packages.holds(packageIds[ordinal], chunk.getPackageContext())
+                && files.holds(fileIds[ordinal], chunk.getFilePath());
+    }
+
+    /**
+     * The metadata of a storage's live rows, renumbered densely in ordinal order as compaction does
+     */
+    ChunkMetadata compacted(FlatVectorStorage storage) {
+        ChunkMetadata compacted = new ChunkMetadata(packages.copy(), files.copy());
+        compacted.ensureCapacity(storage.liveCount());
+        for (int ordinal = 0; ordinal < storage.size(); ordinal++) {
+            if (storage.isDeleted(ordinal)) {
+                continue;
+            }
+            int target = compacted.count++;
+            boolean known = ordinal < count;
+            compacted.types[target] = known ? types[ordinal] : NO_TYPE;
+            compacted.packageIds[target] = known ? packageIds[ordinal] : NO_VALUE;
+            compacted.fileIds[target] = known ? fileIds[ordinal] : NO_VALUE;
+        }
+        return compacted;
+    }
+
+    /**
+     * Resolve a filter's values to column IDs; values never seen match no row
+     */
+    Matcher compile(VectorFilter filter) {
+        int typeMask = -1;
+        if (filter.getTypes() != null) {
+            typeMask = 0;
+            for (CodeChunk.ChunkType type : filter.getTypes()) {
+                typeMask |= 1 << type.ordinal();
+            }
+        }
+        return new Matcher(typeMask, packages.idsOf(filter.getPackages()), files.idsOf(filter.getFilePaths()));
+    }
+
+    void save(Path path) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tempPath), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            packages.write(out);
+            files.write(out);
+            out.write(types, 0, count);
+            for (int i = 0; i < count; i++) {
+                out.writeInt(packageIds[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                out.writeInt(fileIds[i]);
+            }
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load persisted columns, or return null if they cover more than the given number of rows.
+     * Rows are only ever appended, so columns saved before the last rows were added stay valid and
+     * the caller fills in the rest.
+     */
+    static ChunkMetadata load(Path path, int rows) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            int count = in.readInt();
+            if (count > rows) {
+                return null;
+            }
+            ChunkMetadata metadata = new ChunkMetadata(Dictionary.read(in), Dictionary.read(in));
+            metadata.ensureCapacity(count);
+            in.readFully(metadata.types, 0, count);
+            for (int i = 0; i < count; i++) {
+                metadata.packageIds[i] = in.readInt();
+            }
+            for (int i = 0; i < count; i++) {
+                metadata.fileIds[i] = in.readInt();
+            }
+            metadata.count = count;
+            return metadata;
+        }
+    }
+
+    private void ensureCapacity(int rows) {
+        if (rows <= types.length) {
+            return;
+        }
+        int grown = (int) Math.min(Math.max(rows, (long) types.length * 2), Integer.MAX_VALUE - 8);
+        types = Arrays.copyOf(types, grown);
+        packageIds = Arrays.copyOf(packageIds, grown);
+        fileIds = Arrays.copyOf(fileIds, grown);
+    }
+
+    /**
+     * A filter resolved against the columns; null ID sets accept any value
+     */
+    final class Matcher implements IntPredicate {
+        private final int typeMask;
+        private final BitSet packageIdSet;
+        private final BitSet fileIdSet;
+
+        private Matcher(int typeMask, BitSet packageIdSet, BitSet fileIdSet) {
+            this.typeMask = typeMask;
+            this.packageIdSet = packageIdSet;
+            this.fileIdSet = fileIdSet;
+        }
+
+        @Override
+        public boolean test(int ordinal) {
+            if (ordinal >= count) {
+                return false;
+            }
+            int type = types[ordinal];
+            return (typeMask == -1 || (type >= 0 && (typeMask & (1 << type)) != 0))
+                    && (packageIdSet == null || matches(packageIdSet, packageIds[ordinal]))
+                    && (fileIdSet == null || matches(fileIdSet, fileIds[ordinal]));
+        }
+
+        /**
+         * Estimated fraction of the storage's rows that pass the filter, from an evenly strided sample
+         */
+        double selectivity(FlatVectorStorage storage) {
+            int size = storage.size();
+            if (size == 0) {
+                return 0.0;
+            }
+            int samples = Math.min(size, SELECTIVITY_SAMPLE_SIZE);
+            double stride = (double) size / samples;
+            int matched = 0;
+            for (int i = 0; i < samples; i++) {
+                if (test((int) (i * stride))) {
+                    matched++;
+                }
+            }
+            return (double) matched / samples;
+        }
+
+        /**
+         * Live ordinals below the storage size that pass the filter, in ascending order
+         */
+        int[] matchingOrdinals(FlatVectorStorage storage) {
+            int[] ordinals = new int[16];
+            int matched = 0;
+            for (int ordinal = 0, size = storage.size(); ordinal < size; ordinal++) {
+                if (test(ordinal) && !storage.isDeleted(ordinal)) {
+                    if (matched == ordinals.length) {
+                        ordinals = Arrays.copyOf(ordinals, matched * 2);
+                    }
+                    ordinals[matched++] = ordinal;
+                }
+            }
+            return Arrays.copyOf(ordinals, matched);
+        }
+
+        private boolean matches(BitSet ids, int id) {
+            return id >= 0 && ids.get(id);
+        }
+    }
+
+    /**
+     * Distinct string values of a column, numbered in order of first appearance
+     */
+    private static final class Dictionary {
+        private final List<String> values;
+        private final Map<String, Integer> ids;
+
+        private Dictionary() {
+            this(new ArrayList<>(), new HashMap<>());
+        }
+
+        private Dictionary(List<String> values, Map<String, Integer> ids) {
+            this.values = values;
+            this.ids = ids;
+        }
+
+        int idOf(String value) {
+            if (value == null) {
+                return NO_VALUE;
+            }
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = values.size();
+                values.add(value);
+                ids.put(value, id);
+            }
+            return id;
+        }
+
+        boolean holds(int id, String value) {
+            return value == null ? id == NO_VALUE : id != NO_VALUE && value.equals(values.get(id));
+        }
+
+        BitSet idsOf(Set<String> wanted) {
+            if (wanted == null) {
+                return null;
+            }
+            BitSet idSet = new BitSet();
+            for (String value : wanted) {
+                Integer id = ids.get(value);
+                if (id != null) {
+                    idSet.set(id);
+                }
+            }
+            return idSet;
+        }
+
+        Dictionary copy() {
+            return new Dictionary(new ArrayList<>(values), new HashMap<>(ids));
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(values.size());
+            for (String value : values) {
+                out.writeUTF(value);
+            }
+        }
+
+        static Dictionary read(DataInputStream in) throws IOException {
+            int size = in.readInt();
+            Dictionary dictionary = new Dictionary();
+            for (int i = 0; i < size; i++) {
+                dictionary.idOf(in.readUTF());
+            }
+            return dictionary;
+        }
+    }
+}
@@ -0,0 +1,662 @@
+package com.ragretrofit.stores.vector;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ragretrofit.indexer.model.CodeChunk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * On-disk store of chunk bodies, so only vectors need to stay resident. Chunks are appended as
+ * JSON records, optionally deflate-compressed, and an in-memory open-addressing table maps a 64-bit
+ * hash of each chunk ID to its record's offset and length; bodies are read back on demand, so about
+ * 28 bytes per chunk stay on the heap. IDs whose hashes collide share the probe sequence, and the
+ * ID stored in each record tells them apart.
+ *
+ * Layout (big-endian): a 16-byte header (magic, version, int64 length known to be synced) followed by
+ * <pre>
+ *   length   int32 payload bytes
+ *   crc      int32 CRC-32 of the payload
+ *   payload  encoding byte, int32 + UTF-8 chunk ID, then either the JSON body (encoding 0),
+ *            int32 JSON length + the deflated JSON body (encoding 1) or nothing for a removal (encoding 2)
+ * </pre>
+ * Replaced chunks and removal records are dead until {@link #compactIfWasteful()} rewrites the file
+ * without them; a removal record keeps the chunk removed when the file is opened again. Records past the synced length are verified on open and a torn tail is truncated; the
+ * write-ahead log restores whatever it held. Safe for concurrent use.
+ */
+final class ChunkStore implements Closeable {
+
+    private static final int MAGIC = 0x52434853; // "RCHS"
+    private static final int VERSION = 2;
+    private static final int VERSION_WITHOUT_REMOVALS = 1;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + Long.BYTES;
+    private static final int SYNCED_END_OFFSET = 2 * Integer.BYTES;
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int PAYLOAD_PREFIX_SIZE = 1 + Integer.BYTES;
+    private static final int INITIAL_CAPACITY = 1 << 12;
+
+    private static final byte ENCODING_JSON = 0;
+    private static final byte ENCODING_DEFLATE = 1;
+    private static final byte ENCODING_REMOVED = 2;
+
+    // Slot markers; real offsets are never below the header size
+    private static final long EMPTY = 0;
+    private static final long REMOVED = -1;
+
+    private final Path path;
+    private final ObjectMapper objectMapper;
+    private final boolean compress;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private FileChannel channel;
+    private long[] hashes;
+    private long[] offsets;
+    private int[] lengths;
+    private int size;
+    private int removedSlots;
+    private long end;
+    private long liveBytes;
+
+    private ChunkStore(Path path, ObjectMapper objectMapper, boolean compress) {
+        this.path = path;
+        this.objectMapper = objectMapper;
+        this.compress = compress;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Open or create the store, indexing every intact record already in it
+     */
+    static ChunkStore open(Path path, ObjectMapper objectMapper, boolean compress) throws IOException {
+        ChunkStore store = new ChunkStore(path, objectMapper, compress);
+        store.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            store.load();
+            return store;
+        } catch (IOException | RuntimeException e) {
+            store.channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The stored chunk with this ID, or null if there is none
+     */
+    CodeChunk get(String chunkId) throws IOException {
+        long hash = hash(chunkId);
+        lock.readLock().lock();
+        try {
+            // Read each record under the hash until one holds the ID, rather than the ID then the body
+            int mask = offsets.length - 1;
+            for (int slot = home(hash); offsets[slot] != EMPTY; slot = (slot + 1) & mask) {
+                if (offsets[slot] != REMOVED && hashes[slot] == hash) {
+                    ByteBuffer payload = readPayload(offsets[slot], lengths[slot]);
+                    byte encoding = payload.get();
+                    if (chunkId.equals(readId(payload))) {
+                        return decode(encoding, payload);
+                    }
+                }
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    boolean contains(String chunkId) {
+        lock.readLock().lock();
+        try {
+            return offsets[find(chunkId)] != EMPTY;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read chunk store " + path, e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Append a chunk, replacing any earlier body stored under its ID
+     */
+    void put(CodeChunk chunk) throws IOException {
+        byte[] payload = encode(chunk);
+        lock.writeLock().lock();
+        try {
+            long offset = append(payload);
+            index(chunk.getId(), offset, payload.length);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forget a chunk, appending a removal record so it stays removed when the file is opened again;
+     * its body stays in the file until the next rewrite
+     */
+    void remove(String chunkId) throws IOException {
+        lock.writeLock().lock();
+        try {
+            int slot = find(chunkId);
+            if (offsets[slot] != EMPTY) {
+                byte[] id = chunkId.getBytes(StandardCharsets.UTF_8);
+                append(ByteBuffer.allocate(PAYLOAD_PREFIX_SIZE + id.length)
+                        .put(ENCODING_REMOVED).putInt(id.length).put(id).array());
+                unindex(slot);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drop every chunk and truncate the file to its header
+     */
+    void clear() throws IOException {
+        lock.writeLock().lock();
+        try {
+            channel.truncate(HEADER_SIZE);
+            end = HEADER_SIZE;
+            writeSyncedEnd();
+            allocate(INITIAL_CAPACITY);
+            size = 0;
+            removedSlots = 0;
+            liveBytes = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stream every stored chunk, in no particular order
+     */
+    void readAll(Consumer<CodeChunk> consumer) throws IOException {
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < offsets.length; slot++) {
+                if (offsets[slot] > EMPTY) {
+                    ByteBuffer payload = readPayload(offsets[slot], lengths[slot]);
+                    byte encoding = payload.get();
+                    readId(payload);
+                    consumer.accept(decode(encoding, payload));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Bytes of the file taken by records of stored chunks, as opposed to replaced or removed ones
+     */
+    long liveBytes() {
+        lock.readLock().lock();
+        try {
+            return liveBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    long fileBytes() {
+        lock.readLock().lock();
+        try {
+            return end;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Force appended records to disk and record how far the file is known to be intact
+     */
+    void flush() throws IOException {
+        lock.writeLock().lock();
+        try {
+            channel.force(false);
+            writeSyncedEnd();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrite the file without dead records once they take more than half of it.
+     * Returns true if the file was rewritten.
+     */
+    boolean compactIfWasteful() throws IOException {
+        lock.writeLock().lock();
+        try {
+            long records = end - HEADER_SIZE;
+            if (records == 0 || liveBytes * 2 >= records) {
+                return false;
+            }
+            rewrite();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void load() throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (fileSize < HEADER_SIZE) {
+            // New store, or one whose header was torn before any record could follow it
+            channel.truncate(0);
+            header.putInt(MAGIC).putInt(VERSION).putLong(HEADER_SIZE).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(false);
+            end = HEADER_SIZE;
+            return;
+        }
+        readFully(header, 0);
+        int version = header.getInt() == MAGIC ? header.getInt() : -1;
+        if (version != VERSION && version != VERSION_WITHOUT_REMOVALS) {
+            throw new IOException("Not a chunk store, or an unsupported version: " + path);
+        }
+        long syncedEnd = header.getLong();
+        if (version == VERSION_WITHOUT_REMOVALS) {
+            // Same layout, but readers of that version would not know removal records
+            ByteBuffer upgraded = ByteBuffer.allocate(Integer.BYTES).putInt(VERSION).flip();
+            while (upgraded.hasRemaining()) {
+                channel.write(upgraded, Integer.BYTES + upgraded.position());
+            }
+        }
+
+        long position = HEADER_SIZE;
+        ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE + PAYLOAD_PREFIX_SIZE);
+        while (position + recordHeader.capacity() <= fileSize) {
+            recordHeader.clear();
+            readFully(recordHeader, position);
+            int length = recordHeader.getInt();
+            int checksum = recordHeader.getInt();
+            byte encoding = recordHeader.get();
+            int idLength = recordHeader.getInt();
+            if (length < PAYLOAD_PREFIX_SIZE || idLength < 0 || idLength > length - PAYLOAD_PREFIX_SIZE
+                    || position + RECORD_HEADER_SIZE + length > fileSize) {
+                break;
+            }
+
+            byte[] id;
+            if (position + RECORD_HEADER_SIZE + length > syncedEnd) {
+                // Written after the last flush, so it may be torn: verify the whole payload
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(payload, position + RECORD_HEADER_SIZE);
+                CRC32 crc = new CRC32();
+                crc.update(payload.array());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                id = Arrays.copyOfRange(payload.array(), PAYLOAD_PREFIX_SIZE, PAYLOAD_PREFIX_SIZE + idLength);
+            } else {
+                ByteBuffer idBytes = ByteBuffer.allocate(idLength);
+                readFully(idBytes, position + RECORD_HEADER_SIZE + PAYLOAD_PREFIX_SIZE);
+                id = idBytes.array();
+            }
+            String chunkId = new String(id, StandardCharsets.UTF_8);
+            if (encoding == ENCODING_REMOVED) {
+                int slot = find(chunkId);
+                if (offsets[slot] != EMPTY) {
+                    unindex(slot);
+                }
+            } else {
+                index(chunkId, position, length);
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+
+        // Anything past the last intact record was torn by a crash mid-append
+        if (position < fileSize) {
+            channel.truncate(position);
+            channel.force(false);
+        }
+        end = position;
+        if (syncedEnd != end) {
+            writeSyncedEnd();
+        }
+    }
+
+    /**
+     * Copy the live records into a fresh file, swap it in and re-point the table. Caller must hold the write lock.
+     */
+    private void rewrite() throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        long[] newOffsets = new long[offsets.length];
+        long position = HEADER_SIZE;
+        try (FileChannel out = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(HEADER_SIZE).flip();
+            while (header.hasRemaining()) {
+                out.write(header, header.position());
+            }
+            for (int slot = 0; slot < offsets.length; slot++) {
+                if (offsets[slot] > EMPTY) {
+                    long recordSize = RECORD_HEADER_SIZE + lengths[slot];
+                    long copied = 0;
+                    while (copied < recordSize) {
+                        copied += channel.transferTo(offsets[slot] + copied, recordSize - copied,
+                                out.position(position + copied));
+                    }
+                    newOffsets[slot] = position;
+                    position += recordSize;
+                }
+            }
+            // Everything copied is forced below, so the whole file counts as synced
+            ByteBuffer syncedEnd = ByteBuffer.allocate(Long.BYTES);
+            syncedEnd.putLong(position).flip();
+            while (syncedEnd.hasRemaining()) {
+                out.write(syncedEnd, SYNCED_END_OFFSET + syncedEnd.position());
+            }
+            out.force(false);
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        channel.close();
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long[] oldHashes = hashes;
+        int[] oldLengths = lengths;
+        allocate(offsets.length);
+        removedSlots = 0;
+        size = 0;
+        liveBytes = 0;
+        for (int slot = 0; slot < newOffsets.length; slot++) {
+            if (newOffsets[slot] > EMPTY) {
+                place(oldHashes[slot], newOffsets[slot], oldLengths[slot]);
+                size++;
+                liveBytes += RECORD_HEADER_SIZE + oldLengths[slot];
+            }
+        }
+        end = position;
+    }
+
+    private byte[] encode(CodeChunk chunk) throws IOException {
+        byte[] id = chunk.getId().getBytes(StandardCharsets.UTF_8);
+        byte[] body = objectMapper.writeValueAsBytes(chunk);
+        int bodyLength = body.length;
+        if (compress) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(body);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2 + 64);
+                byte[] buffer = new byte[8192];
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+                body = out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+        ByteBuffer payload = ByteBuffer.allocate(PAYLOAD_PREFIX_SIZE + id.length + Integer.BYTES * (compress ? 1 : 0)
+                + body.length);
+        payload.put(compress ? ENCODING_DEFLATE : ENCODING_JSON).putInt(id.length).put(id);
+        if (compress) {
+            payload.putInt(bodyLength);
+        }
+        payload.put(body);
+        return payload.array();
+    }
+
+    /**
+     * Decode the chunk body following the ID; the payload must be positioned just after it
+     */
+    private CodeChunk decode(byte encoding, ByteBuffer payload) throws IOException {
+        byte[] bytes = payload.array();
+        if (encoding == ENCODING_JSON) {
+            return objectMapper.readValue(bytes, payload.position(), payload.remaining(), CodeChunk.class);
+        }
+        if (encoding != ENCODING_DEFLATE) {
+            throw new IOException("Unknown chunk encoding " + encoding + " in " + path);
+        }
+        byte[] json = new byte[payload.getInt()];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, payload.position(), payload.remaining());
+            int inflated = 0;
+            while (inflated < json.length && !inflater.finished()) {
+                int count = inflater.inflate(json, inflated, json.length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != json.length) {
+                throw new IOException("Truncated compressed chunk in " + path);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed chunk in " + path, e);
+        } finally {
+            inflater.end();
+        }
+        return objectMapper.readValue(json, CodeChunk.class);
+    }
+
+    /**
+     * Read a record's payload and check its CRC; the returned buffer is positioned at the payload
+     * within the record's backing array. Caller must hold the lock.
+     */
+    private ByteBuffer readPayload(long offset, int length) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        if (!readFully(record, offset)) {
+            throw new IOException("Chunk record truncated at offset " + offset + " in " + path);
+        }
+        record.getInt();
+        int checksum = record.getInt();
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, length);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Corrupt chunk record at offset " + offset + " in " + path);
+        }
+        return ByteBuffer.wrap(record.array(), RECORD_HEADER_SIZE, length);
+    }
+
+    /**
+     * Read the chunk ID following the encoding byte, leaving the payload positioned at the body
+     */
+    private static String readId(ByteBuffer payload) {
+        byte[] id = new byte[payload.getInt()];
+        payload.get(id);
+        return new String(id, StandardCharsets.UTF_8);
+    }
+
+    private void writeSyncedEnd() throws IOException {
+        ByteBuffer syncedEnd = ByteBuffer.allocate(Long.BYTES);
+        syncedEnd.putLong(end).flip();
+        while (syncedEnd.hasRemaining()) {
+            channel.write(syncedEnd, SYNCED_END_OFFSET + syncedEnd.position());
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Append a record holding the payload and return its offset. Caller must hold the write lock.
+     */
+    private long append(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        long offset = end;
+        while (record.hasRemaining()) {
+            channel.write(record, offset + record.position());
+        }
+        end += record.capacity();
+        return offset;
+    }
+
+    /**
+     * Point a chunk ID at a record, replacing any earlier record for it. Caller must hold the write lock.
+     */
+    private void index(String chunkId, long offset, int length) throws IOException {
+        if ((size + removedSlots + 1) * 4L > offsets.length * 3L) {
+            rehash();
+        }
+        int slot = find(chunkId);
+        if (offsets[slot] != EMPTY) {
+            liveBytes -= RECORD_HEADER_SIZE + lengths[slot];
+        } else {
+            size++;
+        }
+        hashes[slot] = hash(chunkId);
+        offsets[slot] = offset;
+        lengths[slot] = length;
+        liveBytes += RECORD_HEADER_SIZE + length;
+    }
+
+    /**
+     * Mark a slot removed, keeping the probe sequences through it intact. Caller must hold the write lock.
+     */
+    private void unindex(int slot) {
+        liveBytes -= RECORD_HEADER_SIZE + lengths[slot];
+        offsets[slot] = REMOVED;
+        size--;
+        removedSlots++;
+    }
+
+    /**
+     * Slot holding the chunk ID, or the empty slot where it would be inserted. Slots with the same
+     * hash but another ID, which only a collision leaves, are told apart by the ID in their record;
+     * removed slots are passed over so later entries in the probe sequence stay reachable.
+     */
+    private int find(String chunkId) throws IOException {
+        long hash = hash(chunkId);
+        byte[] id = null;
+        int mask = offsets.length - 1;
+        int slot = home(hash);
+        while (offsets[slot] != EMPTY) {
+            if (offsets[slot] != REMOVED && hashes[slot] == hash) {
+                if (id == null) {
+                    id = chunkId.getBytes(StandardCharsets.UTF_8);
+                }
+                if (holdsId(offsets[slot], id)) {
+                    return slot;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Whether the record at the offset is stored under the ID. Caller must hold the lock.
+     */
+    private boolean holdsId(long offset, byte[] id) throws IOException {
+        ByteBuffer prefix = ByteBuffer.allocate(PAYLOAD_PREFIX_SIZE + id.length);
+        if (!readFully(prefix, offset + RECORD_HEADER_SIZE)) {
+            throw new IOException("Chunk record truncated at offset " + offset + " in " + path);
+        }
+        prefix.get();
+        if (prefix.getInt() != id.length) {
+            return false;
+        }
+        return Arrays.equals(prefix.array(), PAYLOAD_PREFIX_SIZE, prefix.capacity(), id, 0, id.length);
+    }
+
+    /**
+     * Put an entry known to be absent, e.g. when rebuilding the table, in the first empty slot of its
+     * probe sequence. Caller must hold the write lock.
+     */
+    private void place(long hash, long offset, int length) {
+        int mask = offsets.length - 1;
+        int slot = home(hash);
+        while (offsets[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        hashes[slot] = hash;
+        offsets[slot] = offset;
+        lengths[slot] = length;
+    }
+
+    private int home(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & (offsets.length - 1);
+    }
+
+    /**
+     * Grow the table, or rebuild it at the same size when removed slots are what filled it
+     */
+    private void rehash() {
+        long[] oldHashes = hashes;
+        long[] oldOffsets = offsets;
+        int[] oldLengths = lengths;
+        allocate(size * 2 >= oldOffsets.length / 2 ? oldOffsets.length * 2 : oldOffsets.length);
+        removedSlots = 0;
+        for (int i = 0; i < oldOffsets.length; i++) {
+            if (oldOffsets[i] > EMPTY) {
+                place(oldHashes[i], oldOffsets[i], oldLengths[i]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        hashes = new long[capacity];
+        offsets = new long[capacity];
+        lengths = new int[capacity];
+    }
+
+    /**
+     * Fill the buffer from the given file position and flip it; false if the file ends first
+     */
+    private boolean readFully(ByteBuffer destination, long position) throws IOException {
+        while (destination.hasRemaining()) {
+            if (channel.read(destination, position + destination.position()) < 0) {
+                return false;
+            }
+        }
+        destination.flip();
+        return true;
+    }
+
+    /**
+     * FNV-1a over the ID's characters with a final avalanche, so similar IDs spread across the table
+     */
+    private static long hash(String chunkId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < chunkId.length(); i++) {
+            hash ^= chunkId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,166 @@
+package com.ragretrofit.stores.vector;
+
+import com.ragretrofit.indexer.model.CodeChunk;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Embedding store for code chunks answering semantic similarity searches. Implemented by a single
+ * {@link VectorStore} and by {@link ShardedVectorStore}, which spreads chunks over several of them
+ * and searches them in parallel; callers such as the hybrid retriever work with either.
+ */
+public interface CodeVectorStore extends AutoCloseable {
+
+    /**
+     * Open the vector store at a path: sharded if the config asks for more than one shard or the
+     * path already holds a sharded index, in which case the index's own shard layout is used
+     */
+    static CodeVectorStore open(Path persistencePath, VectorStoreConfig config) {
+        ShardedVectorStore.Layout existing = ShardedVectorStore.readLayout(persistencePath);
+        if (existing != null) {
+            return new ShardedVectorStore(persistencePath, VectorStoreConfig.builder(config)
+                    .shards(existing.getShards())
+                    .shardBy(existing.getShardBy())
+                    .build());
+        }
+        return config.getShards() > 1
+                ? new ShardedVectorStore(persistencePath, config)
+                : new VectorStore(persistencePath, config);
+    }
+
+    /**
+     * Number of shards recorded for the vector index at a path, 1 if it is not sharded
+     */
+    static int recordedShards(Path persistencePath) {
+        ShardedVectorStore.Layout layout = ShardedVectorStore.readLayout(persistencePath);
+        return layout != null ? layout.getShards() : 1;
+    }
+
+    /**
+     * Measure recall@k and latency of a quantized scan against float32 scanning over the index at a
+     * path without opening it, e.g. for a status report. Only the checkpointed vector segments are
+     * mapped, every shard's under the recorded layout, so no model is loaded, the write-ahead log is
+     * neither replayed nor truncated and nothing is written; changes logged since the last checkpoint
+     * are left out. The config supplies the PCA dimensions.
+     */
+    static RecallReport evaluateCheckpoint(Path persistencePath, VectorStoreConfig config, int sampleQueries,
+                                           int k, VectorStoreConfig.Quantization quantization,
+                                           int rescoreMultiplier) throws IOException {
+        ShardedVectorStore.Layout layout = ShardedVectorStore.readLayout(persistencePath);
+        if (layout == null) {
+            return VectorStore.evaluateSegment(persistencePath, config, sampleQueries, k, quantization,
+                    rescoreMultiplier);
+        }
+        int perShard = Math.max(1, sampleQueries / layout.getShards());
+        List<RecallReport> reports = new ArrayList<>(layout.getShards());
+        for (int i = 0; i < layout.getShards(); i++) {
+            reports.add(VectorStore.evaluateSegment(ShardedVectorStore.shardPathFor(persistencePath, i), config,
+                    perShard, k, quantization, rescoreMultiplier));
+        }
+        return RecallReport.combine(reports, k);
+    }
+
+    void addChunk(CodeChunk chunk);
+
+    /**
+     * Embed and add chunks in bulk, returning the embedding throughput
+     */
+    EmbeddingReport addChunks(List<CodeChunk> chunks);
+
+    List<VectorStore.SimilarityResult> findSimilar(String queryText, int maxResults);
+
+    List<VectorStore.SimilarityResult> findSimilar(String queryText, int maxResults, double minSimilarity);
+
+    List<VectorStore.SimilarityResult> findSimilar(String queryText, int maxResults, double minSimilarity,
+                                                   VectorStoreConfig.SearchMode searchMode);
+
+    /**
+     * Search with an explicit ANN breadth (IVF nprobe or HNSW ef)
+     */
+    List<VectorStore.SimilarityResult> findSimilar(String queryText, int maxResults, double minSimilarity,
+                                                   int nprobe);
+
+    /**
+     * Search only chunks matching a metadata filter, tested before rows are scored rather than on the results
+     */
+    List<VectorStore.SimilarityResult> findSimilar(String queryText, int maxResults, double minSimilarity,
+                                                   VectorFilter filter);
+
+    /**
+     * Search for many queries at once with one embedding call, returning results per query in query order
+     */
+    List<List<VectorStore.SimilarityResult>> findSimilarBatch(List<String> queryTexts, int maxResults);
+
+    List<List<VectorStore.SimilarityResult>> findSimilarBatch(List<String> queryTexts, int maxResults,
+                                                              double minSimilarity);
+
+    List<VectorStore.SimilarityResult> findSimilarToChunk(String chunkId, int maxResults);
+
+    List<VectorStore.SimilarityResult> findSimilarToVector(float[] queryVector, int maxResults);
+
+    /**
+     * Score only the given candidate chunks against a query, e.g. the hits of a keyword prefilter
+     */
+    List<VectorStore.SimilarityResult> findSimilarAmong(String queryText, Set<String> candidateIds,
+                                                        int maxResults, double minSimilarity);
+
+    List<VectorStore.SimilarityResult> findSimilarAmong(float[] queryVector, Set<String> candidateIds,
+                                                        int maxResults, double minSimilarity);
+
+    /**
+     * Score only the candidate chunks that also match a metadata filter
+     */
+    List<VectorStore.SimilarityResult> findSimilarAmong(String queryText, Set<String> candidateIds,
+                                                        int maxResults, double minSimilarity, VectorFilter filter);
+
+    List<VectorStore.SimilarityResult> findSimilarAmong(float[] queryVector, Set<String> candidateIds,
+                                                        int maxResults, double minSimilarity, VectorFilter filter);
+
+    float[] getVector(String chunkId);
+
+    CodeChunk getChunk(String chunkId);
+
+    boolean containsChunk(String chunkId);
+
+    void removeChunk(String chunkId);
+
+    int size();
+
+    /**
+     * Fraction of stored rows that are tombstones awaiting compaction
+     */
+    double deletedRatio();
+
+    /**
+     * Rewrite storage without tombstoned rows; false if there was nothing to do
+     */
+    boolean compact();
+
+    void clear();
+
+    void saveToDisk();
+
+    /**
+     * Measure recall@k of int8 scanning against exact float32 scanning on a sample of stored vectors
+     */
+    RecallReport evaluateQuantization(int sampleQueries, int k);
+
+    /**
+     * Measure recall@k and latency of a given quantized scan and rescoring multiplier against exact
+     * float32 scanning, whatever the store is configured with
+     */
+    RecallReport evaluateQuantization(int sampleQueries, int k, VectorStoreConfig.Quantization quantization,
+                                      int rescoreMultiplier);
+
+    /**
+     * Hit, miss and eviction counts of the query embedding cache since the store was opened
+     */
+    QueryCacheStats queryCacheStats();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,49 @@
+package com.ragretrofit.stores.vector;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Compact copy of the stored unit vectors that exhaustive scans score instead of the float32 rows,
+ * rescoring only the best candidates in float32. Trained on the corpus, so it is refreshed once the
+ * corpus has outgrown its training. Codes mirror the storage ordinals; mutations must be externally
+ * serialized.
+ */
+interface CompressedVectors {
+
+    /**
+     * Encode the vector for an existing ordinal or append the next one
+     */
+    void set(int ordinal, float[] vector);
+
+    /**
+     * Fold a unit-length query into the representation once per search
+     */
+    Scorer prepare(float[] unitQuery);
+
+    int size();
+
+    /**
+     * True once the corpus has grown enough since training that the codes deserve a refresh
+     */
+    boolean isOutgrown();
+
+    /**
+     * Heap bytes held by the codes and their training tables
+     */
+    long memoryBytes();
+
+    /**
+     * Short name of the representation for reports, e.g. int8
+     */
+    String method();
+
+    void save(Path path) throws IOException;
+
+    /**
+     * Approximate similarity of one prepared query to encoded rows
+     */
+    interface Scorer {
+        double score(int ordinal);
+    }
+}
@@ -0,0 +1,298 @@
+package com.ragretrofit.stores.vector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Persistent embedding cache keyed by a content hash, so unchanged chunk text is never re-embedded.
+ * Keys are the first 128 bits of SHA-256 over the model identifier and the text. Entries are
+ * appended to a single file of fixed-size records (key, float32 vector) after a header naming the
+ * model; an in-memory open-addressing table maps keys to record offsets and vectors are read back
+ * on demand, so only 24 bytes per entry stay on the heap. A torn record left by a crash is dropped
+ * on open, and a file written for another model or dimension is started afresh.
+ * Safe for concurrent use.
+ */
+final class EmbeddingCache implements Closeable {
+
+    private static final int MAGIC = 0x52454D43; // "REMC"
+    private static final int VERSION = 1;
+    private static final int KEY_BYTES = 16;
+    private static final int INITIAL_CAPACITY = 1 << 12;
+
+    private final FileChannel channel;
+    private final String modelId;
+    private final int dimension;
+    private final int recordBytes;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Open-addressing table; an offset of 0 marks an empty slot since records follow the header
+    private long[] keyHigh;
+    private long[] keyLow;
+    private long[] offsets;
+    private int size;
+    private long end;
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    private EmbeddingCache(FileChannel channel, String modelId, int dimension) {
+        this.channel = channel;
+        this.modelId = modelId;
+        this.dimension = dimension;
+        this.recordBytes = KEY_BYTES + dimension * Float.BYTES;
+        this.keyHigh = new long[INITIAL_CAPACITY];
+        this.keyLow = new long[INITIAL_CAPACITY];
+        this.offsets = new long[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Open or create the cache file for a model, indexing every complete record already in it
+     */
+    static EmbeddingCache open(Path path, String modelId, int dimension) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            EmbeddingCache cache = new EmbeddingCache(channel, modelId, dimension);
+            cache.load();
+            return cache;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The cached vector for a text, or null on a miss
+     */
+    float[] get(String text) {
+        long[] key = keyOf(text);
+        lookups.incrementAndGet();
+        lock.readLock().lock();
+        try {
+            int slot = find(key[0], key[1]);
+            if (offsets[slot] == 0) {
+                return null;
+            }
+            float[] vector = read(offsets[slot]);
+            hits.incrementAndGet();
+            bytesSaved.addAndGet(text.getBytes(StandardCharsets.UTF_8).length);
+            return vector;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Append a freshly computed embedding unless the text is already cached
+     */
+    void put(String text, float[] vector) throws IOException {
+        if (vector.length != dimension) {
+            throw new IllegalArgumentException("Expected a " + dimension + "-dimensional embedding but got "
+                    + vector.length);
+        }
+        long[] key = keyOf(text);
+        lock.writeLock().lock();
+        try {
+            if (offsets[find(key[0], key[1])] != 0) {
+                return;
+            }
+            ByteBuffer record = ByteBuffer.allocate(recordBytes);
+            record.putLong(key[0]).putLong(key[1]);
+            for (float value : vector) {
+                record.putFloat(value);
+            }
+            record.flip();
+            long offset = end;
+            while (record.hasRemaining()) {
+                channel.write(record, offset + record.position());
+            }
+            end += recordBytes;
+            insert(key[0], key[1], offset);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    long lookups() {
+        return lookups.get();
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    /**
+     * UTF-8 bytes of text served from the cache instead of being sent to the model
+     */
+    long bytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * Force appended records to disk
+     */
+    void flush() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void load() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(headerBytes(modelId));
+        if (channel.size() >= header.capacity()) {
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() == MAGIC && header.getInt() == VERSION && header.getInt() == dimension
+                    && modelId.equals(readModelId(header))) {
+                indexRecords(header.capacity());
+                return;
+            }
+        }
+
+        // New file, or one written for another model or format: start over
+        channel.truncate(0);
+        header.clear();
+        header.putInt(MAGIC).putInt(VERSION).putInt(dimension);
+        byte[] model = modelId.getBytes(StandardCharsets.UTF_8);
+        header.putShort((short) model.length).put(model);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        end = header.capacity();
+    }
+
+    private void indexRecords(long start) throws IOException {
+        long complete = start + (channel.size() - start) / recordBytes * recordBytes;
+        if (complete < channel.size()) {
+            channel.truncate(complete);
+        }
+        ByteBuffer key = ByteBuffer.allocate(KEY_BYTES);
+        for (long offset = start; offset < complete; offset += recordBytes) {
+            key.clear();
+            while (key.hasRemaining()) {
+                channel.read(key, offset + key.position());
+            }
+            key.flip();
+            long high = key.getLong();
+            long low = key.getLong();
+            if (offsets[find(high, low)] == 0) {
+                insert(high, low, offset);
+            }
+        }
+        end = complete;
+    }
+
+    private float[] read(long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(dimension * Float.BYTES);
+        long position = offset + KEY_BYTES;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Embedding cache record truncated at offset " + offset);
+            }
+        }
+        buffer.flip();
+        float[] vector = new float[dimension];
+        buffer.asFloatBuffer().get(vector);
+        return vector;
+    }
+
+    /**
+     * Slot holding the key, or the empty slot where it would be inserted
+     */
+    private int find(long high, long low) {
+        int mask = offsets.length - 1;
+        int slot = (int) (low ^ (low >>> 32)) & mask;
+        while (offsets[slot] != 0 && (keyHigh[slot] != high || keyLow[slot] != low)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void insert(long high, long low, long offset) {
+        if ((size + 1) * 4L > offsets.length * 3L) {
+            resize();
+        }
+        int slot = find(high, low);
+        keyHigh[slot] = high;
+        keyLow[slot] = low;
+        offsets[slot] = offset;
+        size++;
+    }
+
+    private void resize() {
+        long[] oldHigh = keyHigh;
+        long[] oldLow = keyLow;
+        long[] oldOffsets = offsets;
+        keyHigh = new long[oldOffsets.length * 2];
+        keyLow = new long[oldOffsets.length * 2];
+        offsets = new long[oldOffsets.length * 2];
+        for (int i = 0; i < oldOffsets.length; i++) {
+            if (oldOffsets[i] != 0) {
+                int slot = find(oldHigh[i], oldLow[i]);
+                keyHigh[slot] = oldHigh[i];
+                keyLow[slot] = oldLow[i];
+                offsets[slot] = oldOffsets[i];
+            }
+        }
+    }
+
+    private long[] keyOf(String text) {
+        MessageDigest digest = sha256();
+        digest.update(modelId.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        ByteBuffer hash = ByteBuffer.wrap(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+        return new long[] {hash.getLong(), hash.getLong()};
+    }
+
+    private static String readModelId(ByteBuffer header) {
+        short length = header.getShort();
+        if (length < 0 || length > header.remaining()) {
+            return null;
+        }
+        byte[] model = new byte[length];
+        header.get(model);
+        return new String(model, StandardCharsets.UTF_8);
+    }
+
+    private static int headerBytes(String modelId) {
+        return 3 * Integer.BYTES + Short.BYTES + modelId.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
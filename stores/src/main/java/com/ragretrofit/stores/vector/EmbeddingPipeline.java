@@ -0,0 +1,320 @@
+package com.ragretrofit.stores.vector;
+
+import com.ragretrofit.indexer.model.CodeChunk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Producer/consumer embedding pipeline feeding a {@link VectorStore}. The producer (e.g. the parser)
+ * submits chunks, which are grouped into windows and passed through a bounded queue to N worker
+ * threads. Each worker owns its own embedding model and ONNX session, with the cores split between
+ * them, and embeds whole windows with batched inference. A single writer thread appends the results
+ * to the store in submission order, so a chunk submitted twice ends up with its later body and vector
+ * whichever worker finishes first. The windows in flight are bounded, so submit blocks when the
+ * workers fall behind and memory stays flat however many chunks flow through.
+ * Typical use: submit every chunk, call {@link #finish()}, then {@link VectorStore#saveToDisk()}.
+ */
+public class EmbeddingPipeline implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddingPipeline.class);
+
+    // Windows queued per worker on each side; enough to keep workers busy without buffering the corpus
+    private static final int QUEUED_WINDOWS_PER_WORKER = 2;
+    private static final Window END_OF_INPUT = new Window(-1, Collections.emptyList());
+    private static final EmbeddedWindow END_OF_OUTPUT = new EmbeddedWindow(-1, List.of(), List.of());
+
+    private final VectorStore vectorStore;
+    private final int windowSize;
+    private final int batchSize;
+    private final BlockingQueue<Window> input;
+    private final BlockingQueue<EmbeddedWindow> output;
+    // One permit per window between submit and the writer; holding one guarantees room in both queues
+    private final Semaphore windowSlots;
+    private final List<OnnxBatchEmbeddingModel> models;
+    private final List<Thread> workers;
+    private final Thread writer;
+    private final long startMillis;
+    private final long[] cacheCountersAtStart;
+
+    private List<CodeChunk> pending;
+    private long nextSequence;
+    private int enqueuing;
+    private volatile int submitted;
+    private volatile int written;
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicBoolean modelsReleased = new AtomicBoolean();
+    private volatile boolean finished;
+    private volatile boolean completed;
+    private volatile boolean closed;
+
+    EmbeddingPipeline(VectorStore vectorStore, int workerCount, int batchSize, int windowSize) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("Embedding pipeline needs at least one worker");
+        }
+        this.vectorStore = vectorStore;
+        this.batchSize = batchSize;
+        this.windowSize = windowSize;
+        // Queued on both sides of the workers plus one being embedded by each
+        int windowsInFlight = workerCount * (2 * QUEUED_WINDOWS_PER_WORKER + 1);
+        this.windowSlots = new Semaphore(windowsInFlight);
+        this.input = new ArrayBlockingQueue<>(windowsInFlight + workerCount);
+        this.output = new ArrayBlockingQueue<>(windowsInFlight + 1);
+        this.pending = new ArrayList<>(windowSize);
+
+        // Workers parallelize across windows, so each session only gets its share of the cores
+        int intraOpThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / workerCount);
+        this.models = new ArrayList<>(workerCount);
+        this.workers = new ArrayList<>(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            OnnxBatchEmbeddingModel model = vectorStore.embeddingProvider().newModel(batchSize, intraOpThreads);
+            models.add(model);
+            Thread worker = new Thread(() -> embedWindows(model), "embedding-worker-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+        }
+        this.writer = new Thread(this::writeWindows, "embedding-writer");
+        this.writer.setDaemon(true);
+
+        this.startMillis = System.currentTimeMillis();
+        this.cacheCountersAtStart = vectorStore.cacheCounters();
+        workers.forEach(Thread::start);
+        writer.start();
+        logger.info("Started embedding pipeline with {} workers ({} ONNX threads each)", workerCount, intraOpThreads);
+    }
+
+    /**
+     * Queue a chunk for embedding, blocking while the pipeline is full. The wait happens outside the
+     * pipeline's monitor, so other producers can fill their windows meanwhile.
+     */
+    public void submit(CodeChunk chunk) throws InterruptedException {
+        List<CodeChunk> window;
+        synchronized (this) {
+            if (finished) {
+                throw new IllegalStateException("Embedding pipeline already finished");
+            }
+            pending.add(chunk);
+            submitted++;
+            if (pending.size() < windowSize) {
+                return;
+            }
+            window = pending;
+            pending = new ArrayList<>(windowSize);
+            enqueuing++;
+        }
+        try {
+            enqueue(window);
+        } finally {
+            synchronized (this) {
+                enqueuing--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Flush the last partial window, wait until every submitted chunk is stored and release the models
+     */
+    public synchronized EmbeddingReport finish() throws InterruptedException {
+        if (!completed && !closed) {
+            drain();
+        }
+
+        long batches = 0;
+        long tokens = 0;
+        long paddedTokens = 0;
+        for (OnnxBatchEmbeddingModel model : models) {
+            batches += model.batches();
+            tokens += model.tokens();
+            paddedTokens += model.paddedTokens();
+        }
+        // Cache counters are store-wide, so this assumes no other bulk load runs alongside the pipeline
+        long[] cacheCounters = vectorStore.cacheCounters();
+        EmbeddingReport report = new EmbeddingReport(written, workers.size(), batchSize, batches, tokens,
+                paddedTokens, cacheCounters[0] - cacheCountersAtStart[0], cacheCounters[1] - cacheCountersAtStart[1],
+                cacheCounters[2] - cacheCountersAtStart[2], System.currentTimeMillis() - startMillis);
+        if (failed.get() > 0) {
+            logger.warn("{} of {} chunks could not be embedded", failed.get(), submitted);
+        }
+        return report;
+    }
+
+    /**
+     * Queue the last partial window behind those still being submitted, then stop the workers and
+     * writer once everything queued is stored. Returns early if the pipeline is closed meanwhile.
+     * Caller must hold the monitor.
+     */
+    private void drain() throws InterruptedException {
+        finished = true;
+        while (enqueuing > 0) {
+            wait();
+        }
+        if (!pending.isEmpty() && !closed) {
+            enqueue(pending);
+            pending = List.of();
+        }
+        // Every window in flight holds a slot, so the end markers always fit
+        for (int i = 0; i < workers.size(); i++) {
+            input.add(END_OF_INPUT);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        output.add(END_OF_OUTPUT);
+        writer.join();
+        completed = !closed;
+        releaseModels();
+    }
+
+    /**
+     * Stop without waiting for queued chunks; anything not yet written is dropped. Takes no lock, so
+     * it also stops a pipeline whose producers are blocked in submit or finish.
+     */
+    @Override
+    public void close() {
+        if (completed || closed) {
+            return;
+        }
+        closed = true;
+        finished = true;
+        workers.forEach(Thread::interrupt);
+        writer.interrupt();
+        // Wakes one producer waiting for room, which passes the permit on to the next
+        windowSlots.release();
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        releaseModels();
+        logger.info("Embedding pipeline closed after writing {} of {} chunks", written, submitted);
+    }
+
+    /**
+     * Hand a window to the workers once one of the in-flight slots is free. It is numbered only then,
+     * so a producer interrupted while waiting leaves no gap that would hold back the writer.
+     */
+    private void enqueue(List<CodeChunk> chunks) throws InterruptedException {
+        windowSlots.acquire();
+        synchronized (this) {
+            if (closed) {
+                windowSlots.release();
+                throw new IllegalStateException("Embedding pipeline closed");
+            }
+            input.add(new Window(nextSequence++, chunks));
+        }
+    }
+
+    private void releaseModels() {
+        if (modelsReleased.compareAndSet(false, true)) {
+            models.forEach(OnnxBatchEmbeddingModel::close);
+        }
+    }
+
+    private void embedWindows(OnnxBatchEmbeddingModel model) {
+        try {
+            while (true) {
+                Window window = input.take();
+                if (window == END_OF_INPUT) {
+                    return;
+                }
+                output.add(embed(model, window));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Embed a window in one embedAll call, falling back to one chunk at a time if the batch fails
+     */
+    private EmbeddedWindow embed(OnnxBatchEmbeddingModel model, Window window) {
+        try {
+            return new EmbeddedWindow(window.sequence, window.chunks, vectorStore.embed(model, window.chunks));
+        } catch (Exception e) {
+            logger.warn("Batched embedding of {} chunks failed, embedding individually", window.chunks.size(), e);
+        }
+
+        List<CodeChunk> chunks = new ArrayList<>(window.chunks.size());
+        List<float[]> vectors = new ArrayList<>(window.chunks.size());
+        for (CodeChunk chunk : window.chunks) {
+            try {
+                vectors.add(vectorStore.embed(model, List.of(chunk)).get(0));
+                chunks.add(chunk);
+            } catch (Exception e) {
+                logger.error("Failed to embed chunk: " + chunk.getId(), e);
+                failed.incrementAndGet();
+            }
+        }
+        return new EmbeddedWindow(window.sequence, chunks, vectors);
+    }
+
+    /**
+     * Store embedded windows in the order they were submitted, holding back any that a faster worker
+     * finished early
+     */
+    private void writeWindows() {
+        Map<Long, EmbeddedWindow> early = new HashMap<>();
+        long nextToWrite = 0;
+        try {
+            while (true) {
+                EmbeddedWindow window = output.take();
+                if (window == END_OF_OUTPUT) {
+                    return;
+                }
+                early.put(window.sequence, window);
+                for (EmbeddedWindow next; (next = early.remove(nextToWrite)) != null; nextToWrite++) {
+                    store(next);
+                    windowSlots.release();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void store(EmbeddedWindow window) {
+        try {
+            vectorStore.storeAll(window.chunks, window.vectors);
+            written += window.chunks.size();
+        } catch (Exception e) {
+            logger.error("Failed to store " + window.chunks.size() + " embedded chunks", e);
+            failed.addAndGet(window.chunks.size());
+        }
+    }
+
+    private static final class Window {
+        private final long sequence;
+        private final List<CodeChunk> chunks;
+
+        private Window(long sequence, List<CodeChunk> chunks) {
+            this.sequence = sequence;
+            this.chunks = chunks;
+        }
+    }
+
+    private static final class EmbeddedWindow {
+        private final long sequence;
+        private final List<CodeChunk> chunks;
+        private final List<float[]> vectors;
+
+        private EmbeddedWindow(long sequence, List<CodeChunk> chunks, List<float[]> vectors) {
+            this.sequence = sequence;
+            this.chunks = chunks;
+            this.vectors = vectors;
+        }
+    }
+}
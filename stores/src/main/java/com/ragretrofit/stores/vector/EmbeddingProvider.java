@@ -0,0 +1,221 @@
+package com.ragretrofit.stores.vector;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The embedding model behind a vector store: the all-MiniLM-L6-v2 model bundled with langchain4j, or
+ * a local ONNX bi-encoder with its HuggingFace tokenizer.json. The weights are read once and served by
+ * a pool of ONNX sessions, so concurrent searches run inference side by side instead of queueing on
+ * one session, with the cores split between the sessions. With warmup every session embeds a short
+ * text at startup, so the first real query does not pay for ONNX's lazy initialization. Embedding
+ * pipeline workers get sessions of their own from {@link #newModel}. The model identifier names the
+ * weights (file name and content hash for local models) and is recorded with everything derived from
+ * them. Safe for concurrent use.
+ */
+final class EmbeddingProvider implements EmbeddingModel, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddingProvider.class);
+
+    private static final String WARMUP_TEXT = "public void warmUp() { return; }";
+
+    private final String modelId;
+    private final byte[] model;
+    private final byte[] tokenizerJson;
+    private final int batchSize;
+    private final List<OnnxBatchEmbeddingModel> sessions;
+    private final BlockingQueue<OnnxBatchEmbeddingModel> idle;
+
+    private EmbeddingProvider(String modelId, byte[] model, byte[] tokenizerJson, int batchSize, int poolSize) {
+        this.modelId = modelId;
+        this.model = model;
+        this.tokenizerJson = tokenizerJson;
+        this.batchSize = batchSize;
+        this.sessions = new ArrayList<>(poolSize);
+        this.idle = new ArrayBlockingQueue<>(poolSize);
+
+        // A single session keeps the runtime's default of every core per inference call
+        int intraOpThreads = poolSize == 1 ? 0 : Math.max(1, Runtime.getRuntime().availableProcessors() / poolSize);
+        try {
+            for (int i = 0; i < poolSize; i++) {
+                OnnxBatchEmbeddingModel session = newModel(batchSize, intraOpThreads);
+                sessions.add(session);
+                idle.add(session);
+            }
+        } catch (RuntimeException e) {
+            sessions.forEach(OnnxBatchEmbeddingModel::close);
+            throw e;
+        }
+    }
+
+    /**
+     * Load the configured model into a pool of sessions, warming each one up if asked to
+     */
+    static EmbeddingProvider open(VectorStoreConfig config) {
+        long start = System.currentTimeMillis();
+        EmbeddingProvider provider = config.getEmbeddingModelPath() != null
+                ? fromFiles(config.getEmbeddingModelPath(), config.getEmbeddingTokenizerPath(), config)
+                : bundledMiniLm(config);
+        if (config.isEmbeddingWarmup()) {
+            try {
+                provider.warmUp();
+            } catch (RuntimeException e) {
+                provider.close();
+                throw e;
+            }
+        }
+        logger.info("Loaded embedding model {} ({} dimensions) with {} sessions in {} ms",
+                provider.modelId, provider.dimension(), provider.sessions.size(), System.currentTimeMillis() - start);
+        return provider;
+    }
+
+    private static EmbeddingProvider bundledMiniLm(VectorStoreConfig config) {
+        ClassLoader loader = OnnxBatchEmbeddingModel.class.getClassLoader();
+        try (InputStream model = loader.getResourceAsStream(OnnxBatchEmbeddingModel.MINILM_MODEL_RESOURCE);
+             InputStream tokenizerJson = loader.getResourceAsStream(OnnxBatchEmbeddingModel.MINILM_TOKENIZER_RESOURCE)) {
+            if (model == null || tokenizerJson == null) {
+                throw new IllegalStateException("all-MiniLM-L6-v2 model files not found on the classpath");
+            }
+            return new EmbeddingProvider(OnnxBatchEmbeddingModel.MINILM_MODEL_ID, model.readAllBytes(),
+                    tokenizerJson.readAllBytes(), config.getEmbeddingBatchSize(), config.getEmbeddingModelPoolSize());
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to load all-MiniLM-L6-v2 embedding model", e);
+        }
+    }
+
+    /**
+     * A local ONNX model; without an explicit tokenizer, the tokenizer.json next to the model file is used
+     */
+    private static EmbeddingProvider fromFiles(Path modelPath, Path tokenizerPath, VectorStoreConfig config) {
+        Path tokenizer = tokenizerPath != null ? tokenizerPath
+                : modelPath.resolveSibling(OnnxBatchEmbeddingModel.MINILM_TOKENIZER_RESOURCE);
+        try {
+            byte[] model = Files.readAllBytes(modelPath);
+            return new EmbeddingProvider(localModelId(modelPath, model), model, Files.readAllBytes(tokenizer),
+                    config.getEmbeddingBatchSize(), config.getEmbeddingModelPoolSize());
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read embedding model " + modelPath + " with tokenizer "
+                    + tokenizer, e);
+        }
+    }
+
+    @Override
+    public Response<List<Embedding>> embedAll(List<TextSegment> segments) {
+        OnnxBatchEmbeddingModel session = borrow();
+        try {
+            return session.embedAll(segments);
+        } finally {
+            idle.add(session);
+        }
+    }
+
+    /**
+     * A session of its own for a dedicated embedding thread, limited to the given number of ONNX
+     * threads (0 for the runtime default); the caller closes it
+     */
+    OnnxBatchEmbeddingModel newModel(int batchSize, int intraOpThreads) {
+        return OnnxBatchEmbeddingModel.fromBytes(modelId, model, tokenizerJson, batchSize, intraOpThreads);
+    }
+
+    /**
+     * Model inference calls made so far by the pooled sessions
+     */
+    long batches() {
+        return sessions.stream().mapToLong(OnnxBatchEmbeddingModel::batches).sum();
+    }
+
+    /**
+     * Real tokens embedded so far by the pooled sessions, excluding padding
+     */
+    long tokens() {
+        return sessions.stream().mapToLong(OnnxBatchEmbeddingModel::tokens).sum();
+    }
+
+    /**
+     * Token positions computed so far by the pooled sessions including padding
+     */
+    long paddedTokens() {
+        return sessions.stream().mapToLong(OnnxBatchEmbeddingModel::paddedTokens).sum();
+    }
+
+    int batchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Identifier of the model weights, used to keep embeddings from different models apart
+     */
+    String modelId() {
+        return modelId;
+    }
+
+    /**
+     * Embedding dimension produced by the model
+     */
+    int dimension() {
+        return sessions.get(0).dimension();
+    }
+
+    @Override
+    public void close() {
+        sessions.forEach(OnnxBatchEmbeddingModel::close);
+    }
+
+    private void warmUp() {
+        List<TextSegment> warmup = List.of(TextSegment.from(WARMUP_TEXT));
+        for (OnnxBatchEmbeddingModel session : sessions) {
+            float[] vector = session.embedAll(warmup).content().get(0).vector();
+            if (vector.length != session.dimension()) {
+                throw new IllegalStateException("Embedding model " + modelId + " declares " + session.dimension()
+                        + " dimensions but produced " + vector.length);
+            }
+        }
+    }
+
+    private OnnxBatchEmbeddingModel borrow() {
+        try {
+            return idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for an embedding session", e);
+        }
+    }
+
+    /**
+     * File name without extension plus the first 8 bytes of the weights' SHA-256, so a retrained
+     * model under the same name gets a new identifier
+     */
+    private static String localModelId(Path modelPath, byte[] model) {
+        String name = modelPath.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(model);
+            StringBuilder id = new StringBuilder(name.toLowerCase(Locale.ROOT)).append('@');
+            for (int i = 0; i < 8; i++) {
+                id.append(String.format("%02x", digest[i]));
+            }
+            return id.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.ragretrofit.stores.vector;
+
+import java.util.List;
+
+/**
+ * Throughput of one bulk embedding run: chunks embedded per second, how many worker threads and
+ * model inference calls that took, how much of the computed token positions were padding, and how
+ * many chunks were served from the embedding cache instead of the model.
+ */
+public class EmbeddingReport {
+
+    private final int chunks;
+    private final int threads;
+    private final int batchSize;
+    private final long batches;
+    private final long tokens;
+    private final long paddedTokens;
+    private final long cacheHits;
+    private final long cacheLookups;
+    private final long cacheBytesSaved;
+    private final long millis;
+
+    public EmbeddingReport(int chunks, int threads, int batchSize, long batches, long tokens, long paddedTokens,
+                           long cacheHits, long cacheLookups, long cacheBytesSaved, long millis) {
+        this.chunks = chunks;
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.batches = batches;
+        this.tokens = tokens;
+        this.paddedTokens = paddedTokens;
+        this.cacheHits = cacheHits;
+        this.cacheLookups = cacheLookups;
+        this.cacheBytesSaved = cacheBytesSaved;
+        this.millis = millis;
+    }
+
+    // Getters
+    public int getChunks() { return chunks; }
+    public int getThreads() { return threads; }
+    public int getBatchSize() { return batchSize; }
+    public long getBatches() { return batches; }
+    public long getTokens() { return tokens; }
+    public long getPaddedTokens() { return paddedTokens; }
+    public long getCacheHits() { return cacheHits; }
+    public long getCacheLookups() { return cacheLookups; }
+    public long getCacheBytesSaved() { return cacheBytesSaved; }
+    public long getMillis() { return millis; }
+
+    public double getChunksPerSecond() {
+        return millis > 0 ? chunks * 1000.0 / millis : 0.0;
+    }
+
+    /**
+     * Fraction of computed token positions that were padding
+     */
+    public double getPaddingRatio() {
+        return paddedTokens > 0 ? 1.0 - (double) tokens / paddedTokens : 0.0;
+    }
+
+    /**
+     * Fraction of embedding cache lookups that skipped the model
+     */
+    public double getCacheHitRate() {
+        return cacheLookups > 0 ? (double) cacheHits / cacheLookups : 0.0;
+    }
+
+    /**
+     * One report for several runs that together took the given time, e.g. one per shard
+     */
+    static EmbeddingReport combine(List<EmbeddingReport> reports, long millis) {
+        int chunks = 0;
+        int threads = 1;
+        int batchSize = 1;
+        long batches = 0;
+        long tokens = 0;
+        long paddedTokens = 0;
+        long cacheHits = 0;
+        long cacheLookups = 0;
+        long cacheBytesSaved = 0;
+        for (EmbeddingReport report : reports) {
+            chunks += report.chunks;
+            threads = Math.max(threads, report.threads);
+            batchSize = Math.max(batchSize, report.batchSize);
+            batches += report.batches;
+            tokens += report.tokens;
+            paddedTokens += report.paddedTokens;
+            cacheHits += report.cacheHits;
+            cacheLookups += report.cacheLookups;
+            cacheBytesSaved += report.cacheBytesSaved;
+        }
+        return new EmbeddingReport(chunks, threads, batchSize, batches, tokens, paddedTokens,
+                cacheHits, cacheLookups, cacheBytesSaved, millis);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d chunks in %.1f s (%.1f chunks/s) on %d thread%s, %d inference calls "
+                        + "of up to %d texts, %.1f%% padding, %.1f%% embedding cache hits (%.1f KB of text saved)",
+                chunks, millis / 1000.0, getChunksPerSecond(), threads, threads == 1 ? "" : "s",
+                batches, batchSize, getPaddingRatio() * 100.0, getCacheHitRate() * 100.0, cacheBytesSaved / 1024.0);
+    }
+}
@@ -0,0 +1,444 @@
+package com.ragretrofit.stores.vector;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact vector storage keeping every embedding in contiguous row-major float storage.
+ * Each vector is addressed by an int ordinal. Rows loaded from a base {@link VectorSegment} and the
+ * delta segments appended after it stay memory-mapped and are scored in place, with their chunk IDs
+ * resolved through each segment's own tables; rows added since the last checkpoint live in a
+ * primitive heap array with a side table of their IDs.
+ * Vectors are stored normalized to unit length, so similarity
+ * is a plain dot product. Removal only sets a tombstone bit, so ordinals stay stable for the
+ * indexes built over them; scans skip tombstoned rows until the storage is compacted.
+ * Not thread-safe - callers guard access with their own lock.
+ */
+class FlatVectorStorage {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final SimilarityKernel KERNEL = SimilarityKernels.selected();
+    
+    // Rows scored together against every query of a batch; small enough to stay in L2 with the queries
+    private static final int BLOCK_BYTES = 64 * 1024;
+
+    private int dimension;
+    private int count;
+    private long modCount;
+
+    // Rows [0, mappedRows) come from the slabs of a base segment and its deltas, in ordinal order,
+    // and rows [mappedRows, count) from the heap array
+    private VectorSegment[] segments;
+    private int[] segmentStarts;
+    private ByteBuffer[][] mappedSlabs;
+    private FloatBuffer[][] mappedFloats;
+    private int rowsPerSlab;
+    private int mappedRows;
+    private float[] vectors;
+
+    // Heap rows only: live chunk ID -> ordinal and ordinal - mappedRows -> chunk ID (kept for tombstoned rows too)
+    private final Map<String, Integer> heapOrdinalsById;
+    private final List<String> heapIds;
+
+    // Tombstones for removed ordinals, skipped by scans until compaction drops the rows
+    private final BitSet deleted;
+    private int deletedCount;
+
+    FlatVectorStorage() {
+        this.segments = new VectorSegment[0];
+        this.segmentStarts = new int[0];
+        this.mappedSlabs = new ByteBuffer[0][];
+        this.mappedFloats = new FloatBuffer[0][];
+        this.vectors = new float[0];
+        this.heapOrdinalsById = new HashMap<>();
+        this.heapIds = new ArrayList<>();
+        this.deleted = new BitSet();
+    }
+
+    /**
+     * Replace the contents of this storage with the rows of a mapped base segment, whose rows must
+     * already be unit length
+     */
+    void attach(VectorSegment segment) {
+        if (segment.firstOrdinal() != 0) {
+            throw new IllegalArgumentException("Not a base vector segment, it starts at ordinal "
+                    + segment.firstOrdinal());
+        }
+        clear();
+        append(segment);
+    }
+
+    /**
+     * Map the next segment of the chain: a base segment if none is mapped yet, otherwise a delta
+     * holding the rows that follow the mapped ones. Heap rows the segment covers, e.g. those just
+     * written by a checkpoint, are released; rows beyond the heap, e.g. on load, are added.
+     */
+    void append(VectorSegment segment) {
+        if ((segment.flags() & VectorSegment.FLAG_NORMALIZED) == 0) {
+            throw new IllegalArgumentException("Vector segment rows are not normalized");
+        }
+        if (segment.firstOrdinal() != mappedRows) {
+            throw new IllegalArgumentException("Vector segment starts at ordinal " + segment.firstOrdinal()
+                    + " but " + mappedRows + " rows are mapped");
+        }
+        if (mappedRows == 0 && segment.firstOrdinal() == 0) {
+            // An empty base maps no rows, so a new base simply replaces it
+            segments = new VectorSegment[0];
+            segmentStarts = new int[0];
+            mappedSlabs = new ByteBuffer[0][];
+            mappedFloats = new FloatBuffer[0][];
+        }
+        if (segments.length > 0 && segment.baseKey() != baseKey()) {
+            throw new IllegalArgumentException("Vector segment belongs to another base segment");
+        }
+        if (count > 0 && segment.count() > 0 && segment.dimension() != dimension) {
+            throw new IllegalArgumentException("Vector segment has dimension " + segment.dimension()
+                    + " but the storage has " + dimension);
+        }
+
+        // Release the heap rows the segment now serves, keeping later ones at the front of the array
+        int released = Math.min(segment.count(), count - mappedRows);
+        int kept = count - mappedRows - released;
+        System.arraycopy(vectors, released * dimension, vectors, 0, kept * dimension);
+        for (int i = 0; i < released; i++) {
+            heapOrdinalsById.remove(heapIds.get(i), mappedRows + i);
+        }
+        heapIds.subList(0, released).clear();
+
+        int index = segments.length;
+        segments = Arrays.copyOf(segments, index + 1);
+        segmentStarts = Arrays.copyOf(segmentStarts, index + 1);
+        mappedSlabs = Arrays.copyOf(mappedSlabs, index + 1);
+        mappedFloats = Arrays.copyOf(mappedFloats, index + 1);
+        segments[index] = segment;
+        segmentStarts[index] = mappedRows;
+        mappedSlabs[index] = segment.vectorSlabs();
+        mappedFloats[index] = VectorSegment.floatViews(mappedSlabs[index]);
+        if (segment.count() > 0) {
+            dimension = segment.dimension();
+            rowsPerSlab = segment.rowsPerSlab();
+        }
+        mappedRows += segment.count();
+        count = Math.max(count, mappedRows);
+
+        BitSet segmentDeleted = segment.deleted();
+        for (int i = segmentDeleted.nextSetBit(0); i >= 0; i = segmentDeleted.nextSetBit(i + 1)) {
+            deleted.set(segment.firstOrdinal() + i);
+        }
+        deletedCount = deleted.cardinality();
+    }
+
+    /**
+     * Tombstone the rows whose bits are set, e.g. from a tombstone file saved after the segments;
+     * bits past the last row are ignored
+     */
+    void markDeleted(BitSet removed) {
+        for (int i = removed.nextSetBit(0); i >= 0 && i < count; i = removed.nextSetBit(i + 1)) {
+            deleted.set(i);
+        }
+        deletedCount = deleted.cardinality();
+    }
+
+    /**
+     * Key of the mapped base segment, shared by its deltas, or 0 if none is mapped
+     */
+    long baseKey() {
+        return segments.length > 0 ? segments[0].baseKey() : 0L;
+    }
+
+    /**
+     * Number of mapped segments, the base included
+     */
+    int segmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * Insert or replace the vector for a chunk ID, returning its ordinal. The stored copy is normalized.
+     * Putting the vector a chunk already has keeps its ordinal; a changed vector tombstones the old row
+     * and appends a new one, so indexes built over the rows see it as a fresh addition.
+     */
+    int put(String chunkId, float[] vector) {
+        if (dimension == 0) {
+            dimension = vector.length;
+        } else if (vector.length != dimension) {
+            throw new IllegalArgumentException("Vectors must have the same dimension: expected "
+                    + dimension + " but was " + vector.length);
+        }
+
+        float[] unit = SimilarityKernels.normalize(vector);
+        int existing = ordinalOf(chunkId);
+        if (existing >= 0) {
+            if (Arrays.equals(vectorAt(existing), unit)) {
+                return existing;
+            }
+            deleted.set(existing);
+            deletedCount++;
+        }
+
+        modCount++;
+
+        ensureHeapCapacity(count - mappedRows + 1);
+        int ordinal = count++;
+        System.arraycopy(unit, 0, vectors, (ordinal - mappedRows) * dimension, dimension);
+        heapOrdinalsById.put(chunkId, ordinal);
+        heapIds.add(chunkId);
+        return ordinal;
+    }
+
+    /**
+     * Tombstone a chunk's row, returning its ordinal, or -1 if absent. The row stays in place until
+     * compaction, so no other ordinal moves.
+     */
+    int remove(String chunkId) {
+        int ordinal = ordinalOf(chunkId);
+        if (ordinal < 0) {
+            return -1;
+        }
+        heapOrdinalsById.remove(chunkId);
+
+        modCount++;
+        deleted.set(ordinal);
+        deletedCount++;
+        return ordinal;
+    }
+
+    boolean isDeleted(int ordinal) {
+        return deleted.get(ordinal);
+    }
+
+    /**
+     * Number of tombstoned rows still occupying ordinals
+     */
+    int deletedCount() {
+        return deletedCount;
+    }
+
+    /**
+     * Number of rows that have not been removed
+     */
+    int liveCount() {
+        return count - deletedCount;
+    }
+
+    /**
+     * Tombstone bits by ordinal, for persisting alongside the rows
+     */
+    BitSet deletedOrdinals() {
+        return (BitSet) deleted.clone();
+    }
+
+    void clear() {
+        modCount++;
+        count = 0;
+        dimension = 0;
+        segments = new VectorSegment[0];
+        segmentStarts = new int[0];
+        mappedSlabs = new ByteBuffer[0][];
+        mappedFloats = new FloatBuffer[0][];
+        rowsPerSlab = 0;
+        mappedRows = 0;
+        vectors = new float[0];
+        heapOrdinalsById.clear();
+        heapIds.clear();
+        deleted.clear();
+        deletedCount = 0;
+    }
+
+    /**
+     * Get the ordinal for a chunk ID, or -1 if absent. Newer rows are looked up first, heap rows and
+     * then segments from the last, since a chunk re-added with a new vector tombstones its older row.
+     */
+    int ordinalOf(String chunkId) {
+        Integer ordinal = heapOrdinalsById.get(chunkId);
+        if (ordinal != null) {
+            return ordinal;
+        }
+        for (int i = segments.length - 1; i >= 0; i--) {
+            int local = segments[i].ordinalOf(chunkId);
+            if (local >= 0 && !deleted.get(segmentStarts[i] + local)) {
+                return segmentStarts[i] + local;
+            }
+        }
+        return -1;
+    }
+
+    String idAt(int ordinal) {
+        if (ordinal >= mappedRows) {
+            return heapIds.get(ordinal - mappedRows);
+        }
+        int index = segmentOf(ordinal);
+        return segments[index].idAt(ordinal - segmentStarts[index]);
+    }
+
+    /**
+     * Chunk IDs of the heap rows, in ordinal order from {@link #mappedRows()}
+     */
+    List<String> heapIds() {
+        return new ArrayList<>(heapIds);
+    }
+
+    /**
+     * Copy of the heap rows, row-major in ordinal order from {@link #mappedRows()}
+     */
+    float[] heapRows() {
+        return Arrays.copyOf(vectors, (count - mappedRows) * dimension);
+    }
+
+    /**
+     * Copy out the unit-length vector stored at an ordinal
+     */
+    float[] vectorAt(int ordinal) {
+        float[] row = new float[dimension];
+        readRow(ordinal, row);
+        return row;
+    }
+
+    /**
+     * Copy the vector stored at an ordinal into a caller-supplied buffer
+     */
+    void readRow(int ordinal, float[] destination) {
+        if (ordinal < mappedRows) {
+            int index = segmentOf(ordinal);
+            int row = ordinal - segmentStarts[index];
+            mappedFloats[index][row / rowsPerSlab].get((row % rowsPerSlab) * dimension, destination, 0, dimension);
+        } else {
+            System.arraycopy(vectors, (ordinal - mappedRows) * dimension, destination, 0, dimension);
+        }
+    }
+
+    /**
+     * Number of ordinals in use, including tombstoned rows
+     */
+    int size() {
+        return count;
+    }
+
+    int dimension() {
+        return dimension;
+    }
+
+    /**
+     * Number of rows served from memory-mapped segments rather than the heap
+     */
+    int mappedRows() {
+        return mappedRows;
+    }
+
+    /**
+     * Counter bumped by every mutation, used to detect changes across lock releases
+     */
+    long modCount() {
+        return modCount;
+    }
+
+    /**
+     * Cosine similarity between a unit-length query and the row at an ordinal
+     */
+    double similarity(float[] unitQuery, int ordinal) {
+        if (unitQuery.length != dimension) {
+            throw new IllegalArgumentException("Vectors must have the same dimension");
+        }
+
+        if (ordinal < mappedRows) {
+            int index = segmentOf(ordinal);
+            int row = ordinal - segmentStarts[index];
+            return KERNEL.dot(unitQuery, mappedSlabs[index][row / rowsPerSlab], (row % rowsPerSlab) * dimension,
+                    dimension);
+        }
+        return KERNEL.dot(unitQuery, vectors, (ordinal - mappedRows) * dimension, dimension);
+    }
+
+    /**
+     * Exhaustively score a batch of unit-length queries, one block of rows at a time: each block is
+     * scored against every query while it is hot in cache, so the corpus is streamed from memory once
+     * per batch rather than once per query. Tombstoned rows are skipped; each query's matches at or
+     * above the threshold go to its own heap.
+     */
+    void scanBatch(float[][] unitQueries, TopKHeap[] topK, double minSimilarity) {
+        if (count == 0) {
+            return;
+        }
+        for (float[] query : unitQueries) {
+            if (query.length != dimension) {
+                throw new IllegalArgumentException("Vectors must have the same dimension");
+            }
+        }
+
+        int rowsPerBlock = Math.max(1, BLOCK_BYTES / (dimension * Float.BYTES));
+        int from = 0;
+        while (from < count) {
+            if (from < mappedRows) {
+                // Mapped blocks stop at segment and slab boundaries so each is scored straight from one buffer
+                int index = segmentOf(from);
+                int row = from - segmentStarts[index];
+                int segmentEnd = segmentStarts[index] + segments[index].count();
+                int slabEnd = segmentStarts[index] + (row / rowsPerSlab + 1) * rowsPerSlab;
+                int to = Math.min(Math.min(from + rowsPerBlock, segmentEnd), slabEnd);
+                ByteBuffer slab = mappedSlabs[index][row / rowsPerSlab];
+                int base = (row % rowsPerSlab) * dimension;
+                for (int q = 0; q < unitQueries.length; q++) {
+                    float[] query = unitQueries[q];
+                    TopKHeap heap = topK[q];
+                    for (int ordinal = from, offset = base; ordinal < to; ordinal++, offset += dimension) {
+                        if (deletedCount > 0 && deleted.get(ordinal)) {
+                            continue;
+                        }
+                        double similarity = KERNEL.dot(query, slab, offset, dimension);
+                        if (similarity >= minSimilarity) {
+                            heap.offer(ordinal, similarity);
+                        }
+                    }
+                }
+                from = to;
+            } else {
+                int to = Math.min(from + rowsPerBlock, count);
+                int base = (from - mappedRows) * dimension;
+                for (int q = 0; q < unitQueries.length; q++) {
+                    float[] query = unitQueries[q];
+                    TopKHeap heap = topK[q];
+                    for (int ordinal = from, offset = base; ordinal < to; ordinal++, offset += dimension) {
+                        if (deletedCount > 0 && deleted.get(ordinal)) {
+                            continue;
+                        }
+                        double similarity = KERNEL.dot(query, vectors, offset, dimension);
+                        if (similarity >= minSimilarity) {
+                            heap.offer(ordinal, similarity);
+                        }
+                    }
+                }
+                from = to;
+            }
+        }
+    }
+
+    /**
+     * Index of the mapped segment holding an ordinal below {@link #mappedRows()}
+     */
+    private int segmentOf(int ordinal) {
+        if (segments.length == 1) {
+            return 0;
+        }
+        int index = Arrays.binarySearch(segmentStarts, ordinal);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private void ensureHeapCapacity(int rows) {
+        long required = (long) rows * dimension;
+        if (required <= vectors.length) {
+            return;
+        }
+        if (required > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Vector storage capacity exceeded: " + rows + " rows");
+        }
+
+        long grown = Math.max(required, Math.max((long) INITIAL_CAPACITY * dimension, (long) vectors.length * 2));
+        vectors = Arrays.copyOf(vectors, (int) Math.min(grown, Integer.MAX_VALUE - 8));
+    }
+}
@@ -0,0 +1,548 @@
+package com.ragretrofit.stores.vector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntPredicate;
+
+/**
+ * Hierarchical navigable small world graph (Malkov and Yashunin) over cosine similarity.
+ * Nodes are storage ordinals; each node keeps a neighbour list per layer it belongs to.
+ * Mutations must be externally serialized; searches may run concurrently with each other.
+ */
+final class HnswIndex implements AnnIndex {
+
+    private static final int MAGIC = 0x52484e57; // "RHNW"
+    private static final int VERSION = 1;
+    private static final long LEVEL_SEED = 42L;
+
+    private FlatVectorStorage storage;
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private final int efSearch;
+    private final double levelMultiplier;
+    private final Random random;
+
+    // links[node][level] = {count, neighbour_1, ..., neighbour_count, unused...}
+    // linkScores[node][level][i] = similarity between node and links[node][level][i + 1]
+    private int[][][] links;
+    private float[][][] linkScores;
+    private int nodeCount;
+    private int entryPoint;
+    private int maxLevel;
+    private float[] scratch;
+    private int[] scratchOrder;
+
+    HnswIndex(FlatVectorStorage storage, int m, int efConstruction, int efSearch) {
+        this.storage = storage;
+        this.m = m;
+        this.maxM0 = m * 2;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.levelMultiplier = 1.0 / Math.log(m);
+        this.random = new Random(LEVEL_SEED);
+        this.links = new int[0][][];
+        this.linkScores = new float[0][][];
+        this.entryPoint = -1;
+        this.maxLevel = -1;
+    }
+
+    /**
+     * Build a graph over every row currently in the storage
+     */
+    static HnswIndex build(FlatVectorStorage storage, int m, int efConstruction, int efSearch) {
+        HnswIndex index = new HnswIndex(storage, m, efConstruction, efSearch);
+        for (int ordinal = 0; ordinal < storage.size(); ordinal++) {
+            index.add(ordinal);
+        }
+        return index;
+    }
+
+    @Override
+    public void add(int node) {
+        float[] vector = storage.vectorAt(node);
+        int level = randomLevel();
+
+        ensureCapacity(node + 1);
+        links[node] = new int[level + 1][];
+        linkScores[node] = new float[level + 1][];
+        for (int l = 0; l <= level; l++) {
+            links[node][l] = new int[maxLinks(l) + 1];
+            linkScores[node][l] = new float[maxLinks(l)];
+        }
+        nodeCount = Math.max(nodeCount, node + 1);
+
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return;
+        }
+
+        // Greedy descent through the layers above the new node's top layer
+        int current = entryPoint;
+        for (int l = maxLevel; l > level; l--) {
+            current = greedyClosest(vector, current, l);
+        }
+
+        BitSet visited = new BitSet(nodeCount);
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            visited.clear();
+            List<Neighbor> candidates = bestFirst(searchLayer(vector, current, efConstruction, l, visited, null));
+            List<Neighbor> selected = selectNeighbors(candidates, maxLinks(l));
+
+            for (Neighbor neighbor : selected) {
+                appendLink(node, neighbor.ordinal, neighbor.score, l);
+                connect(neighbor.ordinal, node, neighbor.score, l);
+            }
+            current = candidates.get(0).ordinal;
+        }
+
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+    }
+
+    @Override
+    public void remove(int ordinal) {
+        // Tombstoned nodes stay in the graph as waypoints so it remains connected; searches
+        // check the storage's tombstones and never return them
+    }
+
+    @Override
+    public TopKHeap search(float[] query, int k) {
+        return search(query, k, efSearch);
+    }
+
+    @Override
+    public TopKHeap search(float[] query, int k, int breadth) {
+        return search(query, k, breadth, null);
+    }
+
+    @Override
+    public TopKHeap search(float[] query, int k, int breadth, IntPredicate filter) {
+        if (entryPoint < 0 || k <= 0) {
+            return new TopKHeap(0);
+        }
+
+        int current = entryPoint;
+        for (int l = maxLevel; l > 0; l--) {
+            current = greedyClosest(query, current, l);
+        }
+
+        int ef = breadth > 0 ? breadth : efSearch;
+        IntPredicate accept = filter == null ? ordinal -> !storage.isDeleted(ordinal)
+                : ordinal -> !storage.isDeleted(ordinal) && filter.test(ordinal);
+        TopKHeap results = searchLayer(query, current, Math.max(ef, k), 0, new BitSet(nodeCount), accept);
+        while (results.size() > k) {
+            results.pop();
+        }
+        return results;
+    }
+
+    @Override
+    public AnnIndex rebuild(FlatVectorStorage storage) {
+        return build(storage, m, efConstruction, efSearch);
+    }
+
+    @Override
+    public void attach(FlatVectorStorage storage) {
+        this.storage = storage;
+    }
+
+    @Override
+    public boolean needsRetraining() {
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return nodeCount;
+    }
+
+    @Override
+    public void save(Path path) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tempPath), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeInt(nodeCount);
+            out.writeInt(entryPoint);
+            out.writeInt(maxLevel);
+
+            for (int node = 0; node < nodeCount; node++) {
+                int[][] nodeLinks = links[node];
+                out.writeInt(nodeLinks.length);
+                for (int l = 0; l < nodeLinks.length; l++) {
+                    int count = nodeLinks[l][0];
+                    out.writeInt(count);
+                    for (int i = 1; i <= count; i++) {
+                        out.writeInt(nodeLinks[l][i]);
+                        out.writeFloat(linkScores[node][l][i - 1]);
+                    }
+                }
+            }
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load a persisted graph, linking in rows appended to the storage after it was saved, or return
+     * null if it was built with different parameters or covers more rows than the storage holds
+     */
+    static HnswIndex load(Path path, FlatVectorStorage storage, int m, int efConstruction, int efSearch)
+            throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            if (in.readInt() != m || in.readInt() != efConstruction) {
+                return null;
+            }
+            int nodeCount = in.readInt();
+            if (nodeCount > storage.size()) {
+                return null;
+            }
+
+            HnswIndex index = new HnswIndex(storage, m, efConstruction, efSearch);
+            index.entryPoint = in.readInt();
+            index.maxLevel = in.readInt();
+            index.ensureCapacity(nodeCount);
+            index.nodeCount = nodeCount;
+
+            for (int node = 0; node < nodeCount; node++) {
+                int levels = in.readInt();
+                int[][] nodeLinks = new int[levels][];
+                float[][] nodeScores = new float[levels][];
+                for (int l = 0; l < levels; l++) {
+                    int count = in.readInt();
+                    int[] levelLinks = new int[index.maxLinks(l) + 1];
+                    float[] levelScores = new float[index.maxLinks(l)];
+                    levelLinks[0] = count;
+                    for (int i = 1; i <= count; i++) {
+                        levelLinks[i] = in.readInt();
+                        levelScores[i - 1] = in.readFloat();
+                    }
+                    nodeLinks[l] = levelLinks;
+                    nodeScores[l] = levelScores;
+                }
+                index.links[node] = nodeLinks;
+                index.linkScores[node] = nodeScores;
+            }
+            for (int ordinal = nodeCount; ordinal < storage.size(); ordinal++) {
+                index.add(ordinal);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Walk to the most similar node reachable on one layer, one hop at a time
+     */
+    private int greedyClosest(float[] query, int start, int level) {
+        int current = start;
+        double currentScore = storage.similarity(query, current);
+        boolean improved = true;
+
+        while (improved) {
+            improved = false;
+            int[] neighbours = links[current][level];
+            for (int i = 1; i <= neighbours[0]; i++) {
+                int candidate = neighbours[i];
+                double score = storage.similarity(query, candidate);
+                if (score > currentScore) {
+                    currentScore = score;
+                    current = candidate;
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Best-first beam search on one layer, returning up to ef neighbours in a bounded heap.
+     * With an accept predicate, rejected nodes (tombstones, rows outside a metadata filter) are still
+     * expanded while they could improve the results, so the graph stays connected, but never enter them.
+     */
+    private TopKHeap searchLayer(float[] query, int entry, int ef, int level, BitSet visited, IntPredicate accept) {
+        CandidateQueue candidates = new CandidateQueue(ef);
+        TopKHeap results = new TopKHeap(ef);
+
+        double entryScore = storage.similarity(query, entry);
+        visited.set(entry);
+        candidates.push(entry, entryScore);
+        if (accept == null || accept.test(entry)) {
+            results.offer(entry, entryScore);
+        }
+
+        while (!candidates.isEmpty()) {
+            if (results.isFull() && candidates.bestScore() < results.minScore()) {
+                break;
+            }
+            int closest = candidates.pop();
+
+            int[] neighbours = links[closest][level];
+            for (int i = 1; i <= neighbours[0]; i++) {
+                int candidate = neighbours[i];
+                if (visited.get(candidate)) {
+                    continue;
+                }
+                visited.set(candidate);
+
+                double score = storage.similarity(query, candidate);
+                boolean expand = accept != null && !accept.test(candidate)
+                        ? !results.isFull() || score > results.minScore()
+                        : results.offer(candidate, score);
+                if (expand) {
+                    candidates.push(candidate, score);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Drain a search heap into scored neighbours, best first, for neighbour selection
+     */
+    private static List<Neighbor> bestFirst(TopKHeap heap) {
+        int[] ordinals = new int[heap.size()];
+        double[] scores = new double[heap.size()];
+        int count = heap.drainBestFirst(ordinals, scores);
+
+        List<Neighbor> neighbors = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            neighbors.add(new Neighbor(ordinals[i], scores[i]));
+        }
+        return neighbors;
+    }
+
+    /**
+     * Neighbour selection heuristic: keep a candidate only if it is closer to the base node
+     * than to any neighbour already kept, then top up with the best of the discarded ones
+     */
+    private List<Neighbor> selectNeighbors(List<Neighbor> candidates, int maxNeighbors) {
+        if (candidates.size() <= maxNeighbors) {
+            return candidates;
+        }
+
+        List<Neighbor> selected = new ArrayList<>(maxNeighbors);
+        List<Neighbor> discarded = new ArrayList<>();
+
+        float[] candidateVector = scratchRow();
+        for (Neighbor candidate : candidates) {
+            if (selected.size() >= maxNeighbors) {
+                break;
+            }
+            boolean diverse = true;
+            storage.readRow(candidate.ordinal, candidateVector);
+            for (Neighbor kept : selected) {
+                if (storage.similarity(candidateVector, kept.ordinal) > candidate.score) {
+                    diverse = false;
+                    break;
+                }
+            }
+            if (diverse) {
+                selected.add(candidate);
+            } else {
+                discarded.add(candidate);
+            }
+        }
+
+        for (int i = 0; i < discarded.size() && selected.size() < maxNeighbors; i++) {
+            selected.add(discarded.get(i));
+        }
+        return selected;
+    }
+
+    /**
+     * Add a back-link. When the list is full, the new link replaces the worst-scoring
+     * neighbour that is closer to a better neighbour than to this node (the same
+     * diversity rule as {@link #selectNeighbors}), or simply the worst one if all are diverse.
+     */
+    private void connect(int node, int neighbour, double score, int level) {
+        int[] nodeLinks = links[node][level];
+        float[] scores = linkScores[node][level];
+        int count = nodeLinks[0];
+
+        if (count < maxLinks(level)) {
+            appendLink(node, neighbour, score, level);
+            return;
+        }
+
+        int replace = worstNonDiverse(nodeLinks, scores, count, neighbour, (float) score);
+        if (replace < 0) {
+            return; // the new neighbour is the weakest candidate; keep the list as is
+        }
+        nodeLinks[replace + 1] = neighbour;
+        scores[replace] = (float) score;
+    }
+
+    /**
+     * Pick the slot to evict from a full neighbour list, or -1 if the new candidate is worse than all
+     */
+    private int worstNonDiverse(int[] nodeLinks, float[] scores, int count, int candidate, float candidateScore) {
+        // Slots ordered worst first, considering only neighbours weaker than the candidate. Lists hold
+        // at most 2M slots, so an insertion sort of the slot numbers beats boxing them for Arrays.sort
+        if (scratchOrder == null || scratchOrder.length < count) {
+            scratchOrder = new int[Math.max(count, maxM0)];
+        }
+        int[] order = scratchOrder;
+        for (int i = 0; i < count; i++) {
+            int slot = i;
+            int j = i;
+            while (j > 0 && scores[order[j - 1]] > scores[slot]) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = slot;
+        }
+        if (scores[order[0]] >= candidateScore) {
+            return -1;
+        }
+
+        float[] vector = scratchRow();
+        for (int i = 0; i < count && scores[order[i]] < candidateScore; i++) {
+            int slot = order[i];
+            storage.readRow(nodeLinks[slot + 1], vector);
+
+            if (storage.similarity(vector, candidate) > scores[slot]) {
+                return slot;
+            }
+            for (int j = count - 1; j > i; j--) {
+                int better = order[j];
+                if (storage.similarity(vector, nodeLinks[better + 1]) > scores[slot]) {
+                    return slot;
+                }
+            }
+        }
+        return order[0];
+    }
+
+    private void appendLink(int node, int neighbour, double score, int level) {
+        int[] nodeLinks = links[node][level];
+        int slot = nodeLinks[0]++;
+        nodeLinks[slot + 1] = neighbour;
+        linkScores[node][level][slot] = (float) score;
+    }
+
+    private float[] scratchRow() {
+        if (scratch == null || scratch.length != storage.dimension()) {
+            scratch = new float[storage.dimension()];
+        }
+        return scratch;
+    }
+
+    private int maxLinks(int level) {
+        return level == 0 ? maxM0 : m;
+    }
+
+    private int randomLevel() {
+        double uniform = 1.0 - random.nextDouble(); // (0, 1] so the log is finite
+        return (int) Math.floor(-Math.log(uniform) * levelMultiplier);
+    }
+
+    private void ensureCapacity(int nodes) {
+        if (nodes > links.length) {
+            int capacity = Math.max(nodes, Math.max(1024, links.length * 2));
+            links = Arrays.copyOf(links, capacity);
+            linkScores = Arrays.copyOf(linkScores, capacity);
+        }
+    }
+
+    /**
+     * Scored ordinal used while selecting a new node's neighbours
+     */
+    private static final class Neighbor {
+        final int ordinal;
+        final double score;
+
+        Neighbor(int ordinal, double score) {
+            this.ordinal = ordinal;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Growable max-heap of (ordinal, score) pairs: the beam search frontier, best candidate on top
+     */
+    private static final class CandidateQueue {
+        private int[] ordinals;
+        private double[] scores;
+        private int size;
+
+        CandidateQueue(int initialCapacity) {
+            this.ordinals = new int[Math.max(initialCapacity, 8)];
+            this.scores = new double[ordinals.length];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        double bestScore() {
+            return scores[0];
+        }
+
+        void push(int ordinal, double score) {
+            if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            int index = size++;
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (scores[parent] >= score) {
+                    break;
+                }
+                ordinals[index] = ordinals[parent];
+                scores[index] = scores[parent];
+                index = parent;
+            }
+            ordinals[index] = ordinal;
+            scores[index] = score;
+        }
+
+        int pop() {
+            int best = ordinals[0];
+            size--;
+            if (size > 0) {
+                int ordinal = ordinals[size];
+                double score = scores[size];
+                int index = 0;
+                int half = size >>> 1;
+                while (index < half) {
+                    int child = 2 * index + 1;
+                    int right = child + 1;
+                    if (right < size && scores[right] > scores[child]) {
+                        child = right;
+                    }
+                    if (score >= scores[child]) {
+                        break;
+                    }
+                    ordinals[index] = ordinals[child];
+                    scores[index] = scores[child];
+                    index = child;
+                }
+                ordinals[index] = ordinal;
+                scores[index] = score;
+            }
+            return best;
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package com.ragretrofit.stores.vector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.function.IntPredicate;
+
+/**
+ * IVF-PQ index: a coarse k-means quantizer partitions vectors into inverted lists, and each vector
+ * is stored as product-quantized codes of its residual from the list centroid (one byte per subspace).
+ * Queries probe the nprobe closest lists and score codes with asymmetric distance computation:
+ * per query, a table of subspace dot products against every codeword turns each code into a sum of
+ * table lookups. Since q.(c + r) = q.c + q.r for inner products, one table serves all lists.
+ * The best candidates are optionally rescored against the float32 rows.
+ * Mutations must be externally serialized; searches may run concurrently with each other.
+ */
+final class IvfPqIndex implements AnnIndex {
+
+    private static final int MAGIC = 0x52495646; // "RIVF"
+    private static final int VERSION = 1;
+    private static final int MAX_CODEBOOK_SIZE = 256;
+    private static final int TRAINING_ITERATIONS = 10;
+    private static final int MIN_POINTS_PER_LIST = 39;
+    private static final long TRAINING_SEED = 42L;
+    private static final int MIN_RESCORE_POOL = 100;
+    private static final SimilarityKernel KERNEL = SimilarityKernels.selected();
+
+    private FlatVectorStorage storage;
+    private final VectorStoreConfig config;
+    private final int dimension;
+    private final int lists;
+    private final int subspaces;
+    private final int subDimension;
+    private final int codebookSize;
+    private final int trainedCount;
+
+    // lists * dimension coarse centroids, and subspaces * codebookSize * subDimension codewords
+    private final float[] centroids;
+    private final float[] centroidHalfNorms;
+    private final float[] codebooks;
+    private final float[] codebookHalfNorms;
+
+    // Inverted lists: ordinals and their codes (subspaces bytes each), plus the reverse mapping
+    private final int[][] listOrdinals;
+    private final byte[][] listCodes;
+    private final int[] listSizes;
+    private int[] listOf;
+    private int[] slotOf;
+    private int count;
+    private int removed;
+
+    private IvfPqIndex(FlatVectorStorage storage, VectorStoreConfig config, int dimension, int lists,
+                       int subspaces, int codebookSize, int trainedCount, float[] centroids, float[] codebooks) {
+        this.storage = storage;
+        this.config = config;
+        this.dimension = dimension;
+        this.lists = lists;
+        this.subspaces = subspaces;
+        this.subDimension = dimension / subspaces;
+        this.codebookSize = codebookSize;
+        this.trainedCount = trainedCount;
+        this.centroids = centroids;
+        this.centroidHalfNorms = KMeans.halfSquaredNorms(centroids, lists, dimension);
+        this.codebooks = codebooks;
+        this.codebookHalfNorms = KMeans.halfSquaredNorms(codebooks, subspaces * codebookSize, subDimension);
+        this.listOrdinals = new int[lists][0];
+        this.listCodes = new byte[lists][0];
+        this.listSizes = new int[lists];
+        this.listOf = new int[0];
+        this.slotOf = new int[0];
+    }
+
+    /**
+     * Train centroids and codebooks on a sample of the live rows and encode every row,
+     * or return null if the storage has no live rows
+     */
+    static IvfPqIndex train(FlatVectorStorage storage, VectorStoreConfig config) {
+        int rows = storage.size();
+        int live = storage.liveCount();
+        int dimension = storage.dimension();
+        if (live == 0) {
+            return null;
+        }
+
+        int subspaces = resolveSubspaces(config.getPqSubspaces(), dimension);
+        int subDimension = dimension / subspaces;
+        Random random = new Random(TRAINING_SEED);
+
+        // Sample live training rows without replacement
+        int sampleRows = Math.min(live, config.getIvfTrainingSampleSize());
+        float[] sample = new float[sampleRows * dimension];
+        float[] row = new float[dimension];
+        int[] sampled = sampleOrdinals(storage, sampleRows, random);
+        for (int i = 0; i < sampleRows; i++) {
+            storage.readRow(sampled[i], row);
+            System.arraycopy(row, 0, sample, i * dimension, dimension);
+        }
+
+        int lists = config.getIvfLists() > 0
+                ? Math.min(config.getIvfLists(), sampleRows)
+                : (int) Math.max(1, Math.min(4 * Math.sqrt(live), sampleRows / MIN_POINTS_PER_LIST));
+        float[] centroids = KMeans.train(sample, sampleRows, dimension, lists, TRAINING_ITERATIONS, random);
+
+        // Residuals of the sample from their coarse centroids feed the per-subspace codebooks
+        float[] halfNorms = KMeans.halfSquaredNorms(centroids, lists, dimension);
+        for (int i = 0; i < sampleRows; i++) {
+            System.arraycopy(sample, i * dimension, row, 0, dimension);
+            int list = KMeans.nearest(centroids, halfNorms, lists, dimension, row);
+            for (int d = 0; d < dimension; d++) {
+                sample[i * dimension + d] -= centroids[list * dimension + d];
+            }
+        }
+
+        int codebookSize = Math.min(MAX_CODEBOOK_SIZE, sampleRows);
+        float[] codebooks = new float[subspaces * codebookSize * subDimension];
+        float[] subSample = new float[sampleRows * subDimension];
+        for (int s = 0; s < subspaces; s++) {
+            for (int i = 0; i < sampleRows; i++) {
+                System.arraycopy(sample, i * dimension + s * subDimension, subSample, i * subDimension, subDimension);
+            }
+            float[] codebook = KMeans.train(subSample, sampleRows, subDimension, codebookSize,
+                    TRAINING_ITERATIONS, random);
+            System.arraycopy(codebook, 0, codebooks, s * codebookSize * subDimension, codebook.length);
+        }
+
+        IvfPqIndex index = new IvfPqIndex(storage, config, dimension, lists, subspaces, codebookSize,
+                rows, centroids, codebooks);
+        index.addAll();
+        return index;
+    }
+
+    @Override
+    public void add(int ordinal) {
+        if (ordinal != count) {
+            throw new IllegalArgumentException("IVF-PQ ordinals must be appended in order: expected "
+                    + count + " but was " + ordinal);
+        }
+
+        float[] vector = storage.vectorAt(ordinal);
+        int list = KMeans.nearest(centroids, centroidHalfNorms, lists, dimension, vector);
+        for (int d = 0; d < dimension; d++) {
+            vector[d] -= centroids[list * dimension + d];
+        }
+
+        int slot = listSizes[list]++;
+        if (slot == listOrdinals[list].length) {
+            int capacity = Math.max(8, slot * 2);
+            listOrdinals[list] = Arrays.copyOf(listOrdinals[list], capacity);
+            listCodes[list] = Arrays.copyOf(listCodes[list], capacity * subspaces);
+        }
+        listOrdinals[list][slot] = ordinal;
+        encodeResidual(vector, listCodes[list], slot * subspaces);
+
+        if (ordinal == listOf.length) {
+            int capacity = Math.max(1024, listOf.length * 2);
+            listOf = Arrays.copyOf(listOf, capacity);
+            slotOf = Arrays.copyOf(slotOf, capacity);
+        }
+        listOf[ordinal] = list;
+        slotOf[ordinal] = slot;
+        count++;
+    }
+
+    @Override
+    public void remove(int ordinal) {
+        int list = listOf[ordinal];
+        if (list < 0) {
+            return;
+        }
+
+        // Drop the entry by moving its list's last entry into the slot, so scans never see it
+        int slot = slotOf[ordinal];
+        int tail = --listSizes[list];
+        if (slot != tail) {
+            int moved = listOrdinals[list][tail];
+            listOrdinals[list][slot] = moved;
+            System.arraycopy(listCodes[list], tail * subspaces, listCodes[list], slot * subspaces, subspaces);
+            slotOf[moved] = slot;
+        }
+        listOf[ordinal] = -1;
+        removed++;
+    }
+
+    @Override
+    public TopKHeap search(float[] query, int k) {
+        return search(query, k, config.getIvfNprobe());
+    }
+
+    @Override
+    public TopKHeap search(float[] query, int k, int breadth) {
+        return search(query, k, breadth, null);
+    }
+
+    @Override
+    public TopKHeap search(float[] query, int k, int breadth, IntPredicate filter) {
+        if (count == removed || k <= 0) {
+            return new TopKHeap(0);
+        }
+        int nprobe = Math.min(breadth > 0 ? breadth : config.getIvfNprobe(), lists);
+
+        // Closest lists by Euclidean distance to the centroid; the query's own norm is constant
+        TopKHeap probes = new TopKHeap(nprobe);
+        for (int list = 0; list < lists; list++) {
+            if (listSizes[list] > 0) {
+                probes.offer(list, KERNEL.dot(query, centroids, list * dimension, dimension) - centroidHalfNorms[list]);
+            }
+        }
+
+        float[] table = distanceTable(query);
+        // PQ codes are far coarser than int8, so rescoring keeps a minimum pool regardless of k
+        int multiplier = config.getRescoreMultiplier();
+        long poolSize = multiplier > 0 ? Math.max((long) k * multiplier, MIN_RESCORE_POOL) : k;
+        TopKHeap pool = new TopKHeap((int) Math.min(poolSize, count - removed));
+
+        while (!probes.isEmpty()) {
+            int list = probes.minOrdinal();
+            probes.pop();
+            float base = KERNEL.dot(query, centroids, list * dimension, dimension);
+            int[] ordinals = listOrdinals[list];
+            byte[] codes = listCodes[list];
+            for (int slot = 0, size = listSizes[list]; slot < size; slot++) {
+                if (filter != null && !filter.test(ordinals[slot])) {
+                    continue;
+                }
+                float score = base;
+                int offset = slot * subspaces;
+                for (int s = 0; s < subspaces; s++) {
+                    score += table[s * codebookSize + (codes[offset + s] & 0xFF)];
+                }
+                pool.offer(ordinals[slot], score);
+            }
+        }
+
+        if (multiplier == 0) {
+            return pool;
+        }
+        TopKHeap results = new TopKHeap(Math.min(k, pool.size()));
+        while (!pool.isEmpty()) {
+            int ordinal = pool.minOrdinal();
+            pool.pop();
+            results.offer(ordinal, storage.similarity(query, ordinal));
+        }
+        return results;
+    }
+
+    @Override
+    public AnnIndex rebuild(FlatVectorStorage storage) {
+        if (needsRetraining()) {
+            return train(storage, config);
+        }
+        IvfPqIndex rebuilt = new IvfPqIndex(storage, config, dimension, lists, subspaces, codebookSize,
+                trainedCount, centroids, codebooks);
+        rebuilt.addAll();
+        return rebuilt;
+    }
+
+    @Override
+    public void attach(FlatVectorStorage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Encode every storage row, leaving tombstoned ones out of the lists
+     */
+    private void addAll() {
+        for (int ordinal = 0; ordinal < storage.size(); ordinal++) {
+            add(ordinal);
+            if (storage.isDeleted(ordinal)) {
+                remove(ordinal);
+            }
+        }
+    }
+
+    /**
+     * Retrain once the corpus has grown to four times the size the centroids were trained on
+     */
+    @Override
+    public boolean needsRetraining() {
+        return count > 4L * trainedCount;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    int lists() {
+        return lists;
+    }
+
+    int subspaces() {
+        return subspaces;
+    }
+
+    /**
+     * Heap bytes held by codes, inverted list ordinals and the trained tables
+     */
+    long memoryBytes() {
+        long perVector = subspaces + 3L * Integer.BYTES;
+        return (long) (count - removed) * perVector + (long) (centroids.length + codebooks.length) * Float.BYTES;
+    }
+
+    @Override
+    public void save(Path path) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tempPath), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(dimension);
+            out.writeInt(lists);
+            out.writeInt(subspaces);
+            out.writeInt(codebookSize);
+            out.writeInt(count);
+            out.writeInt(trainedCount);
+            for (float value : centroids) {
+                out.writeFloat(value);
+            }
+            for (float value : codebooks) {
+                out.writeFloat(value);
+            }
+            for (int list = 0; list < lists; list++) {
+                out.writeInt(listSizes[list]);
+                for (int slot = 0; slot < listSizes[list]; slot++) {
+                    out.writeInt(listOrdinals[list][slot]);
+                }
+                out.write(listCodes[list], 0, listSizes[list] * subspaces);
+            }
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load a persisted index, encoding rows appended to the storage after it was saved, or return
+     * null if it covers more rows than the storage holds or does not match the explicitly configured
+     * list and subspace counts
+     */
+    static IvfPqIndex load(Path path, FlatVectorStorage storage, VectorStoreConfig config) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            int dimension = in.readInt();
+            int lists = in.readInt();
+            int subspaces = in.readInt();
+            int codebookSize = in.readInt();
+            int count = in.readInt();
+            int trainedCount = in.readInt();
+            if (dimension != storage.dimension() || count > storage.size()) {
+                return null;
+            }
+            if ((config.getIvfLists() > 0 && config.getIvfLists() != lists)
+                    || (config.getPqSubspaces() > 0 && config.getPqSubspaces() != subspaces)) {
+                return null;
+            }
+
+            float[] centroids = new float[lists * dimension];
+            for (int i = 0; i < centroids.length; i++) {
+                centroids[i] = in.readFloat();
+            }
+            float[] codebooks = new float[subspaces * codebookSize * (dimension / subspaces)];
+            for (int i = 0; i < codebooks.length; i++) {
+                codebooks[i] = in.readFloat();
+            }
+
+            IvfPqIndex index = new IvfPqIndex(storage, config, dimension, lists, subspaces, codebookSize,
+                    trainedCount, centroids, codebooks);
+            index.listOf = new int[Math.max(count, 1)];
+            index.slotOf = new int[Math.max(count, 1)];
+            Arrays.fill(index.listOf, -1);
+            index.removed = count;
+            for (int list = 0; list < lists; list++) {
+                int size = in.readInt();
+                index.listSizes[list] = size;
+                index.listOrdinals[list] = new int[size];
+                index.listCodes[list] = new byte[size * subspaces];
+                for (int slot = 0; slot < size; slot++) {
+                    int ordinal = in.readInt();
+                    index.listOrdinals[list][slot] = ordinal;
+                    index.listOf[ordinal] = list;
+                    index.slotOf[ordinal] = slot;
+                }
+                index.removed -= size;
+                in.readFully(index.listCodes[list]);
+            }
+            index.count = count;
+            for (int ordinal = count; ordinal < storage.size(); ordinal++) {
+                index.add(ordinal);
+            }
+
+            // Tombstones newer than the index (e.g. from a later checkpoint or the write-ahead log)
+            for (int ordinal = 0; ordinal < storage.size(); ordinal++) {
+                if (storage.isDeleted(ordinal)) {
+                    index.remove(ordinal);
+                }
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Asymmetric distance table: dot product of each query subvector with every codeword
+     */
+    private float[] distanceTable(float[] query) {
+        float[] table = new float[subspaces * codebookSize];
+        float[] subQuery = new float[subDimension];
+        for (int s = 0; s < subspaces; s++) {
+            System.arraycopy(query, s * subDimension, subQuery, 0, subDimension);
+            int codebookOffset = s * codebookSize * subDimension;
+            for (int code = 0; code < codebookSize; code++) {
+                table[s * codebookSize + code] = KMeans.dot(subQuery, codebooks,
+                        codebookOffset + code * subDimension, subDimension);
+            }
+        }
+        return table;
+    }
+
+    private void encodeResidual(float[] residual, byte[] codes, int offset) {
+        float[] subVector = new float[subDimension];
+        for (int s = 0; s < subspaces; s++) {
+            System.arraycopy(residual, s * subDimension, subVector, 0, subDimension);
+            int best = 0;
+            float bestScore = Float.NEGATIVE_INFINITY;
+            int codebookOffset = s * codebookSize * subDimension;
+            for (int code = 0; code < codebookSize; code++) {
+                float score = KMeans.dot(subVector, codebooks, codebookOffset + code * subDimension, subDimension)
+                        - codebookHalfNorms[s * codebookSize + code];
+                if (score > bestScore) {
+                    bestScore = score;
+                    best = code;
+                }
+            }
+            codes[offset + s] = (byte) best;
+        }
+    }
+
+    /**
+     * Explicit subspace count if it divides the dimension, otherwise the largest divisor
+     * giving subspaces of at least 8 dimensions
+     */
+    private static int resolveSubspaces(int requested, int dimension) {
+        if (requested > 0) {
+            if (dimension % requested != 0) {
+                throw new IllegalArgumentException("PQ subspaces (" + requested
+                        + ") must divide the embedding dimension (" + dimension + ")");
+            }
+            return requested;
+        }
+        for (int subspaces = Math.max(1, dimension / 8); subspaces > 1; subspaces--) {
+            if (dimension % subspaces == 0) {
+                return subspaces;
+            }
+        }
+        return 1;
+    }
+
+    private static int[] sampleOrdinals(FlatVectorStorage storage, int sampleRows, Random random) {
+        int rows = storage.size();
+        int[] sampled = new int[sampleRows];
+        if (sampleRows == storage.liveCount()) {
+            for (int ordinal = 0, i = 0; ordinal < rows; ordinal++) {
+                if (!storage.isDeleted(ordinal)) {
+                    sampled[i++] = ordinal;
+                }
+            }
+            return sampled;
+        }
+        BitSet chosen = new BitSet(rows);
+        for (int i = 0; i < sampleRows; ) {
+            int candidate = random.nextInt(rows);
+            if (!chosen.get(candidate) && !storage.isDeleted(candidate)) {
+                chosen.set(candidate);
+                sampled[i++] = candidate;
+            }
+        }
+        return sampled;
+    }
+}
@@ -0,0 +1,156 @@
+package com.ragretrofit.stores.vector;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Lloyd's k-means over packed row-major float data with k-means++ seeding.
+ * Used offline to train IVF coarse centroids and product-quantization codebooks.
+ */
+final class KMeans {
+
+    private static final SimilarityKernel KERNEL = SimilarityKernels.selected();
+    private static final int SMALL_DIMENSION = 32;
+
+    private KMeans() {}
+
+    /**
+     * Cluster the first rows of data into k centroids, returned packed as k * dimension floats
+     */
+    static float[] train(float[] data, int rows, int dimension, int k, int iterations, Random random) {
+        if (k < 1 || k > rows) {
+            throw new IllegalArgumentException("Cannot form " + k + " clusters from " + rows + " rows");
+        }
+
+        float[] centroids = seed(data, rows, dimension, k, random);
+        int[] assignments = new int[rows];
+        Arrays.fill(assignments, -1);
+        float[] row = new float[dimension];
+
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            float[] halfNorms = halfSquaredNorms(centroids, k, dimension);
+            boolean changed = false;
+            for (int r = 0; r < rows; r++) {
+                System.arraycopy(data, r * dimension, row, 0, dimension);
+                int nearest = nearest(centroids, halfNorms, k, dimension, row);
+                if (nearest != assignments[r]) {
+                    assignments[r] = nearest;
+                    changed = true;
+                }
+            }
+            if (!changed) {
+                break;
+            }
+
+            double[] sums = new double[k * dimension];
+            int[] sizes = new int[k];
+            for (int r = 0; r < rows; r++) {
+                int base = assignments[r] * dimension;
+                int offset = r * dimension;
+                for (int i = 0; i < dimension; i++) {
+                    sums[base + i] += data[offset + i];
+                }
+                sizes[assignments[r]]++;
+            }
+
+            for (int c = 0; c < k; c++) {
+                if (sizes[c] == 0) {
+                    // Re-seed an empty cluster from a random row so every centroid stays useful
+                    System.arraycopy(data, random.nextInt(rows) * dimension, centroids, c * dimension, dimension);
+                    continue;
+                }
+                for (int i = 0; i < dimension; i++) {
+                    centroids[c * dimension + i] = (float) (sums[c * dimension + i] / sizes[c]);
+                }
+            }
+        }
+        return centroids;
+    }
+
+    /**
+     * Index of the centroid closest in Euclidean distance to a vector, via argmax(x.c - |c|^2 / 2)
+     */
+    static int nearest(float[] centroids, float[] halfNorms, int k, int dimension, float[] vector) {
+        int best = 0;
+        float bestScore = Float.NEGATIVE_INFINITY;
+        for (int c = 0; c < k; c++) {
+            float score = dot(vector, centroids, c * dimension, dimension) - halfNorms[c];
+            if (score > bestScore) {
+                bestScore = score;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Product-quantization subspaces are narrower than a SIMD register, where a plain loop beats the kernel
+     */
+    static float dot(float[] vector, float[] rows, int offset, int dimension) {
+        if (dimension >= SMALL_DIMENSION) {
+            return KERNEL.dot(vector, rows, offset, dimension);
+        }
+        float sum = 0f;
+        for (int i = 0; i < dimension; i++) {
+            sum += vector[i] * rows[offset + i];
+        }
+        return sum;
+    }
+
+    static float[] halfSquaredNorms(float[] centroids, int k, int dimension) {
+        float[] halfNorms = new float[k];
+        float[] centroid = new float[dimension];
+        for (int c = 0; c < k; c++) {
+            System.arraycopy(centroids, c * dimension, centroid, 0, dimension);
+            halfNorms[c] = 0.5f * dot(centroid, centroids, c * dimension, dimension);
+        }
+        return halfNorms;
+    }
+
+    /**
+     * k-means++: each further centroid is drawn with probability proportional to its squared
+     * distance from the nearest centroid chosen so far
+     */
+    private static float[] seed(float[] data, int rows, int dimension, int k, Random random) {
+        float[] centroids = new float[k * dimension];
+        System.arraycopy(data, random.nextInt(rows) * dimension, centroids, 0, dimension);
+
+        // |x - c|^2 = |x|^2 - 2 x.c + |c|^2, so each distance update is one dot product
+        float[] squaredNorms = new float[rows];
+        float[] row = new float[dimension];
+        for (int r = 0; r < rows; r++) {
+            System.arraycopy(data, r * dimension, row, 0, dimension);
+            squaredNorms[r] = dot(row, data, r * dimension, dimension);
+        }
+
+        double[] distances = new double[rows];
+        Arrays.fill(distances, Double.POSITIVE_INFINITY);
+        float[] previous = new float[dimension];
+
+        for (int c = 1; c < k; c++) {
+            System.arraycopy(centroids, (c - 1) * dimension, previous, 0, dimension);
+            float previousNorm = dot(previous, centroids, (c - 1) * dimension, dimension);
+            double total = 0.0;
+            for (int r = 0; r < rows; r++) {
+                double distance = Math.max(0.0, squaredNorms[r] + previousNorm
+                        - 2.0 * dot(previous, data, r * dimension, dimension));
+                distances[r] = Math.min(distances[r], distance);
+                total += distances[r];
+            }
+
+            int chosen = random.nextInt(rows);
+            if (total > 0.0) {
+                double target = random.nextDouble() * total;
+                for (int r = 0; r < rows; r++) {
+                    target -= distances[r];
+                    if (target <= 0.0) {
+                        chosen = r;
+                        break;
+                    }
+                }
+            }
+            System.arraycopy(data, chosen * dimension, centroids, c * dimension, dimension);
+        }
+        return centroids;
+    }
+}
@@ -0,0 +1,269 @@
+package com.ragretrofit.stores.vector;
+
+import ai.djl.huggingface.tokenizers.Encoding;
+import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.TensorInfo;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.model.output.TokenUsage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mean-pooled BERT bi-encoder that runs real batched ONNX inference. The in-process langchain4j
+ * models run one session call per text even from embedAll; here each embedAll call tokenizes its
+ * texts, sorts the sequences by token length and runs them in batches of similar length, so padding
+ * stays small, then restores the input order. Texts longer than the model's window are split into
+ * windows whose embeddings are averaged by token count, as langchain4j does.
+ * Safe for concurrent use; the ONNX session is shared.
+ */
+final class OnnxBatchEmbeddingModel implements EmbeddingModel, AutoCloseable {
+
+    static final String MINILM_MODEL_ID = "all-minilm-l6-v2";
+    static final String MINILM_MODEL_RESOURCE = MINILM_MODEL_ID + ".onnx";
+    static final String MINILM_TOKENIZER_RESOURCE = "tokenizer.json";
+
+    // Token positions per sequence including [CLS] and [SEP], matching langchain4j's partitioning
+    private static final int MAX_SEQUENCE_LENGTH = 510;
+
+    private final OrtEnvironment environment;
+    private final OrtSession session;
+    private final HuggingFaceTokenizer tokenizer;
+    private final String modelId;
+    private final int dimension;
+    private final boolean expectsTokenTypes;
+    private final int batchSize;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong tokens = new AtomicLong();
+    private final AtomicLong paddedTokens = new AtomicLong();
+
+    private OnnxBatchEmbeddingModel(String modelId, byte[] model, InputStream tokenizerJson, int batchSize,
+                                    int intraOpThreads) throws OrtException, IOException {
+        this.modelId = modelId;
+        this.environment = OrtEnvironment.getEnvironment();
+        try (OrtSession.SessionOptions options = new OrtSession.SessionOptions()) {
+            if (intraOpThreads > 0) {
+                options.setIntraOpNumThreads(intraOpThreads);
+            }
+            this.session = environment.createSession(model, options);
+        }
+        this.tokenizer = HuggingFaceTokenizer.newInstance(tokenizerJson, Map.of("padding", "false"));
+        this.expectsTokenTypes = session.getInputNames().contains("token_type_ids");
+        long[] outputShape = ((TensorInfo) session.getOutputInfo().values().iterator().next().getInfo()).getShape();
+        this.dimension = (int) outputShape[outputShape.length - 1];
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * A model from ONNX weights and a HuggingFace tokenizer.json already read into memory, with its own
+     * ONNX session limited to the given number of threads (0 for the runtime default)
+     */
+    static OnnxBatchEmbeddingModel fromBytes(String modelId, byte[] model, byte[] tokenizerJson, int batchSize,
+                                             int intraOpThreads) {
+        try (InputStream tokenizer = new ByteArrayInputStream(tokenizerJson)) {
+            return new OnnxBatchEmbeddingModel(modelId, model, tokenizer, batchSize, intraOpThreads);
+        } catch (OrtException | IOException e) {
+            throw new IllegalStateException("Failed to load embedding model " + modelId, e);
+        }
+    }
+
+    @Override
+    public Response<List<Embedding>> embedAll(List<TextSegment> segments) {
+        int texts = segments.size();
+        List<Sequence> sequences = new ArrayList<>(texts);
+        for (int i = 0; i < texts; i++) {
+            split(i, tokenizer.encode(segments.get(i).text(), true, false), sequences);
+        }
+
+        // Length bucketing: neighbours in sorted order pad to almost the same length
+        sequences.sort((a, b) -> Integer.compare(a.ids.length, b.ids.length));
+
+        int dimension = 0;
+        float[][] sums = new float[texts][];
+        int[] weights = new int[texts];
+        long tokenCount = 0;
+        for (int start = 0; start < sequences.size(); start += batchSize) {
+            List<Sequence> batch = sequences.subList(start, Math.min(start + batchSize, sequences.size()));
+            float[][] pooled = run(batch);
+            for (int j = 0; j < batch.size(); j++) {
+                Sequence sequence = batch.get(j);
+                dimension = pooled[j].length;
+                if (sums[sequence.owner] == null) {
+                    sums[sequence.owner] = new float[dimension];
+                }
+                int weight = sequence.ids.length;
+                for (int d = 0; d < dimension; d++) {
+                    sums[sequence.owner][d] += pooled[j][d] * weight;
+                }
+                weights[sequence.owner] += weight;
+                tokenCount += weight;
+            }
+        }
+
+        List<Embedding> embeddings = new ArrayList<>(texts);
+        for (int i = 0; i < texts; i++) {
+            embeddings.add(Embedding.from(SimilarityKernels.normalize(sums[i])));
+        }
+        return Response.from(embeddings, new TokenUsage((int) Math.min(tokenCount, Integer.MAX_VALUE)));
+    }
+
+    /**
+     * Model inference calls made so far
+     */
+    long batches() {
+        return batches.get();
+    }
+
+    /**
+     * Real tokens embedded so far, excluding padding
+     */
+    long tokens() {
+        return tokens.get();
+    }
+
+    /**
+     * Token positions computed so far including padding
+     */
+    long paddedTokens() {
+        return paddedTokens.get();
+    }
+
+    int batchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Identifier of the model weights, used to keep embeddings from different models apart
+     */
+    String modelId() {
+        return modelId;
+    }
+
+    /**
+     * Embedding dimension produced by the model
+     */
+    int dimension() {
+        return dimension;
+    }
+
+    @Override
+    public void close() {
+        try {
+            session.close();
+        } catch (OrtException e) {
+            throw new IllegalStateException("Failed to close ONNX session", e);
+        } finally {
+            tokenizer.close();
+        }
+    }
+
+    /**
+     * Run one padded batch and mean-pool each sequence's token embeddings over its attention mask
+     */
+    private float[][] run(List<Sequence> batch) {
+        int rows = batch.size();
+        int length = batch.get(rows - 1).ids.length;
+        long[] inputIds = new long[rows * length];
+        long[] attentionMask = new long[rows * length];
+        int realTokens = 0;
+        for (int r = 0; r < rows; r++) {
+            long[] ids = batch.get(r).ids;
+            System.arraycopy(ids, 0, inputIds, r * length, ids.length);
+            Arrays.fill(attentionMask, r * length, r * length + ids.length, 1L);
+            realTokens += ids.length;
+        }
+
+        long[] shape = {rows, length};
+        Map<String, OnnxTensor> inputs = new HashMap<>();
+        try {
+            inputs.put("input_ids", OnnxTensor.createTensor(environment, LongBuffer.wrap(inputIds), shape));
+            inputs.put("attention_mask", OnnxTensor.createTensor(environment, LongBuffer.wrap(attentionMask), shape));
+            if (expectsTokenTypes) {
+                inputs.put("token_type_ids", OnnxTensor.createTensor(environment,
+                        LongBuffer.wrap(new long[rows * length]), shape));
+            }
+
+            try (OrtSession.Result result = session.run(inputs)) {
+                // Read the [rows, length, hidden] output in place rather than as nested Java arrays
+                OnnxTensor output = (OnnxTensor) result.get(0);
+                long[] outputShape = output.getInfo().getShape();
+                int hiddenSize = (int) outputShape[2];
+                FloatBuffer hidden = output.getFloatBuffer();
+                float[][] pooled = new float[rows][];
+                for (int r = 0; r < rows; r++) {
+                    int sequenceLength = batch.get(r).ids.length;
+                    float[] mean = new float[hiddenSize];
+                    int offset = r * length * hiddenSize;
+                    for (int t = 0; t < sequenceLength; t++, offset += hiddenSize) {
+                        for (int d = 0; d < hiddenSize; d++) {
+                            mean[d] += hidden.get(offset + d);
+                        }
+                    }
+                    for (int d = 0; d < mean.length; d++) {
+                        mean[d] /= sequenceLength;
+                    }
+                    pooled[r] = mean;
+                }
+
+                batches.incrementAndGet();
+                tokens.addAndGet(realTokens);
+                paddedTokens.addAndGet((long) rows * length);
+                return pooled;
+            }
+        } catch (OrtException e) {
+            throw new IllegalStateException("ONNX embedding inference failed", e);
+        } finally {
+            inputs.values().forEach(OnnxTensor::close);
+        }
+    }
+
+    /**
+     * Add a text's token ids as one sequence, or as [CLS] window [SEP] pieces if it exceeds the model window
+     */
+    private static void split(int owner, Encoding encoding, List<Sequence> sequences) {
+        long[] ids = encoding.getIds();
+        if (ids.length <= MAX_SEQUENCE_LENGTH) {
+            sequences.add(new Sequence(owner, ids));
+            return;
+        }
+
+        long cls = ids[0];
+        long sep = ids[ids.length - 1];
+        int window = MAX_SEQUENCE_LENGTH - 2;
+        for (int from = 1; from < ids.length - 1; from += window) {
+            int to = Math.min(from + window, ids.length - 1);
+            long[] piece = new long[to - from + 2];
+            piece[0] = cls;
+            System.arraycopy(ids, from, piece, 1, to - from);
+            piece[piece.length - 1] = sep;
+            sequences.add(new Sequence(owner, piece));
+        }
+    }
+
+    private static final class Sequence {
+        private final int owner;
+        private final long[] ids;
+
+        private Sequence(int owner, long[] ids) {
+            this.owner = owner;
+            this.ids = ids;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package com.ragretrofit.stores.vector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Projection of the stored unit vectors onto the corpus's leading principal components, e.g. 64 of
+ * 384 dimensions. The mean and components are estimated on a sample of the corpus (covariance plus
+ * orthogonal subspace iteration) and every row is kept as its coordinates in that subspace. Since
+ * x ~ mean + sum(y[i] * component[i]), a query scores a row as q.mean + (Pq).y: one short float dot
+ * product through the selected {@link SimilarityKernel}, with the query projected once per search.
+ * Embeddings concentrate most of their variance in few directions, so the ranking is close enough
+ * for a first pass whose best candidates are rescored in float32.
+ * Rows mirror the storage ordinals; mutations must be externally serialized.
+ */
+final class PcaProjection implements CompressedVectors {
+
+    private static final int MAGIC = 0x52504341; // "RPCA"
+    private static final int VERSION = 1;
+    private static final int TRAINING_SAMPLE_SIZE = 16384;
+    private static final int SUBSPACE_ITERATIONS = 40;
+    private static final SimilarityKernel KERNEL = SimilarityKernels.selected();
+
+    private final int dimension;
+    private final int components;
+    private final float[] mean;
+    // Orthonormal components, one row of length dimension each
+    private final float[] basis;
+    private final int trainedCount;
+    private float[] rows;
+    private int count;
+
+    private PcaProjection(int dimension, int components, float[] mean, float[] basis, int trainedCount) {
+        this.dimension = dimension;
+        this.components = components;
+        this.mean = mean;
+        this.basis = basis;
+        this.trainedCount = trainedCount;
+        this.rows = new float[0];
+    }
+
+    /**
+     * Fit the projection on a sample of the storage and project every row, or return null if it is empty
+     */
+    static PcaProjection train(FlatVectorStorage storage, int components) {
+        int dimension = storage.dimension();
+        int count = storage.size();
+        int live = storage.liveCount();
+        if (live == 0) {
+            return null;
+        }
+        components = Math.min(components, dimension);
+
+        // Evenly strided sample of live rows
+        int sampleSize = Math.min(live, TRAINING_SAMPLE_SIZE);
+        float[][] sample = new float[sampleSize][];
+        double stride = (double) count / sampleSize;
+        int taken = 0;
+        for (int i = 0; i < sampleSize && taken < sampleSize; i++) {
+            int ordinal = (int) (i * stride);
+            while (ordinal < count && storage.isDeleted(ordinal)) {
+                ordinal++;
+            }
+            if (ordinal < count) {
+                sample[taken++] = storage.vectorAt(ordinal);
+            }
+        }
+        sample = Arrays.copyOf(sample, taken);
+
+        double[] meanSum = new double[dimension];
+        for (float[] row : sample) {
+            for (int d = 0; d < dimension; d++) {
+                meanSum[d] += row[d];
+            }
+        }
+        float[] mean = new float[dimension];
+        for (int d = 0; d < dimension; d++) {
+            mean[d] = (float) (meanSum[d] / taken);
+        }
+
+        double[][] covariance = covariance(sample, mean, dimension);
+        float[] basis = leadingEigenvectors(covariance, components);
+
+        PcaProjection projection = new PcaProjection(dimension, components, mean, basis, count);
+        float[] row = new float[dimension];
+        for (int ordinal = 0; ordinal < count; ordinal++) {
+            storage.readRow(ordinal, row);
+            projection.set(ordinal, row);
+        }
+        return projection;
+    }
+
+    @Override
+    public void set(int ordinal, float[] vector) {
+        if (ordinal > count) {
+            throw new IllegalArgumentException("Ordinal " + ordinal + " skips past " + count + " projected rows");
+        }
+        if (ordinal == count) {
+            ensureCapacity(count + 1);
+            count++;
+        }
+
+        int base = ordinal * components;
+        for (int c = 0; c < components; c++) {
+            int offset = c * dimension;
+            double sum = 0.0;
+            for (int d = 0; d < dimension; d++) {
+                sum += (double) basis[offset + d] * (vector[d] - mean[d]);
+            }
+            rows[base + c] = (float) sum;
+        }
+    }
+
+    @Override
+    public Query prepare(float[] unitQuery) {
+        float[] projected = new float[components];
+        for (int c = 0; c < components; c++) {
+            projected[c] = KERNEL.dot(unitQuery, basis, c * dimension, dimension);
+        }
+        double offset = 0.0;
+        for (int d = 0; d < dimension; d++) {
+            offset += (double) unitQuery[d] * mean[d];
+        }
+        return new Query(projected, (float) offset);
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    int components() {
+        return components;
+    }
+
+    /**
+     * True once the corpus has more than doubled since training, so the components deserve a refresh
+     */
+    @Override
+    public boolean isOutgrown() {
+        return count > 2 * trainedCount;
+    }
+
+    /**
+     * Heap bytes held by the projected rows, the components and the mean
+     */
+    @Override
+    public long memoryBytes() {
+        return ((long) count * components + (long) components * dimension + dimension) * Float.BYTES;
+    }
+
+    @Override
+    public String method() {
+        return "pca" + components;
+    }
+
+    @Override
+    public void save(Path path) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tempPath), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(dimension);
+            out.writeInt(components);
+            out.writeInt(count);
+            out.writeInt(trainedCount);
+            writeFloats(out, mean, dimension);
+            writeFloats(out, basis, components * dimension);
+            writeFloats(out, rows, count * components);
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load a persisted projection, projecting rows appended to the storage after it was saved, or
+     * return null if it has another number of components or covers more rows than the storage holds
+     */
+    static PcaProjection load(Path path, FlatVectorStorage storage, int components) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            int dimension = in.readInt();
+            int storedComponents = in.readInt();
+            int count = in.readInt();
+            if (dimension != storage.dimension() || storedComponents != Math.min(components, dimension)
+                    || count > storage.size()) {
+                return null;
+            }
+            int trainedCount = in.readInt();
+
+            float[] mean = readFloats(in, dimension);
+            float[] basis = readFloats(in, storedComponents * dimension);
+            PcaProjection projection = new PcaProjection(dimension, storedComponents, mean, basis, trainedCount);
+            projection.rows = readFloats(in, count * storedComponents);
+            projection.count = count;
+            for (int ordinal = count; ordinal < storage.size(); ordinal++) {
+                projection.set(ordinal, storage.vectorAt(ordinal));
+            }
+            return projection;
+        }
+    }
+
+    /**
+     * Covariance of the sample rows around the mean, accumulated in double
+     */
+    private static double[][] covariance(float[][] sample, float[] mean, int dimension) {
+        double[][] covariance = new double[dimension][dimension];
+        double[] centered = new double[dimension];
+        for (float[] row : sample) {
+            for (int d = 0; d < dimension; d++) {
+                centered[d] = row[d] - mean[d];
+            }
+            for (int i = 0; i < dimension; i++) {
+                double ci = centered[i];
+                double[] covarianceRow = covariance[i];
+                for (int j = i; j < dimension; j++) {
+                    covarianceRow[j] += ci * centered[j];
+                }
+            }
+        }
+        for (int i = 0; i < dimension; i++) {
+            for (int j = i; j < dimension; j++) {
+                covariance[i][j] /= sample.length;
+                covariance[j][i] = covariance[i][j];
+            }
+        }
+        return covariance;
+    }
+
+    /**
+     * Orthonormal basis of the dominant eigenspace of a symmetric matrix by subspace iteration,
+     * returned as one row per component
+     */
+    private static float[] leadingEigenvectors(double[][] matrix, int components) {
+        int dimension = matrix.length;
+        Random random = new Random(42);
+        double[][] subspace = new double[components][dimension];
+        for (double[] vector : subspace) {
+            for (int d = 0; d < dimension; d++) {
+                vector[d] = random.nextGaussian();
+            }
+        }
+        orthonormalize(subspace);
+
+        double[][] next = new double[components][dimension];
+        for (int iteration = 0; iteration < SUBSPACE_ITERATIONS; iteration++) {
+            for (int c = 0; c < components; c++) {
+                double[] vector = subspace[c];
+                double[] product = next[c];
+                for (int i = 0; i < dimension; i++) {
+                    double[] matrixRow = matrix[i];
+                    double sum = 0.0;
+                    for (int j = 0; j < dimension; j++) {
+                        sum += matrixRow[j] * vector[j];
+                    }
+                    product[i] = sum;
+                }
+            }
+            double[][] swap = subspace;
+            subspace = next;
+            next = swap;
+            orthonormalize(subspace);
+        }
+
+        float[] basis = new float[components * dimension];
+        for (int c = 0; c < components; c++) {
+            for (int d = 0; d < dimension; d++) {
+                basis[c * dimension + d] = (float) subspace[c][d];
+            }
+        }
+        return basis;
+    }
+
+    /**
+     * Modified Gram-Schmidt in place; a vector that collapses is replaced by a unit axis orthogonalized
+     * against the others
+     */
+    private static void orthonormalize(double[][] vectors) {
+        int dimension = vectors[0].length;
+        for (int c = 0; c < vectors.length; c++) {
+            double[] vector = vectors[c];
+            for (int attempt = 0; ; attempt++) {
+                for (int p = 0; p < c; p++) {
+                    double[] previous = vectors[p];
+                    double dot = 0.0;
+                    for (int d = 0; d < dimension; d++) {
+                        dot += vector[d] * previous[d];
+                    }
+                    for (int d = 0; d < dimension; d++) {
+                        vector[d] -= dot * previous[d];
+                    }
+                }
+                double norm = 0.0;
+                for (double value : vector) {
+                    norm += value * value;
+                }
+                norm = Math.sqrt(norm);
+                if (norm > 1e-12 || attempt >= dimension) {
+                    for (int d = 0; d < dimension; d++) {
+                        vector[d] /= Math.max(norm, 1e-12);
+                    }
+                    break;
+                }
+                Arrays.fill(vector, 0.0);
+                vector[(c + attempt) % dimension] = 1.0;
+            }
+        }
+    }
+
+    private void ensureCapacity(int rowCount) {
+        long required = (long) rowCount * components;
+        if (required <= rows.length) {
+            return;
+        }
+        if (required > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Projected storage capacity exceeded: " + rowCount + " rows");
+        }
+        long grown = Math.max(required, (long) rows.length * 2);
+        rows = Arrays.copyOf(rows, (int) Math.min(grown, Integer.MAX_VALUE - 8));
+    }
+
+    private static void writeFloats(DataOutputStream out, float[] values, int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            out.writeFloat(values[i]);
+        }
+    }
+
+    private static float[] readFloats(DataInputStream in, int length) throws IOException {
+        float[] values = new float[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = in.readFloat();
+        }
+        return values;
+    }
+
+    /**
+     * Query projected onto the components: score = offset + sum(projected[i] * row[i])
+     */
+    final class Query implements Scorer {
+        private final float[] projected;
+        private final float offset;
+
+        private Query(float[] projected, float offset) {
+            this.projected = projected;
+            this.offset = offset;
+        }
+
+        @Override
+        public double score(int ordinal) {
+            return offset + KERNEL.dot(projected, rows, ordinal * components, components);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.ragretrofit.stores.vector;
+
+/**
+ * Counters of the query embedding cache since the store was opened: lookups answered from the
+ * cache, lookups that ran the model, and entries dropped to stay within capacity.
+ */
+public class QueryCacheStats {
+
+    private final int size;
+    private final int capacity;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+
+    public QueryCacheStats(int size, int capacity, long hits, long misses, long evictions) {
+        this.size = size;
+        this.capacity = capacity;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+    }
+
+    /**
+     * Counters of a disabled cache
+     */
+    static QueryCacheStats disabled() {
+        return new QueryCacheStats(0, 0, 0, 0, 0);
+    }
+
+    public double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+    // Getters
+    public int getSize() { return size; }
+    public int getCapacity() { return capacity; }
+    public long getHits() { return hits; }
+    public long getMisses() { return misses; }
+    public long getEvictions() { return evictions; }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d entries, %d hits, %d misses (%.1f%% hit rate), %d evictions",
+                size, capacity, hits, misses, getHitRate() * 100, evictions);
+    }
+}
@@ -0,0 +1,214 @@
+package com.ragretrofit.stores.vector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory cache of query embeddings, so query strings and hunk sources that come up again
+ * skip model inference. Entries are keyed by the first 128 bits of SHA-256 over the text and evicted
+ * least recently used first. The cache can be saved to a file of (key, float32 vector) records in
+ * recency order, stamped with the model identifier, and reloaded by the next run; a file written for
+ * another model or dimension is ignored. Safe for concurrent use.
+ */
+final class QueryEmbeddingCache {
+
+    private static final int MAGIC = 0x52455143; // "REQC"
+    private static final int VERSION = 1;
+
+    private final int capacity;
+    private final String modelId;
+    private final int dimension;
+
+    // Access-ordered, so iteration runs from least to most recently used
+    private final LinkedHashMap<Key, float[]> entries;
+    private boolean dirty;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    QueryEmbeddingCache(int capacity, String modelId, int dimension) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Query cache capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.modelId = modelId;
+        this.dimension = dimension;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, float[]> eldest) {
+                if (size() > QueryEmbeddingCache.this.capacity) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * The cached embedding of a query, or null on a miss. Callers must not modify the returned array.
+     */
+    float[] get(String text) {
+        Key key = Key.of(text);
+        float[] vector;
+        synchronized (entries) {
+            vector = entries.get(key);
+        }
+        (vector != null ? hits : misses).incrementAndGet();
+        return vector;
+    }
+
+    void put(String text, float[] vector) {
+        if (vector.length != dimension) {
+            throw new IllegalArgumentException("Expected a " + dimension + "-dimensional embedding but got "
+                    + vector.length);
+        }
+        Key key = Key.of(text);
+        synchronized (entries) {
+            entries.put(key, vector.clone());
+            dirty = true;
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    void clear() {
+        synchronized (entries) {
+            dirty |= !entries.isEmpty();
+            entries.clear();
+        }
+    }
+
+    QueryCacheStats stats() {
+        return new QueryCacheStats(size(), capacity, hits.get(), misses.get(), evictions.get());
+    }
+
+    /**
+     * Write the entries, least recently used first, unless nothing changed since the last save or load
+     */
+    void save(Path path) throws IOException {
+        List<Map.Entry<Key, float[]>> snapshot;
+        synchronized (entries) {
+            if (!dirty) {
+                return;
+            }
+            snapshot = new ArrayList<>(entries.entrySet());
+            dirty = false;
+        }
+
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tempPath), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(modelId);
+            out.writeInt(dimension);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<Key, float[]> entry : snapshot) {
+                out.writeLong(entry.getKey().high);
+                out.writeLong(entry.getKey().low);
+                for (float value : entry.getValue()) {
+                    out.writeFloat(value);
+                }
+            }
+        } catch (IOException e) {
+            synchronized (entries) {
+                dirty = true;
+            }
+            throw e;
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load entries saved by an earlier run for the same model; returns the number loaded, 0 if the
+     * file is missing or was written for another model or dimension
+     */
+    int load(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return 0;
+            }
+            if (!modelId.equals(in.readUTF()) || in.readInt() != dimension) {
+                return 0;
+            }
+            int count = in.readInt();
+            synchronized (entries) {
+                for (int i = 0; i < count; i++) {
+                    Key key = new Key(in.readLong(), in.readLong());
+                    float[] vector = new float[dimension];
+                    for (int j = 0; j < dimension; j++) {
+                        vector[j] = in.readFloat();
+                    }
+                    entries.put(key, vector);
+                }
+                // Anything trimmed by a smaller capacity than the saving run's is not an eviction
+                evictions.set(0);
+                return entries.size();
+            }
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 128-bit content hash of a query text
+     */
+    private static final class Key {
+        private final long high;
+        private final long low;
+
+        private Key(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        static Key of(String text) {
+            ByteBuffer digest = ByteBuffer.wrap(sha256().digest(text.getBytes(StandardCharsets.UTF_8)));
+            return new Key(digest.getLong(), digest.getLong());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return high == key.high && low == key.low;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (high ^ (high >>> 32));
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.ragretrofit.stores.vector;
+
+import java.util.List;
+
+/**
+ * Outcome of comparing a compressed or approximate scoring path against exact float32 search:
+ * recall@k over a sample of queries, mean latency of both paths, and the memory each one scores from.
+ */
+public class RecallReport {
+
+    private final String method;
+    private final int queries;
+    private final int k;
+    private final double recall;
+    private final double baselineMillisPerQuery;
+    private final double candidateMillisPerQuery;
+    private final long baselineBytes;
+    private final long candidateBytes;
+
+    public RecallReport(String method, int queries, int k, double recall,
+                        double baselineMillisPerQuery, double candidateMillisPerQuery,
+                        long baselineBytes, long candidateBytes) {
+        this.method = method;
+        this.queries = queries;
+        this.k = k;
+        this.recall = recall;
+        this.baselineMillisPerQuery = baselineMillisPerQuery;
+        this.candidateMillisPerQuery = candidateMillisPerQuery;
+        this.baselineBytes = baselineBytes;
+        this.candidateBytes = candidateBytes;
+    }
+
+    // Getters
+    public String getMethod() { return method; }
+    public int getQueries() { return queries; }
+    public int getK() { return k; }
+    public double getRecall() { return recall; }
+    public double getBaselineMillisPerQuery() { return baselineMillisPerQuery; }
+    public double getCandidateMillisPerQuery() { return candidateMillisPerQuery; }
+    public long getBaselineBytes() { return baselineBytes; }
+    public long getCandidateBytes() { return candidateBytes; }
+
+    /**
+     * One report for evaluations of separate parts of an index, e.g. one per shard: recall and
+     * latency averaged over all queries and memory summed
+     */
+    static RecallReport combine(List<RecallReport> reports, int k) {
+        String method = null;
+        int queries = 0;
+        double recall = 0;
+        double baselineMillis = 0;
+        double candidateMillis = 0;
+        long baselineBytes = 0;
+        long candidateBytes = 0;
+        for (RecallReport report : reports) {
+            method = report.method;
+            queries += report.queries;
+            recall += report.recall * report.queries;
+            baselineMillis += report.baselineMillisPerQuery * report.queries;
+            candidateMillis += report.candidateMillisPerQuery * report.queries;
+            baselineBytes += report.baselineBytes;
+            candidateBytes += report.candidateBytes;
+        }
+        return queries > 0
+                ? new RecallReport(method, queries, k, recall / queries, baselineMillis / queries,
+                        candidateMillis / queries, baselineBytes, candidateBytes)
+                : new RecallReport(method, 0, k, 0.0, 0.0, 0.0, baselineBytes, candidateBytes);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: recall@%d=%.3f over %d queries, %.3f ms/query (float32 %.3f ms), "
+                        + "%.1f MB scored (float32 %.1f MB)",
+                method, k, recall, queries, candidateMillisPerQuery, baselineMillisPerQuery,
+                candidateBytes / (1024.0 * 1024.0), baselineBytes / (1024.0 * 1024.0));
+    }
+}
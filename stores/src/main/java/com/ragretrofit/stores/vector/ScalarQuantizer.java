@@ -0,0 +1,240 @@
+package com.ragretrofit.stores.vector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Int8 scalar quantization of the stored unit vectors, one byte per dimension.
+ * Each dimension is calibrated to the min/max observed over the corpus at training time and
+ * split into 256 levels; values added later outside that range are clamped. Queries stay float
+ * and are folded with the calibration up front, so scoring a row is one float-by-byte dot product
+ * through the selected {@link SimilarityKernel}. Levels are stored as signed bytes (level - 128)
+ * so SIMD kernels can widen them directly.
+ * Codes mirror the storage ordinals; mutations must be externally serialized.
+ */
+final class ScalarQuantizer implements CompressedVectors {
+
+    private static final int MAGIC = 0x52535138; // "RSQ8"
+    private static final int VERSION = 2;
+    private static final int VERSION_WITHOUT_TRAINED_ROWS = 1;
+    private static final int LEVELS = 255;
+    private static final int LEVEL_BIAS = 128;
+    private static final SimilarityKernel KERNEL = SimilarityKernels.selected();
+
+    private final int dimension;
+    private final float[] mins;
+    private final float[] steps;
+    private final int trainedCount;
+    private final int trainedRows;
+    private byte[] codes;
+    private int count;
+
+    private ScalarQuantizer(int dimension, float[] mins, float[] steps, int trainedCount, int trainedRows) {
+        this.dimension = dimension;
+        this.mins = mins;
+        this.steps = steps;
+        this.trainedCount = trainedCount;
+        this.trainedRows = trainedRows;
+        this.codes = new byte[0];
+    }
+
+    /**
+     * Calibrate on the live rows in the storage and encode every row, or return null if none is live.
+     * Tombstoned rows are encoded too, clamped, since codes mirror the ordinals, but scans skip them.
+     */
+    static ScalarQuantizer train(FlatVectorStorage storage) {
+        int dimension = storage.dimension();
+        int rows = storage.size();
+        int live = storage.liveCount();
+        if (live == 0) {
+            return null;
+        }
+
+        float[] mins = new float[dimension];
+        float[] maxs = new float[dimension];
+        Arrays.fill(mins, Float.POSITIVE_INFINITY);
+        Arrays.fill(maxs, Float.NEGATIVE_INFINITY);
+
+        float[] row = new float[dimension];
+        for (int ordinal = 0; ordinal < rows; ordinal++) {
+            if (storage.isDeleted(ordinal)) {
+                continue;
+            }
+            storage.readRow(ordinal, row);
+            for (int i = 0; i < dimension; i++) {
+                mins[i] = Math.min(mins[i], row[i]);
+                maxs[i] = Math.max(maxs[i], row[i]);
+            }
+        }
+
+        float[] steps = new float[dimension];
+        for (int i = 0; i < dimension; i++) {
+            steps[i] = (maxs[i] - mins[i]) / LEVELS;
+        }
+
+        ScalarQuantizer quantizer = new ScalarQuantizer(dimension, mins, steps, live, rows);
+        for (int ordinal = 0; ordinal < rows; ordinal++) {
+            storage.readRow(ordinal, row);
+            quantizer.set(ordinal, row);
+        }
+        return quantizer;
+    }
+
+    @Override
+    public void set(int ordinal, float[] vector) {
+        if (ordinal > count) {
+            throw new IllegalArgumentException("Ordinal " + ordinal + " skips past " + count + " encoded rows");
+        }
+        if (ordinal == count) {
+            ensureCapacity(count + 1);
+            count++;
+        }
+
+        int base = ordinal * dimension;
+        for (int i = 0; i < dimension; i++) {
+            int level = steps[i] == 0f ? 0 : Math.round((vector[i] - mins[i]) / steps[i]);
+            codes[base + i] = (byte) (Math.max(0, Math.min(LEVELS, level)) - LEVEL_BIAS);
+        }
+    }
+
+    /**
+     * Fold the calibration into a unit-length query once per search
+     */
+    @Override
+    public Query prepare(float[] unitQuery) {
+        float[] scaled = new float[dimension];
+        double offset = 0.0;
+        for (int i = 0; i < dimension; i++) {
+            scaled[i] = unitQuery[i] * steps[i];
+            // x ~ min + step * (code + bias): the constant terms fold into one offset
+            offset += (double) unitQuery[i] * mins[i] + (double) scaled[i] * LEVEL_BIAS;
+        }
+        return new Query(scaled, (float) offset);
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    int dimension() {
+        return dimension;
+    }
+
+    /**
+     * True once the corpus has more than doubled since calibration, so the ranges deserve a refresh
+     */
+    @Override
+    public boolean isOutgrown() {
+        // Rows added since training outnumber the live rows calibrated on
+        return count - trainedRows > trainedCount;
+    }
+
+    /**
+     * Heap bytes held by the codes and calibration tables
+     */
+    @Override
+    public long memoryBytes() {
+        return (long) count * dimension + 2L * dimension * Float.BYTES;
+    }
+
+    @Override
+    public String method() {
+        return "int8";
+    }
+
+    @Override
+    public void save(Path path) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tempPath), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(dimension);
+            out.writeInt(count);
+            out.writeInt(trainedCount);
+            out.writeInt(trainedRows);
+            for (int i = 0; i < dimension; i++) {
+                out.writeFloat(mins[i]);
+                out.writeFloat(steps[i]);
+            }
+            out.write(codes, 0, count * dimension);
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load persisted codes, encoding rows appended to the storage after they were saved, or return
+     * null if they cover more rows than the storage holds
+     */
+    static ScalarQuantizer load(Path path, FlatVectorStorage storage) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            int version = in.readInt() == MAGIC ? in.readInt() : -1;
+            if (version != VERSION && version != VERSION_WITHOUT_TRAINED_ROWS) {
+                return null;
+            }
+            int dimension = in.readInt();
+            int count = in.readInt();
+            if (dimension != storage.dimension() || count > storage.size()) {
+                return null;
+            }
+            int trainedCount = in.readInt();
+            // Older files were calibrated on every row, tombstoned or not
+            int trainedRows = version == VERSION ? in.readInt() : trainedCount;
+
+            float[] mins = new float[dimension];
+            float[] steps = new float[dimension];
+            for (int i = 0; i < dimension; i++) {
+                mins[i] = in.readFloat();
+                steps[i] = in.readFloat();
+            }
+
+            ScalarQuantizer quantizer = new ScalarQuantizer(dimension, mins, steps, trainedCount, trainedRows);
+            quantizer.codes = new byte[count * dimension];
+            in.readFully(quantizer.codes);
+            quantizer.count = count;
+            for (int ordinal = count; ordinal < storage.size(); ordinal++) {
+                quantizer.set(ordinal, storage.vectorAt(ordinal));
+            }
+            return quantizer;
+        }
+    }
+
+    private void ensureCapacity(int rows) {
+        long required = (long) rows * dimension;
+        if (required <= codes.length) {
+            return;
+        }
+        if (required > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Quantized storage capacity exceeded: " + rows + " rows");
+        }
+        long grown = Math.max(required, (long) codes.length * 2);
+        codes = Arrays.copyOf(codes, (int) Math.min(grown, Integer.MAX_VALUE - 8));
+    }
+
+    /**
+     * Query folded with the calibration: score = offset + sum(scaled[i] * code[i])
+     */
+    final class Query implements Scorer {
+        private final float[] scaled;
+        private final float offset;
+
+        private Query(float[] scaled, float offset) {
+            this.scaled = scaled;
+            this.offset = offset;
+        }
+
+        @Override
+        public double score(int ordinal) {
+            return offset + KERNEL.dot(scaled, codes, ordinal * dimension, dimension);
+        }
+    }
+}
@@ -0,0 +1,634 @@
+package com.ragretrofit.stores.vector;
+
+import com.ragretrofit.indexer.model.CodeChunk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Vector store split into independently indexed shards, so one query can use as many cores as
+ * there are shards. Chunks are assigned to a shard by a hash of their ID or by their package;
+ * searches embed the query once, search every shard's index in parallel on a fork-join pool and
+ * merge the per-shard top-k lists. Each shard is a full {@link VectorStore} with its own segment,
+ * ANN index and write-ahead log under {@code <name>.shard-<i>}; all shards share one embedding model.
+ * The shard count and assignment are recorded in {@code <name>.shards} and must match on reopen.
+ */
+public class ShardedVectorStore implements CodeVectorStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardedVectorStore.class);
+
+    private static final int LAYOUT_MAGIC = 0x52534844; // "RSHD"
+    private static final int LAYOUT_VERSION = 1;
+
+    private final VectorStoreConfig config;
+    private final EmbeddingProvider embeddingModel;
+    private final VectorStore[] shards;
+    private final ForkJoinPool searchPool;
+
+    public ShardedVectorStore(Path persistencePath, VectorStoreConfig config) {
+        if (config.getShards() < 2) {
+            throw new IllegalArgumentException("A sharded vector store needs at least 2 shards");
+        }
+        this.config = config;
+        checkLayout(persistencePath, config);
+
+        this.embeddingModel = EmbeddingProvider.open(config);
+        // Queries are embedded once by the first shard, so only it keeps a query embedding cache
+        VectorStoreConfig shardConfig = VectorStoreConfig.builder(config).shards(1).build();
+        VectorStoreConfig uncachedShardConfig = VectorStoreConfig.builder(shardConfig).queryCacheSize(0).build();
+        this.shards = new VectorStore[config.getShards()];
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new VectorStore(shardPathFor(persistencePath, i), i == 0 ? shardConfig : uncachedShardConfig,
+                        embeddingModel);
+            }
+        } catch (RuntimeException e) {
+            for (VectorStore shard : shards) {
+                if (shard != null) {
+                    shard.close();
+                }
+            }
+            embeddingModel.close();
+            throw e;
+        }
+
+        int parallelism = Math.min(shards.length, Runtime.getRuntime().availableProcessors());
+        this.searchPool = new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("vector-shard-search-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+
+        logger.info("Initialized sharded vector store with {} embeddings in {} shards by {}, searched on {} threads",
+                size(), shards.length, config.getShardBy(), parallelism);
+    }
+
+    @Override
+    public void addChunk(CodeChunk chunk) {
+        int shard = shardOf(chunk);
+        dropStaleCopies(chunk.getId(), shard);
+        shards[shard].addChunk(chunk);
+    }
+
+    @Override
+    public EmbeddingReport addChunks(List<CodeChunk> chunks) {
+        long start = System.currentTimeMillis();
+        List<List<CodeChunk>> partitions = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (CodeChunk chunk : chunks) {
+            int shard = shardOf(chunk);
+            dropStaleCopies(chunk.getId(), shard);
+            partitions.get(shard).add(chunk);
+        }
+
+        // Shards share the model, whose inference already uses every core, so they embed one after another
+        List<EmbeddingReport> reports = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            if (!partitions.get(i).isEmpty()) {
+                reports.add(shards[i].addChunks(partitions.get(i)));
+            }
+        }
+        EmbeddingReport report = EmbeddingReport.combine(reports, System.currentTimeMillis() - start);
+        logger.info("Added {} chunks across {} shards: {}", report.getChunks(), shards.length, report);
+        return report;
+    }
+
+    @Override
+    public List<VectorStore.SimilarityResult> findSimilar(String queryText, int maxResults) {
+        return findSimilar(queryText, maxResults, 0.0);
+    }
+
+    @Override
+    public List<VectorStore.SimilarityResult> findSimilar(String queryText, int maxResults, double minSimilarity) {
+        return findSimilar(queryText, maxResults, minSimilarity, null, 0, null);
+    }
+
+    @Override
+    public List<VectorStore.SimilarityResult> findSimilar(String queryText, int maxResults, double minSimilarity,
+                                                          VectorStoreConfig.SearchMode searchMode) {
+        return findSimilar(queryText, maxResults, minSimilarity, searchMode, 0, null);
+    }
+
+    @Override
+    public List<VectorStore.SimilarityResult> findSimilar(String queryText, int maxResults, double minSimilarity,
+                                                          int nprobe) {
+        return findSimilar(queryText, maxResults, minSimilarity, null, nprobe, null);
+    }
+
+    /**
+     * Filtered search on every shard that can hold a match: with package sharding, a package filter
+     * only reaches the shards those packages live on
+     */
+    @Override
+    public List<VectorStore.SimilarityResult> findSimilar(String queryText, int maxResults, double minSimilarity,
+                                                          VectorFilter filter) {
+        return findSimilar(queryText, maxResults, minSimilarity, null, 0, filter);
+    }
+
+    private List<VectorStore.SimilarityResult> findSimilar(String queryText, int maxResults, double minSimilarity,
+                                                           VectorStoreConfig.SearchMode searchMode, int breadth,
+                                                           VectorFilter filter) {
+        float[] queryVector;
+        try {
+            queryVector = shards[0].embedQuery(queryText);
+        } catch (Exception e) {
+            logger.error("Error embedding vector search query", e);
+            return Collections.emptyList();
+        }
+        BitSet reachable = shardsMatching(filter);
+        return searchShards(maxResults, shard -> reachable != null && !reachable.get(indexOf(shard))
+                ? Collections.emptyList()
+                : shard.searchVector(queryVector, maxResults, minSimilarity, null, searchMode, breadth, filter));
+    }
+
+    @Override
+    public List<List<VectorStore.SimilarityResult>> findSimilarBatch(List<String> queryTexts, int maxResults) {
+        return findSimilarBatch(queryTexts, maxResults, 0.0);
+    }
+
+    /**
+     * Embed every query with one model call, run each shard's batched search in parallel and merge
+     * the shards' results query by query
+     */
+    @Override
+    public List<List<VectorStore.SimilarityResult>> findSimilarBatch(List<String> queryTexts, int maxResults,
+                                                                     double minSimilarity) {
+        if (queryTexts.isEmpty()) {
+            return Collections.emptyList();
+        }
+        float[][] queryVectors;
+        try {
+            queryVectors = shards[0].embedQueries(queryTexts);
+        } catch (Exception e) {
+            logger.error("Error embedding batched vector search queries", e);
+            return Collections.nCopies(queryTexts.size(), Collections.emptyList());
+        }
+        if (maxResults <= 0) {
+            return Collections.nCopies(queryTexts.size(), Collections.emptyList());
+        }
+
+        List<List<List<VectorStore.SimilarityResult>>> perShard =
+                onEachShard(shard -> shard.searchBatch(queryVectors, maxResults, minSimilarity));
+        List<List<VectorStore.SimilarityResult>> results = new ArrayList<>(queryVectors.length);
+        for (int q = 0; q < queryVectors.length; q++) {
+            List<List<VectorStore.SimilarityResult>> queryResults = new ArrayList<>(perShard.size());
+            for (List<List<VectorStore.SimilarityResult>> shardResults : perShard) {
+                queryResults.add(shardResults != null ? shardResults.get(q) : null);
+            }
+            results.add(merge(queryResults, maxResults));
+        }
+        return results;
+    }
+
+    @Override
+    public List<VectorStore.SimilarityResult> findSimilarToChunk(String chunkId, int maxResults) {
+        float[] targetVector = getVector(chunkId);
+        if (targetVector == null) {
+            logger.warn("Chunk not found in vector store: {}", chunkId);
+            return Collections.emptyList();
+        }
+        return searchShards(maxResults, shard -> shard.searchVector(targetVector, maxResults,
+                Double.NEGATIVE_INFINITY, chunkId, null, 0));
+    }
+
+    @Override
+    public List<VectorStore.SimilarityResult> findSimilarToVector(float[] queryVector, int maxResults) {
+        return searchShards(maxResults, shard -> shard.searchVector(queryVector, maxResults,
+                Double.NEGATIVE_INFINITY, null, null, 0));
+    }
+
+    @Override
+    public List<VectorStore.SimilarityResult> findSimilarAmong(String queryText, Set<String> candidateIds,
+                                                               int maxResults, double minSimilarity) {
+        return findSimilarAmong(queryText, candidateIds, maxResults, minSimilarity, null);
+    }
+
+    @Override
+    public List<VectorStore.SimilarityResult> findSimilarAmong(String queryText, Set<String> candidateIds,
+                                                               int maxResults, double minSimilarity,
+                                                               VectorFilter filter) {
+        if (candidateIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        float[] queryVector;
+        try {
+            queryVector = shards[0].embedQuery(queryText);
+        } catch (Exception e) {
+            logger.error("Error embedding vector search query", e);
+            return Collections.emptyList();
+        }
+        return findSimilarAmong(queryVector, candidateIds, maxResults, minSimilarity, filter);
+    }
+
+    /**
+     * Score the candidates on the shards holding them; with ID sharding each shard only sees its own
+     * candidates and shards holding none are skipped
+     */
+    @Override
+    public List<VectorStore.SimilarityResult> findSimilarAmong(float[] queryVector, Set<String> candidateIds,
+                                                               int maxResults, double minSimilarity) {
+        return findSimilarAmong(queryVector, candidateIds, maxResults, minSimilarity, null);
+    }
+
+    @Override
+    public List<VectorStore.SimilarityResult> findSimilarAmong(float[] queryVector, Set<String> candidateIds,
+                                                               int maxResults, double minSimilarity,
+                                                               VectorFilter filter) {
+        if (maxResults <= 0 || candidateIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (config.getShardBy() != VectorStoreConfig.Sharding.CHUNK_ID) {
+            BitSet reachable = shardsMatching(filter);
+            return searchShards(maxResults, shard -> reachable != null && !reachable.get(indexOf(shard))
+                    ? Collections.emptyList()
+                    : shard.findSimilarAmong(queryVector, candidateIds, maxResults, minSimilarity, filter));
+        }
+
+        List<Set<String>> partitions = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            partitions.add(new HashSet<>());
+        }
+        for (String candidateId : candidateIds) {
+            partitions.get(shardFor(candidateId)).add(candidateId);
+        }
+        return searchShards(maxResults, shard -> {
+            Set<String> own = partitions.get(indexOf(shard));
+            return own.isEmpty() ? Collections.emptyList()
+                    : shard.findSimilarAmong(queryVector, own, maxResults, minSimilarity, filter);
+        });
+    }
+
+    @Override
+    public float[] getVector(String chunkId) {
+        VectorStore shard = shardHolding(chunkId);
+        return shard != null ? shard.getVector(chunkId) : null;
+    }
+
+    @Override
+    public CodeChunk getChunk(String chunkId) {
+        VectorStore shard = shardHolding(chunkId);
+        return shard != null ? shard.getChunk(chunkId) : null;
+    }
+
+    @Override
+    public boolean containsChunk(String chunkId) {
+        return shardHolding(chunkId) != null;
+    }
+
+    @Override
+    public void removeChunk(String chunkId) {
+        VectorStore shard = shardHolding(chunkId);
+        if (shard != null) {
+            shard.removeChunk(chunkId);
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (VectorStore shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /**
+     * Tombstone fraction averaged over the shards, weighted by their size
+     */
+    @Override
+    public double deletedRatio() {
+        double deleted = 0;
+        long size = 0;
+        for (VectorStore shard : shards) {
+            int shardSize = shard.size();
+            deleted += shard.deletedRatio() * shardSize;
+            size += shardSize;
+        }
+        return size > 0 ? deleted / size : 0.0;
+    }
+
+    @Override
+    public boolean compact() {
+        boolean compacted = false;
+        for (Boolean shardCompacted : onEachShard(VectorStore::compact)) {
+            compacted |= Boolean.TRUE.equals(shardCompacted);
+        }
+        return compacted;
+    }
+
+    @Override
+    public void clear() {
+        for (VectorStore shard : shards) {
+            shard.clear();
+        }
+        logger.info("Cleared {} vector store shards", shards.length);
+    }
+
+    @Override
+    public void saveToDisk() {
+        onEachShard(shard -> {
+            shard.saveToDisk();
+            return null;
+        });
+    }
+
+    @Override
+    public RecallReport evaluateQuantization(int sampleQueries, int k) {
+        int perShard = Math.max(1, sampleQueries / shards.length);
+        return evaluateShards(k, shard -> shard.evaluateQuantization(perShard, k));
+    }
+
+    @Override
+    public RecallReport evaluateQuantization(int sampleQueries, int k, VectorStoreConfig.Quantization quantization,
+                                             int rescoreMultiplier) {
+        int perShard = Math.max(1, sampleQueries / shards.length);
+        return evaluateShards(k, shard -> shard.evaluateQuantization(perShard, k, quantization, rescoreMultiplier));
+    }
+
+    /**
+     * Quantization recall measured on every shard with an equal share of the sample queries
+     */
+    private RecallReport evaluateShards(int k, Function<VectorStore, RecallReport> evaluation) {
+        List<RecallReport> reports = new ArrayList<>(shards.length);
+        for (VectorStore shard : shards) {
+            reports.add(evaluation.apply(shard));
+        }
+        return RecallReport.combine(reports, k);
+    }
+
+    @Override
+    public QueryCacheStats queryCacheStats() {
+        return shards[0].queryCacheStats();
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    @Override
+    public void close() {
+        searchPool.shutdown();
+        for (VectorStore shard : shards) {
+            shard.close();
+        }
+        embeddingModel.close();
+        logger.info("Closed sharded vector store");
+    }
+
+    /**
+     * Run a search on every shard in parallel and merge the per-shard results into the overall top k
+     */
+    private List<VectorStore.SimilarityResult> searchShards(
+            int maxResults, Function<VectorStore, List<VectorStore.SimilarityResult>> search) {
+        if (maxResults <= 0) {
+            return Collections.emptyList();
+        }
+        return merge(onEachShard(search), maxResults);
+    }
+
+    /**
+     * Apply an action to every shard on the search pool and collect the results in shard order.
+     * Failures are logged and leave a null in place of that shard's result.
+     */
+    private <T> List<T> onEachShard(Function<VectorStore, T> action) {
+        List<Callable<T>> tasks = new ArrayList<>(shards.length);
+        for (VectorStore shard : shards) {
+            tasks.add(() -> action.apply(shard));
+        }
+        List<T> results = new ArrayList<>(shards.length);
+        try {
+            for (Future<T> future : searchPool.invokeAll(tasks)) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    logger.error("Vector store shard operation failed", e.getCause());
+                    results.add(null);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while waiting for vector store shards");
+        }
+        return results;
+    }
+
+    /**
+     * Merge best-first per-shard result lists into the overall best maxResults, best first
+     */
+    static List<VectorStore.SimilarityResult> merge(List<List<VectorStore.SimilarityResult>> perShard,
+                                                    int maxResults) {
+        List<VectorStore.SimilarityResult> candidates = new ArrayList<>();
+        for (List<VectorStore.SimilarityResult> results : perShard) {
+            if (results != null) {
+                candidates.addAll(results);
+            }
+        }
+        TopKHeap topK = new TopKHeap(Math.min(maxResults, candidates.size()));
+        for (int i = 0; i < candidates.size(); i++) {
+            topK.offer(i, candidates.get(i).getSimilarity());
+        }
+        int[] indexes = new int[topK.size()];
+        double[] similarities = new double[topK.size()];
+        int count = topK.drainBestFirst(indexes, similarities);
+        List<VectorStore.SimilarityResult> merged = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            merged.add(candidates.get(indexes[i]));
+        }
+        return merged;
+    }
+
+    /**
+     * The shards that can hold chunks matching a filter, or null if any shard can
+     */
+    private BitSet shardsMatching(VectorFilter filter) {
+        if (filter == null || filter.getPackages() == null
+                || config.getShardBy() != VectorStoreConfig.Sharding.PACKAGE) {
+            return null;
+        }
+        BitSet reachable = new BitSet(shards.length);
+        for (String packageName : filter.getPackages()) {
+            if (packageName.isEmpty()) {
+                // Chunks without a package are placed by their directory
+                return null;
+            }
+            reachable.set(shardFor(packageName));
+        }
+        return reachable;
+    }
+
+    private int shardOf(CodeChunk chunk) {
+        return shardFor(config.getShardBy() == VectorStoreConfig.Sharding.PACKAGE ? packageOf(chunk) : chunk.getId());
+    }
+
+    /**
+     * Stable across runs: String.hashCode is specified, and the mix spreads similar keys over the shards
+     */
+    private int shardFor(String key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return Math.floorMod(hash, shards.length);
+    }
+
+    private int indexOf(VectorStore shard) {
+        for (int i = 0; i < shards.length; i++) {
+            if (shards[i] == shard) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Not a shard of this store");
+    }
+
+    /**
+     * The shard holding a chunk, or null; with package sharding the chunk's shard cannot be derived
+     * from its ID, so every shard is asked
+     */
+    private VectorStore shardHolding(String chunkId) {
+        if (config.getShardBy() == VectorStoreConfig.Sharding.CHUNK_ID) {
+            VectorStore shard = shards[shardFor(chunkId)];
+            return shard.containsChunk(chunkId) ? shard : null;
+        }
+        for (VectorStore shard : shards) {
+            if (shard.containsChunk(chunkId)) {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * With package sharding a chunk that moved package now belongs to another shard; drop the old copy
+     */
+    private void dropStaleCopies(String chunkId, int shard) {
+        if (config.getShardBy() != VectorStoreConfig.Sharding.PACKAGE) {
+            return;
+        }
+        for (int i = 0; i < shards.length; i++) {
+            if (i != shard && shards[i].containsChunk(chunkId)) {
+                shards[i].removeChunk(chunkId);
+            }
+        }
+    }
+
+    private static String packageOf(CodeChunk chunk) {
+        if (chunk.getPackageContext() != null && !chunk.getPackageContext().isEmpty()) {
+            return chunk.getPackageContext();
+        }
+        String filePath = chunk.getFilePath();
+        if (filePath == null) {
+            return chunk.getId();
+        }
+        int slash = Math.max(filePath.lastIndexOf('/'), filePath.lastIndexOf('\\'));
+        return slash >= 0 ? filePath.substring(0, slash) : "";
+    }
+
+    static Path shardPathFor(Path persistencePath, int shard) {
+        return persistencePath.resolveSibling(VectorStore.baseName(persistencePath) + ".shard-" + shard);
+    }
+
+    static Path layoutPathFor(Path persistencePath) {
+        return persistencePath.resolveSibling(VectorStore.baseName(persistencePath) + ".shards");
+    }
+
+    /**
+     * The shard layout recorded for a vector index, or null if it is not sharded
+     */
+    static Layout readLayout(Path persistencePath) {
+        Path layoutPath = layoutPathFor(persistencePath);
+        if (!Files.exists(layoutPath)) {
+            return null;
+        }
+        try (InputStream in = Files.newInputStream(layoutPath);
+             DataInputStream data = new DataInputStream(in)) {
+            if (data.readInt() != LAYOUT_MAGIC || data.readInt() != LAYOUT_VERSION) {
+                throw new IllegalStateException("Not a vector shard layout, or an unsupported version: " + layoutPath);
+            }
+            int shards = data.readInt();
+            int shardBy = data.readInt();
+            if (shards < 2 || shardBy < 0 || shardBy >= VectorStoreConfig.Sharding.values().length) {
+                throw new IllegalStateException("Corrupt vector shard layout: " + layoutPath);
+            }
+            return new Layout(shards, VectorStoreConfig.Sharding.values()[shardBy]);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read vector shard layout: " + layoutPath, e);
+        }
+    }
+
+    /**
+     * Reject a config whose sharding differs from the index on disk, since chunks would be looked up
+     * in the wrong shards; record the layout of a new index
+     */
+    private static void checkLayout(Path persistencePath, VectorStoreConfig config) {
+        Layout existing = readLayout(persistencePath);
+        if (existing != null) {
+            if (existing.getShards() != config.getShards() || existing.getShardBy() != config.getShardBy()) {
+                throw new IllegalStateException(String.format(
+                        "Vector index %s has %d shards by %s but %d shards by %s were requested; "
+                                + "open it with its own sharding or rebuild it",
+                        persistencePath, existing.getShards(), existing.getShardBy(),
+                        config.getShards(), config.getShardBy()));
+            }
+            return;
+        }
+        if (Files.exists(VectorStore.segmentPathFor(persistencePath))) {
+            throw new IllegalStateException("Vector index " + persistencePath
+                    + " is not sharded; rebuild it to split it into shards");
+        }
+
+        Path layoutPath = layoutPathFor(persistencePath);
+        Path tempPath = layoutPath.resolveSibling(layoutPath.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(layoutPath.toAbsolutePath().getParent());
+            try (OutputStream out = Files.newOutputStream(tempPath);
+                 DataOutputStream data = new DataOutputStream(out)) {
+                data.writeInt(LAYOUT_MAGIC);
+                data.writeInt(LAYOUT_VERSION);
+                data.writeInt(config.getShards());
+                data.writeInt(config.getShardBy().ordinal());
+            }
+            Files.move(tempPath, layoutPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to write vector shard layout: " + layoutPath, e);
+        }
+    }
+
+    /**
+     * Shard count and assignment an index was built with
+     */
+    static final class Layout {
+        private final int shards;
+        private final VectorStoreConfig.Sharding shardBy;
+
+        private Layout(int shards, VectorStoreConfig.Sharding shardBy) {
+            this.shards = shards;
+            this.shardBy = shardBy;
+        }
+
+        int getShards() { return shards; }
+        VectorStoreConfig.Sharding getShardBy() { return shardBy; }
+    }
+}
@@ -0,0 +1,110 @@
+package com.ragretrofit.stores.vector;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Dot product kernel using JDK Vector API lanes. Only loaded reflectively by
+ * {@link SimilarityKernels} when the jdk.incubator.vector module is present at runtime.
+ */
+final class SimdSimilarityKernel implements SimilarityKernel {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    // Bytes are loaded at least 64 bits at a time and widened to float lanes one part at a time
+    private static final VectorSpecies<Byte> BYTE_SPECIES = VectorSpecies.of(byte.class,
+            VectorShape.forBitSize(Math.max(64, SPECIES.length() * Byte.SIZE)));
+    private static final int BYTE_PARTS = BYTE_SPECIES.length() / SPECIES.length();
+
+    SimdSimilarityKernel() {
+        // Without real vector hardware the lane code runs slower than the unrolled scalar loop
+        if (SPECIES.length() < 4) {
+            throw new UnsupportedOperationException("Preferred float species has only " + SPECIES.length() + " lanes");
+        }
+    }
+
+    @Override
+    public float dot(float[] query, float[] rows, int offset, int length) {
+        FloatVector first = FloatVector.zero(SPECIES);
+        FloatVector second = FloatVector.zero(SPECIES);
+        int step = SPECIES.length();
+        int i = 0;
+
+        // Two independent accumulators hide the fused multiply-add latency
+        for (int bound = length - 2 * step; i <= bound; i += 2 * step) {
+            first = FloatVector.fromArray(SPECIES, query, i)
+                    .fma(FloatVector.fromArray(SPECIES, rows, offset + i), first);
+            second = FloatVector.fromArray(SPECIES, query, i + step)
+                    .fma(FloatVector.fromArray(SPECIES, rows, offset + i + step), second);
+        }
+        for (int bound = SPECIES.loopBound(length); i < bound; i += step) {
+            first = FloatVector.fromArray(SPECIES, query, i)
+                    .fma(FloatVector.fromArray(SPECIES, rows, offset + i), first);
+        }
+
+        float sum = first.add(second).reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += query[i] * rows[offset + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public float dot(float[] query, ByteBuffer rows, int offset, int length) {
+        FloatVector first = FloatVector.zero(SPECIES);
+        FloatVector second = FloatVector.zero(SPECIES);
+        int step = SPECIES.length();
+        int base = offset * Float.BYTES;
+        int i = 0;
+
+        for (int bound = length - 2 * step; i <= bound; i += 2 * step) {
+            first = FloatVector.fromArray(SPECIES, query, i).fma(
+                    FloatVector.fromByteBuffer(SPECIES, rows, base + i * Float.BYTES, ByteOrder.LITTLE_ENDIAN), first);
+            second = FloatVector.fromArray(SPECIES, query, i + step).fma(FloatVector.fromByteBuffer(SPECIES, rows,
+                    base + (i + step) * Float.BYTES, ByteOrder.LITTLE_ENDIAN), second);
+        }
+        for (int bound = SPECIES.loopBound(length); i < bound; i += step) {
+            first = FloatVector.fromArray(SPECIES, query, i).fma(
+                    FloatVector.fromByteBuffer(SPECIES, rows, base + i * Float.BYTES, ByteOrder.LITTLE_ENDIAN), first);
+        }
+
+        float sum = first.add(second).reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += query[i] * rows.getFloat(base + i * Float.BYTES);
+        }
+        return sum;
+    }
+
+    @Override
+    public float dot(float[] query, byte[] codes, int offset, int length) {
+        FloatVector sum = FloatVector.zero(SPECIES);
+        int step = BYTE_SPECIES.length();
+        int lanes = SPECIES.length();
+        int i = 0;
+
+        for (int bound = BYTE_SPECIES.loopBound(length); i < bound; i += step) {
+            ByteVector bytes = ByteVector.fromArray(BYTE_SPECIES, codes, offset + i);
+            for (int part = 0; part < BYTE_PARTS; part++) {
+                FloatVector widened = (FloatVector) bytes.convertShape(VectorOperators.B2F, SPECIES, part);
+                sum = FloatVector.fromArray(SPECIES, query, i + part * lanes).fma(widened, sum);
+            }
+        }
+
+        float result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            result += query[i] * codes[offset + i];
+        }
+        return result;
+    }
+
+    @Override
+    public String name() {
+        return "simd-" + SPECIES.vectorBitSize();
+    }
+}
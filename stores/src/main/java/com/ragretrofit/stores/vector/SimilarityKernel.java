@@ -0,0 +1,31 @@
+package com.ragretrofit.stores.vector;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Dot product over float rows. Stored vectors and queries are normalized to unit length
+ * up front, so cosine similarity reduces to a single call to this kernel.
+ */
+interface SimilarityKernel {
+
+    /**
+     * Dot product of a query with the row starting at the given offset of a packed array
+     */
+    float dot(float[] query, float[] rows, int offset, int length);
+
+    /**
+     * Dot product of a query with the row starting at the given float index of a little-endian
+     * buffer of packed floats, e.g. a memory-mapped segment, read in place
+     */
+    float dot(float[] query, ByteBuffer rows, int offset, int length);
+
+    /**
+     * Dot product of a float query with signed 8-bit codes starting at the given offset
+     */
+    float dot(float[] query, byte[] codes, int offset, int length);
+
+    /**
+     * Short name used in logs and for explicit selection
+     */
+    String name();
+}
@@ -0,0 +1,192 @@
+package com.ragretrofit.stores.vector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Selects the similarity kernel once at startup and provides the portable fallbacks.
+ * The SIMD kernel is used when the JVM was started with {@code --add-modules jdk.incubator.vector};
+ * otherwise the unrolled scalar kernel is used. The {@value #KERNEL_PROPERTY} system property
+ * ({@code scalar}, {@code unrolled} or {@code simd}) forces a choice.
+ */
+final class SimilarityKernels {
+
+    private static final Logger logger = LoggerFactory.getLogger(SimilarityKernels.class);
+
+    static final String KERNEL_PROPERTY = "ragretrofit.vector.kernel";
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+    private static final String SIMD_KERNEL_CLASS = "com.ragretrofit.stores.vector.SimdSimilarityKernel";
+
+    private static final SimilarityKernel SELECTED = select();
+
+    private SimilarityKernels() {}
+
+    /**
+     * The kernel chosen for this JVM
+     */
+    static SimilarityKernel selected() {
+        return SELECTED;
+    }
+
+    /**
+     * Unit-length copy of a vector; the zero vector stays zero so it scores 0 against everything
+     */
+    static float[] normalize(float[] vector) {
+        double norm = 0.0;
+        for (float value : vector) {
+            norm += (double) value * value;
+        }
+
+        float[] unit = new float[vector.length];
+        if (norm == 0.0) {
+            return unit;
+        }
+        double scale = 1.0 / Math.sqrt(norm);
+        for (int i = 0; i < vector.length; i++) {
+            unit[i] = (float) (vector[i] * scale);
+        }
+        return unit;
+    }
+
+    private static SimilarityKernel select() {
+        String requested = System.getProperty(KERNEL_PROPERTY, "").trim().toLowerCase();
+        SimilarityKernel kernel;
+        switch (requested) {
+            case "scalar":
+                kernel = new Scalar();
+                break;
+            case "unrolled":
+                kernel = new Unrolled();
+                break;
+            default:
+                kernel = loadSimd();
+                if (kernel == null) {
+                    if (requested.equals("simd")) {
+                        logger.warn("SIMD similarity kernel requested but unavailable, falling back to unrolled");
+                    }
+                    kernel = new Unrolled();
+                }
+        }
+        logger.info("Using {} similarity kernel", kernel.name());
+        return kernel;
+    }
+
+    private static SimilarityKernel loadSimd() {
+        if (ModuleLayer.boot().findModule(VECTOR_MODULE).isEmpty()) {
+            return null;
+        }
+        try {
+            return (SimilarityKernel) Class.forName(SIMD_KERNEL_CLASS).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            logger.debug("SIMD similarity kernel not usable: {}", e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Straightforward loop, kept as the reference implementation
+     */
+    static final class Scalar implements SimilarityKernel {
+        @Override
+        public float dot(float[] query, float[] rows, int offset, int length) {
+            float sum = 0f;
+            for (int i = 0; i < length; i++) {
+                sum += query[i] * rows[offset + i];
+            }
+            return sum;
+        }
+
+        @Override
+        public float dot(float[] query, ByteBuffer rows, int offset, int length) {
+            float sum = 0f;
+            for (int i = 0; i < length; i++) {
+                sum += query[i] * rows.getFloat((offset + i) * Float.BYTES);
+            }
+            return sum;
+        }
+
+        @Override
+        public float dot(float[] query, byte[] codes, int offset, int length) {
+            float sum = 0f;
+            for (int i = 0; i < length; i++) {
+                sum += query[i] * codes[offset + i];
+            }
+            return sum;
+        }
+
+        @Override
+        public String name() {
+            return "scalar";
+        }
+    }
+
+    /**
+     * Four independent accumulators so the JIT can overlap the multiply-adds
+     */
+    static final class Unrolled implements SimilarityKernel {
+        @Override
+        public float dot(float[] query, float[] rows, int offset, int length) {
+            float s0 = 0f;
+            float s1 = 0f;
+            float s2 = 0f;
+            float s3 = 0f;
+            int i = 0;
+            for (int bound = length - 3; i < bound; i += 4) {
+                s0 += query[i] * rows[offset + i];
+                s1 += query[i + 1] * rows[offset + i + 1];
+                s2 += query[i + 2] * rows[offset + i + 2];
+                s3 += query[i + 3] * rows[offset + i + 3];
+            }
+            for (; i < length; i++) {
+                s0 += query[i] * rows[offset + i];
+            }
+            return (s0 + s1) + (s2 + s3);
+        }
+
+        @Override
+        public float dot(float[] query, ByteBuffer rows, int offset, int length) {
+            float s0 = 0f;
+            float s1 = 0f;
+            float s2 = 0f;
+            float s3 = 0f;
+            int i = 0;
+            int position = offset * Float.BYTES;
+            for (int bound = length - 3; i < bound; i += 4, position += 4 * Float.BYTES) {
+                s0 += query[i] * rows.getFloat(position);
+                s1 += query[i + 1] * rows.getFloat(position + Float.BYTES);
+                s2 += query[i + 2] * rows.getFloat(position + 2 * Float.BYTES);
+                s3 += query[i + 3] * rows.getFloat(position + 3 * Float.BYTES);
+            }
+            for (; i < length; i++, position += Float.BYTES) {
+                s0 += query[i] * rows.getFloat(position);
+            }
+            return (s0 + s1) + (s2 + s3);
+        }
+
+        @Override
+        public float dot(float[] query, byte[] codes, int offset, int length) {
+            float s0 = 0f;
+            float s1 = 0f;
+            float s2 = 0f;
+            float s3 = 0f;
+            int i = 0;
+            for (int bound = length - 3; i < bound; i += 4) {
+                s0 += query[i] * codes[offset + i];
+                s1 += query[i + 1] * codes[offset + i + 1];
+                s2 += query[i + 2] * codes[offset + i + 2];
+                s3 += query[i + 3] * codes[offset + i + 3];
+            }
+            for (; i < length; i++) {
+                s0 += query[i] * codes[offset + i];
+            }
+            return (s0 + s1) + (s2 + s3);
+        }
+
+        @Override
+        public String name() {
+            return "unrolled";
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.ragretrofit.stores.vector;
+
+/**
+ * Fixed-capacity min-heap of (ordinal, score) pairs that keeps the k highest scores seen.
+ * Ordinals and scores live in parallel primitive arrays, so offering a candidate never allocates.
+ * The root is the weakest retained entry, which makes the "is this better than the current k-th"
+ * check a single comparison.
+ */
+final class TopKHeap {
+
+    private final int[] ordinals;
+    private final double[] scores;
+    private int size;
+
+    TopKHeap(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Heap capacity cannot be negative");
+        }
+        this.ordinals = new int[capacity];
+        this.scores = new double[capacity];
+    }
+
+    int capacity() { return ordinals.length; }
+    int size() { return size; }
+    boolean isEmpty() { return size == 0; }
+    boolean isFull() { return size == ordinals.length; }
+
+    /**
+     * Score of the weakest retained entry; only valid when the heap is not empty
+     */
+    double minScore() {
+        return scores[0];
+    }
+
+    /**
+     * Ordinal of the weakest retained entry; only valid when the heap is not empty
+     */
+    int minOrdinal() {
+        return ordinals[0];
+    }
+
+    /**
+     * Offer a candidate, keeping it if there is room or it beats the current minimum.
+     * Ties keep the entry that arrived first.
+     */
+    boolean offer(int ordinal, double score) {
+        if (size < ordinals.length) {
+            ordinals[size] = ordinal;
+            scores[size] = score;
+            siftUp(size++);
+            return true;
+        }
+        if (size == 0 || score <= scores[0]) {
+            return false;
+        }
+        ordinals[0] = ordinal;
+        scores[0] = score;
+        siftDown(0);
+        return true;
+    }
+
+    /**
+     * Remove the weakest retained entry
+     */
+    void pop() {
+        size--;
+        if (size > 0) {
+            ordinals[0] = ordinals[size];
+            scores[0] = scores[size];
+            siftDown(0);
+        }
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Empty the heap into the given arrays, best first, and return the number of entries written
+     */
+    int drainBestFirst(int[] ordinalsOut, double[] scoresOut) {
+        int count = size;
+        for (int i = count - 1; i >= 0; i--) {
+            ordinalsOut[i] = ordinals[0];
+            scoresOut[i] = scores[0];
+            pop();
+        }
+        return count;
+    }
+
+    private void siftUp(int index) {
+        int ordinal = ordinals[index];
+        double score = scores[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (scores[parent] <= score) {
+                break;
+            }
+            ordinals[index] = ordinals[parent];
+            scores[index] = scores[parent];
+            index = parent;
+        }
+        ordinals[index] = ordinal;
+        scores[index] = score;
+    }
+
+    private void siftDown(int index) {
+        int ordinal = ordinals[index];
+        double score = scores[index];
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < size && scores[right] < scores[child]) {
+                child = right;
+            }
+            if (score <= scores[child]) {
+                break;
+            }
+            ordinals[index] = ordinals[child];
+            scores[index] = scores[child];
+            index = child;
+        }
+        ordinals[index] = ordinal;
+        scores[index] = score;
+    }
+}
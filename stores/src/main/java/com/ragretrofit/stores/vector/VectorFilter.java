@@ -0,0 +1,106 @@
+package com.ragretrofit.stores.vector;
+
+import com.ragretrofit.indexer.model.CodeChunk;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Metadata constraint on a vector search: chunk types, packages and file paths a result may have.
+ * Each unset criterion accepts anything; set criteria must all hold. Filters are evaluated on
+ * per-row metadata columns inside the scan or ANN traversal, so rows that fail are never scored.
+ */
+public final class VectorFilter {
+
+    private final Set<CodeChunk.ChunkType> types;
+    private final Set<String> packages;
+    private final Set<String> filePaths;
+
+    private VectorFilter(Builder builder) {
+        this.types = builder.types != null ? Collections.unmodifiableSet(EnumSet.copyOf(builder.types)) : null;
+        this.packages = builder.packages != null ? Set.copyOf(builder.packages) : null;
+        this.filePaths = builder.filePaths != null ? Set.copyOf(builder.filePaths) : null;
+    }
+
+    public static class Builder {
+        private Collection<CodeChunk.ChunkType> types;
+        private Collection<String> packages;
+        private Collection<String> filePaths;
+
+        public Builder types(CodeChunk.ChunkType... types) {
+            return types(Arrays.asList(types));
+        }
+
+        public Builder types(Collection<CodeChunk.ChunkType> types) {
+            this.types = types;
+            return this;
+        }
+
+        /**
+         * Declared Java packages; chunks without a package never match
+         */
+        public Builder packages(Collection<String> packages) {
+            this.packages = packages;
+            return this;
+        }
+
+        public Builder filePaths(Collection<String> filePaths) {
+            this.filePaths = filePaths;
+            return this;
+        }
+
+        public VectorFilter build() {
+            if (types != null && types.isEmpty()) {
+                // EnumSet.copyOf cannot infer the enum type of an empty collection
+                types = EnumSet.noneOf(CodeChunk.ChunkType.class);
+            }
+            if (hasNull(types) || hasNull(packages) || hasNull(filePaths)) {
+                throw new IllegalArgumentException("Filter values cannot be null");
+            }
+            return new VectorFilter(this);
+        }
+
+        // Immutable collections throw on contains(null), so look at the elements instead
+        private static boolean hasNull(Collection<?> values) {
+            return values != null && values.stream().anyMatch(Objects::isNull);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Chunks of any of the given types
+     */
+    public static VectorFilter ofTypes(CodeChunk.ChunkType... types) {
+        return builder().types(types).build();
+    }
+
+    /**
+     * Whether a chunk satisfies every criterion, for callers holding the chunk itself
+     */
+    public boolean matches(CodeChunk chunk) {
+        return (types == null || types.contains(chunk.getType()))
+                && (packages == null || (chunk.getPackageContext() != null && packages.contains(chunk.getPackageContext())))
+                && (filePaths == null || (chunk.getFilePath() != null && filePaths.contains(chunk.getFilePath())));
+    }
+
+    // Getters; null means the criterion is not set
+    public Set<CodeChunk.ChunkType> getTypes() { return types; }
+    public Set<String> getPackages() { return packages; }
+    public Set<String> getFilePaths() { return filePaths; }
+
+    @Override
+    public String toString() {
+        return "VectorFilter{" +
+                "types=" + types +
+                ", packages=" + packages +
+                ", filePaths=" + filePaths +
+                '}';
+    }
+}
@@ -0,0 +1,534 @@
+package com.ragretrofit.stores.vector;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Binary on-disk segment holding packed float32 vectors and their chunk IDs. A store keeps a base
+ * segment starting at ordinal 0 and, between compactions, delta segments holding the rows added by
+ * each checkpoint; every delta records the key of its base and the ordinal its rows start at.
+ *
+ * Layout (little-endian):
+ * <pre>
+ *   header      128 bytes: magic, version, dimension, count, flags, section offsets, base key,
+ *               first ordinal (flag {@link #FLAG_NORMALIZED}: rows are unit length)
+ *   vectors     count * dimension float32, row-major by ordinal
+ *   id offsets  (count + 1) int32 byte offsets into the id data section
+ *   id data     UTF-8 chunk IDs, concatenated
+ *   tombstones  int32 word count + int64 words of the removed-ordinal bitset
+ *   id table    int32 capacity (a power of two) + capacity int32 slots holding ordinal + 1 of each
+ *               live row, open-addressed by a hash of its UTF-8 ID with linear probing; 0 is empty
+ * </pre>
+ * Every section is mapped read-only, so opening a segment costs the same whatever its size: vector
+ * pages are read when they are scored, and IDs are decoded or looked up through the offset and hash
+ * tables on demand. Segments written by versions 1 and 2, which had neither the hash table nor
+ * necessarily normalized rows, are rewritten once by {@link #upgrade(Path)}.
+ */
+final class VectorSegment {
+
+    static final int MAGIC = 0x52564543; // "RVEC"
+    static final int VERSION = 3;
+    private static final int VERSION_WITHOUT_ID_TABLE = 2;
+    private static final int VERSION_WITHOUT_TOMBSTONES = 1;
+    static final int HEADER_SIZE = 128;
+    private static final int LEGACY_HEADER_SIZE = 64;
+
+    static final int FLAG_NORMALIZED = 1;
+
+    // Each mapping is capped well below the 2 GB MappedByteBuffer limit
+    private static final long MAX_SLAB_BYTES = 1L << 30;
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    private final int dimension;
+    private final int count;
+    private final int flags;
+    private final long baseKey;
+    private final int firstOrdinal;
+    private final int rowsPerSlab;
+    private final ByteBuffer[] vectorSlabs;
+    private final ByteBuffer idOffsets;
+    private final ByteBuffer idData;
+    private final ByteBuffer idTable;
+    private final int idTableMask;
+    private final BitSet deleted;
+
+    private VectorSegment(int dimension, int count, int flags, long baseKey, int firstOrdinal, int rowsPerSlab,
+                          ByteBuffer[] vectorSlabs, ByteBuffer idOffsets, ByteBuffer idData, ByteBuffer idTable,
+                          BitSet deleted) {
+        this.dimension = dimension;
+        this.count = count;
+        this.flags = flags;
+        this.baseKey = baseKey;
+        this.firstOrdinal = firstOrdinal;
+        this.rowsPerSlab = rowsPerSlab;
+        this.vectorSlabs = vectorSlabs;
+        this.idOffsets = idOffsets;
+        this.idData = idData;
+        this.idTable = idTable;
+        this.idTableMask = idTable.getInt(0) - 1;
+        this.deleted = deleted;
+    }
+
+    int dimension() { return dimension; }
+    int count() { return count; }
+    int flags() { return flags; }
+    int rowsPerSlab() { return rowsPerSlab; }
+    long baseKey() { return baseKey; }
+    int firstOrdinal() { return firstOrdinal; }
+
+    /**
+     * Tombstones recorded when the segment was written, by ordinal relative to {@link #firstOrdinal()}
+     */
+    BitSet deleted() { return deleted; }
+
+    /**
+     * Read-only little-endian views of the packed rows, {@link #rowsPerSlab()} rows per slab
+     */
+    ByteBuffer[] vectorSlabs() {
+        return vectorSlabs;
+    }
+
+    /**
+     * Decode the chunk ID of an ordinal from the mapped offset table
+     */
+    String idAt(int ordinal) {
+        int start = idOffsets.getInt(ordinal * Integer.BYTES);
+        int end = idOffsets.getInt((ordinal + 1) * Integer.BYTES);
+        byte[] id = new byte[end - start];
+        idData.get(start, id);
+        return new String(id, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Ordinal of the row that was live for a chunk ID when the segment was written, or -1.
+     * Tombstones set after that are the caller's to check.
+     */
+    int ordinalOf(String chunkId) {
+        byte[] id = chunkId.getBytes(StandardCharsets.UTF_8);
+        for (int slot = (int) hash(id) & idTableMask; ; slot = (slot + 1) & idTableMask) {
+            int entry = idTable.getInt((slot + 1) * Integer.BYTES);
+            if (entry == 0) {
+                return -1;
+            }
+            if (idEquals(entry - 1, id)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    private boolean idEquals(int ordinal, byte[] id) {
+        int start = idOffsets.getInt(ordinal * Integer.BYTES);
+        int end = idOffsets.getInt((ordinal + 1) * Integer.BYTES);
+        if (end - start != id.length) {
+            return false;
+        }
+        for (int i = 0; i < id.length; i++) {
+            if (idData.get(start + i) != id[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Vector dimension recorded in a segment file's header, without mapping the file
+     */
+    static int readDimension(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel, path, LEGACY_HEADER_SIZE);
+            header.getInt(); // version
+            return header.getInt();
+        }
+    }
+
+    /**
+     * True if a segment file predates the current format and must be upgraded before it is opened
+     */
+    static boolean needsUpgrade(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel, path, LEGACY_HEADER_SIZE);
+            return header.getInt() != VERSION;
+        }
+    }
+
+    /**
+     * Map an existing segment file read-only. Nothing but the header and tombstones is read up front.
+     */
+    static VectorSegment open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel, path, HEADER_SIZE);
+            int version = header.getInt();
+            if (version == VERSION_WITHOUT_ID_TABLE || version == VERSION_WITHOUT_TOMBSTONES) {
+                throw new IOException("Vector segment written by an older version, upgrade it first: " + path);
+            }
+            if (version != VERSION) {
+                throw new IOException("Unsupported vector segment version " + version + ": " + path);
+            }
+
+            int dimension = header.getInt();
+            int count = header.getInt();
+            int flags = header.getInt();
+            header.getInt(); // reserved
+            long vectorsOffset = header.getLong();
+            long idOffsetsOffset = header.getLong();
+            long idDataOffset = header.getLong();
+            long tombstonesOffset = header.getLong();
+            long idTableOffset = header.getLong();
+            long baseKey = header.getLong();
+            int firstOrdinal = header.getInt();
+
+            int rowsPerSlab = rowsPerSlab(dimension);
+            ByteBuffer[] slabs = mapVectorSlabs(channel, vectorsOffset, dimension, count, rowsPerSlab);
+            ByteBuffer idOffsets = map(channel, idOffsetsOffset, (long) (count + 1) * Integer.BYTES);
+            ByteBuffer idData = map(channel, idDataOffset, idOffsets.getInt(count * Integer.BYTES));
+            BitSet deleted = readTombstones(channel, tombstonesOffset);
+            ByteBuffer capacity = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, capacity, idTableOffset);
+            ByteBuffer idTable = map(channel, idTableOffset, (long) (capacity.getInt(0) + 1) * Integer.BYTES);
+
+            return new VectorSegment(dimension, count, flags, baseKey, firstOrdinal, rowsPerSlab, slabs, idOffsets,
+                    idData, idTable, deleted);
+        }
+    }
+
+    /**
+     * Write the rows of a storage and its tombstones to a new base segment file, replacing any existing
+     * file atomically. Ordinals are preserved, so indexes over the storage stay valid.
+     */
+    static void write(Path path, FlatVectorStorage storage, int flags) throws IOException {
+        int[] ordinals = new int[storage.size()];
+        for (int ordinal = 0; ordinal < ordinals.length; ordinal++) {
+            ordinals[ordinal] = ordinal;
+        }
+        write(path, storage.dimension(), storage::idAt, storage::readRow, ordinals, storage.deletedOrdinals(),
+                flags, newBaseKey(), 0);
+    }
+
+    /**
+     * Write only the live rows of a storage to a new base segment, renumbered densely in ordinal order
+     */
+    static void writeCompacted(Path path, FlatVectorStorage storage, int flags) throws IOException {
+        int[] ordinals = new int[storage.liveCount()];
+        int live = 0;
+        for (int ordinal = 0; ordinal < storage.size(); ordinal++) {
+            if (!storage.isDeleted(ordinal)) {
+                ordinals[live++] = ordinal;
+            }
+        }
+        write(path, storage.dimension(), storage::idAt, storage::readRow, ordinals, new BitSet(), flags,
+                newBaseKey(), 0);
+    }
+
+    /**
+     * Write rows copied out of a storage, e.g. by a checkpoint snapshot, starting at an ordinal: a base
+     * segment when that is 0, otherwise a delta of the base with the given key. Tombstone bits are
+     * relative to the first ordinal.
+     */
+    static void write(Path path, int dimension, long baseKey, int firstOrdinal, List<String> ids, float[] rows,
+                      BitSet deleted, int flags) throws IOException {
+        int[] ordinals = new int[ids.size()];
+        for (int i = 0; i < ordinals.length; i++) {
+            ordinals[i] = i;
+        }
+        write(path, dimension, ids::get,
+                (ordinal, destination) -> System.arraycopy(rows, ordinal * dimension, destination, 0, dimension),
+                ordinals, deleted, flags, baseKey, firstOrdinal);
+    }
+
+    /**
+     * Rewrite a version 1 or 2 segment in the current format, normalizing its rows if they were
+     * written before rows were stored at unit length. Ordinals and tombstones are kept.
+     */
+    static void upgrade(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel, path, LEGACY_HEADER_SIZE);
+            int version = header.getInt();
+            if (version != VERSION_WITHOUT_ID_TABLE && version != VERSION_WITHOUT_TOMBSTONES) {
+                throw new IOException("Not a legacy vector segment, version " + version + ": " + path);
+            }
+            int dimension = header.getInt();
+            int count = header.getInt();
+            int flags = header.getInt();
+            header.getInt(); // reserved
+            long vectorsOffset = header.getLong();
+            long idOffsetsOffset = header.getLong();
+            long idDataOffset = header.getLong();
+            long tombstonesOffset = version == VERSION_WITHOUT_ID_TABLE ? header.getLong() : 0L;
+
+            FloatBuffer[] slabs = floatViews(mapVectorSlabs(channel, vectorsOffset, dimension, count,
+                    rowsPerSlab(dimension)));
+            int rowsPerSlab = rowsPerSlab(dimension);
+            ByteBuffer idOffsets = map(channel, idOffsetsOffset, (long) (count + 1) * Integer.BYTES);
+            ByteBuffer idData = map(channel, idDataOffset, idOffsets.getInt(count * Integer.BYTES));
+            BitSet deleted = tombstonesOffset > 0 ? readTombstones(channel, tombstonesOffset) : new BitSet();
+            boolean normalized = (flags & FLAG_NORMALIZED) != 0;
+
+            int[] ordinals = new int[count];
+            for (int ordinal = 0; ordinal < count; ordinal++) {
+                ordinals[ordinal] = ordinal;
+            }
+            Path upgraded = path.resolveSibling(path.getFileName() + ".upgrade");
+            write(upgraded, dimension,
+                    ordinal -> {
+                        int start = idOffsets.getInt(ordinal * Integer.BYTES);
+                        byte[] id = new byte[idOffsets.getInt((ordinal + 1) * Integer.BYTES) - start];
+                        idData.get(start, id);
+                        return new String(id, StandardCharsets.UTF_8);
+                    },
+                    (ordinal, destination) -> {
+                        slabs[ordinal / rowsPerSlab].get((ordinal % rowsPerSlab) * dimension, destination, 0, dimension);
+                        if (!normalized) {
+                            System.arraycopy(SimilarityKernels.normalize(destination), 0, destination, 0, dimension);
+                        }
+                    },
+                    ordinals, deleted, flags | FLAG_NORMALIZED, newBaseKey(), 0);
+            Files.move(upgraded, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Chunk ID of each ordinal being written
+     */
+    private interface IdSource {
+        String idAt(int ordinal);
+    }
+
+    /**
+     * Unit-length vector of each ordinal being written
+     */
+    private interface RowSource {
+        void readRow(int ordinal, float[] destination);
+    }
+
+    private static void write(Path path, int dimension, IdSource ids, RowSource rows, int[] ordinals,
+                              BitSet deleted, int flags, long baseKey, int firstOrdinal) throws IOException {
+        int count = ordinals.length;
+        byte[][] encodedIds = new byte[count][];
+        long idDataLength = 0;
+        for (int i = 0; i < count; i++) {
+            encodedIds[i] = ids.idAt(ordinals[i]).getBytes(StandardCharsets.UTF_8);
+            idDataLength += encodedIds[i].length;
+        }
+        if (idDataLength > Integer.MAX_VALUE) {
+            throw new IOException("Chunk IDs of a vector segment exceed 2 GB");
+        }
+        long[] words = deleted.toLongArray();
+        int[] idTable = idTable(encodedIds, deleted);
+
+        long vectorsOffset = HEADER_SIZE;
+        long idOffsetsOffset = vectorsOffset + (long) count * dimension * Float.BYTES;
+        long idDataOffset = idOffsetsOffset + (long) (count + 1) * Integer.BYTES;
+        long tombstonesOffset = idDataOffset + idDataLength;
+        long idTableOffset = tombstonesOffset + Integer.BYTES + (long) words.length * Long.BYTES;
+
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(dimension)
+                    .putInt(count)
+                    .putInt(flags)
+                    .putInt(0)
+                    .putLong(vectorsOffset)
+                    .putLong(idOffsetsOffset)
+                    .putLong(idDataOffset)
+                    .putLong(tombstonesOffset)
+                    .putLong(idTableOffset)
+                    .putLong(baseKey)
+                    .putInt(firstOrdinal);
+            buffer.position(HEADER_SIZE);
+
+            // Packed vectors
+            float[] row = new float[dimension];
+            for (int ordinal : ordinals) {
+                rows.readRow(ordinal, row);
+                for (float value : row) {
+                    if (!buffer.hasRemaining()) {
+                        flush(channel, buffer);
+                    }
+                    buffer.putFloat(value);
+                }
+            }
+
+            // ID offset table followed by the ID bytes
+            int offset = 0;
+            for (byte[] encoded : encodedIds) {
+                ensureRemaining(channel, buffer, Integer.BYTES);
+                buffer.putInt(offset);
+                offset += encoded.length;
+            }
+            ensureRemaining(channel, buffer, Integer.BYTES);
+            buffer.putInt(offset);
+
+            for (byte[] encoded : encodedIds) {
+                int written = 0;
+                while (written < encoded.length) {
+                    if (!buffer.hasRemaining()) {
+                        flush(channel, buffer);
+                    }
+                    int length = Math.min(buffer.remaining(), encoded.length - written);
+                    buffer.put(encoded, written, length);
+                    written += length;
+                }
+            }
+
+            // Tombstone bitset
+            ensureRemaining(channel, buffer, Integer.BYTES);
+            buffer.putInt(words.length);
+            for (long word : words) {
+                ensureRemaining(channel, buffer, Long.BYTES);
+                buffer.putLong(word);
+            }
+
+            // ID hash table
+            ensureRemaining(channel, buffer, Integer.BYTES);
+            buffer.putInt(idTable.length);
+            for (int entry : idTable) {
+                ensureRemaining(channel, buffer, Integer.BYTES);
+                buffer.putInt(entry);
+            }
+
+            flush(channel, buffer);
+            channel.force(true);
+        }
+
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * A random non-zero key tying delta segments and tombstone files to a base segment
+     */
+    static long newBaseKey() {
+        long key;
+        do {
+            key = ThreadLocalRandom.current().nextLong();
+        } while (key == 0);
+        return key;
+    }
+
+    /**
+     * Open-addressed table of the live rows by ID hash, at most half full
+     */
+    private static int[] idTable(byte[][] encodedIds, BitSet deleted) {
+        int live = encodedIds.length - deleted.cardinality();
+        int[] table = new int[Math.max(2, Integer.highestOneBit(Math.max(live, 1)) << 2)];
+        int mask = table.length - 1;
+        for (int ordinal = 0; ordinal < encodedIds.length; ordinal++) {
+            if (deleted.get(ordinal)) {
+                continue;
+            }
+            int slot = (int) hash(encodedIds[ordinal]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = ordinal + 1;
+        }
+        return table;
+    }
+
+    /**
+     * 64-bit FNV-1a of the ID bytes with a final avalanche, so the low bits used as the slot mix well
+     */
+    private static long hash(byte[] id) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : id) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static int rowsPerSlab(int dimension) {
+        long rowBytes = (long) Math.max(dimension, 1) * Float.BYTES;
+        return (int) Math.max(1, MAX_SLAB_BYTES / rowBytes);
+    }
+
+    private static ByteBuffer[] mapVectorSlabs(FileChannel channel, long vectorsOffset,
+                                               int dimension, int count, int rowsPerSlab) throws IOException {
+        int slabCount = count == 0 ? 0 : (count + rowsPerSlab - 1) / rowsPerSlab;
+        ByteBuffer[] slabs = new ByteBuffer[slabCount];
+
+        for (int slab = 0; slab < slabCount; slab++) {
+            int firstRow = slab * rowsPerSlab;
+            int rows = Math.min(rowsPerSlab, count - firstRow);
+            long position = vectorsOffset + (long) firstRow * dimension * Float.BYTES;
+            slabs[slab] = map(channel, position, (long) rows * dimension * Float.BYTES);
+        }
+
+        return slabs;
+    }
+
+    /**
+     * Float views of byte slabs, for bulk row copies
+     */
+    static FloatBuffer[] floatViews(ByteBuffer[] slabs) {
+        FloatBuffer[] views = new FloatBuffer[slabs.length];
+        for (int i = 0; i < slabs.length; i++) {
+            views[i] = slabs[i].asFloatBuffer();
+        }
+        return views;
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer readHeader(FileChannel channel, Path path, int size) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a vector segment file: " + path);
+        }
+        return header;
+    }
+
+    private static BitSet readTombstones(FileChannel channel, long tombstonesOffset) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, length, tombstonesOffset);
+        length.flip();
+        ByteBuffer words = ByteBuffer.allocate(length.getInt() * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, words, tombstonesOffset + Integer.BYTES);
+        words.flip();
+        return BitSet.valueOf(words);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of vector segment");
+            }
+        }
+    }
+
+    private static void ensureRemaining(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush(channel, buffer);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
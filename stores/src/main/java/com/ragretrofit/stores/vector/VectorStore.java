@@ -2,323 +2,2425 @@ package com.ragretrofit.stores.vector;
 
 import com.ragretrofit.indexer.model.CodeChunk;
 import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.model.embedding.EmbeddingModel;
-import dev.langchain4j.model.embedding.AllMiniLmL6V2EmbeddingModel;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
 
 /**
  * Local vector store using MiniLM v2 embeddings for semantic code search.
  * Implements in-memory vector storage with disk persistence for fast retrieval.
+ * Vectors are persisted in a binary segment that is memory-mapped on load;
+ * legacy vectors.json files are migrated on first open. Searches use an HNSW graph
+ * by default, with exact brute-force scoring available as a selectable mode. Exhaustive scans
+ * can optionally run over int8-quantized codes or a low-dimensional PCA projection, rescoring the best
+ * candidates in float32.
+ * For very large corpora an IVF-PQ index can be selected instead; it is trained offline when the
+ * store is saved at the end of indexing, and searches fall back to exact scoring until then.
+ * Adds and removals are appended to a write-ahead log and checkpointed in the background as a delta
+ * segment of the rows added plus a tombstone file, so small updates cost in proportion to the change;
+ * the log is replayed on load and the deltas are merged into the base segment by compaction.
+ * Removals tombstone their ordinal rather than moving rows, so no index has to be rebuilt; once
+ * enough rows are tombstoned the storage is compacted in the background while searches continue.
+ * Chunk bodies are kept on the heap by default, or in an on-disk chunk store from which search
+ * results load them only when a caller asks for them.
  */
-public class VectorStore implements AutoCloseable {
+public class VectorStore implements CodeVectorStore {
     
     private static final Logger logger = LoggerFactory.getLogger(VectorStore.class);
     
-    private final EmbeddingModel embeddingModel;
+    // Batches handed to the model per embedAll call, so sorting by length has neighbours to pick from
+    private static final int BUCKETING_WINDOW_BATCHES = 16;
+    
+    // Filters matching a smaller fraction of rows, or at most as many rows, are answered by scanning
+    // the matches instead of the ANN index
+    private static final double FILTERED_ANN_MIN_SELECTIVITY = 0.1;
+    private static final int FILTERED_SCAN_MAX_ROWS = 8192;
+    
+    private static final int MODEL_STAMP_MAGIC = 0x524D4F44; // "RMOD"
+    private static final int MODEL_STAMP_VERSION = 1;
+    
+    private static final int TOMBSTONES_MAGIC = 0x52544D42; // "RTMB"
+    private static final int TOMBSTONES_VERSION = 1;
+    
+    // Delta segments mapped before a background compaction merges them into the base segment
+    private static final int MAX_DELTA_SEGMENTS = 16;
+    
+    // Index, quantizer and metadata files are rewritten once the rows added since cover this fraction
+    // of the rows they hold; until then a load catches up with the uncovered rows
+    private static final double DERIVED_FILES_REWRITE_RATIO = 0.1;
+    
+    private final EmbeddingProvider embeddingModel;
+    private final boolean ownsEmbeddingModel;
     private final ObjectMapper objectMapper;
     private final Path persistencePath;
+    private final Path segmentPath;
+    private final Path chunksPath;
+    private final Path annIndexPath;
+    private final Path quantizerPath;
+    private final Path chunkStorePath;
+    private final Path modelStampPath;
+    private final Path metadataPath;
+    private final Path tombstonesPath;
+    private final VectorStoreConfig config;
+    
+    // Whether the embedding model is already recorded next to the segment
+    private volatile boolean modelStamped;
+    
+    // Embeddings by content hash, so unchanged chunk text skips the model; null when disabled
+    private final EmbeddingCache embeddingCache;
     
-    // In-memory storage for fast retrieval
-    private final Map<String, VectorEntry> vectorIndex;
+    // Recent query embeddings, so repeated queries and hunk sources skip the model; null when disabled
+    private final QueryEmbeddingCache queryCache;
+    
+    // Changes since the last checkpoint and the timer that syncs and checkpoints them; null when disabled
+    private final WriteAheadLog writeAheadLog;
+    private final ScheduledExecutorService maintenance;
+    private final Object checkpointLock = new Object();
+    
+    // In-memory storage for fast retrieval: vectors packed in a primitive array, chunks by ID.
+    // The storage is replaced wholesale when compaction swaps in a dense copy.
+    private FlatVectorStorage vectorStorage;
+    private final ReadWriteLock storageLock;
+    // Bumped whenever the storage is cleared or swapped, so work done on a snapshot of it can tell
+    private long storageEpoch;
+    
+    // Chunk bodies: on the heap by ID, or on disk with only their offsets resident; exactly one is set
     private final Map<String, CodeChunk> chunkIndex;
+    private final ChunkStore chunkStore;
+    
+    // Approximate index over the stored vectors
+    private AnnIndex annIndex;
+    
+    // Chunk type, package and file per ordinal, for filters tested before a row is scored
+    private ChunkMetadata chunkMetadata;
+    
+    // Int8 codes or PCA projection mirroring the stored vectors; retrained lazily when missing or outgrown
+    private CompressedVectors quantizer;
+    private volatile boolean quantizerStale;
+    
+    // Changes made while a compaction builds its copy, replayed onto the copy before it is swapped in
+    private List<PendingChange> compactionJournal;
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final AtomicBoolean retrainingQuantizer = new AtomicBoolean();
+    
+    // Mutations since the store was opened, and how many of them the last checkpoint covered;
+    // a checkpoint with nothing new to write is skipped
+    private long changes;
+    private long checkpointedChanges;
+    
+    // Rows covered by the saved index, quantizer and metadata files, and whether they must be
+    // rewritten at the next checkpoint, e.g. after a retrain, rather than once enough rows are added
+    private int derivedFileRows;
+    private boolean derivedFilesStale;
+    
+    // Tombstones recorded in the tombstone file of the current base segment
+    private int savedDeletedCount;
+    
+    // Heap chunk storage: bodies changed since the last checkpoint, which appends them to the JSON
+    // lines file, and the lines the file holds; it is rewritten once most of them are superseded
+    private final Set<String> unsavedChunkIds = new HashSet<>();
+    private long chunkLines;
+    private boolean chunkLinesStale;
     
     public VectorStore(Path persistencePath) {
+        this(persistencePath, VectorStoreConfig.defaults());
+    }
+    
+    public VectorStore(Path persistencePath, VectorStoreConfig config) {
+        this(persistencePath, config, null);
+    }
+    
+    /**
+     * A store that embeds with a model shared with other stores, e.g. the shards of a
+     * {@link ShardedVectorStore}; the caller keeps ownership of the model. Null loads a model of its own.
+     */
+    VectorStore(Path persistencePath, VectorStoreConfig config, EmbeddingProvider sharedModel) {
         this.persistencePath = persistencePath;
-        this.embeddingModel = new AllMiniLmL6V2EmbeddingModel();
+        this.config = Objects.requireNonNull(config, "Vector store config cannot be null");
+        this.segmentPath = segmentPathFor(persistencePath);
+        this.chunksPath = chunksPathFor(persistencePath);
+        this.annIndexPath = config.getSearchMode() == VectorStoreConfig.SearchMode.IVF_PQ
+                ? ivfPqIndexPathFor(persistencePath) : annIndexPathFor(persistencePath);
+        this.quantizerPath = config.getQuantization() == VectorStoreConfig.Quantization.PCA
+                ? pcaPathFor(persistencePath) : quantizerPathFor(persistencePath);
+        this.chunkStorePath = chunkStorePathFor(persistencePath);
+        this.modelStampPath = modelStampPathFor(persistencePath);
+        this.metadataPath = metadataPathFor(persistencePath);
+        this.tombstonesPath = tombstonesPathFor(persistencePath);
+        this.ownsEmbeddingModel = sharedModel == null;
+        this.embeddingModel = sharedModel != null ? sharedModel : EmbeddingProvider.open(config);
+        try {
+            checkEmbeddingModel();
+        } catch (RuntimeException e) {
+            if (ownsEmbeddingModel) {
+                embeddingModel.close();
+            }
+            throw e;
+        }
+        this.embeddingCache = config.isEmbeddingCache() ? openEmbeddingCache() : null;
+        this.queryCache = config.getQueryCacheSize() > 0 ? openQueryCache() : null;
         this.objectMapper = new ObjectMapper();
-        this.vectorIndex = new ConcurrentHashMap<>();
-        this.chunkIndex = new ConcurrentHashMap<>();
+        this.vectorStorage = new FlatVectorStorage();
+        this.storageLock = new ReentrantReadWriteLock();
+        this.chunkStore = config.getChunkStorage() == VectorStoreConfig.ChunkStorage.DISK ? openChunkStore() : null;
+        this.chunkIndex = chunkStore == null ? new ConcurrentHashMap<>() : null;
+        this.annIndex = newAnnIndex();
+        this.chunkMetadata = new ChunkMetadata();
         
         loadFromDisk();
+        // Assigned only after replay, so replayed changes are not logged a second time
+        this.writeAheadLog = config.isWriteAheadLog() ? openWriteAheadLog() : null;
+        this.maintenance = startMaintenance();
+        scheduleCompactionIfNeeded();
+        scheduleQuantizerRetrainIfStale();
+        
+        logger.info("Initialized vector store with {} embeddings ({})", size(), config);
+    }
+    
+    /**
+     * Add a code chunk to the vector store
+     */
+    public void addChunk(CodeChunk chunk) {
+        try {
+            // Generate embedding for searchable text
+            float[] vector = embed(embeddingModel, List.of(chunk)).get(0);
+            
+            storageLock.writeLock().lock();
+            try {
+                store(chunk, vector);
+            } finally {
+                storageLock.writeLock().unlock();
+            }
+            commitWriteAheadLog();
+            // Replacing a chunk's vector tombstones its old row
+            scheduleCompactionIfNeeded();
+            scheduleQuantizerRetrainIfStale();
+            
+            if (logger.isDebugEnabled()) {
+                logger.debug("Added vector for chunk: {} (dimension: {})", 
+                        chunk.getId(), vector.length);
+            }
+            
+        } catch (Exception e) {
+            logger.error("Failed to add chunk to vector store: " + chunk.getId(), e);
+        }
+    }
+    
+    /**
+     * Add multiple chunks in batch. Chunks are embedded with batched model inference, grouped by
+     * token length to minimize padding, on a parallel pipeline when more than one embedding thread
+     * is configured; the returned report gives the embedding throughput.
+     */
+    public EmbeddingReport addChunks(List<CodeChunk> chunks) {
+        logger.info("Adding {} chunks to vector store", chunks.size());
+        
+        EmbeddingReport report = config.getEmbeddingThreads() > 1 
+                ? embedInParallel(chunks, config.getEmbeddingThreads()) : embedInline(chunks);
+        
+        // With a log, only a large batch is worth checkpointing now; otherwise the log makes it durable
+        if (writeAheadLog != null && writeAheadLog.size() < config.getWalCheckpointBytes()) {
+            syncWriteAheadLog();
+        } else {
+            saveToDisk();
+        }
+        logger.info("Successfully added {} chunks to vector store: {}", report.getChunks(), report);
+        return report;
+    }
+    
+    /**
+     * Start a parallel embedding pipeline that streams submitted chunks into this store.
+     * The caller should finish it and then save the store.
+     */
+    public EmbeddingPipeline newEmbeddingPipeline(int workers) {
+        return new EmbeddingPipeline(this, workers, config.getEmbeddingBatchSize(), 
+                config.getEmbeddingBatchSize() * BUCKETING_WINDOW_BATCHES);
+    }
+    
+    private EmbeddingReport embedInParallel(List<CodeChunk> chunks, int workers) {
+        try (EmbeddingPipeline pipeline = newEmbeddingPipeline(workers)) {
+            for (CodeChunk chunk : chunks) {
+                pipeline.submit(chunk);
+            }
+            return pipeline.finish();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while embedding chunks");
+            return new EmbeddingReport(0, workers, config.getEmbeddingBatchSize(), 0, 0, 0, 0, 0, 0, 0);
+        }
+    }
+    
+    private EmbeddingReport embedInline(List<CodeChunk> chunks) {
+        long start = System.currentTimeMillis();
+        long batchesBefore = embeddingModel.batches();
+        long tokensBefore = embeddingModel.tokens();
+        long paddedTokensBefore = embeddingModel.paddedTokens();
+        long[] cacheBefore = cacheCounters();
+        
+        int window = config.getEmbeddingBatchSize() * BUCKETING_WINDOW_BATCHES;
+        for (int from = 0; from < chunks.size(); from += window) {
+            embedAndStore(chunks.subList(from, Math.min(from + window, chunks.size())));
+        }
+        
+        long[] cacheAfter = cacheCounters();
+        return new EmbeddingReport(chunks.size(), 1, config.getEmbeddingBatchSize(),
+                embeddingModel.batches() - batchesBefore, embeddingModel.tokens() - tokensBefore,
+                embeddingModel.paddedTokens() - paddedTokensBefore, cacheAfter[0] - cacheBefore[0],
+                cacheAfter[1] - cacheBefore[1], cacheAfter[2] - cacheBefore[2], System.currentTimeMillis() - start);
+    }
+    
+    /**
+     * Embed a group of chunks with one embedAll call and store them, falling back to
+     * one chunk at a time if the batch fails so a single bad chunk does not drop its neighbours
+     */
+    private void embedAndStore(List<CodeChunk> chunks) {
+        List<float[]> vectors;
+        try {
+            vectors = embed(embeddingModel, chunks);
+        } catch (Exception e) {
+            logger.warn("Batched embedding of {} chunks failed, embedding individually", chunks.size(), e);
+            chunks.forEach(this::addChunk);
+            return;
+        }
+        try {
+            storeAll(chunks, vectors);
+        } catch (Exception e) {
+            logger.error("Failed to store " + chunks.size() + " embedded chunks", e);
+        }
+    }
+    
+    /**
+     * Embed the chunks' searchable text with one embedAll call on the given model, serving texts
+     * already in the embedding cache from it and adding the newly computed vectors
+     */
+    List<float[]> embed(EmbeddingModel model, List<CodeChunk> chunks) {
+        float[][] vectors = new float[chunks.size()][];
+        List<Integer> misses = new ArrayList<>(chunks.size());
+        List<TextSegment> segments = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            String text = chunks.get(i).getSearchableText();
+            vectors[i] = embeddingCache != null ? embeddingCache.get(text) : null;
+            if (vectors[i] == null) {
+                misses.add(i);
+                segments.add(TextSegment.from(text));
+            }
+        }
+        
+        if (!segments.isEmpty()) {
+            List<Embedding> embeddings = model.embedAll(segments).content();
+            for (int j = 0; j < segments.size(); j++) {
+                float[] vector = embeddings.get(j).vector();
+                vectors[misses.get(j)] = vector;
+                cacheEmbedding(segments.get(j).text(), vector);
+            }
+        }
+        return Arrays.asList(vectors);
+    }
+    
+    /**
+     * Cache hits, lookups and bytes of text saved so far, all zero when the cache is disabled
+     */
+    long[] cacheCounters() {
+        return embeddingCache == null ? new long[3] 
+                : new long[] {embeddingCache.hits(), embeddingCache.lookups(), embeddingCache.bytesSaved()};
+    }
+    
+    private void cacheEmbedding(String text, float[] vector) {
+        if (embeddingCache == null) {
+            return;
+        }
+        try {
+            embeddingCache.put(text, vector);
+        } catch (IOException e) {
+            logger.warn("Failed to write embedding cache entry", e);
+        }
+    }
+    
+    EmbeddingProvider embeddingProvider() {
+        return embeddingModel;
+    }
+    
+    /**
+     * Reject a persisted index built with another embedding model, whose vectors cannot be scored
+     * against this model's queries. Indexes saved before the model was recorded are checked by
+     * dimension only and recorded at the next checkpoint.
+     */
+    private void checkEmbeddingModel() {
+        String modelId = embeddingModel.modelId();
+        int dimension = embeddingModel.dimension();
+        try {
+            if (Files.exists(modelStampPath)) {
+                try (DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(Files.newInputStream(modelStampPath)))) {
+                    if (in.readInt() != MODEL_STAMP_MAGIC || in.readInt() != MODEL_STAMP_VERSION) {
+                        throw new IOException("Not a vector store model file: " + modelStampPath);
+                    }
+                    String storedModelId = in.readUTF();
+                    int storedDimension = in.readInt();
+                    if (!storedModelId.equals(modelId) || storedDimension != dimension) {
+                        throw new IllegalStateException("Vector index " + persistencePath + " was built with embedding model "
+                                + storedModelId + " (" + storedDimension + " dimensions) but the store is configured with "
+                                + modelId + " (" + dimension + " dimensions); re-index or configure the original model");
+                    }
+                }
+                modelStamped = true;
+            } else if (Files.exists(segmentPath)) {
+                int storedDimension = VectorSegment.readDimension(segmentPath);
+                if (storedDimension > 0 && storedDimension != dimension) {
+                    throw new IllegalStateException("Vector index " + persistencePath + " holds " + storedDimension
+                            + "-dimensional vectors but embedding model " + modelId + " produces " + dimension
+                            + "; re-index or configure the original model");
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Could not verify the embedding model of " + persistencePath, e);
+        }
+    }
+    
+    /**
+     * Record the embedding model next to the segment, once per store
+     */
+    private void writeModelStamp() throws IOException {
+        if (modelStamped) {
+            return;
+        }
+        Path tempPath = modelStampPath.resolveSibling(modelStampPath.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tempPath))) {
+            out.writeInt(MODEL_STAMP_MAGIC);
+            out.writeInt(MODEL_STAMP_VERSION);
+            out.writeUTF(embeddingModel.modelId());
+            out.writeInt(embeddingModel.dimension());
+        }
+        Files.move(tempPath, modelStampPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        modelStamped = true;
+    }
+    
+    private EmbeddingCache openEmbeddingCache() {
+        Path cachePath = embeddingCachePathFor(persistencePath);
+        try {
+            Files.createDirectories(cachePath.toAbsolutePath().getParent());
+            EmbeddingCache cache = EmbeddingCache.open(cachePath, embeddingModel.modelId(), embeddingModel.dimension());
+            logger.info("Opened embedding cache with {} entries: {}", cache.size(), cachePath);
+            return cache;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Embedding cache unavailable, every chunk will be embedded: " + cachePath, e);
+            return null;
+        }
+    }
+    
+    private QueryEmbeddingCache openQueryCache() {
+        QueryEmbeddingCache cache = new QueryEmbeddingCache(config.getQueryCacheSize(), 
+                embeddingModel.modelId(), embeddingModel.dimension());
+        if (config.isQueryCachePersistent()) {
+            Path cachePath = queryCachePathFor(persistencePath);
+            try {
+                int loaded = cache.load(cachePath);
+                logger.debug("Loaded {} cached query embeddings from {}", loaded, cachePath);
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Ignoring unreadable query embedding cache: " + cachePath, e);
+                cache.clear();
+            }
+        }
+        return cache;
+    }
+    
+    private void saveQueryCache() {
+        if (queryCache == null || !config.isQueryCachePersistent()) {
+            return;
+        }
+        try {
+            queryCache.save(queryCachePathFor(persistencePath));
+        } catch (IOException e) {
+            logger.warn("Failed to save query embedding cache", e);
+        }
+    }
+    
+    /**
+     * Hit, miss and eviction counts of the query embedding cache since the store was opened
+     */
+    @Override
+    public QueryCacheStats queryCacheStats() {
+        return queryCache != null ? queryCache.stats() : QueryCacheStats.disabled();
+    }
+    
+    /**
+     * Store already-embedded chunks under a single write lock acquisition and one log commit
+     */
+    void storeAll(List<CodeChunk> chunks, List<float[]> vectors) {
+        storageLock.writeLock().lock();
+        try {
+            for (int i = 0; i < chunks.size(); i++) {
+                store(chunks.get(i), vectors.get(i));
+            }
+        } finally {
+            storageLock.writeLock().unlock();
+        }
+        commitWriteAheadLog();
+        scheduleCompactionIfNeeded();
+        scheduleQuantizerRetrainIfStale();
+    }
+    
+    /**
+     * Log a chunk's vector, put it into storage and keep the ANN index and quantizer in step.
+     * Caller must hold the write lock.
+     */
+    private void store(CodeChunk chunk, float[] vector) {
+        changes++;
+        if (writeAheadLog != null) {
+            try {
+                writeAheadLog.logAdd(chunk, vector);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to log chunk " + chunk.getId(), e);
+            }
+        }
+        insert(chunk, vector);
+        if (compactionJournal != null) {
+            compactionJournal.add(new PendingChange(chunk.getId(), chunk, vector));
+        }
+        putChunkBody(chunk);
+    }
+    
+    /**
+     * Put a vector into storage, recording the chunk's metadata and adding new ordinals to the ANN
+     * index and quantizer. Caller must hold the write lock.
+     */
+    private void insert(CodeChunk chunk, float[] vector) {
+        int previous = vectorStorage.ordinalOf(chunk.getId());
+        if (previous >= 0 && !chunkMetadata.matches(previous, chunk)) {
+            // Metadata rows are only ever appended, so checkpoints can save them incrementally:
+            // a chunk whose type, package or file changed gets a fresh row like a changed vector
+            vectorStorage.remove(chunk.getId());
+        }
+        int ordinal = vectorStorage.put(chunk.getId(), vector);
+        if (ordinal == previous) {
+            return;
+        }
+        chunkMetadata.set(ordinal, chunk);
+        // A changed vector lands on a new row; the index drops the old one and links or encodes the new one
+        if (annIndex != null) {
+            if (previous >= 0) {
+                annIndex.remove(previous);
+            }
+            annIndex.add(ordinal);
+        }
+        if (quantizer != null && !quantizerStale) {
+            quantizer.set(ordinal, vectorStorage.vectorAt(ordinal));
+            quantizerStale = quantizer.isOutgrown();
+        } else if (usesQuantization()) {
+            quantizerStale = true;
+        }
+    }
+    
+    /**
+     * Find similar code chunks using cosine similarity
+     */
+    public List<SimilarityResult> findSimilar(String queryText, int maxResults) {
+        return findSimilar(queryText, maxResults, 0.0);
+    }
+    
+    /**
+     * Find similar chunks with minimum similarity threshold
+     */
+    public List<SimilarityResult> findSimilar(String queryText, int maxResults, double minSimilarity) {
+        return findSimilar(queryText, maxResults, minSimilarity, config.getSearchMode());
+    }
+    
+    /**
+     * Find similar chunks using an explicit search mode, e.g. EXACT to measure ANN recall
+     */
+    public List<SimilarityResult> findSimilar(String queryText, int maxResults, double minSimilarity,
+                                              VectorStoreConfig.SearchMode searchMode) {
+        return findSimilar(queryText, maxResults, minSimilarity, searchMode, 0, null);
+    }
+    
+    /**
+     * Find similar chunks with an explicit ANN search breadth: the number of inverted lists probed
+     * (nprobe) for IVF-PQ, or the candidate list size (ef) for HNSW. Larger values trade latency for recall.
+     */
+    public List<SimilarityResult> findSimilar(String queryText, int maxResults, double minSimilarity, int nprobe) {
+        return findSimilar(queryText, maxResults, minSimilarity, config.getSearchMode(), nprobe, null);
+    }
+    
+    /**
+     * Find similar chunks among those matching a metadata filter, e.g. only methods of one package.
+     * The filter is tested before a row is scored, in the scan or during ANN traversal, so up to
+     * maxResults matches come back however few chunks pass it.
+     */
+    public List<SimilarityResult> findSimilar(String queryText, int maxResults, double minSimilarity,
+                                              VectorFilter filter) {
+        return findSimilar(queryText, maxResults, minSimilarity, config.getSearchMode(), 0, filter);
+    }
+    
+    private List<SimilarityResult> findSimilar(String queryText, int maxResults, double minSimilarity,
+                                               VectorStoreConfig.SearchMode searchMode, int breadth,
+                                               VectorFilter filter) {
+        try {
+            // Generate query embedding
+            float[] queryVector = embedQuery(queryText);
+            
+            List<SimilarityResult> results = search(queryVector, maxResults, minSimilarity, null, 
+                    searchMode, breadth, filter);
+            
+            logger.debug("Vector similarity search for '{}' returned {} results", 
+                    queryText.substring(0, Math.min(50, queryText.length())), results.size());
+            
+            return results;
+            
+        } catch (Exception e) {
+            logger.error("Error performing vector similarity search", e);
+            return Collections.emptyList();
+        }
+    }
+    
+    /**
+     * Find similar chunks for many queries at once, e.g. one per diff hunk of a retrofit run.
+     * Results are returned per query, in query order.
+     */
+    public List<List<SimilarityResult>> findSimilarBatch(List<String> queryTexts, int maxResults) {
+        return findSimilarBatch(queryTexts, maxResults, 0.0);
+    }
+    
+    /**
+     * Find similar chunks for many queries at once. All queries are embedded with one model call;
+     * exhaustive scans then score each cache-sized block of stored vectors against every query while
+     * it is hot, rather than streaming the whole corpus once per query. ANN searches and quantized scans
+     * run per query under a single lock acquisition.
+     */
+    public List<List<SimilarityResult>> findSimilarBatch(List<String> queryTexts, int maxResults,
+                                                         double minSimilarity) {
+        if (queryTexts.isEmpty()) {
+            return Collections.emptyList();
+        }
+        try {
+            long start = System.nanoTime();
+            List<List<SimilarityResult>> results = searchBatch(embedQueries(queryTexts), maxResults, minSimilarity);
+            logger.debug("Batched vector search of {} queries took {} ms", 
+                    queryTexts.size(), (System.nanoTime() - start) / 1_000_000);
+            return results;
+        } catch (Exception e) {
+            logger.error("Error performing batched vector similarity search", e);
+            return Collections.nCopies(queryTexts.size(), Collections.emptyList());
+        }
+    }
+    
+    /**
+     * Embed many search queries with one call to this store's model
+     */
+    float[][] embedQueries(List<String> queryTexts) {
+        float[][] vectors = new float[queryTexts.size()][];
+        List<Integer> misses = new ArrayList<>(queryTexts.size());
+        List<TextSegment> segments = new ArrayList<>(queryTexts.size());
+        for (int i = 0; i < vectors.length; i++) {
+            String queryText = queryTexts.get(i);
+            vectors[i] = queryCache != null ? queryCache.get(queryText) : null;
+            if (vectors[i] == null) {
+                misses.add(i);
+                segments.add(TextSegment.from(queryText));
+            }
+        }
+        
+        if (!segments.isEmpty()) {
+            List<Embedding> embeddings = embeddingModel.embedAll(segments).content();
+            for (int j = 0; j < segments.size(); j++) {
+                float[] vector = embeddings.get(j).vector();
+                vectors[misses.get(j)] = vector;
+                if (queryCache != null) {
+                    queryCache.put(segments.get(j).text(), vector);
+                }
+            }
+        }
+        return vectors;
+    }
+    
+    /**
+     * Search with already embedded queries using the configured search mode, returning results per query
+     */
+    List<List<SimilarityResult>> searchBatch(float[][] queryVectors, int maxResults, double minSimilarity) {
+        List<List<SimilarityResult>> results = new ArrayList<>(queryVectors.length);
+        if (maxResults <= 0) {
+            return Collections.nCopies(queryVectors.length, Collections.emptyList());
+        }
+        float[][] unitQueries = new float[queryVectors.length][];
+        for (int q = 0; q < queryVectors.length; q++) {
+            unitQueries[q] = SimilarityKernels.normalize(queryVectors[q]);
+        }
+        boolean wantAnn = config.getSearchMode() != VectorStoreConfig.SearchMode.EXACT;
+        storageLock.readLock().lock();
+        try {
+            if (wantAnn && annIndex != null) {
+                for (float[] unitQuery : unitQueries) {
+                    results.add(toSimilarityResults(annIndex.search(unitQuery, maxResults, 0), 
+                            maxResults, minSimilarity, -1));
+                }
+                return results;
+            }
+            
+            CompressedVectors activeQuantizer = activeQuantizer();
+            if (activeQuantizer != null) {
+                for (float[] unitQuery : unitQueries) {
+                    TopKHeap topK = scan(unitQuery, null, vectorStorage.size(), maxResults, minSimilarity, 
+                            -1, activeQuantizer);
+                    results.add(toSimilarityResults(topK, maxResults, minSimilarity, -1));
+                }
+                return results;
+            }
+            
+            TopKHeap[] topK = new TopKHeap[unitQueries.length];
+            for (int q = 0; q < topK.length; q++) {
+                topK[q] = new TopKHeap(Math.min(maxResults, vectorStorage.size()));
+            }
+            vectorStorage.scanBatch(unitQueries, topK, minSimilarity);
+            for (TopKHeap heap : topK) {
+                results.add(toSimilarityResults(heap, maxResults, minSimilarity, -1));
+            }
+            return results;
+        } finally {
+            storageLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Embed a search query with this store's model, or take it from the query cache
+     */
+    float[] embedQuery(String queryText) {
+        float[] cached = queryCache != null ? queryCache.get(queryText) : null;
+        if (cached != null) {
+            return cached;
+        }
+        float[] vector = embeddingModel.embed(queryText).content().vector();
+        if (queryCache != null) {
+            queryCache.put(queryText, vector);
+        }
+        return vector;
+    }
+    
+    /**
+     * Search with an already embedded query, as the shards of a {@link ShardedVectorStore} are searched.
+     * Null search mode uses the configured one, and a breadth below 1 the configured ANN default.
+     */
+    List<SimilarityResult> searchVector(float[] queryVector, int maxResults, double minSimilarity,
+                                        String excludeChunkId, VectorStoreConfig.SearchMode searchMode,
+                                        int breadth) {
+        return searchVector(queryVector, maxResults, minSimilarity, excludeChunkId, searchMode, breadth, null);
+    }
+    
+    List<SimilarityResult> searchVector(float[] queryVector, int maxResults, double minSimilarity,
+                                        String excludeChunkId, VectorStoreConfig.SearchMode searchMode,
+                                        int breadth, VectorFilter filter) {
+        return search(queryVector, maxResults, minSimilarity, excludeChunkId,
+                searchMode != null ? searchMode : config.getSearchMode(), breadth, filter);
+    }
+    
+    /**
+     * Find similar chunks by chunk ID
+     */
+    public List<SimilarityResult> findSimilarToChunk(String chunkId, int maxResults) {
+        float[] targetVector = getVector(chunkId);
+        if (targetVector == null) {
+            logger.warn("Chunk not found in vector store: {}", chunkId);
+            return Collections.emptyList();
+        }
+        
+        return search(targetVector, maxResults, Double.NEGATIVE_INFINITY, chunkId, config.getSearchMode(), 0, null);
+    }
+    
+    /**
+     * Find chunks similar to a given vector
+     */
+    public List<SimilarityResult> findSimilarToVector(float[] queryVector, int maxResults) {
+        return search(queryVector, maxResults, Double.NEGATIVE_INFINITY, null, config.getSearchMode(), 0, null);
+    }
+    
+    /**
+     * Score only the given candidate chunks against a query, e.g. the hits of a keyword prefilter.
+     * Cost is proportional to the number of candidates rather than the corpus; unknown IDs are skipped.
+     */
+    public List<SimilarityResult> findSimilarAmong(String queryText, Set<String> candidateIds,
+                                                   int maxResults, double minSimilarity) {
+        return findSimilarAmong(queryText, candidateIds, maxResults, minSimilarity, null);
+    }
+    
+    /**
+     * Score only the candidate chunks that also match a metadata filter; null matches every candidate
+     */
+    public List<SimilarityResult> findSimilarAmong(String queryText, Set<String> candidateIds,
+                                                   int maxResults, double minSimilarity, VectorFilter filter) {
+        if (candidateIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        
+        try {
+            float[] queryVector = embedQuery(queryText);
+            List<SimilarityResult> results = findSimilarAmong(queryVector, candidateIds, maxResults, minSimilarity,
+                    filter);
+            
+            logger.debug("Vector scoring of {} candidates returned {} results", 
+                    candidateIds.size(), results.size());
+            
+            return results;
+            
+        } catch (Exception e) {
+            logger.error("Error scoring vector candidates", e);
+            return Collections.emptyList();
+        }
+    }
+    
+    /**
+     * Score only the given candidate chunks against a query vector
+     */
+    public List<SimilarityResult> findSimilarAmong(float[] queryVector, Set<String> candidateIds,
+                                                   int maxResults, double minSimilarity) {
+        return findSimilarAmong(queryVector, candidateIds, maxResults, minSimilarity, null);
+    }
+    
+    /**
+     * Score only the candidate chunks that also match a metadata filter against a query vector
+     */
+    public List<SimilarityResult> findSimilarAmong(float[] queryVector, Set<String> candidateIds,
+                                                   int maxResults, double minSimilarity, VectorFilter filter) {
+        if (maxResults <= 0 || candidateIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        
+        float[] unitQuery = SimilarityKernels.normalize(queryVector);
+        
+        storageLock.readLock().lock();
+        try {
+            IntPredicate matcher = filter != null ? chunkMetadata.compile(filter) : null;
+            int[] ordinals = new int[candidateIds.size()];
+            int length = 0;
+            for (String candidateId : candidateIds) {
+                int ordinal = vectorStorage.ordinalOf(candidateId);
+                if (ordinal >= 0 && (matcher == null || matcher.test(ordinal))) {
+                    ordinals[length++] = ordinal;
+                }
+            }
+            
+            TopKHeap topK = scan(unitQuery, ordinals, length, maxResults, minSimilarity, -1, activeQuantizer());
+            return toSimilarityResults(topK, maxResults, minSimilarity, -1);
+        } finally {
+            storageLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Get the stored vector for a chunk, normalized to unit length, or null if absent
+     */
+    public float[] getVector(String chunkId) {
+        storageLock.readLock().lock();
+        try {
+            int ordinal = vectorStorage.ordinalOf(chunkId);
+            return ordinal >= 0 ? vectorStorage.vectorAt(ordinal) : null;
+        } finally {
+            storageLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Get chunk by ID; with on-disk chunk storage this reads it from the chunk store
+     */
+    public CodeChunk getChunk(String chunkId) {
+        if (chunkStore == null) {
+            return chunkIndex.get(chunkId);
+        }
+        try {
+            return chunkStore.get(chunkId);
+        } catch (IOException e) {
+            logger.error("Failed to read chunk from chunk store: " + chunkId, e);
+            return null;
+        }
+    }
+    
+    /**
+     * Check if chunk exists
+     */
+    public boolean containsChunk(String chunkId) {
+        storageLock.readLock().lock();
+        try {
+            return vectorStorage.ordinalOf(chunkId) >= 0;
+        } finally {
+            storageLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Remove chunk from store
+     */
+    public void removeChunk(String chunkId) {
+        storageLock.writeLock().lock();
+        try {
+            if (writeAheadLog != null && (hasChunkBody(chunkId) || vectorStorage.ordinalOf(chunkId) >= 0)) {
+                writeAheadLog.logRemove(chunkId);
+            }
+            remove(chunkId);
+        } catch (IOException e) {
+            logger.error("Failed to log removal of chunk: " + chunkId, e);
+            return;
+        } finally {
+            storageLock.writeLock().unlock();
+        }
+        commitWriteAheadLog();
+        scheduleCompactionIfNeeded();
+        logger.debug("Removed chunk from vector store: {}", chunkId);
+    }
+    
+    /**
+     * Drop a chunk from the chunk index and tombstone its vector. Caller must hold the write lock.
+     */
+    private void remove(String chunkId) {
+        changes++;
+        delete(chunkId);
+        if (compactionJournal != null) {
+            compactionJournal.add(new PendingChange(chunkId, null, null));
+        }
+        if (chunkStore == null) {
+            chunkIndex.remove(chunkId);
+            return;
+        }
+        try {
+            chunkStore.remove(chunkId);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to remove chunk body " + chunkId, e);
+        }
+    }
+    
+    /**
+     * Keep a chunk's body in the configured chunk storage. Caller must hold the write lock.
+     */
+    private void putChunkBody(CodeChunk chunk) {
+        if (chunkStore == null) {
+            chunkIndex.put(chunk.getId(), chunk);
+            unsavedChunkIds.add(chunk.getId());
+            return;
+        }
+        try {
+            chunkStore.put(chunk);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to store chunk body " + chunk.getId(), e);
+        }
+    }
+    
+    private boolean hasChunkBody(String chunkId) {
+        return chunkStore != null ? chunkStore.contains(chunkId) : chunkIndex.containsKey(chunkId);
+    }
+    
+    /**
+     * Tombstone a vector so scans and the ANN index skip it; the quantizer keeps its code until
+     * compaction since scans check the tombstones. Caller must hold the write lock.
+     */
+    private void delete(String chunkId) {
+        int ordinal = vectorStorage.remove(chunkId);
+        if (ordinal >= 0 && annIndex != null) {
+            annIndex.remove(ordinal);
+        }
+    }
+    
+    /**
+     * Get total number of stored vectors
+     */
+    public int size() {
+        storageLock.readLock().lock();
+        try {
+            return vectorStorage.liveCount();
+        } finally {
+            storageLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Fraction of stored rows that are tombstones awaiting compaction
+     */
+    public double deletedRatio() {
+        storageLock.readLock().lock();
+        try {
+            return vectorStorage.size() > 0 ? (double) vectorStorage.deletedCount() / vectorStorage.size() : 0.0;
+        } finally {
+            storageLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Rewrite the storage without its tombstoned rows, merging the delta segments into a new base
+     * segment. The dense copy and its indexes are built while searches and writes continue on the
+     * current storage; changes made meanwhile are replayed onto the copy, which is then swapped in
+     * under a brief write lock and checkpointed. Returns false if there is nothing to merge, another
+     * compaction is already running or the store was cleared meanwhile.
+     */
+    public boolean compact() {
+        if (!compacting.compareAndSet(false, true)) {
+            return false;
+        }
+        Path compactedPath = segmentPath.resolveSibling(segmentPath.getFileName() + ".compact");
+        try {
+            long start = System.currentTimeMillis();
+            List<PendingChange> journal = new ArrayList<>();
+            int removedRows;
+            ChunkMetadata compactedMetadata;
+            // The journal starts under the write lock, which is downgraded for the copy, so no write
+            // can land between the copy and the journal; anything after the copy is journaled
+            storageLock.writeLock().lock();
+            try {
+                removedRows = vectorStorage.deletedCount();
+                if (removedRows == 0 && vectorStorage.segmentCount() <= 1) {
+                    return false;
+                }
+                compactionJournal = journal;
+                storageLock.readLock().lock();
+            } finally {
+                storageLock.writeLock().unlock();
+            }
+            try {
+                Files.createDirectories(compactedPath.toAbsolutePath().getParent());
+                VectorSegment.writeCompacted(compactedPath, vectorStorage, VectorSegment.FLAG_NORMALIZED);
+                compactedMetadata = chunkMetadata.compacted(vectorStorage);
+            } finally {
+                storageLock.readLock().unlock();
+            }
+            
+            FlatVectorStorage compacted = new FlatVectorStorage();
+            compacted.attach(VectorSegment.open(compactedPath));
+            AnnIndex compactedIndex = buildAnnIndex(compacted);
+            CompressedVectors compactedQuantizer = usesQuantization() 
+                    ? trainCompressed(compacted, config, config.getQuantization()) : null;
+            
+            // Checkpoints wait from the swap until the compacted segment is installed as the base,
+            // so none writes a delta of the copy next to the old base
+            synchronized (checkpointLock) {
+                storageLock.writeLock().lock();
+                try {
+                    if (compactionJournal != journal) {
+                        logger.info("Vector store was cleared during compaction, discarding the compacted copy");
+                        return false;
+                    }
+                    compactionJournal = null;
+                    vectorStorage = compacted;
+                    storageEpoch++;
+                    changes++;
+                    chunkMetadata = compactedMetadata;
+                    annIndex = compactedIndex;
+                    quantizer = compactedQuantizer;
+                    quantizerStale = false;
+                    derivedFilesStale = true;
+                    chunkLinesStale = true;
+                    for (PendingChange change : journal) {
+                        if (change.vector != null) {
+                            insert(change.chunk, change.vector);
+                        } else {
+                            delete(change.chunkId);
+                        }
+                    }
+                } finally {
+                    storageLock.writeLock().unlock();
+                }
+                
+                installBaseSegment(compactedPath);
+                checkpoint();
+            }
+            logger.info("Compacted vector store: dropped {} tombstoned rows, replayed {} concurrent changes in {} ms",
+                    removedRows, journal.size(), System.currentTimeMillis() - start);
+            return true;
+        } catch (Exception e) {
+            logger.error("Failed to compact vector store", e);
+            return false;
+        } finally {
+            storageLock.writeLock().lock();
+            try {
+                compactionJournal = null;
+            } finally {
+                storageLock.writeLock().unlock();
+            }
+            try {
+                Files.deleteIfExists(compactedPath);
+            } catch (IOException e) {
+                logger.debug("Could not delete compaction file {}", compactedPath);
+            }
+            compacting.set(false);
+        }
+    }
+    
+    private void scheduleCompactionIfNeeded() {
+        if (compacting.get() || maintenance == null || maintenance.isShutdown()) {
+            return;
+        }
+        if ((config.getCompactionThreshold() < 1.0 && deletedRatio() >= config.getCompactionThreshold())
+                || deltaSegmentCount() > MAX_DELTA_SEGMENTS) {
+            maintenance.execute(this::compact);
+        }
+    }
+    
+    private int deltaSegmentCount() {
+        storageLock.readLock().lock();
+        try {
+            return Math.max(0, vectorStorage.segmentCount() - 1);
+        } finally {
+            storageLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Clear all vectors
+     */
+    public void clear() {
+        storageLock.writeLock().lock();
+        try {
+            vectorStorage.clear();
+            storageEpoch++;
+            changes++;
+            derivedFilesStale = true;
+            chunkLinesStale = true;
+            unsavedChunkIds.clear();
+            if (chunkStore != null) {
+                chunkStore.clear();
+            } else {
+                chunkIndex.clear();
+            }
+            annIndex = newAnnIndex();
+            chunkMetadata = new ChunkMetadata();
+            quantizer = null;
+            quantizerStale = false;
+            compactionJournal = null;
+        } catch (IOException e) {
+            logger.error("Failed to clear chunk store", e);
+        } finally {
+            storageLock.writeLock().unlock();
+        }
+        saveToDisk();
+        logger.info("Cleared vector store");
+    }
+    
+    /**
+     * Save vectors to disk for persistence. This is also the log checkpoint: once the rows and chunk
+     * bodies it covers are durable, the write-ahead log generations holding them are deleted.
+     */
+    public void saveToDisk() {
+        synchronized (checkpointLock) {
+            checkpoint();
+        }
+    }
+    
+    /**
+     * Write what changed since the last checkpoint, or nothing if nothing did. The rows added, their
+     * IDs, the tombstones and the changed chunk bodies are copied under a brief read lock, which also
+     * rotates the log; they are then written without the lock as a delta segment, a tombstone file and
+     * appended JSON lines, so writers and searches carry on. A base segment is written instead only
+     * when none is mapped, e.g. for a new or cleared store. Index, quantizer and metadata files are
+     * saved under the lock, but only once enough rows were added since they were last saved.
+     * Caller must hold the checkpoint lock.
+     */
+    private void checkpoint() {
+        CheckpointSnapshot snapshot = null;
+        try {
+            Files.createDirectories(segmentPath.toAbsolutePath().getParent());
+            retrainAnnIndexIfOutgrown();
+            retrainQuantizerIfStale();
+            
+            storageLock.readLock().lock();
+            try {
+                if (changes != checkpointedChanges || derivedFilesStale) {
+                    snapshot = takeSnapshot();
+                }
+            } finally {
+                storageLock.readLock().unlock();
+            }
+            if (snapshot == null) {
+                saveQueryCache();
+                return;
+            }
+            
+            writeModelStamp();
+            saveChunkBodies(snapshot);
+            if (embeddingCache != null) {
+                embeddingCache.flush();
+            }
+            Path written = null;
+            if (snapshot.firstOrdinal == 0) {
+                deleteDerivedFiles();
+                VectorSegment.write(segmentPath, snapshot.dimension, snapshot.baseKey, 0, snapshot.ids,
+                        snapshot.rows, snapshot.deleted, VectorSegment.FLAG_NORMALIZED);
+                deleteDeltaSegments();
+                written = segmentPath;
+            } else {
+                if (snapshot.deletedCount != savedDeletedCount) {
+                    writeTombstones(tombstonesPath, snapshot.baseKey, snapshot.deleted);
+                }
+                if (!snapshot.ids.isEmpty()) {
+                    written = deltaPathFor(segmentPath, snapshot.firstOrdinal);
+                    VectorSegment.write(written, snapshot.dimension, snapshot.baseKey, snapshot.firstOrdinal,
+                            snapshot.ids, snapshot.rows, snapshot.deleted.get(snapshot.firstOrdinal, snapshot.rowCount),
+                            VectorSegment.FLAG_NORMALIZED);
+                }
+            }
+            savedDeletedCount = snapshot.deletedCount;
+            if (snapshot.derivedFiles) {
+                installDerivedFiles();
+            }
+            // Generations logged while a compaction copies the storage are kept until its own
+            // checkpoint, since the copy becomes the base without the deltas written meanwhile
+            if (writeAheadLog != null && !snapshot.retainLog) {
+                writeAheadLog.discardThrough(snapshot.logGeneration);
+            }
+            
+            // Map the rows just written so their heap copies are released
+            VectorSegment mapped = written != null ? VectorSegment.open(written) : null;
+            storageLock.writeLock().lock();
+            try {
+                if (mapped != null && storageEpoch == snapshot.epoch) {
+                    vectorStorage.append(mapped);
+                }
+                checkpointedChanges = snapshot.changes;
+            } finally {
+                storageLock.writeLock().unlock();
+            }
+            
+            saveQueryCache();
+            logger.debug("Checkpointed {} vectors, {} of them new", snapshot.rowCount, snapshot.ids.size());
+            
+        } catch (Exception e) {
+            logger.error("Failed to save vector store to disk", e);
+            if (snapshot != null) {
+                // Whatever the snapshot took off the books is written in full next time
+                storageLock.writeLock().lock();
+                try {
+                    derivedFilesStale = true;
+                    chunkLinesStale = true;
+                    savedDeletedCount = -1;
+                } finally {
+                    storageLock.writeLock().unlock();
+                }
+            }
+        }
+        scheduleCompactionIfNeeded();
+    }
+    
+    /**
+     * Copy what the checkpoint writes, save the index, quantizer and metadata files if due, and rotate
+     * the log so later changes go to a generation the checkpoint does not delete. Caller must hold the
+     * read lock; the checkpoint lock keeps the fields only checkpoints write from racing.
+     */
+    private CheckpointSnapshot takeSnapshot() throws IOException {
+        CheckpointSnapshot snapshot = new CheckpointSnapshot();
+        snapshot.epoch = storageEpoch;
+        snapshot.changes = changes;
+        snapshot.firstOrdinal = vectorStorage.mappedRows();
+        snapshot.baseKey = snapshot.firstOrdinal == 0 ? VectorSegment.newBaseKey() : vectorStorage.baseKey();
+        snapshot.dimension = vectorStorage.dimension();
+        snapshot.rowCount = vectorStorage.size();
+        snapshot.ids = vectorStorage.heapIds();
+        snapshot.rows = vectorStorage.heapRows();
+        snapshot.deleted = vectorStorage.deletedOrdinals();
+        snapshot.deletedCount = vectorStorage.deletedCount();
+        
+        if (chunkStore == null) {
+            snapshot.rewriteChunks = chunkLinesStale || chunkLines + unsavedChunkIds.size() > 2L * chunkIndex.size() + 1024
+                    || (!chunkIndex.isEmpty() && !Files.exists(chunksPath));
+            if (snapshot.rewriteChunks) {
+                snapshot.chunks = new ArrayList<>(chunkIndex.values());
+            } else {
+                snapshot.chunks = new ArrayList<>(unsavedChunkIds.size());
+                for (String chunkId : unsavedChunkIds) {
+                    CodeChunk chunk = chunkIndex.get(chunkId);
+                    if (chunk != null) {
+                        snapshot.chunks.add(chunk);
+                    }
+                }
+            }
+            unsavedChunkIds.clear();
+            chunkLinesStale = false;
+        }
+        
+        int uncovered = snapshot.rowCount - derivedFileRows;
+        if (derivedFilesStale || snapshot.firstOrdinal == 0
+                || uncovered >= Math.max(1, derivedFileRows * DERIVED_FILES_REWRITE_RATIO)) {
+            saveDerivedFiles();
+            snapshot.derivedFiles = true;
+            derivedFileRows = snapshot.rowCount;
+            derivedFilesStale = false;
+        }
+        
+        if (writeAheadLog != null) {
+            snapshot.logGeneration = writeAheadLog.rotate();
+            snapshot.retainLog = compactionJournal != null;
+        }
+        return snapshot;
+    }
+    
+    /**
+     * Save the metadata, ANN index and quantizer next to their files, to be moved into place once the
+     * rows they cover are durable. Caller must hold the storage lock.
+     */
+    private void saveDerivedFiles() throws IOException {
+        for (Path path : List.of(metadataPath, annIndexPath, quantizerPath)) {
+            Files.deleteIfExists(pendingPathFor(path));
+        }
+        chunkMetadata.save(pendingPathFor(metadataPath));
+        if (annIndex != null) {
+            annIndex.save(pendingPathFor(annIndexPath));
+        }
+        if (quantizer != null && !quantizerStale) {
+            quantizer.save(pendingPathFor(quantizerPath));
+        }
+    }
+    
+    private void installDerivedFiles() throws IOException {
+        for (Path path : List.of(metadataPath, annIndexPath, quantizerPath)) {
+            Path pending = pendingPathFor(path);
+            if (Files.exists(pending)) {
+                Files.move(pending, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+    }
+    
+    /**
+     * Delete the index, quantizer and metadata files of every search mode before a new base segment
+     * renumbers the rows, so none is ever loaded against rows it was not built from
+     */
+    private void deleteDerivedFiles() throws IOException {
+        for (Path path : List.of(metadataPathFor(persistencePath), annIndexPathFor(persistencePath),
+                ivfPqIndexPathFor(persistencePath), quantizerPathFor(persistencePath), pcaPathFor(persistencePath))) {
+            Files.deleteIfExists(path);
+        }
+    }
+    
+    /**
+     * Delete the delta segments and tombstone file of the previous base segment
+     */
+    private void deleteDeltaSegments() throws IOException {
+        for (Path deltaPath : deltaPaths(segmentPath)) {
+            Files.deleteIfExists(deltaPath);
+        }
+        Files.deleteIfExists(tombstonesPath);
+    }
+    
+    /**
+     * Make a compacted segment the base: the files derived from the old rows go first and the old
+     * deltas last, so a crash in between leaves either chain intact. Caller must hold the checkpoint lock.
+     */
+    private void installBaseSegment(Path compactedPath) throws IOException {
+        deleteDerivedFiles();
+        Files.move(compactedPath, segmentPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        deleteDeltaSegments();
+        savedDeletedCount = 0;
+    }
+    
+    /**
+     * Load vectors from disk
+     */
+    private void loadFromDisk() {
+        try {
+            if (!Files.exists(segmentPath) && isLegacyJson(persistencePath) && Files.exists(persistencePath)) {
+                migrateJsonToBinary(persistencePath);
+            }
+            
+            if (!Files.exists(segmentPath)) {
+                logger.info("No existing vector segment found, starting fresh");
+                return;
+            }
+            
+            if (VectorSegment.needsUpgrade(segmentPath)) {
+                // Older segments lack the ID table and may hold unnormalized rows: rewrite once
+                VectorSegment.upgrade(segmentPath);
+                logger.info("Upgraded vector segment {} to the current format", segmentPath);
+            }
+            
+            storageLock.writeLock().lock();
+            try {
+                attachSegments(vectorStorage, segmentPath, tombstonesPath);
+                loadChunkBodies();
+                chunkMetadata = loadChunkMetadata();
+                annIndex = loadAnnIndex();
+                quantizer = loadQuantizer();
+                quantizerStale = false;
+                derivedFileRows = vectorStorage.size();
+                savedDeletedCount = vectorStorage.deletedCount();
+            } finally {
+                storageLock.writeLock().unlock();
+            }
+            
+            logger.info("Loaded {} vectors from {} segments (dimension: {})", vectorStorage.size(),
+                    vectorStorage.segmentCount(), vectorStorage.dimension());
+            
+        } catch (Exception e) {
+            logger.error("Failed to load vector store from disk", e);
+        }
+    }
+    
+    /**
+     * Map a base segment, the delta segments written after it and its tombstone file into a storage.
+     * Deltas and tombstones left by an earlier base, e.g. by a crash while compaction installed its
+     * segment, carry another key and are ignored.
+     */
+    private static void attachSegments(FlatVectorStorage storage, Path segmentPath, Path tombstonesPath)
+            throws IOException {
+        VectorSegment base = VectorSegment.open(segmentPath);
+        List<VectorSegment> deltas = new ArrayList<>();
+        for (Path deltaPath : deltaPaths(segmentPath)) {
+            VectorSegment delta = VectorSegment.open(deltaPath);
+            if (delta.baseKey() == base.baseKey()) {
+                deltas.add(delta);
+            }
+        }
+        deltas.sort(Comparator.comparingInt(VectorSegment::firstOrdinal));
+        
+        storage.attach(base);
+        for (VectorSegment delta : deltas) {
+            if (delta.firstOrdinal() != storage.mappedRows()) {
+                throw new IOException("Vector segment chain is missing rows " + storage.mappedRows() 
+                        + " to " + delta.firstOrdinal() + ": " + segmentPath);
+            }
+            storage.append(delta);
+        }
+        BitSet tombstones = readTombstones(tombstonesPath, base.baseKey());
+        if (tombstones != null) {
+            storage.markDeleted(tombstones);
+        }
+    }
+    
+    /**
+     * Delta segments next to a base segment, named by the ordinal their rows start at
+     */
+    private static List<Path> deltaPaths(Path segmentPath) throws IOException {
+        Path directory = segmentPath.toAbsolutePath().getParent();
+        String prefix = segmentPath.getFileName() + ".";
+        List<Path> deltas = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return deltas;
+        }
+        try (java.util.stream.Stream<Path> siblings = Files.list(directory)) {
+            siblings.filter(sibling -> {
+                String name = sibling.getFileName().toString();
+                return name.startsWith(prefix) && name.length() > prefix.length()
+                        && name.substring(prefix.length()).chars().allMatch(Character::isDigit);
+            }).forEach(deltas::add);
+        }
+        return deltas;
+    }
+    
+    /**
+     * Write the tombstone bits of every row, keyed to the base segment they apply to
+     */
+    private static void writeTombstones(Path path, long baseKey, BitSet deleted) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        long[] words = deleted.toLongArray();
+        try (FileOutputStream file = new FileOutputStream(tempPath.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.writeInt(TOMBSTONES_MAGIC);
+            out.writeInt(TOMBSTONES_VERSION);
+            out.writeLong(baseKey);
+            out.writeInt(words.length);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+            // Must be durable before a checkpoint deletes the log that could restore it
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Read the tombstone bits saved for a base segment, or null if there are none for it
+     */
+    private static BitSet readTombstones(Path path, long baseKey) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (in.readInt() != TOMBSTONES_MAGIC || in.readInt() != TOMBSTONES_VERSION || in.readLong() != baseKey) {
+                return null;
+            }
+            long[] words = new long[in.readInt()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            return BitSet.valueOf(words);
+        }
+    }
+    
+    /**
+     * Write chunk bodies durably as part of a checkpoint: for heap storage, the snapshot's changed
+     * bodies are appended to the JSON lines file, or all of them rewrite it; otherwise the chunk store
+     * is flushed, rewritten first if dead records fill most of it. Bodies newer than the snapshot may
+     * be written too, which is harmless since they are also logged.
+     */
+    private void saveChunkBodies(CheckpointSnapshot snapshot) throws IOException {
+        if (chunkStore == null) {
+            if (snapshot.rewriteChunks) {
+                writeChunks(chunksPath, snapshot.chunks, objectMapper);
+                chunkLines = snapshot.chunks.size();
+                // A chunk store left by an earlier on-disk configuration was loaded and is now superseded
+                Files.deleteIfExists(chunkStorePath);
+            } else if (!snapshot.chunks.isEmpty()) {
+                appendChunks(chunksPath, snapshot.chunks, objectMapper);
+                chunkLines += snapshot.chunks.size();
+            }
+            return;
+        }
+        if (chunkStore.compactIfWasteful()) {
+            logger.debug("Rewrote chunk store without dead records: {} chunks, {} bytes", 
+                    chunkStore.size(), chunkStore.fileBytes());
+        }
+        chunkStore.flush();
+    }
+    
+    /**
+     * Load chunk bodies for freshly attached segments, moving them between the JSON lines file and
+     * the chunk store when the chunk storage setting has changed. Later lines of the JSON lines file
+     * supersede earlier ones, and bodies of chunks without a live row were removed since they were
+     * written. Caller must hold the write lock.
+     */
+    private void loadChunkBodies() throws IOException {
+        if (chunkStore == null) {
+            chunkIndex.clear();
+            Consumer<CodeChunk> keepLive = chunk -> {
+                if (vectorStorage.ordinalOf(chunk.getId()) >= 0) {
+                    chunkIndex.put(chunk.getId(), chunk);
+                }
+            };
+            if (Files.exists(chunksPath) || !Files.exists(chunkStorePath)) {
+                chunkLines = readChunks(chunksPath, objectMapper, keepLive);
+                return;
+            }
+            try (ChunkStore previous = ChunkStore.open(chunkStorePath, objectMapper, false)) {
+                previous.readAll(keepLive);
+            }
+            chunkLinesStale = true;
+            logger.info("Loaded {} chunk bodies from on-disk chunk store {}", chunkIndex.size(), chunkStorePath);
+            return;
+        }
+        if (Files.exists(chunksPath)) {
+            // Bodies written with heap storage, or by a JSON migration: move them into the chunk store
+            chunkStore.clear();
+            readChunks(chunksPath, objectMapper, chunk -> {
+                if (vectorStorage.ordinalOf(chunk.getId()) < 0) {
+                    return;
+                }
+                try {
+                    chunkStore.put(chunk);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            chunkStore.flush();
+            Files.delete(chunksPath);
+            logger.info("Moved {} chunk bodies into on-disk chunk store {}", chunkStore.size(), chunkStorePath);
+        }
+    }
+    
+    /**
+     * Load the metadata columns saved with the segment, rebuilding them from the chunk bodies if
+     * missing or out of step, e.g. for a store written before they existed. Caller must hold the write lock.
+     */
+    private ChunkMetadata loadChunkMetadata() throws IOException {
+        if (Files.exists(metadataPath)) {
+            ChunkMetadata loaded = ChunkMetadata.load(metadataPath, vectorStorage.size());
+            if (loaded != null) {
+                // Rows checkpointed after the columns were saved
+                for (int ordinal = loaded.size(); ordinal < vectorStorage.size(); ordinal++) {
+                    CodeChunk chunk = vectorStorage.isDeleted(ordinal) ? null : getChunk(vectorStorage.idAt(ordinal));
+                    if (chunk != null) {
+                        loaded.set(ordinal, chunk);
+                    }
+                }
+                return loaded;
+            }
+        }
         
-        logger.info("Initialized vector store with {} embeddings", vectorIndex.size());
+        derivedFilesStale = true;
+        long start = System.currentTimeMillis();
+        ChunkMetadata rebuilt = new ChunkMetadata();
+        Consumer<CodeChunk> record = chunk -> {
+            int ordinal = vectorStorage.ordinalOf(chunk.getId());
+            if (ordinal >= 0) {
+                rebuilt.set(ordinal, chunk);
+            }
+        };
+        if (chunkStore != null) {
+            chunkStore.readAll(record);
+        } else {
+            chunkIndex.values().forEach(record);
+        }
+        logger.info("Rebuilt chunk metadata for {} vectors in {} ms", 
+                vectorStorage.liveCount(), System.currentTimeMillis() - start);
+        return rebuilt;
+    }
+    
+    private ChunkStore openChunkStore() {
+        try {
+            Files.createDirectories(chunkStorePath.toAbsolutePath().getParent());
+            return ChunkStore.open(chunkStorePath, objectMapper, config.isChunkCompression());
+        } catch (IOException | RuntimeException e) {
+            logger.error("Chunk store unavailable, keeping chunk bodies on the heap: " + chunkStorePath, e);
+            return null;
+        }
     }
     
     /**
-     * Add a code chunk to the vector store
+     * Open the write-ahead log and replay changes made after the last checkpoint, e.g. before a crash.
+     * Returns null if the log cannot be used, in which case changes persist only when the store is saved.
      */
-    public void addChunk(CodeChunk chunk) {
+    private WriteAheadLog openWriteAheadLog() {
+        Path logPath = walPathFor(persistencePath);
+        int[] replayed = new int[1];
+        storageLock.writeLock().lock();
         try {
-            // Generate embedding for searchable text
-            String text = chunk.getSearchableText();
-            Embedding embedding = embeddingModel.embed(text).content();
-            
-            VectorEntry entry = new VectorEntry(
-                    chunk.getId(),
-                    embedding.vectorAsList(),
-                    System.currentTimeMillis()
-            );
-            
-            vectorIndex.put(chunk.getId(), entry);
-            chunkIndex.put(chunk.getId(), chunk);
-            
-            if (logger.isDebugEnabled()) {
-                logger.debug("Added vector for chunk: {} (dimension: {})", 
-                        chunk.getId(), embedding.dimension());
+            Files.createDirectories(logPath.toAbsolutePath().getParent());
+            WriteAheadLog log = WriteAheadLog.open(logPath, objectMapper, config.getWalSyncIntervalMillis() == 0,
+                    new WriteAheadLog.Replayer() {
+                        @Override
+                        public void add(CodeChunk chunk, float[] vector) {
+                            store(chunk, vector);
+                            replayed[0]++;
+                        }
+                        
+                        @Override
+                        public void remove(String chunkId) {
+                            VectorStore.this.remove(chunkId);
+                            replayed[0]++;
+                        }
+                    });
+            if (replayed[0] > 0) {
+                logger.info("Replayed {} logged changes from {}", replayed[0], logPath);
             }
-            
-        } catch (Exception e) {
-            logger.error("Failed to add chunk to vector store: " + chunk.getId(), e);
+            return log;
+        } catch (IOException | RuntimeException e) {
+            logger.error("Write-ahead log unavailable, changes will persist only on save: " + logPath, e);
+            return null;
+        } finally {
+            storageLock.writeLock().unlock();
         }
     }
     
     /**
-     * Add multiple chunks in batch
+     * Background threads for group fsyncs of the log, periodic checkpoints and compaction
      */
-    public void addChunks(List<CodeChunk> chunks) {
-        logger.info("Adding {} chunks to vector store", chunks.size());
+    private ScheduledExecutorService startMaintenance() {
+        // One thread per kind of task, so a long checkpoint or compaction does not hold back the syncs
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(3, runnable -> {
+            Thread thread = new Thread(runnable, "vector-store-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (writeAheadLog == null) {
+            return executor;
+        }
+        long syncInterval = config.getWalSyncIntervalMillis();
+        if (syncInterval > 0) {
+            executor.scheduleWithFixedDelay(this::syncWriteAheadLog, syncInterval, syncInterval, 
+                    TimeUnit.MILLISECONDS);
+        }
+        long checkpointInterval = config.getCheckpointIntervalMillis();
+        executor.scheduleWithFixedDelay(() -> {
+            if (!writeAheadLog.isEmpty()) {
+                saveToDisk();
+            }
+        }, checkpointInterval, checkpointInterval, TimeUnit.MILLISECONDS);
+        return executor;
+    }
+    
+    private void commitWriteAheadLog() {
+        if (writeAheadLog == null) {
+            return;
+        }
+        try {
+            writeAheadLog.commit();
+        } catch (IOException e) {
+            logger.error("Failed to write vector store log", e);
+        }
+    }
+    
+    private void syncWriteAheadLog() {
+        if (writeAheadLog == null) {
+            return;
+        }
+        try {
+            writeAheadLog.sync();
+        } catch (IOException e) {
+            logger.error("Failed to sync vector store log", e);
+        }
+    }
+    
+    /**
+     * Convert a legacy Jackson vectors.json file into the binary segment format.
+     * The JSON file is left in place and is ignored once the segment exists.
+     */
+    public static void migrateJsonToBinary(Path jsonPath) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        VectorStoreData data = mapper.readValue(jsonPath.toFile(), VectorStoreData.class);
         
-        for (CodeChunk chunk : chunks) {
-            addChunk(chunk);
+        FlatVectorStorage storage = new FlatVectorStorage();
+        if (data.getVectorIndex() != null) {
+            data.getVectorIndex().forEach((chunkId, entry) -> storage.put(chunkId, entry.getVector()));
         }
+        Map<String, CodeChunk> chunks = data.getChunkIndex() != null ? data.getChunkIndex() : Map.of();
         
-        saveToDisk();
-        logger.info("Successfully added {} chunks to vector store", chunks.size());
+        VectorSegment.write(segmentPathFor(jsonPath), storage, VectorSegment.FLAG_NORMALIZED);
+        writeChunks(chunksPathFor(jsonPath), chunks.values(), mapper);
+        
+        logger.info("Migrated {} vectors from {} to binary segment {}", 
+                storage.size(), jsonPath, segmentPathFor(jsonPath));
     }
     
     /**
-     * Find similar code chunks using cosine similarity
+     * Write chunk bodies as JSON lines, replacing the file
      */
-    public List<SimilarityResult> findSimilar(String queryText, int maxResults) {
-        return findSimilar(queryText, maxResults, 0.0);
+    private static void writeChunks(Path path, Collection<CodeChunk> chunks, ObjectMapper mapper) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempPath.toFile())) {
+            writeChunkLines(out, chunks, mapper);
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
     
     /**
-     * Find similar chunks with minimum similarity threshold
+     * Append chunk bodies as JSON lines. The batch starts on a new line, so a line torn by a crash
+     * during an earlier append cannot swallow its first body.
      */
-    public List<SimilarityResult> findSimilar(String queryText, int maxResults, double minSimilarity) {
-        try {
-            // Generate query embedding
-            Embedding queryEmbedding = embeddingModel.embed(queryText).content();
-            List<Double> queryVector = queryEmbedding.vectorAsList();
-            
-            // Calculate similarities
-            List<SimilarityResult> results = vectorIndex.entrySet().stream()
-                    .map(entry -> {
-                        String chunkId = entry.getKey();
-                        VectorEntry vectorEntry = entry.getValue();
-                        double similarity = cosineSimilarity(queryVector, vectorEntry.getVector());
-                        
-                        return new SimilarityResult(
-                                chunkId,
-                                chunkIndex.get(chunkId),
-                                similarity
-                        );
-                    })
-                    .filter(result -> result.getSimilarity() >= minSimilarity)
-                    .sorted((a, b) -> Double.compare(b.getSimilarity(), a.getSimilarity()))
-                    .limit(maxResults)
-                    .collect(Collectors.toList());
-            
-            logger.debug("Vector similarity search for '{}' returned {} results", 
-                    queryText.substring(0, Math.min(50, queryText.length())), results.size());
-            
-            return results;
-            
-        } catch (Exception e) {
-            logger.error("Error performing vector similarity search", e);
-            return Collections.emptyList();
+    private static void appendChunks(Path path, Collection<CodeChunk> chunks, ObjectMapper mapper) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(path.toFile(), true)) {
+            out.write('\n');
+            writeChunkLines(out, chunks, mapper);
+        }
+    }
+    
+    private static void writeChunkLines(FileOutputStream out, Collection<CodeChunk> chunks,
+                                        ObjectMapper mapper) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        ObjectWriter chunkWriter = mapper.writerFor(CodeChunk.class);
+        for (CodeChunk chunk : chunks) {
+            writer.write(chunkWriter.writeValueAsString(chunk));
+            writer.write('\n');
         }
+        writer.flush();
+        // Must be durable before a checkpoint deletes the log that could restore it
+        out.getFD().sync();
     }
     
     /**
-     * Find similar chunks by chunk ID
+     * Stream chunk bodies back from a JSON lines file, returning the number of lines read. Lines torn
+     * by a crash during an append are skipped; the write-ahead log still holds their changes.
      */
-    public List<SimilarityResult> findSimilarToChunk(String chunkId, int maxResults) {
-        VectorEntry targetEntry = vectorIndex.get(chunkId);
-        if (targetEntry == null) {
-            logger.warn("Chunk not found in vector store: {}", chunkId);
-            return Collections.emptyList();
+    private static long readChunks(Path path, ObjectMapper mapper,
+                                   Consumer<CodeChunk> consumer) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        ObjectReader chunkReader = mapper.readerFor(CodeChunk.class);
+        long lines = 0;
+        int torn = 0;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                lines++;
+                CodeChunk chunk;
+                try {
+                    chunk = chunkReader.readValue(line);
+                } catch (JsonProcessingException e) {
+                    torn++;
+                    continue;
+                }
+                consumer.accept(chunk);
+            }
+        }
+        if (torn > 0) {
+            logger.warn("Skipped {} torn chunk body lines in {}", torn, path);
+        }
+        return lines;
+    }
+    
+    /**
+     * Create an empty ANN index for the configured search mode, or null for exact search.
+     * IVF-PQ needs trained centroids, so it starts out null until the store is first saved.
+     */
+    private AnnIndex newAnnIndex() {
+        if (config.getSearchMode() != VectorStoreConfig.SearchMode.HNSW) {
+            return null;
+        }
+        return new HnswIndex(vectorStorage, config.getHnswM(), 
+                config.getHnswEfConstruction(), config.getHnswEfSearch());
+    }
+    
+    /**
+     * Load the persisted ANN index, rebuilding it if missing or built with other parameters.
+     * Caller must hold the write lock.
+     */
+    private AnnIndex loadAnnIndex() {
+        if (config.getSearchMode() == VectorStoreConfig.SearchMode.EXACT) {
+            return null;
         }
+        boolean ivfPq = config.getSearchMode() == VectorStoreConfig.SearchMode.IVF_PQ;
+        String name = ivfPq ? "IVF-PQ" : "HNSW";
         
-        List<Double> targetVector = targetEntry.getVector();
+        if (Files.exists(annIndexPath)) {
+            try {
+                AnnIndex loaded = ivfPq
+                        ? IvfPqIndex.load(annIndexPath, vectorStorage, config)
+                        : HnswIndex.load(annIndexPath, vectorStorage, config.getHnswM(),
+                                config.getHnswEfConstruction(), config.getHnswEfSearch());
+                if (loaded != null) {
+                    return loaded;
+                }
+                logger.info("Persisted {} index does not match the vector segment, rebuilding", name);
+            } catch (IOException e) {
+                logger.warn("Failed to load " + name + " index, rebuilding", e);
+            }
+        }
         
-        return vectorIndex.entrySet().stream()
-                .filter(entry -> !entry.getKey().equals(chunkId)) // Exclude self
-                .map(entry -> {
-                    String otherChunkId = entry.getKey();
-                    VectorEntry vectorEntry = entry.getValue();
-                    double similarity = cosineSimilarity(targetVector, vectorEntry.getVector());
-                    
-                    return new SimilarityResult(
-                            otherChunkId,
-                            chunkIndex.get(otherChunkId),
-                            similarity
-                    );
-                })
-                .sorted((a, b) -> Double.compare(b.getSimilarity(), a.getSimilarity()))
-                .limit(maxResults)
-                .collect(Collectors.toList());
+        derivedFilesStale = true;
+        return buildAnnIndex(vectorStorage);
     }
     
     /**
-     * Find chunks similar to a given vector
+     * Build the configured ANN index from scratch over a storage, or null for exact search
      */
-    public List<SimilarityResult> findSimilarToVector(List<Double> queryVector, int maxResults) {
-        return vectorIndex.entrySet().stream()
-                .map(entry -> {
-                    String chunkId = entry.getKey();
-                    VectorEntry vectorEntry = entry.getValue();
-                    double similarity = cosineSimilarity(queryVector, vectorEntry.getVector());
-                    
-                    return new SimilarityResult(
-                            chunkId,
-                            chunkIndex.get(chunkId),
-                            similarity
-                    );
-                })
-                .sorted((a, b) -> Double.compare(b.getSimilarity(), a.getSimilarity()))
-                .limit(maxResults)
-                .collect(Collectors.toList());
+    private AnnIndex buildAnnIndex(FlatVectorStorage storage) {
+        if (config.getSearchMode() == VectorStoreConfig.SearchMode.EXACT) {
+            return null;
+        }
+        boolean ivfPq = config.getSearchMode() == VectorStoreConfig.SearchMode.IVF_PQ;
+        long start = System.currentTimeMillis();
+        AnnIndex built = ivfPq
+                ? IvfPqIndex.train(storage, config)
+                : HnswIndex.build(storage, config.getHnswM(), 
+                        config.getHnswEfConstruction(), config.getHnswEfSearch());
+        if (built != null) {
+            logger.info("Built {} index over {} vectors in {} ms", ivfPq ? "IVF-PQ" : "HNSW", built.size(), 
+                    System.currentTimeMillis() - start);
+        }
+        return built;
     }
     
     /**
-     * Get chunk by ID
+     * Train the IVF-PQ index if it does not exist yet, and retrain any index whose training corpus
+     * has been outgrown. Like compaction, the new index is built over a snapshot segment while
+     * searches and writes continue, then catches up with rows added or tombstoned meanwhile and is
+     * swapped in under a brief write lock. Runs from saveToDisk, which serializes it.
      */
-    public CodeChunk getChunk(String chunkId) {
-        return chunkIndex.get(chunkId);
+    private void retrainAnnIndexIfOutgrown() throws IOException {
+        Path snapshotPath = segmentPath.resolveSibling(segmentPath.getFileName() + ".retrain");
+        AnnIndex current;
+        long epoch;
+        boolean untrained;
+        storageLock.readLock().lock();
+        try {
+            untrained = annIndex == null && vectorStorage.liveCount() > 0
+                    && config.getSearchMode() == VectorStoreConfig.SearchMode.IVF_PQ;
+            if (!untrained && (annIndex == null || !annIndex.needsRetraining())) {
+                return;
+            }
+            current = annIndex;
+            epoch = storageEpoch;
+            VectorSegment.write(snapshotPath, vectorStorage, VectorSegment.FLAG_NORMALIZED);
+        } finally {
+            storageLock.readLock().unlock();
+        }
+        
+        try {
+            long start = System.currentTimeMillis();
+            FlatVectorStorage snapshot = new FlatVectorStorage();
+            snapshot.attach(VectorSegment.open(snapshotPath));
+            AnnIndex trained = untrained ? IvfPqIndex.train(snapshot, config) : current.rebuild(snapshot);
+            
+            storageLock.writeLock().lock();
+            try {
+                if (storageEpoch != epoch || annIndex != current) {
+                    logger.info("Vector store was cleared or compacted during ANN training, discarding the new index");
+                    return;
+                }
+                if (trained != null) {
+                    trained.attach(vectorStorage);
+                    for (int ordinal = snapshot.size(); ordinal < vectorStorage.size(); ordinal++) {
+                        trained.add(ordinal);
+                    }
+                    for (int ordinal = 0; ordinal < vectorStorage.size(); ordinal++) {
+                        if (vectorStorage.isDeleted(ordinal)
+                                && (ordinal >= snapshot.size() || !snapshot.isDeleted(ordinal))) {
+                            trained.remove(ordinal);
+                        }
+                    }
+                }
+                annIndex = trained;
+                derivedFilesStale = true;
+            } finally {
+                storageLock.writeLock().unlock();
+            }
+            logger.info("Trained ANN index over {} vectors in {} ms", 
+                    snapshot.size(), System.currentTimeMillis() - start);
+        } finally {
+            try {
+                Files.deleteIfExists(snapshotPath);
+            } catch (IOException e) {
+                logger.debug("Could not delete ANN training snapshot {}", snapshotPath);
+            }
+        }
+    }
+    
+    private boolean usesQuantization() {
+        return config.getQuantization() != VectorStoreConfig.Quantization.NONE;
     }
     
     /**
-     * Check if chunk exists
+     * The quantizer to scan with, or null to scan float32 rows. Caller must hold the storage lock.
      */
-    public boolean containsChunk(String chunkId) {
-        return vectorIndex.containsKey(chunkId);
+    private CompressedVectors activeQuantizer() {
+        return usesQuantization() && !quantizerStale ? quantizer : null;
     }
     
     /**
-     * Remove chunk from store
+     * Train int8 codes or a PCA projection over a storage, or return null if it is empty
      */
-    public void removeChunk(String chunkId) {
-        vectorIndex.remove(chunkId);
-        chunkIndex.remove(chunkId);
-        logger.debug("Removed chunk from vector store: {}", chunkId);
+    private static CompressedVectors trainCompressed(FlatVectorStorage storage, VectorStoreConfig config,
+                                                     VectorStoreConfig.Quantization quantization) {
+        return quantization == VectorStoreConfig.Quantization.PCA
+                ? PcaProjection.train(storage, config.getPcaDimensions())
+                : ScalarQuantizer.train(storage);
     }
     
     /**
-     * Get total number of stored vectors
+     * Load persisted int8 codes or PCA projection, retraining if missing or out of step with the
+     * segment. Caller must hold the write lock.
      */
-    public int size() {
-        return vectorIndex.size();
+    private CompressedVectors loadQuantizer() {
+        if (!usesQuantization()) {
+            return null;
+        }
+        
+        if (Files.exists(quantizerPath)) {
+            try {
+                CompressedVectors loaded = config.getQuantization() == VectorStoreConfig.Quantization.PCA
+                        ? PcaProjection.load(quantizerPath, vectorStorage, config.getPcaDimensions())
+                        : ScalarQuantizer.load(quantizerPath, vectorStorage);
+                if (loaded != null) {
+                    return loaded;
+                }
+                logger.info("Persisted {} codes do not match the vector segment, retraining", config.getQuantization());
+            } catch (IOException e) {
+                logger.warn("Failed to load " + config.getQuantization() + " codes, retraining", e);
+            }
+        }
+        derivedFilesStale = true;
+        return trainCompressed(vectorStorage, config, config.getQuantization());
     }
     
     /**
-     * Clear all vectors
+     * Retrain stale int8 codes or PCA projection on a maintenance thread; scans use the float32 rows
+     * meanwhile, so neither searches nor writes wait for the training
      */
-    public void clear() {
-        vectorIndex.clear();
-        chunkIndex.clear();
-        saveToDisk();
-        logger.info("Cleared vector store");
+    private void scheduleQuantizerRetrainIfStale() {
+        if (!quantizerStale || retrainingQuantizer.get() || maintenance == null || maintenance.isShutdown()) {
+            return;
+        }
+        maintenance.execute(this::retrainQuantizerIfStale);
     }
     
     /**
-     * Save vectors to disk for persistence
+     * Retrain stale int8 codes or PCA projection. Like ANN retraining, the codes are trained over a
+     * snapshot segment without the lock, then catch up with rows added meanwhile and are swapped in
+     * under a brief write lock, unless the store was cleared or compacted in between.
      */
-    public void saveToDisk() {
+    private void retrainQuantizerIfStale() {
+        if (!retrainingQuantizer.compareAndSet(false, true)) {
+            return;
+        }
+        Path snapshotPath = segmentPath.resolveSibling(segmentPath.getFileName() + ".quantize");
         try {
-            Files.createDirectories(persistencePath.getParent());
-            
-            VectorStoreData data = new VectorStoreData(
-                    new HashMap<>(vectorIndex),
-                    new HashMap<>(chunkIndex)
-            );
-            
-            try (FileWriter writer = new FileWriter(persistencePath.toFile())) {
-                objectMapper.writeValue(writer, data);
+            long epoch;
+            storageLock.readLock().lock();
+            try {
+                if (!quantizerStale) {
+                    return;
+                }
+                epoch = storageEpoch;
+                Files.createDirectories(snapshotPath.toAbsolutePath().getParent());
+                VectorSegment.write(snapshotPath, vectorStorage, VectorSegment.FLAG_NORMALIZED);
+            } finally {
+                storageLock.readLock().unlock();
             }
             
-            logger.debug("Saved {} vectors to disk", vectorIndex.size());
+            long start = System.currentTimeMillis();
+            FlatVectorStorage snapshot = new FlatVectorStorage();
+            snapshot.attach(VectorSegment.open(snapshotPath));
+            CompressedVectors trained = trainCompressed(snapshot, config, config.getQuantization());
             
-        } catch (Exception e) {
-            logger.error("Failed to save vector store to disk", e);
+            storageLock.writeLock().lock();
+            try {
+                if (storageEpoch != epoch) {
+                    logger.info("Vector store was cleared or compacted during {} training, discarding the new codes",
+                            config.getQuantization());
+                    return;
+                }
+                if (trained != null) {
+                    for (int ordinal = snapshot.size(); ordinal < vectorStorage.size(); ordinal++) {
+                        trained.set(ordinal, vectorStorage.vectorAt(ordinal));
+                    }
+                }
+                quantizer = trained;
+                quantizerStale = trained != null && trained.isOutgrown();
+                derivedFilesStale = true;
+            } finally {
+                storageLock.writeLock().unlock();
+            }
+            logger.debug("Trained {} codes over {} vectors in {} ms", config.getQuantization(), snapshot.size(),
+                    System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            logger.error("Failed to retrain " + config.getQuantization() + " codes", e);
+        } finally {
+            try {
+                Files.deleteIfExists(snapshotPath);
+            } catch (IOException e) {
+                logger.debug("Could not delete quantizer training snapshot {}", snapshotPath);
+            }
+            retrainingQuantizer.set(false);
         }
     }
     
     /**
-     * Load vectors from disk
+     * Measure recall@k of the configured quantized scan (int8 when quantization is off) and its
+     * rescoring against exact float32 scanning
      */
-    private void loadFromDisk() {
-        if (!Files.exists(persistencePath)) {
-            logger.info("No existing vector store found, starting fresh");
-            return;
+    public RecallReport evaluateQuantization(int sampleQueries, int k) {
+        VectorStoreConfig.Quantization quantization = usesQuantization() 
+                ? config.getQuantization() : VectorStoreConfig.Quantization.INT8;
+        return evaluateQuantization(sampleQueries, k, quantization, config.getRescoreMultiplier());
+    }
+    
+    /**
+     * Measure recall@k and latency of a quantized scan with the given rescoring against exact float32
+     * scanning, using a deterministic sample of stored vectors as queries. Works whether or not the
+     * store is configured for that quantization, so trade-offs can be checked before switching.
+     */
+    public RecallReport evaluateQuantization(int sampleQueries, int k, VectorStoreConfig.Quantization quantization,
+                                             int rescoreMultiplier) {
+        if (quantization == VectorStoreConfig.Quantization.NONE) {
+            throw new IllegalArgumentException("Nothing to evaluate without quantization");
+        }
+        if (quantizerStale) {
+            retrainQuantizerIfStale();
         }
         
+        storageLock.readLock().lock();
         try {
-            VectorStoreData data = objectMapper.readValue(persistencePath.toFile(), VectorStoreData.class);
+            CompressedVectors evaluated = activeQuantizer() != null && quantization == config.getQuantization() 
+                    ? quantizer : trainCompressed(vectorStorage, config, quantization);
+            return measureRecall(vectorStorage, evaluated, quantization, sampleQueries, k, rescoreMultiplier);
+        } finally {
+            storageLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Measure quantization recall over the vectors checkpointed at a path without opening a store:
+     * only the segment is mapped, so no model is loaded, the write-ahead log is neither replayed nor
+     * truncated, and nothing is written. Changes logged since the last checkpoint are left out.
+     */
+    static RecallReport evaluateSegment(Path persistencePath, VectorStoreConfig config, int sampleQueries, int k,
+                                        VectorStoreConfig.Quantization quantization, int rescoreMultiplier)
+            throws IOException {
+        if (quantization == VectorStoreConfig.Quantization.NONE) {
+            throw new IllegalArgumentException("Nothing to evaluate without quantization");
+        }
+        FlatVectorStorage storage = new FlatVectorStorage();
+        Path segmentPath = segmentPathFor(persistencePath);
+        if (Files.exists(segmentPath)) {
+            attachSegments(storage, segmentPath, tombstonesPathFor(persistencePath));
+        }
+        return measureRecall(storage, trainCompressed(storage, config, quantization), quantization,
+                sampleQueries, k, rescoreMultiplier);
+    }
+    
+    /**
+     * Recall@k and latency of scanning a storage through compressed vectors, with the given rescoring,
+     * against exact float32 scanning, with a deterministic sample of stored vectors as queries.
+     * Caller must hold the storage's lock.
+     */
+    private static RecallReport measureRecall(FlatVectorStorage storage, CompressedVectors evaluated,
+                                              VectorStoreConfig.Quantization quantization, int sampleQueries,
+                                              int k, int rescoreMultiplier) {
+        int count = storage.size();
+        String method = evaluated != null ? evaluated.method() : quantization.name().toLowerCase(Locale.ROOT);
+        if (rescoreMultiplier > 0) {
+            method += " (float32 rescoring of " + rescoreMultiplier + "x candidates)";
+        }
+        long floatBytes = (long) count * storage.dimension() * Float.BYTES;
+        if (evaluated == null || k <= 0 || sampleQueries <= 0) {
+            return new RecallReport(method, 0, k, 0.0, 0.0, 0.0, floatBytes, 0L);
+        }
+        
+        Random random = new Random(42);
+        int queries = Math.min(sampleQueries, storage.liveCount());
+        int[] expected = new int[k];
+        int[] actual = new int[k];
+        double[] scores = new double[k];
+        long baselineNanos = 0;
+        long candidateNanos = 0;
+        long hits = 0;
+        long relevant = 0;
+        
+        for (int q = 0; q < queries; q++) {
+            int queryOrdinal = random.nextInt(count);
+            while (storage.isDeleted(queryOrdinal)) {
+                queryOrdinal = random.nextInt(count);
+            }
+            float[] query = storage.vectorAt(queryOrdinal);
             
-            vectorIndex.clear();
-            chunkIndex.clear();
+            long start = System.nanoTime();
+            TopKHeap exact = scan(storage, query, null, count, k, Double.NEGATIVE_INFINITY, queryOrdinal, null, 0);
+            baselineNanos += System.nanoTime() - start;
+            
+            start = System.nanoTime();
+            TopKHeap approximate = scan(storage, query, null, count, k, Double.NEGATIVE_INFINITY, queryOrdinal, 
+                    evaluated, rescoreMultiplier);
+            candidateNanos += System.nanoTime() - start;
             
-            if (data.getVectorIndex() != null) {
-                vectorIndex.putAll(data.getVectorIndex());
+            int expectedCount = exact.drainBestFirst(expected, scores);
+            int actualCount = approximate.drainBestFirst(actual, scores);
+            relevant += expectedCount;
+            for (int i = 0; i < actualCount; i++) {
+                for (int j = 0; j < expectedCount; j++) {
+                    if (actual[i] == expected[j]) {
+                        hits++;
+                        break;
+                    }
+                }
             }
+        }
+        
+        RecallReport report = new RecallReport(method, queries, k, 
+                relevant > 0 ? (double) hits / relevant : 1.0,
+                baselineNanos / 1e6 / queries, candidateNanos / 1e6 / queries,
+                floatBytes, evaluated.memoryBytes());
+        logger.info("Quantization recall: {}", report);
+        return report;
+    }
+    
+    /**
+     * Score a query vector with the requested search mode, optionally excluding one chunk and keeping
+     * only chunks that match a filter. A breadth below 1 uses the configured ANN default.
+     */
+    private List<SimilarityResult> search(float[] queryVector, int maxResults, double minSimilarity,
+                                          String excludeChunkId, VectorStoreConfig.SearchMode searchMode,
+                                          int breadth, VectorFilter filter) {
+        boolean wantAnn = searchMode != VectorStoreConfig.SearchMode.EXACT;
+        if (maxResults <= 0) {
+            return Collections.emptyList();
+        }
+        float[] unitQuery = SimilarityKernels.normalize(queryVector);
+        storageLock.readLock().lock();
+        try {
+            int excludeOrdinal = excludeChunkId != null ? vectorStorage.ordinalOf(excludeChunkId) : -1;
             
-            if (data.getChunkIndex() != null) {
-                chunkIndex.putAll(data.getChunkIndex());
+            if (filter != null) {
+                return searchFiltered(unitQuery, maxResults, minSimilarity, excludeOrdinal, 
+                        wantAnn ? annIndex : null, breadth, chunkMetadata.compile(filter));
             }
             
-            logger.info("Loaded {} vectors from disk", vectorIndex.size());
+            // IVF-PQ is only trained on save; answer exactly until then
+            if (wantAnn && annIndex != null) {
+                int k = excludeOrdinal >= 0 ? maxResults + 1 : maxResults;
+                return toSimilarityResults(annIndex.search(unitQuery, k, breadth), 
+                        maxResults, minSimilarity, excludeOrdinal);
+            }
             
-        } catch (Exception e) {
-            logger.error("Failed to load vector store from disk", e);
+            // Allocation-free scan: only the k winners are ever turned into result objects
+            TopKHeap topK = scan(unitQuery, null, vectorStorage.size(), maxResults, minSimilarity, 
+                    excludeOrdinal, activeQuantizer());
+            return toSimilarityResults(topK, maxResults, minSimilarity, excludeOrdinal);
+        } finally {
+            storageLock.readLock().unlock();
         }
     }
     
     /**
-     * Calculate cosine similarity between two vectors
+     * Search only the rows a filter matches. A broad filter keeps the ANN search, testing the filter
+     * as the index is traversed; one matching a small fraction of rows or few enough to scan quickly,
+     * or any filter without an index, scans exactly the matching rows, which is cheaper than a graph
+     * walk that rejects most of what it visits and never misses a match.
+     * Caller must hold the storage lock.
      */
-    private double cosineSimilarity(List<Double> vectorA, List<Double> vectorB) {
-        if (vectorA.size() != vectorB.size()) {
-            throw new IllegalArgumentException("Vectors must have the same dimension");
+    private List<SimilarityResult> searchFiltered(float[] unitQuery, int maxResults, double minSimilarity,
+                                                  int excludeOrdinal, AnnIndex index, int breadth,
+                                                  ChunkMetadata.Matcher matcher) {
+        double selectivity = index != null ? matcher.selectivity(vectorStorage) : 0.0;
+        if (selectivity >= FILTERED_ANN_MIN_SELECTIVITY 
+                && selectivity * vectorStorage.liveCount() > FILTERED_SCAN_MAX_ROWS) {
+            int k = excludeOrdinal >= 0 ? maxResults + 1 : maxResults;
+            return toSimilarityResults(index.search(unitQuery, k, breadth, matcher), 
+                    maxResults, minSimilarity, excludeOrdinal);
+        }
+        int[] ordinals = matcher.matchingOrdinals(vectorStorage);
+        TopKHeap topK = scan(unitQuery, ordinals, ordinals.length, maxResults, minSimilarity, 
+                excludeOrdinal, activeQuantizer());
+        return toSimilarityResults(topK, maxResults, minSimilarity, excludeOrdinal);
+    }
+    
+    /**
+     * Exhaustively score every row (ordinals == null) or the first length listed ordinals, with
+     * the configured rescoring. Caller must hold the storage lock.
+     */
+    private TopKHeap scan(float[] unitQuery, int[] ordinals, int length, int maxResults,
+                          double minSimilarity, int excludeOrdinal, CompressedVectors quantizer) {
+        return scan(vectorStorage, unitQuery, ordinals, length, maxResults, minSimilarity, excludeOrdinal, quantizer,
+                config.getRescoreMultiplier());
+    }
+    
+    /**
+     * Exhaustively score every row (ordinals == null) or the first length listed ordinals.
+     * With a quantizer the scan runs over its int8 codes or projected rows and keeps a pool of
+     * multiplier candidates per result, which is rescored against the float32 rows unless the
+     * multiplier is 0. Caller must hold the storage's lock.
+     */
+    private static TopKHeap scan(FlatVectorStorage vectorStorage, float[] unitQuery, int[] ordinals, int length, int maxResults,
+                          double minSimilarity, int excludeOrdinal, CompressedVectors quantizer, int multiplier) {
+        if (quantizer == null) {
+            TopKHeap topK = new TopKHeap(Math.min(maxResults, length));
+            for (int i = 0; i < length; i++) {
+                int ordinal = ordinals != null ? ordinals[i] : i;
+                if (ordinal == excludeOrdinal || vectorStorage.isDeleted(ordinal)) {
+                    continue;
+                }
+                double similarity = vectorStorage.similarity(unitQuery, ordinal);
+                if (similarity >= minSimilarity) {
+                    topK.offer(ordinal, similarity);
+                }
+            }
+            return topK;
         }
         
-        double dotProduct = 0.0;
-        double normA = 0.0;
-        double normB = 0.0;
-        
-        for (int i = 0; i < vectorA.size(); i++) {
-            double a = vectorA.get(i);
-            double b = vectorB.get(i);
-            
-            dotProduct += a * b;
-            normA += a * a;
-            normB += b * b;
+        // Quantized scores are approximate, so the threshold is only applied to final scores
+        TopKHeap pool = new TopKHeap((int) Math.min((long) maxResults * Math.max(multiplier, 1), length));
+        CompressedVectors.Scorer query = quantizer.prepare(unitQuery);
+        for (int i = 0; i < length; i++) {
+            int ordinal = ordinals != null ? ordinals[i] : i;
+            if (ordinal != excludeOrdinal && !vectorStorage.isDeleted(ordinal)) {
+                pool.offer(ordinal, query.score(ordinal));
+            }
+        }
+        if (multiplier == 0) {
+            return pool;
         }
         
-        if (normA == 0.0 || normB == 0.0) {
-            return 0.0;
+        TopKHeap topK = new TopKHeap(Math.min(maxResults, pool.size()));
+        while (!pool.isEmpty()) {
+            int ordinal = pool.minOrdinal();
+            pool.pop();
+            topK.offer(ordinal, vectorStorage.similarity(unitQuery, ordinal));
         }
+        return topK;
+    }
+    
+    static Path segmentPathFor(Path persistencePath) {
+        return persistencePath.resolveSibling(baseName(persistencePath) + ".seg");
+    }
+    
+    static Path chunksPathFor(Path persistencePath) {
+        return persistencePath.resolveSibling(baseName(persistencePath) + ".chunks.jsonl");
+    }
+    
+    static Path annIndexPathFor(Path persistencePath) {
+        return persistencePath.resolveSibling(baseName(persistencePath) + ".hnsw");
+    }
+    
+    static Path ivfPqIndexPathFor(Path persistencePath) {
+        return persistencePath.resolveSibling(baseName(persistencePath) + ".ivfpq");
+    }
+    
+    static Path quantizerPathFor(Path persistencePath) {
+        return persistencePath.resolveSibling(baseName(persistencePath) + ".q8");
+    }
+    
+    static Path pcaPathFor(Path persistencePath) {
+        return persistencePath.resolveSibling(baseName(persistencePath) + ".pca");
+    }
+    
+    static Path chunkStorePathFor(Path persistencePath) {
+        return persistencePath.resolveSibling(baseName(persistencePath) + ".chunks.bin");
+    }
+    
+    static Path walPathFor(Path persistencePath) {
+        return persistencePath.resolveSibling(baseName(persistencePath) + ".wal");
+    }
+    
+    static Path embeddingCachePathFor(Path persistencePath) {
+        return persistencePath.resolveSibling(baseName(persistencePath) + ".embcache");
+    }
+    
+    static Path modelStampPathFor(Path persistencePath) {
+        return persistencePath.resolveSibling(baseName(persistencePath) + ".model");
+    }
+    
+    static Path queryCachePathFor(Path persistencePath) {
+        return persistencePath.resolveSibling(baseName(persistencePath) + ".qcache");
+    }
+    
+    static Path metadataPathFor(Path persistencePath) {
+        return persistencePath.resolveSibling(baseName(persistencePath) + ".meta");
+    }
+    
+    static Path tombstonesPathFor(Path persistencePath) {
+        return persistencePath.resolveSibling(baseName(persistencePath) + ".tomb");
+    }
+    
+    private static Path deltaPathFor(Path segmentPath, int firstOrdinal) {
+        return segmentPath.resolveSibling(segmentPath.getFileName() + "." + firstOrdinal);
+    }
+    
+    private static Path pendingPathFor(Path path) {
+        return path.resolveSibling(path.getFileName() + ".pending");
+    }
+    
+    private static boolean isLegacyJson(Path persistencePath) {
+        return persistencePath.getFileName().toString().endsWith(".json");
+    }
+    
+    static String baseName(Path persistencePath) {
+        String fileName = persistencePath.getFileName().toString();
+        return isLegacyJson(persistencePath) ? fileName.substring(0, fileName.length() - ".json".length()) : fileName;
+    }
+    
+    /**
+     * Materialize the winners of a search heap, best first, skipping the excluded ordinal
+     * and anything below the threshold. Caller must hold the storage lock.
+     */
+    private List<SimilarityResult> toSimilarityResults(TopKHeap heap, int maxResults, 
+                                                       double minSimilarity, int excludeOrdinal) {
+        int[] ordinals = new int[heap.size()];
+        double[] similarities = new double[heap.size()];
+        int count = heap.drainBestFirst(ordinals, similarities);
         
-        return dotProduct / (Math.sqrt(normA) * Math.sqrt(normB));
+        List<SimilarityResult> results = new ArrayList<>(Math.min(count, maxResults));
+        for (int i = 0; i < count && results.size() < maxResults; i++) {
+            if (ordinals[i] != excludeOrdinal && similarities[i] >= minSimilarity) {
+                results.add(toSimilarityResult(ordinals[i], similarities[i]));
+            }
+        }
+        return results;
+    }
+    
+    /**
+     * Build a result for a stored ordinal; with on-disk chunk storage its chunk is only read if the
+     * caller asks for it. Caller must hold the storage lock.
+     */
+    private SimilarityResult toSimilarityResult(int ordinal, double similarity) {
+        String chunkId = vectorStorage.idAt(ordinal);
+        if (chunkStore == null) {
+            return new SimilarityResult(chunkId, chunkIndex.get(chunkId), similarity);
+        }
+        return new SimilarityResult(chunkId, () -> getChunk(chunkId), similarity);
     }
     
     @Override
     public void close() {
+        if (maintenance != null) {
+            // Lets a running compaction finish and swap in its copy before the final save
+            maintenance.shutdown();
+            try {
+                maintenance.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         saveToDisk();
+        if (writeAheadLog != null) {
+            try {
+                writeAheadLog.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close write-ahead log", e);
+            }
+        }
+        if (embeddingCache != null) {
+            try {
+                embeddingCache.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close embedding cache", e);
+            }
+        }
+        if (chunkStore != null) {
+            try {
+                chunkStore.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close chunk store", e);
+            }
+        }
+        if (ownsEmbeddingModel) {
+            embeddingModel.close();
+        }
+        if (queryCache != null) {
+            logger.info("Query embedding cache: {}", queryCache.stats());
+        }
         logger.info("Closed vector store");
     }
     
     /**
-     * Vector entry for storage
+     * What a checkpoint writes, copied under the read lock: the heap rows from the first unmapped
+     * ordinal with their IDs, every tombstone, changed chunk bodies and the log generation they cover
+     */
+    private static final class CheckpointSnapshot {
+        private long epoch;
+        private long changes;
+        private long baseKey;
+        private int firstOrdinal;
+        private int dimension;
+        private int rowCount;
+        private List<String> ids;
+        private float[] rows;
+        private BitSet deleted;
+        private int deletedCount;
+        private boolean rewriteChunks;
+        private List<CodeChunk> chunks = List.of();
+        private boolean derivedFiles;
+        private long logGeneration;
+        private boolean retainLog;
+    }
+    
+    /**
+     * A change made while a compaction was building its copy: an add, or a removal when vector is null
+     */
+    private static final class PendingChange {
+        private final String chunkId;
+        private final CodeChunk chunk;
+        private final float[] vector;
+        
+        private PendingChange(String chunkId, CodeChunk chunk, float[] vector) {
+            this.chunkId = chunkId;
+            this.chunk = chunk;
+            this.vector = vector;
+        }
+    }
+    
+    /**
+     * Vector entry in the legacy JSON format, read during migration
      */
     public static class VectorEntry {
         private String chunkId;
-        private List<Double> vector;
+        private float[] vector;
         private long timestamp;
         
         public VectorEntry() {} // For Jackson
         
-        public VectorEntry(String chunkId, List<Double> vector, long timestamp) {
+        public VectorEntry(String chunkId, float[] vector, long timestamp) {
             this.chunkId = chunkId;
             this.vector = vector;
             this.timestamp = timestamp;
@@ -328,40 +2430,62 @@ public class VectorStore implements AutoCloseable {
         public String getChunkId() { return chunkId; }
         public void setChunkId(String chunkId) { this.chunkId = chunkId; }
         
-        public List<Double> getVector() { return vector; }
-        public void setVector(List<Double> vector) { this.vector = vector; }
+        public float[] getVector() { return vector; }
+        public void setVector(float[] vector) { this.vector = vector; }
         
         public long getTimestamp() { return timestamp; }
         public void setTimestamp(long timestamp) { this.timestamp = timestamp; }
     }
     
     /**
-     * Similarity search result
+     * Similarity search result. The chunk is either given up front or loaded on the first
+     * getChunk call, so results that are ranked and discarded never read their body.
      */
     public static class SimilarityResult {
         private final String chunkId;
-        private final CodeChunk chunk;
         private final double similarity;
+        private final Supplier<CodeChunk> chunkLoader;
+        private volatile CodeChunk chunk;
         
         public SimilarityResult(String chunkId, CodeChunk chunk, double similarity) {
             this.chunkId = chunkId;
             this.chunk = chunk;
             this.similarity = similarity;
+            this.chunkLoader = null;
+        }
+        
+        public SimilarityResult(String chunkId, Supplier<CodeChunk> chunkLoader, double similarity) {
+            this.chunkId = chunkId;
+            this.similarity = similarity;
+            this.chunkLoader = chunkLoader;
         }
         
         public String getChunkId() { return chunkId; }
-        public CodeChunk getChunk() { return chunk; }
         public double getSimilarity() { return similarity; }
         
+        /**
+         * The result's chunk, loading it on first use; null if it was removed before it was loaded
+         */
+        public CodeChunk getChunk() {
+            CodeChunk loaded = chunk;
+            if (loaded == null && chunkLoader != null) {
+                loaded = chunkLoader.get();
+                chunk = loaded;
+            }
+            return loaded;
+        }
+        
         @Override
         public String toString() {
+            // Does not load the chunk, so logging results costs no disk reads
+            CodeChunk loaded = chunk;
             return String.format("SimilarityResult{chunkId='%s', similarity=%.3f, type=%s}", 
-                    chunkId, similarity, chunk != null ? chunk.getType() : "null");
+                    chunkId, similarity, loaded != null ? loaded.getType() : "null");
         }
     }
     
     /**
-     * Data structure for persistence
+     * Legacy JSON persistence structure
      */
     private static class VectorStoreData {
         private Map<String, VectorEntry> vectorIndex;
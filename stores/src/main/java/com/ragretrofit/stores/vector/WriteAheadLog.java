@@ -0,0 +1,364 @@
+package com.ragretrofit.stores.vector;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ragretrofit.indexer.model.CodeChunk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of vector store mutations written ahead of the in-memory change, so adds and
+ * removals survive a crash between checkpoints without rewriting the whole segment.
+ *
+ * Layout (big-endian): an 8-byte header (magic, version) followed by records of
+ * <pre>
+ *   length   int32 payload bytes
+ *   crc      int32 CRC-32 of the payload
+ *   payload  ADD:    op byte, int32 + UTF-8 chunk JSON, int32 dimension + float32 vector
+ *            REMOVE: op byte, int32 + UTF-8 chunk ID
+ * </pre>
+ * Records are buffered and written on {@link #commit()}; fsync happens there too when the sync
+ * interval is 0, and otherwise on {@link #sync()}, which the store calls from a background timer so
+ * many commits share one fsync. Replay stops at the first torn or corrupt record and truncates it.
+ * <p>
+ * A checkpoint {@link #rotate() rotates} the log when it snapshots the store: the records so far move
+ * to a numbered generation file and later ones go to a fresh log, so writers carry on while the
+ * snapshot is written. Generations are deleted once the checkpoint covering them is durable; until
+ * then, opening the log replays them in order before the live log. Safe for concurrent use.
+ */
+final class WriteAheadLog implements Closeable {
+
+    private static final int MAGIC = 0x5257414C; // "RWAL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+
+    /**
+     * Receives the operations found in the log, in the order they were applied
+     */
+    interface Replayer {
+        void add(CodeChunk chunk, float[] vector);
+
+        void remove(String chunkId);
+    }
+
+    private final Path path;
+    private final ObjectMapper objectMapper;
+    private final boolean syncOnCommit;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private FileChannel channel;
+    private long end;
+    private boolean unsynced;
+    // Number the next rotated generation gets
+    private long generation;
+
+    private WriteAheadLog(Path path, FileChannel channel, ObjectMapper objectMapper, boolean syncOnCommit) {
+        this.path = path;
+        this.channel = channel;
+        this.objectMapper = objectMapper;
+        this.syncOnCommit = syncOnCommit;
+    }
+
+    /**
+     * Open or create the log, replaying every intact record into the replayer before returning:
+     * first those of generations a checkpoint did not get to delete, oldest first, then the live log
+     */
+    static WriteAheadLog open(Path path, ObjectMapper objectMapper, boolean syncOnCommit,
+                              Replayer replayer) throws IOException {
+        long nextGeneration = 1;
+        for (long rotated : generations(path)) {
+            Path generationPath = generationPath(path, rotated);
+            try (FileChannel channel = FileChannel.open(generationPath, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                new WriteAheadLog(generationPath, channel, objectMapper, syncOnCommit).recover(replayer);
+            }
+            nextGeneration = rotated + 1;
+        }
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            WriteAheadLog log = new WriteAheadLog(path, channel, objectMapper, syncOnCommit);
+            log.recover(replayer);
+            log.generation = nextGeneration;
+            return log;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Buffer an add; it reaches the file on the next commit
+     */
+    synchronized void logAdd(CodeChunk chunk, float[] vector) throws IOException {
+        byte[] json = objectMapper.writeValueAsBytes(chunk);
+        ByteBuffer payload = ByteBuffer.allocate(1 + Integer.BYTES + json.length
+                + Integer.BYTES + vector.length * Float.BYTES);
+        payload.put(OP_ADD).putInt(json.length).put(json).putInt(vector.length);
+        for (float value : vector) {
+            payload.putFloat(value);
+        }
+        append(payload.array());
+    }
+
+    /**
+     * Buffer a removal; it reaches the file on the next commit
+     */
+    synchronized void logRemove(String chunkId) throws IOException {
+        byte[] id = chunkId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + Integer.BYTES + id.length);
+        payload.put(OP_REMOVE).putInt(id.length).put(id);
+        append(payload.array());
+    }
+
+    /**
+     * Write buffered records to the file, and fsync them if the log syncs on every commit
+     */
+    synchronized void commit() throws IOException {
+        flushBuffer();
+        if (syncOnCommit) {
+            sync();
+        }
+    }
+
+    /**
+     * Write buffered records and fsync everything not yet on stable storage
+     */
+    synchronized void sync() throws IOException {
+        flushBuffer();
+        if (unsynced) {
+            channel.force(false);
+            unsynced = false;
+        }
+    }
+
+    /**
+     * Move every record logged so far, synced, to a new generation file and continue in an empty log.
+     * Returns the generation, to {@link #discardThrough(long) discard} once a checkpoint covers it.
+     */
+    synchronized long rotate() throws IOException {
+        sync();
+        long rotated = generation;
+        channel.close();
+        boolean moved = false;
+        try {
+            Files.move(path, generationPath(path, rotated), StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+        } finally {
+            // Reopen either the fresh log or, if the move failed, the one still holding the records
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+        if (moved) {
+            generation++;
+            end = 0;
+            writeHeader();
+        }
+        return rotated;
+    }
+
+    /**
+     * Delete rotated generations up to and including the given one, once a checkpoint has made their
+     * records redundant
+     */
+    synchronized void discardThrough(long lastGeneration) throws IOException {
+        for (long rotated : generations(path)) {
+            if (rotated <= lastGeneration) {
+                Files.deleteIfExists(generationPath(path, rotated));
+            }
+        }
+    }
+
+    /**
+     * Bytes of records logged since the last rotation, including buffered ones
+     */
+    synchronized long size() {
+        return end - HEADER_SIZE + buffer.position();
+    }
+
+    synchronized boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void append(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        int recordSize = RECORD_HEADER_SIZE + payload.length;
+        if (recordSize > buffer.remaining()) {
+            flushBuffer();
+        }
+        if (recordSize > buffer.capacity()) {
+            ByteBuffer record = ByteBuffer.allocate(recordSize);
+            record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+            write(record);
+            return;
+        }
+        buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+    }
+
+    private void flushBuffer() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        write(buffer);
+        buffer.clear();
+    }
+
+    private void write(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            end += channel.write(data, end);
+        }
+        unsynced = true;
+    }
+
+    private void recover(Replayer replayer) throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (fileSize < HEADER_SIZE) {
+            // New log, or one whose header was torn before any record could follow it
+            end = 0;
+            writeHeader();
+            return;
+        }
+        readFully(header, 0);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException("Not a vector store write-ahead log, or an unsupported version");
+        }
+
+        long position = HEADER_SIZE;
+        ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (position + RECORD_HEADER_SIZE <= fileSize) {
+            recordHeader.clear();
+            readFully(recordHeader, position);
+            int length = recordHeader.getInt();
+            int checksum = recordHeader.getInt();
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > fileSize) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(payload, position + RECORD_HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(payload.array());
+            if ((int) crc.getValue() != checksum || !replay(payload, replayer)) {
+                break;
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+
+        // Anything past the last intact record was torn by a crash mid-append
+        if (position < fileSize) {
+            channel.truncate(position);
+            channel.force(false);
+        }
+        end = position;
+    }
+
+    private void writeHeader() throws IOException {
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        write(header);
+        sync();
+    }
+
+    /**
+     * Numbers of the rotated generations next to a log, in ascending order
+     */
+    private static List<Long> generations(Path path) throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        String prefix = path.getFileName() + ".";
+        List<Long> generations = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return generations;
+        }
+        try (Stream<Path> siblings = Files.list(directory)) {
+            siblings.map(sibling -> sibling.getFileName().toString())
+                    .filter(name -> name.startsWith(prefix) && name.length() > prefix.length()
+                            && name.substring(prefix.length()).chars().allMatch(Character::isDigit))
+                    .forEach(name -> generations.add(Long.parseLong(name.substring(prefix.length()))));
+        }
+        generations.sort(null);
+        return generations;
+    }
+
+    private static Path generationPath(Path path, long generation) {
+        return path.resolveSibling(path.getFileName() + "." + generation);
+    }
+
+    /**
+     * Decode one payload and hand it to the replayer; false if it cannot be decoded
+     */
+    private boolean replay(ByteBuffer payload, Replayer replayer) {
+        CodeChunk chunk;
+        float[] vector;
+        String removedId;
+        try {
+            byte op = payload.get();
+            if (op == OP_ADD) {
+                byte[] json = new byte[payload.getInt()];
+                payload.get(json);
+                vector = new float[payload.getInt()];
+                payload.asFloatBuffer().get(vector);
+                chunk = objectMapper.readValue(json, CodeChunk.class);
+                removedId = null;
+            } else if (op == OP_REMOVE) {
+                byte[] id = new byte[payload.getInt()];
+                payload.get(id);
+                removedId = new String(id, StandardCharsets.UTF_8);
+                chunk = null;
+                vector = null;
+            } else {
+                return false;
+            }
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+
+        if (chunk != null) {
+            replayer.add(chunk, vector);
+        } else {
+            replayer.remove(removedId);
+        }
+        return true;
+    }
+
+    /**
+     * Fill the buffer from the given file position and flip it; false if the file ends first
+     */
+    private boolean readFully(ByteBuffer destination, long position) throws IOException {
+        while (destination.hasRemaining()) {
+            if (channel.read(destination, position + destination.position()) < 0) {
+                return false;
+            }
+        }
+        destination.flip();
+        return true;
+    }
+}
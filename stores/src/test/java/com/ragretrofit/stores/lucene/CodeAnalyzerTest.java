@@ -0,0 +1,53 @@
+package com.ragretrofit.stores.lucene;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CodeAnalyzerTest {
+
+    @Test
+    void camelCaseIdentifierKeepsTheWholeNameAndItsWords() throws IOException {
+        assertEquals(Set.of("getuseraccountbyid", "get", "user", "account", "by", "id"),
+                tokens("getUserAccountById"));
+    }
+
+    @Test
+    void qualifiedNameKeepsTheDottedNameAndItsParts() throws IOException {
+        assertEquals(Set.of("com.acme.userservice", "com", "acme", "user", "service"),
+                tokens("com.acme.UserService"));
+    }
+
+    @Test
+    void snakeCaseAndDigitsAreSplit() throws IOException {
+        assertEquals(Set.of("max_retry_count", "max", "retry", "count"), tokens("MAX_RETRY_COUNT"));
+        assertEquals(Set.of("utf8decoder", "utf", "8", "decoder"), tokens("utf8Decoder"));
+    }
+
+    @Test
+    void javaKeywordsAndSentenceDotsAreDropped() throws IOException {
+        assertEquals(Set.of("getname", "get", "name", "string"),
+                tokens("public static final String getName() { return null; }"));
+        assertEquals(Set.of("returns", "the", "name"), tokens("Returns the name. ..."));
+    }
+
+    private static Set<String> tokens(String text) throws IOException {
+        Set<String> tokens = new HashSet<>();
+        try (CodeAnalyzer analyzer = new CodeAnalyzer();
+             TokenStream stream = analyzer.tokenStream("content", text)) {
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                tokens.add(term.toString());
+            }
+            stream.end();
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,206 @@
+package com.ragretrofit.stores.lucene;
+
+import com.ragretrofit.indexer.model.CodeChunk;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LuceneBM25StoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void awaitSearchableShowsWritesLongBeforeTheMaxStaleness() throws IOException {
+        LuceneStoreConfig config = LuceneStoreConfig.builder()
+                .maxStalenessMillis(60_000)
+                .minStalenessMillis(0)
+                .build();
+        try (LuceneBM25Store store = new LuceneBM25Store(tempDir.resolve("bm25"), config)) {
+            store.indexChunk(chunk("chunk0", "src/Invoice.java", "void renderInvoice() {}"));
+            // Nothing reopens the searcher for a minute unless someone waits
+            assertTrue(store.search("invoice", 10).isEmpty());
+
+            store.awaitSearchable();
+            assertEquals(List.of("chunk0"), ids(store.search("invoice", 10)));
+            assertEquals(1, store.getDocumentCount());
+        }
+    }
+
+    @Test
+    void committedChunksAreSearchableAfterReopening() throws IOException {
+        Path indexPath = tempDir.resolve("bm25");
+        try (LuceneBM25Store store = new LuceneBM25Store(indexPath)) {
+            store.indexChunk(chunk("chunk0", "src/Invoice.java", "void renderInvoice() {}"));
+            store.commit();
+        }
+        try (LuceneBM25Store store = new LuceneBM25Store(indexPath)) {
+            assertEquals(1, store.getDocumentCount());
+            assertEquals(List.of("chunk0"), ids(store.search("render", 10)));
+        }
+    }
+
+    @Test
+    void queriesMatchEveryBoostedFieldAndBoostsDecideTheRanking() throws IOException {
+        // "invoice" is only in the first chunk's name and only in the second chunk's code
+        CodeChunk named = CodeChunk.builder()
+                .id("named")
+                .content("void render() {}")
+                .type(CodeChunk.ChunkType.METHOD)
+                .filePath("src/InvoiceService.java")
+                .fullyQualifiedName("com.acme.billing.InvoiceService.render")
+                .apiCallSequence(List.of("PaymentGateway.charge"))
+                .build();
+        CodeChunk coded = CodeChunk.builder()
+                .id("coded")
+                .content("void send(Invoice invoice) {}")
+                .type(CodeChunk.ChunkType.CLASS)
+                .filePath("src/Mailer.java")
+                .fullyQualifiedName("com.acme.mail.Mailer.send")
+                .mvcMapping(Map.of("path", "/orders/export"))
+                .build();
+
+        List<String> byName = search(LuceneStoreConfig.builder()
+                .fieldBoost(LuceneStoreConfig.SearchField.FULLY_QUALIFIED_NAME, 10.0f)
+                .fieldBoost(LuceneStoreConfig.SearchField.SEARCHABLE_TEXT, 0.1f), "invoice", named, coded);
+        assertEquals(List.of("named", "coded"), byName);
+        List<String> byCode = search(LuceneStoreConfig.builder()
+                .fieldBoost(LuceneStoreConfig.SearchField.FULLY_QUALIFIED_NAME, 0.1f)
+                .fieldBoost(LuceneStoreConfig.SearchField.SEARCHABLE_TEXT, 10.0f), "invoice", named, coded);
+        assertEquals(List.of("coded", "named"), byCode);
+        List<String> nameIgnored = search(LuceneStoreConfig.builder()
+                .fieldBoost(LuceneStoreConfig.SearchField.FULLY_QUALIFIED_NAME, 0.0f), "invoice", named, coded);
+        assertEquals(List.of("coded"), nameIgnored);
+
+        assertEquals(List.of("named"), search(LuceneStoreConfig.builder(), "charge", named, coded));
+        assertEquals(List.of("coded"), search(LuceneStoreConfig.builder(), "export", named, coded));
+    }
+
+    @Test
+    void typeFilterOnlyNarrowsTheResults() throws IOException {
+        try (LuceneBM25Store store = new LuceneBM25Store(tempDir.resolve("bm25"))) {
+            store.indexChunk(chunk("method", "src/Invoice.java", "void renderInvoice() {}"));
+            store.indexChunk(CodeChunk.builder()
+                    .id("class")
+                    .content("class Invoice {}")
+                    .type(CodeChunk.ChunkType.CLASS)
+                    .filePath("src/Invoice.java")
+                    .build());
+            store.commit();
+
+            List<LuceneBM25Store.SearchResult> all = store.search("invoice", 10);
+            List<LuceneBM25Store.SearchResult> methods = store.search("invoice", 10, CodeChunk.ChunkType.METHOD);
+            assertEquals(List.of("method"), ids(methods));
+            LuceneBM25Store.SearchResult unfiltered = all.stream()
+                    .filter(result -> result.getId().equals("method"))
+                    .findFirst()
+                    .orElseThrow();
+            assertEquals(unfiltered.getScore(), methods.get(0).getScore(), 1e-6f);
+        }
+    }
+
+    @Test
+    void indexingAChunkAgainReplacesItsDocument() throws IOException {
+        try (LuceneBM25Store store = new LuceneBM25Store(tempDir.resolve("bm25"))) {
+            store.indexChunk(chunk("chunk0", "src/Invoice.java", "void renderInvoice() {}"));
+            store.indexChunk(chunk("chunk0", "src/Invoice.java", "void renderInvoice() {}"));
+            store.awaitSearchable();
+            assertEquals(1, store.getDocumentCount());
+
+            store.indexChunk(chunk("chunk0", "src/Invoice.java", "void printReceipt() {}"));
+            store.awaitSearchable();
+            assertEquals(1, store.getDocumentCount());
+            assertTrue(store.search("render", 10).isEmpty());
+            assertEquals(List.of("chunk0"), ids(store.search("receipt", 10)));
+        }
+    }
+
+    @Test
+    void replacingAndDeletingFilesOnlyTouchThatFile() throws IOException {
+        try (LuceneBM25Store store = new LuceneBM25Store(tempDir.resolve("bm25"))) {
+            store.indexChunk(chunk("invoice0", "src/Invoice.java", "void renderInvoice() {}"));
+            store.indexChunk(chunk("invoice1", "src/Invoice.java", "void totalInvoice() {}"));
+            store.indexChunk(chunk("mailer0", "src/Mailer.java", "void sendInvoice() {}"));
+
+            store.replaceFile("src/Invoice.java",
+                    List.of(chunk("invoice2", "src/Invoice.java", "void archiveInvoice() {}")));
+            store.awaitSearchable();
+            assertEquals(2, store.getDocumentCount());
+            assertEquals(Set.of("invoice2", "mailer0"), Set.copyOf(ids(store.search("invoice", 10))));
+
+            store.deleteByFilePath("src/Invoice.java");
+            store.awaitSearchable();
+            assertEquals(List.of("mailer0"), ids(store.search("invoice", 10)));
+
+            assertThrows(IllegalArgumentException.class, () -> store.replaceFile("src/Invoice.java",
+                    List.of(chunk("mailer1", "src/Mailer.java", "void retry() {}"))));
+            store.awaitSearchable();
+            assertEquals(1, store.getDocumentCount());
+        }
+    }
+
+    @Test
+    void bulkLoadSpreadsLargeBatchesOverThreadsAndUpsertsLikeSingleIndexing() throws IOException {
+        LuceneStoreConfig config = LuceneStoreConfig.builder()
+                .indexingThreads(4)
+                .forceMergeSegments(1)
+                .build();
+        List<CodeChunk> chunks = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            chunks.add(chunk("chunk" + i, "src/Type" + (i / 10) + ".java", "void handle" + i + "Request() {}"));
+        }
+
+        try (LuceneBM25Store store = new LuceneBM25Store(tempDir.resolve("bm25"), config)) {
+            BulkIndexReport report = store.indexChunks(chunks);
+            assertEquals(2000, report.getDocuments());
+            assertEquals(4, report.getThreads());
+            assertEquals(1, report.getSegments());
+            assertEquals(2000, store.getDocumentCount());
+            for (int i : new int[] {0, 999, 1999}) {
+                assertEquals("chunk" + i, store.search("handle" + i + "Request", 1).get(0).getId());
+            }
+
+            // Too few chunks to be worth a second thread, and all of them already indexed
+            assertEquals(1, store.indexChunks(chunks.subList(0, 300)).getThreads());
+            assertEquals(2000, store.getDocumentCount());
+        }
+    }
+
+    private List<String> search(LuceneStoreConfig.Builder config, String query, CodeChunk... chunks)
+            throws IOException {
+        Path indexPath = Files.createTempDirectory(tempDir, "bm25");
+        try (LuceneBM25Store store = new LuceneBM25Store(indexPath, config.build())) {
+            for (CodeChunk chunk : chunks) {
+                store.indexChunk(chunk);
+            }
+            store.commit();
+            return ids(store.search(query, 10));
+        }
+    }
+
+    private static CodeChunk chunk(String id, String filePath, String content) {
+        return CodeChunk.builder()
+                .id(id)
+                .content(content)
+                .type(CodeChunk.ChunkType.METHOD)
+                .filePath(filePath)
+                .startLine(1)
+                .endLine(1)
+                .build();
+    }
+
+    private static List<String> ids(List<LuceneBM25Store.SearchResult> results) {
+        return results.stream().map(LuceneBM25Store.SearchResult::getId).toList();
+    }
+}
@@ -0,0 +1,120 @@
+package com.ragretrofit.stores.vector;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ragretrofit.indexer.model.CodeChunk;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkStoreTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void removedAndReplacedChunksStayThatWayAfterReopening() throws IOException {
+        Path path = tempDir.resolve("chunks.bin");
+        List<CodeChunk> chunks = VectorStoreTest.chunks(100);
+        CodeChunk replacement = CodeChunk.builder()
+                .id("chunk1")
+                .content("void changed() {}")
+                .type(CodeChunk.ChunkType.METHOD)
+                .filePath("src/Type0.java")
+                .startLine(1)
+                .endLine(2)
+                .build();
+        long liveBytes;
+        try (ChunkStore store = ChunkStore.open(path, objectMapper, true)) {
+            for (CodeChunk chunk : chunks) {
+                store.put(chunk);
+            }
+            for (int i = 50; i < 100; i++) {
+                store.remove(chunks.get(i).getId());
+            }
+            store.put(replacement);
+            liveBytes = store.liveBytes();
+        }
+
+        try (ChunkStore store = ChunkStore.open(path, objectMapper, true)) {
+            assertEquals(50, store.size());
+            assertEquals(liveBytes, store.liveBytes());
+            assertEquals("void changed() {}", store.get("chunk1").getContent());
+            assertEquals(chunks.get(0).getContent(), store.get("chunk0").getContent());
+            for (int i = 50; i < 100; i++) {
+                assertFalse(store.contains(chunks.get(i).getId()));
+                assertNull(store.get(chunks.get(i).getId()));
+            }
+
+            // Re-adding a removed chunk wins over its removal record
+            store.put(chunks.get(99));
+        }
+        try (ChunkStore store = ChunkStore.open(path, objectMapper, true)) {
+            assertEquals(51, store.size());
+            assertTrue(store.contains("chunk99"));
+        }
+    }
+
+    @Test
+    void tornTailIsTruncatedAndLaterRecordsFollowTheLastIntactOne() throws IOException {
+        Path path = tempDir.resolve("chunks.bin");
+        List<CodeChunk> chunks = VectorStoreTest.chunks(10);
+        long intactSize;
+        try (ChunkStore store = ChunkStore.open(path, objectMapper, false)) {
+            for (CodeChunk chunk : chunks.subList(0, 9)) {
+                store.put(chunk);
+            }
+            store.flush();
+            intactSize = store.fileBytes();
+            // Not flushed, so it is verified on open
+            store.put(chunks.get(9));
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(path) - 3);
+        }
+
+        try (ChunkStore store = ChunkStore.open(path, objectMapper, false)) {
+            assertEquals(9, store.size());
+            assertEquals(intactSize, store.fileBytes());
+            assertNull(store.get("chunk9"));
+            store.put(chunks.get(9));
+        }
+        try (ChunkStore store = ChunkStore.open(path, objectMapper, false)) {
+            assertEquals(10, store.size());
+            assertEquals(chunks.get(9).getContent(), store.get("chunk9").getContent());
+        }
+    }
+
+    @Test
+    void compactionDropsDeadRecordsAndKeepsLiveOnes() throws IOException {
+        Path path = tempDir.resolve("chunks.bin");
+        List<CodeChunk> chunks = VectorStoreTest.chunks(200);
+        try (ChunkStore store = ChunkStore.open(path, objectMapper, false)) {
+            for (CodeChunk chunk : chunks) {
+                store.put(chunk);
+            }
+            for (int i = 0; i < 150; i++) {
+                store.remove(chunks.get(i).getId());
+            }
+            assertTrue(store.compactIfWasteful());
+            assertEquals(store.liveBytes(), store.fileBytes() - 16);
+        }
+        try (ChunkStore store = ChunkStore.open(path, objectMapper, false)) {
+            assertEquals(50, store.size());
+            assertNull(store.get("chunk0"));
+            assertEquals(chunks.get(199).getContent(), store.get("chunk199").getContent());
+        }
+    }
+}
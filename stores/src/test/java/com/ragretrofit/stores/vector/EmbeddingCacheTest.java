@@ -0,0 +1,97 @@
+package com.ragretrofit.stores.vector;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class EmbeddingCacheTest {
+
+    private static final String MODEL = "all-MiniLM-L6-v2";
+    private static final int DIMENSION = 384;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void entriesSurviveReopeningAndDuplicatesAreNotAppended() throws IOException {
+        Path path = tempDir.resolve("embeddings.cache");
+        // Enough entries to grow the in-memory table past its initial capacity
+        List<float[]> vectors = VectorStoreTest.randomVectors(5000, new Random(71));
+        try (EmbeddingCache cache = EmbeddingCache.open(path, MODEL, DIMENSION)) {
+            for (int i = 0; i < vectors.size(); i++) {
+                cache.put("text" + i, vectors.get(i));
+            }
+            long fileBytes = Files.size(path);
+            cache.put("text0", vectors.get(1));
+            assertEquals(fileBytes, Files.size(path));
+            assertArrayEquals(vectors.get(0), cache.get("text0"));
+        }
+
+        try (EmbeddingCache cache = EmbeddingCache.open(path, MODEL, DIMENSION)) {
+            assertEquals(vectors.size(), cache.size());
+            for (int i = 0; i < vectors.size(); i++) {
+                assertArrayEquals(vectors.get(i), cache.get("text" + i));
+            }
+            assertNull(cache.get("never embedded"));
+            assertEquals(vectors.size() + 1, cache.lookups());
+            assertEquals(vectors.size(), cache.hits());
+        }
+    }
+
+    @Test
+    void tornRecordIsDroppedAndTheCacheKeepsAppendingAfterIt() throws IOException {
+        Path path = tempDir.resolve("embeddings.cache");
+        List<float[]> vectors = VectorStoreTest.randomVectors(3, new Random(73));
+        try (EmbeddingCache cache = EmbeddingCache.open(path, MODEL, DIMENSION)) {
+            cache.put("first", vectors.get(0));
+            cache.put("second", vectors.get(1));
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(path) - 5);
+        }
+
+        try (EmbeddingCache cache = EmbeddingCache.open(path, MODEL, DIMENSION)) {
+            assertEquals(1, cache.size());
+            assertArrayEquals(vectors.get(0), cache.get("first"));
+            assertNull(cache.get("second"));
+            cache.put("third", vectors.get(2));
+        }
+        try (EmbeddingCache cache = EmbeddingCache.open(path, MODEL, DIMENSION)) {
+            assertEquals(2, cache.size());
+            assertArrayEquals(vectors.get(2), cache.get("third"));
+        }
+    }
+
+    @Test
+    void anotherModelOrDimensionStartsAfresh() throws IOException {
+        Path path = tempDir.resolve("embeddings.cache");
+        float[] vector = VectorStoreTest.randomVectors(1, new Random(79)).get(0);
+        try (EmbeddingCache cache = EmbeddingCache.open(path, MODEL, DIMENSION)) {
+            cache.put("text", vector);
+        }
+
+        try (EmbeddingCache cache = EmbeddingCache.open(path, "bge-small-en-v1.5", DIMENSION)) {
+            assertEquals(0, cache.size());
+            assertNull(cache.get("text"));
+        }
+        try (EmbeddingCache cache = EmbeddingCache.open(path, MODEL, DIMENSION)) {
+            // The other model's open discarded the file
+            assertEquals(0, cache.size());
+            cache.put("text", vector);
+        }
+        try (EmbeddingCache cache = EmbeddingCache.open(path, MODEL, 768)) {
+            assertEquals(0, cache.size());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.ragretrofit.stores.vector;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PcaProjectionTest {
+
+    private static final int DIMENSION = 384;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void rescoredProjectionFindsNearlyAllExactNeighboursOfLowRankData() {
+        // Embeddings concentrate in far fewer directions than they have dimensions
+        Random random = new Random(47);
+        float[][] basis = basis(32, random);
+        FlatVectorStorage storage = ScalarQuantizerTest.storage(lowRankVectors(2000, basis, random));
+        PcaProjection projection = PcaProjection.train(storage, 64);
+
+        double recall = ScalarQuantizerTest.recallAt10(storage, projection, lowRankVectors(50, basis, random));
+        assertTrue(recall >= 0.9, "PCA recall@10 with 4x rescoring was " + recall);
+    }
+
+    @Test
+    void loadedProjectionCatchesUpWithRowsAddedAfterSavingAndRejectsOtherComponentCounts() throws IOException {
+        Random random = new Random(53);
+        List<float[]> vectors = lowRankVectors(600, basis(32, random), random);
+        FlatVectorStorage storage = ScalarQuantizerTest.storage(vectors.subList(0, 400));
+        PcaProjection projection = PcaProjection.train(storage, 64);
+        Path path = tempDir.resolve("vectors.pca");
+        projection.save(path);
+        for (int i = 400; i < 600; i++) {
+            projection.set(storage.put("chunk" + i, vectors.get(i)), storage.vectorAt(i));
+        }
+
+        PcaProjection loaded = PcaProjection.load(path, storage, 64);
+        assertNotNull(loaded);
+        assertEquals(600, loaded.size());
+        float[] query = storage.vectorAt(500);
+        CompressedVectors.Scorer expected = projection.prepare(query);
+        CompressedVectors.Scorer scorer = loaded.prepare(query);
+        for (int ordinal = 0; ordinal < 600; ordinal++) {
+            assertEquals(expected.score(ordinal), scorer.score(ordinal), 1e-5);
+        }
+        assertNull(PcaProjection.load(path, storage, 32));
+    }
+
+    private static float[][] basis(int rank, Random random) {
+        return VectorStoreTest.randomVectors(rank, random).toArray(new float[0][]);
+    }
+
+    /**
+     * Random combinations of the basis vectors plus a little isotropic noise
+     */
+    private static List<float[]> lowRankVectors(int count, float[][] basis, Random random) {
+        List<float[]> vectors = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            float[] vector = new float[DIMENSION];
+            for (float[] direction : basis) {
+                float weight = (float) random.nextGaussian();
+                for (int d = 0; d < DIMENSION; d++) {
+                    vector[d] += weight * direction[d];
+                }
+            }
+            for (int d = 0; d < DIMENSION; d++) {
+                vector[d] += 0.05f * (float) random.nextGaussian();
+            }
+            vectors.add(vector);
+        }
+        return vectors;
+    }
+}
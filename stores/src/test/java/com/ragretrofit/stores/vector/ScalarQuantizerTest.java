@@ -0,0 +1,112 @@
+package com.ragretrofit.stores.vector;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.IntToDoubleFunction;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ScalarQuantizerTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void rescoredInt8ScanFindsNearlyAllExactNeighbours() {
+        FlatVectorStorage storage = storage(VectorStoreTest.randomVectors(2000, new Random(29)));
+        ScalarQuantizer quantizer = ScalarQuantizer.train(storage);
+
+        double recall = recallAt10(storage, quantizer, VectorStoreTest.randomVectors(50, new Random(31)));
+        assertTrue(recall >= 0.95, "int8 recall@10 with 4x rescoring was " + recall);
+    }
+
+    @Test
+    void tombstonedRowsDoNotWidenTheCalibration() {
+        List<float[]> vectors = VectorStoreTest.randomVectors(500, new Random(37));
+        FlatVectorStorage live = storage(vectors);
+        FlatVectorStorage withRemovedOutlier = storage(vectors);
+        float[] outlier = new float[vectors.get(0).length];
+        outlier[0] = 1;
+        withRemovedOutlier.put("outlier", outlier);
+        withRemovedOutlier.remove("outlier");
+
+        ScalarQuantizer expected = ScalarQuantizer.train(live);
+        ScalarQuantizer trained = ScalarQuantizer.train(withRemovedOutlier);
+        assertEquals(501, trained.size());
+        float[] query = SimilarityKernels.normalize(VectorStoreTest.randomVectors(1, new Random(41)).get(0));
+        CompressedVectors.Scorer expectedScorer = expected.prepare(query);
+        CompressedVectors.Scorer scorer = trained.prepare(query);
+        for (int ordinal = 0; ordinal < vectors.size(); ordinal++) {
+            assertEquals(expectedScorer.score(ordinal), scorer.score(ordinal), 1e-6);
+        }
+    }
+
+    @Test
+    void loadedCodesCatchUpWithRowsAddedAfterSaving() throws IOException {
+        List<float[]> vectors = VectorStoreTest.randomVectors(600, new Random(43));
+        FlatVectorStorage storage = storage(vectors.subList(0, 400));
+        ScalarQuantizer quantizer = ScalarQuantizer.train(storage);
+        Path path = tempDir.resolve("vectors.int8");
+        quantizer.save(path);
+        for (int i = 400; i < 600; i++) {
+            quantizer.set(storage.put("chunk" + i, vectors.get(i)), storage.vectorAt(i));
+        }
+
+        ScalarQuantizer loaded = ScalarQuantizer.load(path, storage);
+        assertNotNull(loaded);
+        assertEquals(600, loaded.size());
+        float[] query = storage.vectorAt(500);
+        CompressedVectors.Scorer expected = quantizer.prepare(query);
+        CompressedVectors.Scorer scorer = loaded.prepare(query);
+        for (int ordinal = 0; ordinal < 600; ordinal++) {
+            assertEquals(expected.score(ordinal), scorer.score(ordinal), 1e-6);
+        }
+    }
+
+    static FlatVectorStorage storage(List<float[]> vectors) {
+        FlatVectorStorage storage = new FlatVectorStorage();
+        for (int i = 0; i < vectors.size(); i++) {
+            storage.put("chunk" + i, vectors.get(i));
+        }
+        return storage;
+    }
+
+    /**
+     * Fraction of the exact top 10 found by taking the compressed top 40 and rescoring it in float32
+     */
+    static double recallAt10(FlatVectorStorage storage, CompressedVectors compressed, List<float[]> queries) {
+        int found = 0;
+        for (float[] query : queries) {
+            float[] unitQuery = SimilarityKernels.normalize(query);
+            Set<Integer> exact = new HashSet<>(topOrdinals(storage.size(), 10,
+                    ordinal -> storage.similarity(unitQuery, ordinal)));
+            CompressedVectors.Scorer scorer = compressed.prepare(unitQuery);
+            List<Integer> candidates = topOrdinals(storage.size(), 40, scorer::score);
+            List<Integer> rescored = topOrdinals(candidates.size(), 10,
+                    i -> storage.similarity(unitQuery, candidates.get(i)));
+            for (int i : rescored) {
+                if (exact.contains(candidates.get(i))) {
+                    found++;
+                }
+            }
+        }
+        return (double) found / (queries.size() * 10);
+    }
+
+    private static List<Integer> topOrdinals(int count, int k, IntToDoubleFunction score) {
+        return IntStream.range(0, count).boxed()
+                .sorted((a, b) -> Double.compare(score.applyAsDouble(b), score.applyAsDouble(a)))
+                .limit(k)
+                .toList();
+    }
+}
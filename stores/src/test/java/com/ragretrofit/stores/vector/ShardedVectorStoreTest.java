@@ -0,0 +1,56 @@
+package com.ragretrofit.stores.vector;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ShardedVectorStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void reopeningWithADifferentShardLayoutIsRejected() throws Exception {
+        Path path = tempDir.resolve("vectors");
+        VectorStoreConfig fourByChunkId = VectorStoreConfig.builder().shards(4).build();
+        try (ShardedVectorStore store = new ShardedVectorStore(path, fourByChunkId)) {
+            store.addChunks(VectorStoreTest.chunks(12));
+        }
+
+        assertThrows(IllegalStateException.class,
+                () -> new ShardedVectorStore(path, VectorStoreConfig.builder().shards(2).build()));
+        assertThrows(IllegalStateException.class, () -> new ShardedVectorStore(path,
+                VectorStoreConfig.builder(fourByChunkId).shardBy(VectorStoreConfig.Sharding.PACKAGE).build()));
+        assertEquals(4, CodeVectorStore.recordedShards(path));
+
+        // Opening by path follows the recorded layout whatever the config asks for
+        try (CodeVectorStore reopened = CodeVectorStore.open(path, VectorStoreConfig.defaults())) {
+            assertEquals(4, assertInstanceOf(ShardedVectorStore.class, reopened).shardCount());
+            assertEquals(12, reopened.size());
+        }
+    }
+
+    @Test
+    void shardingAnUnshardedIndexIsRejected() {
+        Path path = tempDir.resolve("vectors");
+        try (VectorStore store = new VectorStore(path, VectorStoreConfig.defaults())) {
+            store.storeAll(VectorStoreTest.chunks(100), VectorStoreTest.randomVectors(100, new Random(23)));
+        }
+
+        assertThrows(IllegalStateException.class,
+                () -> new ShardedVectorStore(path, VectorStoreConfig.builder().shards(2).build()));
+        assertFalse(Files.exists(ShardedVectorStore.layoutPathFor(path)));
+        try (CodeVectorStore reopened = CodeVectorStore.open(path, VectorStoreConfig.defaults())) {
+            assertInstanceOf(VectorStore.class, reopened);
+            assertEquals(100, reopened.size());
+        }
+    }
+}
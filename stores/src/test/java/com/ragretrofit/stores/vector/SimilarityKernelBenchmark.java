@@ -0,0 +1,119 @@
+package com.ragretrofit.stores.vector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scores one query against a block of rows with each similarity kernel, over float32 rows on the
+ * heap, float32 rows in a little-endian buffer as mapped from a segment, and int8 codes. Not run by
+ * the test suite; after {@code mvn -pl stores test-compile}, run {@link #main} or
+ * {@code org.openjdk.jmh.Main SimilarityKernelBenchmark} with the stores test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class SimilarityKernelBenchmark {
+
+    private static final int ROWS = 1024;
+
+    @Param({"scalar", "unrolled", "simd"})
+    public String kernelName;
+
+    @Param({"384", "768"})
+    public int dimension;
+
+    private SimilarityKernel kernel;
+    private float[] query;
+    private float[] rows;
+    private ByteBuffer mappedRows;
+    private byte[] codes;
+
+    @Setup
+    public void setUp() {
+        switch (kernelName) {
+            case "scalar":
+                kernel = new SimilarityKernels.Scalar();
+                break;
+            case "unrolled":
+                kernel = new SimilarityKernels.Unrolled();
+                break;
+            case "simd":
+                // Fails the run rather than quietly measuring a fallback
+                kernel = new SimdSimilarityKernel();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown kernel " + kernelName);
+        }
+
+        Random random = new Random(42);
+        query = randomUnitVector(random);
+        rows = new float[ROWS * dimension];
+        mappedRows = ByteBuffer.allocateDirect(rows.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        codes = new byte[ROWS * dimension];
+        for (int row = 0; row < ROWS; row++) {
+            float[] vector = randomUnitVector(random);
+            System.arraycopy(vector, 0, rows, row * dimension, dimension);
+            for (int i = 0; i < dimension; i++) {
+                mappedRows.putFloat(vector[i]);
+                codes[row * dimension + i] = (byte) (random.nextInt(256) - 128);
+            }
+        }
+        mappedRows.flip();
+    }
+
+    @Benchmark
+    public float heapRows() {
+        float sum = 0f;
+        for (int row = 0; row < ROWS; row++) {
+            sum += kernel.dot(query, rows, row * dimension, dimension);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public float mappedRows() {
+        float sum = 0f;
+        for (int row = 0; row < ROWS; row++) {
+            sum += kernel.dot(query, mappedRows, row * dimension, dimension);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public float int8Codes() {
+        float sum = 0f;
+        for (int row = 0; row < ROWS; row++) {
+            sum += kernel.dot(query, codes, row * dimension, dimension);
+        }
+        return sum;
+    }
+
+    private float[] randomUnitVector(Random random) {
+        float[] vector = new float[dimension];
+        for (int i = 0; i < dimension; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return SimilarityKernels.normalize(vector);
+    }
+
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(new String[] {SimilarityKernelBenchmark.class.getSimpleName()});
+    }
+}
@@ -0,0 +1,445 @@
+package com.ragretrofit.stores.vector;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ragretrofit.indexer.model.CodeChunk;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class VectorStoreTest {
+
+    private static final int DIMENSION = 384;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void changedChunkIsFoundThroughHnswAtItsNewPosition() {
+        assertReaddedChunksFound(VectorStoreConfig.SearchMode.HNSW);
+    }
+
+    @Test
+    void changedChunkIsFoundThroughIvfPqInItsNewList() {
+        assertReaddedChunksFound(VectorStoreConfig.SearchMode.IVF_PQ);
+    }
+
+    @Test
+    void retrainedIvfPqIndexCoversRowsAddedAndRemovedSinceTraining() {
+        Random random = new Random(13);
+        List<CodeChunk> chunks = chunks(3000);
+        List<float[]> vectors = randomVectors(chunks.size(), random);
+        VectorStoreConfig config = VectorStoreConfig.builder()
+                .searchMode(VectorStoreConfig.SearchMode.IVF_PQ)
+                .compactionThreshold(1.0)
+                .build();
+
+        try (VectorStore store = new VectorStore(tempDir.resolve("vectors"), config)) {
+            store.storeAll(chunks.subList(0, 500), vectors.subList(0, 500));
+            store.saveToDisk();
+            for (int i = 0; i < 400; i++) {
+                store.removeChunk(chunks.get(i).getId());
+            }
+            // Four times the trained corpus, so this checkpoint retrains on the live rows
+            store.storeAll(chunks.subList(500, 3000), vectors.subList(500, 3000));
+            store.saveToDisk();
+
+            List<CodeChunk> live = chunks.subList(400, 3000);
+            assertEquals(live.size(), store.size());
+            assertEquals(live.size(), topHits(store, live, vectors.subList(400, 3000)));
+            for (int i = 0; i < 400; i++) {
+                for (VectorStore.SimilarityResult result : store.findSimilarToVector(vectors.get(i), 5)) {
+                    assertNotEquals(chunks.get(i).getId(), result.getChunkId());
+                }
+            }
+        }
+    }
+
+    @Test
+    void crashedStoreReplaysLoggedChangesUpToATornTail() throws IOException {
+        Random random = new Random(17);
+        List<CodeChunk> chunks = chunks(400);
+        List<float[]> vectors = randomVectors(chunks.size(), random);
+        Path live = Files.createDirectories(tempDir.resolve("live"));
+        Path crashed = Files.createDirectories(tempDir.resolve("crashed"));
+
+        try (VectorStore store = new VectorStore(live.resolve("vectors"), VectorStoreConfig.defaults())) {
+            store.storeAll(chunks.subList(0, 300), vectors.subList(0, 300));
+            store.saveToDisk();
+            store.storeAll(chunks.subList(300, 400), vectors.subList(300, 400));
+            for (int i = 0; i < 50; i++) {
+                store.removeChunk(chunks.get(i).getId());
+            }
+            // Every change is committed to the log but not checkpointed; copy the files as a crash would leave them
+            copyFiles(live, crashed);
+        }
+        // Tear the last record, the removal of chunk49, as if the crash hit mid-append
+        Path wal = VectorStore.walPathFor(crashed.resolve("vectors"));
+        try (FileChannel channel = FileChannel.open(wal, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try (VectorStore store = new VectorStore(crashed.resolve("vectors"), VectorStoreConfig.defaults())) {
+                assertEquals(351, store.size());
+                assertEquals(351, topHits(store, chunks.subList(49, 400), vectors.subList(49, 400)));
+                for (int i = 0; i < 49; i++) {
+                    for (VectorStore.SimilarityResult result : store.findSimilarToVector(vectors.get(i), 5)) {
+                        assertNotEquals(chunks.get(i).getId(), result.getChunkId());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void compactionRacingWithAddsAndRemovesKeepsEveryChange() throws IOException {
+        Random random = new Random(19);
+        List<CodeChunk> chunks = chunks(3000);
+        List<float[]> vectors = randomVectors(chunks.size(), random);
+        List<float[]> changedVectors = randomVectors(100, random);
+        // Compaction only runs when the test asks for it
+        VectorStoreConfig config = VectorStoreConfig.builder().compactionThreshold(1.0).build();
+        Path path = tempDir.resolve("vectors");
+
+        try (VectorStore store = new VectorStore(path, config)) {
+            store.storeAll(chunks.subList(0, 2000), vectors.subList(0, 2000));
+            for (int i = 0; i < 1000; i++) {
+                store.removeChunk(chunks.get(i).getId());
+            }
+
+            // Add 1000 chunks, remove 500 and change 100 while the main thread keeps compacting
+            CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+                for (int batch = 0; batch < 20; batch++) {
+                    int from = 2000 + batch * 50;
+                    store.storeAll(chunks.subList(from, from + 50), vectors.subList(from, from + 50));
+                    for (int i = 1000 + batch * 25; i < 1000 + (batch + 1) * 25; i++) {
+                        store.removeChunk(chunks.get(i).getId());
+                    }
+                    int changed = 1500 + batch * 5;
+                    store.storeAll(chunks.subList(changed, changed + 5), changedVectors.subList(batch * 5, batch * 5 + 5));
+                }
+            });
+            int compactions = 0;
+            while (!writer.isDone()) {
+                if (store.compact()) {
+                    compactions++;
+                }
+            }
+            writer.join();
+            assertTrue(compactions > 0);
+            store.compact();
+
+            assertStoreHolds(store, chunks, vectors, changedVectors);
+        }
+        try (VectorStore reopened = new VectorStore(path, config)) {
+            assertStoreHolds(reopened, chunks, vectors, changedVectors);
+        }
+    }
+
+    @Test
+    void checkpointsAppendDeltaSegmentsAndSkipWhenNothingChanged() throws IOException {
+        Random random = new Random(23);
+        List<CodeChunk> chunks = chunks(900);
+        List<float[]> vectors = randomVectors(chunks.size(), random);
+        VectorStoreConfig config = VectorStoreConfig.builder().compactionThreshold(1.0).build();
+        Path path = tempDir.resolve("vectors");
+        Path segment = VectorStore.segmentPathFor(path);
+
+        try (VectorStore store = new VectorStore(path, config)) {
+            for (int batch = 0; batch < 3; batch++) {
+                store.storeAll(chunks.subList(batch * 300, batch * 300 + 300), vectors.subList(batch * 300, batch * 300 + 300));
+                store.saveToDisk();
+            }
+            for (int i = 0; i < 100; i++) {
+                store.removeChunk(chunks.get(i).getId());
+            }
+            store.saveToDisk();
+            // The base segment is written once; later rows go to deltas, removals to the tombstone file
+            assertTrue(Files.exists(segment.resolveSibling(segment.getFileName() + ".300")));
+            assertTrue(Files.exists(segment.resolveSibling(segment.getFileName() + ".600")));
+            assertTrue(Files.exists(VectorStore.tombstonesPathFor(path)));
+
+            long modified = Files.getLastModifiedTime(VectorStore.tombstonesPathFor(path)).toMillis();
+            long segments = countSegments(segment);
+            store.saveToDisk();
+            assertEquals(modified, Files.getLastModifiedTime(VectorStore.tombstonesPathFor(path)).toMillis());
+            assertEquals(segments, countSegments(segment));
+        }
+        try (VectorStore reopened = new VectorStore(path, config)) {
+            assertEquals(800, reopened.size());
+            assertEquals(800, topHits(reopened, chunks.subList(100, 900), vectors.subList(100, 900)));
+            assertNull(reopened.getChunk(chunks.get(0).getId()));
+            assertEquals(chunks.get(899).getContent(), reopened.getChunk(chunks.get(899).getId()).getContent());
+
+            // Compaction merges the chain back into one base segment
+            assertTrue(reopened.compact());
+            assertEquals(1, countSegments(segment));
+            assertFalse(Files.exists(VectorStore.tombstonesPathFor(path)));
+        }
+        try (VectorStore compacted = new VectorStore(path, config)) {
+            assertEquals(800, topHits(compacted, chunks.subList(100, 900), vectors.subList(100, 900)));
+        }
+    }
+
+    @Test
+    void filteredExactSearchReturnsTheBestMatchingChunks() {
+        assertFilteredSearch(VectorStoreConfig.SearchMode.EXACT);
+    }
+
+    @Test
+    void filteredHnswSearchReturnsOnlyMatchingChunksEvenWhenFewMatch() {
+        assertFilteredSearch(VectorStoreConfig.SearchMode.HNSW);
+    }
+
+    /**
+     * Filter on one package of seven, then on one file of ten chunks, comparing with a brute-force
+     * scan of the matching chunks; ANN modes must find most of its top results
+     */
+    private void assertFilteredSearch(VectorStoreConfig.SearchMode searchMode) {
+        List<CodeChunk> chunks = chunks(1400);
+        List<float[]> vectors = randomVectors(chunks.size(), new Random(59));
+        VectorStoreConfig config = VectorStoreConfig.builder().searchMode(searchMode).build();
+
+        try (VectorStore store = new VectorStore(tempDir.resolve("vectors"), config)) {
+            store.storeAll(chunks, vectors);
+            String query = "load the user account";
+            float[] queryVector = SimilarityKernels.normalize(store.embedQuery(query));
+
+            VectorFilter onePackage = VectorFilter.builder().packages(List.of("com.example.p3")).build();
+            List<VectorStore.SimilarityResult> results = store.findSimilar(query, 10, -1.0, onePackage);
+            List<String> expected = bruteForce(chunks, vectors, queryVector, onePackage, 10);
+            assertEquals(10, results.size());
+            assertTrue(results.stream().allMatch(result -> onePackage.matches(result.getChunk())));
+            long found = results.stream().filter(result -> expected.contains(result.getChunkId())).count();
+            if (searchMode == VectorStoreConfig.SearchMode.EXACT) {
+                assertEquals(expected, results.stream().map(VectorStore.SimilarityResult::getChunkId).toList());
+            } else {
+                assertTrue(found >= 8, "found " + found + " of the exact filtered top 10");
+            }
+
+            // Fewer matches than requested: all ten chunks of the file come back
+            VectorFilter oneFile = VectorFilter.builder().filePaths(List.of("src/Type42.java")).build();
+            results = store.findSimilar(query, 20, -1.0, oneFile);
+            assertEquals(bruteForce(chunks, vectors, queryVector, oneFile, 20).size(), results.size());
+            assertEquals(10, results.size());
+            assertTrue(results.stream().allMatch(result -> oneFile.matches(result.getChunk())));
+        }
+    }
+
+    @Test
+    void batchedSearchMatchesSearchingEachQueryAlone() {
+        List<CodeChunk> chunks = chunks(1000);
+        List<float[]> vectors = randomVectors(chunks.size(), new Random(61));
+        VectorStoreConfig config = VectorStoreConfig.builder()
+                .searchMode(VectorStoreConfig.SearchMode.EXACT)
+                .build();
+
+        try (VectorStore store = new VectorStore(tempDir.resolve("vectors"), config)) {
+            store.storeAll(chunks, vectors);
+            float[][] queries = randomVectors(12, new Random(67)).toArray(new float[0][]);
+            // A stored vector must find its own chunk first
+            queries[0] = vectors.get(321);
+
+            List<List<VectorStore.SimilarityResult>> batched =
+                    store.searchBatch(queries, 10, Double.NEGATIVE_INFINITY);
+            assertEquals(queries.length, batched.size());
+            for (int q = 0; q < queries.length; q++) {
+                assertEquals(ids(store.findSimilarToVector(queries[q], 10)), ids(batched.get(q)), "query " + q);
+            }
+            assertEquals("chunk321", batched.get(0).get(0).getChunkId());
+        }
+    }
+
+    @Test
+    void legacyJsonFileIsMigratedToASegmentOnFirstOpen() throws IOException {
+        List<CodeChunk> chunks = chunks(200);
+        List<float[]> vectors = randomVectors(chunks.size(), new Random(83));
+        Map<String, VectorStore.VectorEntry> vectorIndex = new LinkedHashMap<>();
+        Map<String, CodeChunk> chunkIndex = new LinkedHashMap<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            // Legacy files held raw, unnormalized model output
+            float[] raw = vectors.get(i).clone();
+            for (int d = 0; d < raw.length; d++) {
+                raw[d] *= 1 + i % 5;
+            }
+            String id = chunks.get(i).getId();
+            vectorIndex.put(id, new VectorStore.VectorEntry(id, raw, 1_700_000_000_000L + i));
+            chunkIndex.put(id, chunks.get(i));
+        }
+        Path jsonPath = tempDir.resolve("vectors.json");
+        new ObjectMapper().writeValue(jsonPath.toFile(), Map.of("vectorIndex", vectorIndex, "chunkIndex", chunkIndex));
+
+        VectorStoreConfig config = VectorStoreConfig.builder()
+                .searchMode(VectorStoreConfig.SearchMode.EXACT)
+                .build();
+        try (VectorStore store = new VectorStore(jsonPath, config)) {
+            assertTrue(Files.exists(VectorStore.segmentPathFor(jsonPath)));
+            assertMigrated(store, chunks, vectors);
+        }
+        try (VectorStore store = new VectorStore(jsonPath, config)) {
+            assertMigrated(store, chunks, vectors);
+        }
+    }
+
+    private static void assertMigrated(VectorStore store, List<CodeChunk> chunks, List<float[]> vectors) {
+        assertEquals(chunks.size(), store.size());
+        for (int i : new int[] {0, 57, 199}) {
+            List<VectorStore.SimilarityResult> results = store.findSimilarToVector(vectors.get(i), 1);
+            assertEquals(chunks.get(i).getId(), results.get(0).getChunkId());
+            assertEquals(1.0, results.get(0).getSimilarity(), 1e-5);
+            assertEquals(chunks.get(i).getContent(), results.get(0).getChunk().getContent());
+        }
+    }
+
+    private static List<String> ids(List<VectorStore.SimilarityResult> results) {
+        return results.stream().map(VectorStore.SimilarityResult::getChunkId).toList();
+    }
+
+    private static List<String> bruteForce(List<CodeChunk> chunks, List<float[]> vectors, float[] unitQuery,
+                                           VectorFilter filter, int k) {
+        List<Integer> matching = new ArrayList<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            if (filter.matches(chunks.get(i))) {
+                matching.add(i);
+            }
+        }
+        float[][] units = new float[chunks.size()][];
+        for (int i : matching) {
+            units[i] = SimilarityKernels.normalize(vectors.get(i));
+        }
+        return matching.stream()
+                .sorted((a, b) -> Double.compare(dot(unitQuery, units[b]), dot(unitQuery, units[a])))
+                .limit(k)
+                .map(i -> chunks.get(i).getId())
+                .toList();
+    }
+
+    private static double dot(float[] a, float[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private static long countSegments(Path segment) throws IOException {
+        String name = segment.getFileName().toString();
+        try (Stream<Path> files = Files.list(segment.toAbsolutePath().getParent())) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(file -> file.equals(name) || file.matches(Pattern.quote(name) + "\\.\\d+"))
+                    .count();
+        }
+    }
+
+    /**
+     * The store holds chunks 1500 to 2999, the first 100 of them with their changed vectors
+     */
+    private static void assertStoreHolds(VectorStore store, List<CodeChunk> chunks, List<float[]> vectors,
+                                         List<float[]> changedVectors) {
+        assertEquals(1500, store.size());
+        assertEquals(100, topHits(store, chunks.subList(1500, 1600), changedVectors));
+        assertEquals(1400, topHits(store, chunks.subList(1600, 3000), vectors.subList(1600, 3000)));
+        for (int i = 0; i < 1500; i += 10) {
+            String removedId = chunks.get(i).getId();
+            assertFalse(store.findSimilarToVector(vectors.get(i), 5).stream()
+                    .anyMatch(result -> result.getChunkId().equals(removedId)));
+        }
+    }
+
+    private static void copyFiles(Path from, Path to) throws IOException {
+        try (Stream<Path> files = Files.list(from)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (Files.isRegularFile(file)) {
+                    Files.copy(file, to.resolve(file.getFileName()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Re-add a tenth of the chunks with new vectors and search for each new vector, before and after
+     * a restart; every re-added chunk must come back first
+     */
+    private void assertReaddedChunksFound(VectorStoreConfig.SearchMode searchMode) {
+        Random random = new Random(11);
+        List<CodeChunk> chunks = chunks(2000);
+        VectorStoreConfig config = VectorStoreConfig.builder()
+                .searchMode(searchMode)
+                .compactionThreshold(1.0)
+                .build();
+        Path path = tempDir.resolve("vectors");
+
+        List<CodeChunk> changed = chunks.subList(0, 200);
+        List<float[]> changedVectors = randomVectors(changed.size(), random);
+        try (VectorStore store = new VectorStore(path, config)) {
+            store.storeAll(chunks, randomVectors(chunks.size(), random));
+            store.saveToDisk();
+            store.storeAll(changed, changedVectors);
+
+            assertEquals(chunks.size(), store.size());
+            assertEquals(changed.size(), topHits(store, changed, changedVectors));
+        }
+        try (VectorStore reopened = new VectorStore(path, config)) {
+            assertEquals(chunks.size(), reopened.size());
+            assertEquals(changed.size(), topHits(reopened, changed, changedVectors));
+        }
+    }
+
+    private static int topHits(VectorStore store, List<CodeChunk> chunks, List<float[]> vectors) {
+        int hits = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            List<VectorStore.SimilarityResult> results = store.findSimilarToVector(vectors.get(i), 1);
+            if (!results.isEmpty() && results.get(0).getChunkId().equals(chunks.get(i).getId())) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    static List<CodeChunk> chunks(int count) {
+        List<CodeChunk> chunks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            chunks.add(CodeChunk.builder()
+                    .id("chunk" + i)
+                    .content("void method" + i + "() {}")
+                    .type(CodeChunk.ChunkType.METHOD)
+                    .filePath("src/Type" + (i / 10) + ".java")
+                    .packageContext("com.example.p" + (i % 7))
+                    .startLine(1)
+                    .endLine(2)
+                    .build());
+        }
+        return chunks;
+    }
+
+    static List<float[]> randomVectors(int count, Random random) {
+        List<float[]> vectors = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            float[] vector = new float[DIMENSION];
+            for (int d = 0; d < DIMENSION; d++) {
+                vector[d] = (float) random.nextGaussian();
+            }
+            vectors.add(vector);
+        }
+        return vectors;
+    }
+}
@@ -0,0 +1,145 @@
+package com.ragretrofit.stores.vector;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ragretrofit.indexer.model.CodeChunk;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class WriteAheadLogTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void replayStopsBeforeATornRecordAndTruncatesIt() throws IOException {
+        Path path = tempDir.resolve("vectors.wal");
+        long intactSize = writeLog(path, 2);
+        appendRecordPrefix(path, intactSize);
+
+        assertEquals(List.of("add:chunk0", "add:chunk1", "remove:chunk0"), replay(path));
+        assertEquals(intactSize, Files.size(path));
+    }
+
+    @Test
+    void replayStopsAtACorruptRecordAndTruncatesEverythingAfterIt() throws IOException {
+        Path path = tempDir.resolve("vectors.wal");
+        List<Long> recordEnds = new ArrayList<>();
+        try (WriteAheadLog log = WriteAheadLog.open(path, objectMapper, true, recorder(new ArrayList<>()))) {
+            for (CodeChunk chunk : VectorStoreTest.chunks(4)) {
+                log.logAdd(chunk, new float[] {1, 2, 3});
+                log.commit();
+                recordEnds.add(Files.size(path));
+            }
+        }
+        // Flip a payload byte of the third record, so its checksum no longer matches
+        flipByte(path, recordEnds.get(1) + 12);
+
+        assertEquals(List.of("add:chunk0", "add:chunk1"), replay(path));
+        assertEquals(recordEnds.get(1), Files.size(path));
+    }
+
+    @Test
+    void recordsLoggedAfterRecoveryFollowTheLastIntactRecord() throws IOException {
+        Path path = tempDir.resolve("vectors.wal");
+        long intactSize = writeLog(path, 2);
+        appendRecordPrefix(path, intactSize);
+
+        try (WriteAheadLog log = WriteAheadLog.open(path, objectMapper, true, recorder(new ArrayList<>()))) {
+            log.logRemove("chunk1");
+            log.commit();
+        }
+
+        assertEquals(List.of("add:chunk0", "add:chunk1", "remove:chunk0", "remove:chunk1"), replay(path));
+    }
+
+    @Test
+    void rotatedGenerationsReplayInOrderUntilDiscarded() throws IOException {
+        Path path = tempDir.resolve("vectors.wal");
+        long first;
+        try (WriteAheadLog log = WriteAheadLog.open(path, objectMapper, true, recorder(new ArrayList<>()))) {
+            List<CodeChunk> chunks = VectorStoreTest.chunks(3);
+            log.logAdd(chunks.get(0), new float[] {1, 2, 3});
+            log.commit();
+            first = log.rotate();
+            log.logAdd(chunks.get(1), new float[] {1, 2, 3});
+            log.commit();
+            log.rotate();
+            log.logRemove("chunk0");
+            log.commit();
+        }
+        assertEquals(List.of("add:chunk0", "add:chunk1", "remove:chunk0"), replay(path));
+
+        // A checkpoint that covered the first generation deletes only that one
+        try (WriteAheadLog log = WriteAheadLog.open(path, objectMapper, true, recorder(new ArrayList<>()))) {
+            log.discardThrough(first);
+        }
+        assertEquals(List.of("add:chunk1", "remove:chunk0"), replay(path));
+    }
+
+    /**
+     * Log the given number of adds followed by the removal of the first chunk; returns the file size
+     */
+    private long writeLog(Path path, int adds) throws IOException {
+        try (WriteAheadLog log = WriteAheadLog.open(path, objectMapper, true, recorder(new ArrayList<>()))) {
+            for (CodeChunk chunk : VectorStoreTest.chunks(adds)) {
+                log.logAdd(chunk, new float[] {1, 2, 3});
+            }
+            log.logRemove("chunk0");
+            log.commit();
+        }
+        return Files.size(path);
+    }
+
+    private List<String> replay(Path path) throws IOException {
+        List<String> operations = new ArrayList<>();
+        try (WriteAheadLog log = WriteAheadLog.open(path, objectMapper, true, recorder(operations))) {
+            return operations;
+        }
+    }
+
+    private static WriteAheadLog.Replayer recorder(List<String> operations) {
+        return new WriteAheadLog.Replayer() {
+            @Override
+            public void add(CodeChunk chunk, float[] vector) {
+                operations.add("add:" + chunk.getId());
+            }
+
+            @Override
+            public void remove(String chunkId) {
+                operations.add("remove:" + chunkId);
+            }
+        };
+    }
+
+    /**
+     * The header and first payload bytes of a record whose append was cut short by a crash
+     */
+    private static void appendRecordPrefix(Path path, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            ByteBuffer torn = ByteBuffer.allocate(11).putInt(100).putInt(0x1234).put(new byte[] {2, 0, 0});
+            torn.flip();
+            channel.write(torn, position);
+        }
+    }
+
+    private static void flipByte(Path path, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer value = ByteBuffer.allocate(1);
+            channel.read(value, position);
+            channel.write(ByteBuffer.wrap(new byte[] {(byte) ~value.get(0)}), position);
+        }
+    }
+}